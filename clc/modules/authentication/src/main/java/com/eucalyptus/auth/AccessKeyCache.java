@@ -0,0 +1,328 @@
+/*************************************************************************
+ * Copyright 2009-2014 Eucalyptus Systems, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ *
+ * Please contact Eucalyptus Systems, Inc., 6755 Hollister Ave., Goleta
+ * CA 93117, USA or visit http://www.eucalyptus.com/licenses/ if you need
+ * additional information or have any questions.
+ ************************************************************************/
+
+package com.eucalyptus.auth;
+
+import java.util.Date;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.log4j.Logger;
+import org.hibernate.criterion.Projections;
+import com.eucalyptus.auth.entities.AccessKeyEntity;
+import com.eucalyptus.auth.entities.UserEntity;
+import com.eucalyptus.auth.principal.AccessKey;
+import com.eucalyptus.auth.principal.User;
+import com.eucalyptus.bootstrap.Bootstrap;
+import com.eucalyptus.empyrean.Empyrean;
+import com.eucalyptus.entities.Entities;
+import com.eucalyptus.entities.TransactionResource;
+import com.eucalyptus.event.ClockTick;
+import com.eucalyptus.event.EventListener;
+import com.eucalyptus.event.Listeners;
+import com.eucalyptus.system.Threads;
+import com.eucalyptus.util.Mbeans;
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Cache of access key snapshots by access key identifier.
+ * 
+ * Snapshots hold the secret key, active flag and the owning user (with account number and
+ * enabled state) so signature verification needs no database access once warm. Unknown access
+ * key identifiers are cached for a short period.
+ * 
+ * Changes made locally invalidate on commit. Changes made by other hosts are detected by
+ * polling the access key and user tables for changes in row count or last update time.
+ */
+public class AccessKeyCache {
+  private static final Logger                      LOG        = Logger.getLogger( AccessKeyCache.class );
+  private static final Cache<String, Entry>        keys       = CacheBuilder.newBuilder( ).maximumSize( 50000 ).build( );
+  private static final AtomicLong                  generation = new AtomicLong( );
+  private static final CacheStatistics             statistics = new CacheStatistics( );
+  private static final AtomicBoolean               registered = new AtomicBoolean( false );
+  
+  /**
+   * Lookup the access key snapshot for the given identifier.
+   * 
+   * @throws AuthException if the key is not found
+   */
+  static AccessKeySnapshot lookupAccessKey( final String accessKeyId ) throws AuthException {
+    return lookupAccessKey( accessKeyId, DatabaseLoader.INSTANCE );
+  }
+  
+  static AccessKeySnapshot lookupAccessKey( final String accessKeyId, final Loader loader ) throws AuthException {
+    if ( AuthenticationProperties.ACCESS_KEY_CACHE_TTL <= 0 ) {
+      statistics.misses.incrementAndGet( );
+      return loader.load( accessKeyId );
+    }
+    final Entry entry = keys.getIfPresent( accessKeyId );
+    if ( entry != null && !entry.isExpired( ) ) {
+      if ( entry.key == null ) {
+        statistics.negativeHits.incrementAndGet( );
+        throw new AuthException( "Failed to find access key" );
+      }
+      statistics.hits.incrementAndGet( );
+      return entry.key;
+    }
+    statistics.misses.incrementAndGet( );
+    final long loadGeneration = generation.get( );
+    try {
+      final AccessKeySnapshot snapshot = loader.load( accessKeyId );
+      cache( accessKeyId, snapshot, loadGeneration );
+      return snapshot;
+    } catch ( final AuthException e ) {
+      if ( e.getCause( ) instanceof NoSuchElementException ) {
+        cache( accessKeyId, null, loadGeneration );
+      }
+      throw e;
+    }
+  }
+  
+  /**
+   * Invalidate any cached snapshot for the given access key.
+   */
+  public static void invalidate( final String accessKeyId ) {
+    generation.incrementAndGet( );
+    keys.invalidate( accessKeyId );
+  }
+  
+  /**
+   * Invalidate all cached snapshots, e.g. on user changes.
+   */
+  public static void invalidateAll( ) {
+    generation.incrementAndGet( );
+    keys.invalidateAll( );
+    statistics.invalidations.incrementAndGet( );
+  }
+  
+  private static void cache( final String accessKeyId, final AccessKeySnapshot snapshot, final long loadGeneration ) {
+    keys.put( accessKeyId, new Entry( snapshot ) );
+    if ( generation.get( ) != loadGeneration ) {
+      // changed while loading, value may be stale
+      keys.invalidate( accessKeyId );
+    }
+  }
+  
+  /**
+   * Loader for access key snapshots, throws an exception caused by NoSuchElementException
+   * for unknown keys.
+   */
+  interface Loader {
+    AccessKeySnapshot load( String accessKeyId ) throws AuthException;
+  }
+  
+  private enum DatabaseLoader implements Loader {
+    INSTANCE;
+    
+    @Override
+    public AccessKeySnapshot load( final String accessKeyId ) throws AuthException {
+      return AccessKeyCache.load( accessKeyId );
+    }
+  }
+  
+  private static AccessKeySnapshot load( final String accessKeyId ) throws AuthException {
+    try ( final TransactionResource db = Entities.transactionFor( AccessKeyEntity.class ) ) {
+      final AccessKeyEntity keyEntity = DatabaseAuthUtils.getUnique( AccessKeyEntity.class, "accessKey", accessKeyId );
+      final UserEntity userEntity = keyEntity.getUser( );
+      Entities.initialize( userEntity );
+      if ( userEntity.getGroups( ).size( ) < 1 ) {
+        throw new IllegalStateException( "Unexpected group number of the user" );
+      }
+      final String accountNumber = userEntity.getGroups( ).get( 0 ).getAccount( ).getAccountNumber( );
+      final AccessKeySnapshot snapshot = new AccessKeySnapshot(
+          new DatabaseAccessKeyProxy( keyEntity ),
+          new DatabaseUserProxy( userEntity, accountNumber ),
+          Boolean.TRUE.equals( userEntity.isEnabled( ) ) );
+      db.commit( );
+      return snapshot;
+    } catch ( final NoSuchElementException e ) {
+      throw new AuthException( "Failed to find access key", e );
+    } catch ( final Exception e ) {
+      Debugging.logError( LOG, e, "Failed to find access key with ID " + accessKeyId );
+      throw new AuthException( "Failed to find access key", e );
+    }
+  }
+  
+  private static final class Entry {
+    private final AccessKeySnapshot key;
+    private final long              expires;
+    
+    private Entry( final AccessKeySnapshot key ) {
+      this.key = key;
+      this.expires = System.currentTimeMillis( ) + TimeUnit.SECONDS.toMillis( key == null
+        ? AuthenticationProperties.ACCESS_KEY_NEGATIVE_CACHE_TTL
+        : AuthenticationProperties.ACCESS_KEY_CACHE_TTL );
+    }
+    
+    private boolean isExpired( ) {
+      return System.currentTimeMillis( ) > this.expires;
+    }
+  }
+  
+  /**
+   * Immutable access key snapshot, changes are made via the database and invalidate the cache.
+   */
+  static final class AccessKeySnapshot implements AccessKey {
+    private static final long serialVersionUID = 1L;
+    private final AccessKey              delegate;
+    private final String                 accessKey;
+    private final String                 secretKey;
+    private final Boolean                active;
+    private final Date                   createDate;
+    private final User                   user;
+    private final boolean                userEnabled;
+    
+    AccessKeySnapshot( final AccessKey delegate,
+                       final User user,
+                       final boolean userEnabled ) {
+      this.delegate = delegate;
+      this.accessKey = delegate.getAccessKey( );
+      this.secretKey = delegate.getSecretKey( );
+      this.active = delegate.isActive( );
+      this.createDate = delegate.getCreateDate( );
+      this.user = user;
+      this.userEnabled = userEnabled;
+    }
+    
+    @Override
+    public Boolean isActive( ) {
+      return this.active;
+    }
+    
+    @Override
+    public void setActive( final Boolean active ) throws AuthException {
+      this.delegate.setActive( active );
+    }
+    
+    @Override
+    public String getAccessKey( ) {
+      return this.accessKey;
+    }
+    
+    @Override
+    public String getSecretKey( ) {
+      return this.secretKey;
+    }
+    
+    @Override
+    public Date getCreateDate( ) {
+      return this.createDate;
+    }
+    
+    @Override
+    public User getUser( ) {
+      return this.user;
+    }
+    
+    boolean isUserEnabled( ) {
+      return this.userEnabled;
+    }
+  }
+  
+  public static class CacheStatistics {
+    private final AtomicLong hits          = new AtomicLong( );
+    private final AtomicLong negativeHits  = new AtomicLong( );
+    private final AtomicLong misses        = new AtomicLong( );
+    private final AtomicLong invalidations = new AtomicLong( );
+    
+    public long getHits( ) {
+      return this.hits.get( );
+    }
+    
+    public long getNegativeHits( ) {
+      return this.negativeHits.get( );
+    }
+    
+    public long getMisses( ) {
+      return this.misses.get( );
+    }
+    
+    public long getInvalidations( ) {
+      return this.invalidations.get( );
+    }
+    
+    public long getSize( ) {
+      return keys.size( );
+    }
+  }
+  
+  /**
+   * Invalidate when access keys or users are changed by any host.
+   */
+  public static class AccessKeyCacheEventListener implements EventListener<ClockTick>, Callable<Boolean> {
+    private static final AtomicBoolean             ready = new AtomicBoolean( true );
+    private static final AtomicReference<Object[]> stamp = new AtomicReference<Object[]>( );
+    
+    public static void register( ) {
+      Listeners.register( ClockTick.class, new AccessKeyCacheEventListener( ) );
+      if ( registered.compareAndSet( false, true ) ) {
+        Mbeans.register( statistics );
+      }
+    }
+    
+    @Override
+    public void fireEvent( final ClockTick event ) {
+      if ( Bootstrap.isFinished( ) && ready.compareAndSet( true, false ) ) {
+        try {
+          Threads.enqueue( Empyrean.class, AccessKeyCache.class, this );
+        } catch ( final Exception ex ) {
+          ready.set( true );
+        }
+      }
+    }
+    
+    @Override
+    public Boolean call( ) {
+      try {
+        final Object[] current = new Object[] { tableStamp( AccessKeyEntity.class ), tableStamp( UserEntity.class ) };
+        final Object[] previous = stamp.getAndSet( current );
+        if ( previous != null && !( Objects.equal( previous[0], current[0] ) && Objects.equal( previous[1], current[1] ) ) ) {
+          LOG.debug( "Access key or user changes detected, invalidating access key cache" );
+          invalidateAll( );
+        }
+      } catch ( final Exception ex ) {
+        LOG.error( "Error checking for access key changes, invalidating access key cache: " + ex.getMessage( ) );
+        stamp.set( null );
+        invalidateAll( );
+      } finally {
+        ready.set( true );
+      }
+      return true;
+    }
+    
+    private static String tableStamp( final Class<?> entityClass ) {
+      try ( final TransactionResource db = Entities.transactionFor( entityClass ) ) {
+        final Object[] result = ( Object[] ) Entities.createCriteria( entityClass )
+                                                     .setProjection( Projections.projectionList( )
+                                                                                .add( Projections.rowCount( ) )
+                                                                                .add( Projections.max( "lastUpdateTimestamp" ) ) )
+                                                     .setReadOnly( true )
+                                                     .uniqueResult( );
+        db.commit( );
+        return result[0] + "/" + ( result[1] instanceof Date ? ( ( Date ) result[1] ).getTime( ) : result[1] );
+      }
+    }
+  }
+}
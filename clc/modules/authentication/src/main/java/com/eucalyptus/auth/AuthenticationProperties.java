@@ -103,5 +103,14 @@ public class AuthenticationProperties {
   
   @ConfigurableField( description = "Web session lifetime in minutes", initial = "1440", displayName = "sessionlife" )
   public static Long WEBSESSION_LIFE_IN_MINUTES = 24 * 60L;// 24 hours in minutes
+
+  @ConfigurableField( description = "Lifetime in seconds for cached policies and authorization decisions, 0 to disable", initial = "60" )
+  public static Integer AUTHORIZATION_CACHE_TTL = 60;
+
+  @ConfigurableField( description = "Lifetime in seconds for cached access keys, 0 to disable", initial = "300" )
+  public static Integer ACCESS_KEY_CACHE_TTL = 300;
+
+  @ConfigurableField( description = "Lifetime in seconds for cached lookups of unknown access keys", initial = "15" )
+  public static Integer ACCESS_KEY_NEGATIVE_CACHE_TTL = 15;
   
 }
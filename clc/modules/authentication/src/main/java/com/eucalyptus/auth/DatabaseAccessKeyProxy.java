@@ -98,6 +98,7 @@ public class DatabaseAccessKeyProxy implements AccessKey {
           t.setActive( active );
         }
       } );
+      AccessKeyCache.invalidate( this.delegate.getAccessKey( ) );
     } catch ( ExecutionException e ) {
       Debugging.logError( LOG, e, "Failed to setActive for " + this.delegate );
       throw new AuthException( e );
@@ -117,6 +118,7 @@ public class DatabaseAccessKeyProxy implements AccessKey {
           t.setSecretKey( key );
         }
       } );
+      AccessKeyCache.invalidate( this.delegate.getAccessKey( ) );
     } catch ( ExecutionException e ) {
       Debugging.logError( LOG, e, "Failed to setKey for " + this.delegate );
       throw new AuthException( e );
@@ -90,6 +90,7 @@ import com.eucalyptus.auth.entities.PolicyEntity;
 import com.eucalyptus.auth.entities.RoleEntity;
 import com.eucalyptus.auth.entities.ServerCertificateEntity;
 import com.eucalyptus.auth.entities.UserEntity;
+import com.eucalyptus.auth.policy.PolicyCache;
 import com.eucalyptus.auth.policy.PolicyParser;
 import com.eucalyptus.auth.principal.Account;
 import com.eucalyptus.auth.principal.Authorization;
@@ -367,6 +368,8 @@ public class DatabaseAccountProxy implements Account {
       }
       Entities.delete( user );
       db.commit( );
+      PolicyCache.invalidate( );
+      AccessKeyCache.invalidateAll( );
     } catch ( Exception e ) {
       Debugging.logError( LOG, e, "Failed to delete user: " + userName + " in " + accountName );
       throw new AuthException( AuthException.NO_SUCH_USER, e );
@@ -421,6 +424,7 @@ public class DatabaseAccountProxy implements Account {
       final RoleEntity role = DatabaseAuthUtils.getUniqueRole( roleName, accountName );
       Entities.delete( role );
       db.commit( );
+      PolicyCache.invalidate( );
     } catch ( Exception e ) {
       Debugging.logError( LOG, e, "Failed to delete role: " + roleName + " in " + accountName );
       throw new AuthException( AuthException.NO_SUCH_ROLE, e );
@@ -488,6 +492,7 @@ public class DatabaseAccountProxy implements Account {
       GroupEntity group = DatabaseAuthUtils.getUniqueGroup( groupName, accountName );
       Entities.delete( group );
       db.commit( );
+      PolicyCache.invalidate( );
     } catch ( Exception e ) {
       Debugging.logError( LOG, e, "Failed to delete group " + groupName + " in " + accountName );
       throw new AuthException( AuthException.NO_SUCH_GROUP, e );
@@ -71,6 +71,7 @@ import java.util.NoSuchElementException;
 import java.util.Set;
 
 import com.eucalyptus.auth.entities.PolicyEntity;
+import com.eucalyptus.auth.policy.PolicyCache;
 import com.eucalyptus.auth.principal.Policy;
 import com.eucalyptus.entities.Entities;
 import org.apache.log4j.Logger;
@@ -157,18 +158,12 @@ public class DatabaseAuthProvider implements AccountProvider {
     if ( keyId == null || "".equals( keyId) ) {
       throw new AuthException( "Empty key ID" );
     }
-    try ( final TransactionResource db = Entities.transactionFor( UserEntity.class ) ) {
-      @SuppressWarnings( "unchecked" )
-      UserEntity result = ( UserEntity ) Entities
-          .createCriteria( UserEntity.class ).setCacheable( true ).add( Restrictions.eq( "enabled", true ) )
-          .createCriteria( "keys" ).setCacheable( true ).add( 
-              Restrictions.and( Restrictions.eq( "accessKey", keyId ), Restrictions.eq( "active", true ) ) )
-          .setReadOnly( true )
-          .uniqueResult( );
-      if ( result == null ) {
+    try {
+      final AccessKeyCache.AccessKeySnapshot key = AccessKeyCache.lookupAccessKey( keyId );
+      if ( !key.isUserEnabled( ) || !Boolean.TRUE.equals( key.isActive( ) ) ) {
         throw new NoSuchElementException( "Can not find user with key " + keyId );
       }
-      return new DatabaseUserProxy( result );
+      return key.getUser( );
     } catch ( Exception e ) {
       Debugging.logError( LOG, e, "Failed to find user with access key ID : " + keyId );
       throw new AuthException( AuthException.NO_SUCH_USER, e );
@@ -462,6 +457,8 @@ public class DatabaseAuthProvider implements AccountProvider {
       }
       Entities.delete( account );
       db.commit( );
+      PolicyCache.invalidate( );
+      AccessKeyCache.invalidateAll( );
     } catch ( Exception e ) {
       Debugging.logError( LOG, e, "Failed to delete account " + accountName );
       throw new AuthException( AuthException.NO_SUCH_ACCOUNT, e );
@@ -658,14 +655,7 @@ public class DatabaseAuthProvider implements AccountProvider {
     if ( keyId == null ) {
       throw new AuthException( "Empty access key ID" );
     }
-    try ( final TransactionResource db = Entities.transactionFor( AccessKeyEntity.class ) ) {
-      AccessKeyEntity keyEntity = DatabaseAuthUtils.getUnique( AccessKeyEntity.class, "accessKey", keyId );
-      db.commit( );
-      return new DatabaseAccessKeyProxy( keyEntity );
-    } catch ( Exception e ) {
-      Debugging.logError( LOG, e, "Failed to find access key with ID " + keyId );
-      throw new AuthException( "Failed to find access key", e );      
-    }
+    return AccessKeyCache.lookupAccessKey( keyId );
   }
 
   @Override
@@ -76,6 +76,7 @@ import com.eucalyptus.auth.entities.GroupEntity;
 import com.eucalyptus.auth.entities.PolicyEntity;
 import com.eucalyptus.auth.entities.StatementEntity;
 import com.eucalyptus.auth.entities.UserEntity;
+import com.eucalyptus.auth.policy.PolicyCache;
 import com.eucalyptus.auth.policy.PolicyParser;
 import com.eucalyptus.auth.principal.Account;
 import com.eucalyptus.auth.principal.Group;
@@ -214,6 +215,7 @@ public class DatabaseGroupProxy implements Group {
       groupEntity.getUsers( ).add( userEntity );
       userEntity.getGroups( ).add( groupEntity );
       db.commit( );
+      PolicyCache.invalidate( );
     } catch ( Exception e ) {
       Debugging.logError( LOG, e, "Failed to add user " + userName + " to group " + this.delegate );
       throw new AuthException( e );
@@ -228,6 +230,7 @@ public class DatabaseGroupProxy implements Group {
       groupEntity.getUsers( ).remove( userEntity );
       userEntity.getGroups( ).remove( groupEntity );
       db.commit( );
+      PolicyCache.invalidate( );
     } catch ( Exception e ) {
       Debugging.logError( LOG, e, "Failed to remove user " + userName + " from group " + this.delegate );
       throw new AuthException( e );
@@ -299,6 +302,7 @@ public class DatabaseGroupProxy implements Group {
       }
       groupEntity.getPolicies( ).add( parsedPolicy );
       db.commit( );
+      PolicyCache.invalidate( );
       return new DatabasePolicyProxy( parsedPolicy );
     } catch ( Exception e ) {
       Debugging.logError( LOG, e, "Failed to attach policy for " + this.delegate.getName( ) );
@@ -318,6 +322,7 @@ public class DatabaseGroupProxy implements Group {
         Entities.delete( policy );
       }
       db.commit( );
+      PolicyCache.invalidate( );
     } catch ( Exception e ) {
       Debugging.logError( LOG, e, "Failed to remove policy " + name + " in " + this.delegate );
       throw new AuthException( "Failed to remove policy", e );
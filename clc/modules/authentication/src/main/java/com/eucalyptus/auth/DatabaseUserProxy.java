@@ -81,6 +81,7 @@ import com.eucalyptus.auth.entities.GroupEntity;
 import com.eucalyptus.auth.entities.PolicyEntity;
 import com.eucalyptus.auth.entities.StatementEntity;
 import com.eucalyptus.auth.entities.UserEntity;
+import com.eucalyptus.auth.policy.PolicyCache;
 import com.eucalyptus.auth.policy.PolicyParser;
 import com.eucalyptus.auth.principal.AccessKey;
 import com.eucalyptus.auth.principal.Account;
@@ -184,6 +185,7 @@ public class DatabaseUserProxy implements User {
           }
         }
         db.commit( );
+        AccessKeyCache.invalidateAll( );
       } catch ( Exception t ) {
         Debugging.logError( LOG, t, "Failed to setName for " + this.delegate );
         throw new AuthException( t );
@@ -232,6 +234,7 @@ public class DatabaseUserProxy implements User {
           t.setRegistrationStatus( stat );
         }
       } );
+      AccessKeyCache.invalidateAll( );
     } catch ( ExecutionException e ) {
       Debugging.logError( LOG, e, "Failed to setRegistrationStatus for " + this.delegate );
       throw new AuthException( e );
@@ -251,6 +254,7 @@ public class DatabaseUserProxy implements User {
           t.setEnabled( enabled );
         }
       } );
+      AccessKeyCache.invalidateAll( );
     } catch ( ExecutionException e ) {
       Debugging.logError( LOG, e, "Failed to setEnabled for " + this.delegate );
       throw new AuthException( e );
@@ -450,6 +454,7 @@ public class DatabaseUserProxy implements User {
       user.getKeys( ).remove( keyEntity );
       Entities.delete( keyEntity );
       db.commit( );
+      AccessKeyCache.invalidate( keyId );
     } catch ( Exception e ) {
       Debugging.logError( LOG, e, "Failed to get delete key " + keyId );
       throw new AuthException( e );
@@ -465,6 +470,7 @@ public class DatabaseUserProxy implements User {
       Entities.persist( keyEntity );
       user.getKeys( ).add( keyEntity );
       db.commit( );
+      AccessKeyCache.invalidate( keyEntity.getAccessKey( ) );
       return new DatabaseAccessKeyProxy( keyEntity );
     } catch ( Exception e ) {
       Debugging.logError( LOG, e, "Failed to get create new access key: " + e.getMessage( ) );
@@ -670,6 +676,7 @@ public class DatabaseUserProxy implements User {
       }
       groupEntity.getPolicies( ).add( parsedPolicy );
       db.commit( );
+      PolicyCache.invalidate( );
       return new DatabasePolicyProxy( parsedPolicy );
     } catch ( Exception e ) {
       Debugging.logError( LOG, e, "Failed to attach policy for " + this.delegate.getName( ) );
@@ -693,6 +700,7 @@ public class DatabaseUserProxy implements User {
         Entities.delete( policy );
       }
       db.commit( );
+      PolicyCache.invalidate( );
     } catch ( Exception e ) {
       Debugging.logError( LOG, e, "Failed to remove policy " + name + " in " + this.delegate );
       throw new AuthException( "Failed to remove policy", e );
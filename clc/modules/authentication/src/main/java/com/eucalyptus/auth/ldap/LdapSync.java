@@ -82,10 +82,8 @@ import com.eucalyptus.auth.principal.Group;
 import com.eucalyptus.auth.principal.User;
 import com.eucalyptus.bootstrap.Bootstrap;
 import com.eucalyptus.bootstrap.Hosts;
-import com.eucalyptus.event.ClockTick;
-import com.eucalyptus.event.Event;
-import com.eucalyptus.event.EventListener;
-import com.eucalyptus.event.ListenerRegistry;
+import com.eucalyptus.event.IntervalListener;
+import com.eucalyptus.event.ListenerScheduler;
 import com.eucalyptus.event.SystemClock;
 import com.eucalyptus.system.Threads;
 import com.google.common.base.Strings;
@@ -117,11 +115,16 @@ public class LdapSync {
   
   private static final ClockTickListener TIMER_LISTENER = new ClockTickListener( );
   
-  private static class ClockTickListener implements EventListener<Event> {
+  private static class ClockTickListener implements IntervalListener {
 
     @Override
-    public void fireEvent( Event event ) {
-      if ( Bootstrap.isOperational( ) && Hosts.isCoordinator( ) && event instanceof ClockTick ) {
+    public long getIntervalMillis( ) {
+      return SystemClock.getRate( );
+    }
+
+    @Override
+    public void fire( ) {
+      if ( Bootstrap.isOperational( ) && Hosts.isCoordinator( ) ) {
         periodicSync( );
       }
     }
@@ -135,7 +138,7 @@ public class LdapSync {
   public static synchronized void start( ) {
     if ( lic.isSyncEnabled( ) ) {
       if ( lic.isAutoSync( ) ) {
-        ListenerRegistry.getInstance( ).register( ClockTick.class, TIMER_LISTENER );
+        ListenerScheduler.register( TIMER_LISTENER );
       }
       startSync( );
     }
@@ -151,11 +154,11 @@ public class LdapSync {
     if ( Bootstrap.isFinished( ) ) {
       if ( lic.isSyncEnabled( ) ) {
         if ( lic.isAutoSync( ) ) {
-          ListenerRegistry.getInstance( ).register( ClockTick.class, TIMER_LISTENER );
+          ListenerScheduler.register( TIMER_LISTENER );
         }
         startSync( );
       } else {
-        ListenerRegistry.getInstance( ).deregister( ClockTick.class, TIMER_LISTENER );
+        ListenerScheduler.deregister( TIMER_LISTENER );
       }
     }
   }
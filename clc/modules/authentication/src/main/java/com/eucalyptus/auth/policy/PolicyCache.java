@@ -0,0 +1,183 @@
+/*************************************************************************
+ * Copyright 2009-2014 Eucalyptus Systems, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ *
+ * Please contact Eucalyptus Systems, Inc., 6755 Hollister Ave., Goleta
+ * CA 93117, USA or visit http://www.eucalyptus.com/licenses/ if you need
+ * additional information or have any questions.
+ ************************************************************************/
+
+package com.eucalyptus.auth.policy;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import com.eucalyptus.auth.AuthException;
+import com.eucalyptus.auth.AuthenticationProperties;
+import com.eucalyptus.util.Mbeans;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Versioned cache for compiled authorizations and authorization decisions.
+ * 
+ * Cached values are keyed by the current version, any change to policies, groups, group
+ * membership, users, roles or accounts must call {@link #invalidate()} once committed. Values
+ * also expire after the configured lifetime so changes made by other hosts are picked up.
+ */
+public class PolicyCache<V> {
+  private static final AtomicLong        version    = new AtomicLong( );
+  private static final CacheStatistics   statistics = new CacheStatistics( );
+  private static final AtomicBoolean     registered = new AtomicBoolean( false );
+  
+  private final Cache<List<Object>, Entry<V>> cache;
+  private final AtomicLong                    hits;
+  private final AtomicLong                    misses;
+  
+  private PolicyCache( final long maximumSize, final AtomicLong hits, final AtomicLong misses ) {
+    this.cache = CacheBuilder.newBuilder( ).maximumSize( maximumSize ).build( );
+    this.hits = hits;
+    this.misses = misses;
+    if ( registered.compareAndSet( false, true ) ) {
+      Mbeans.register( statistics );
+    }
+  }
+  
+  static <V> PolicyCache<V> forAuthorizations( ) {
+    return new PolicyCache<V>( 10000, statistics.authorizationHits, statistics.authorizationMisses );
+  }
+  
+  static <V> PolicyCache<V> forDecisions( ) {
+    return new PolicyCache<V>( 100000, statistics.decisionHits, statistics.decisionMisses );
+  }
+  
+  /**
+   * Discard all cached authorizations and decisions.
+   */
+  public static void invalidate( ) {
+    version.incrementAndGet( );
+  }
+  
+  /**
+   * Get the current cache version for use in a key.
+   * 
+   * The version must be read before loading any value for the key.
+   */
+  static long version( ) {
+    return version.get( );
+  }
+  
+  static boolean isEnabled( ) {
+    return AuthenticationProperties.AUTHORIZATION_CACHE_TTL > 0;
+  }
+  
+  static void evaluated( final long startNanos ) {
+    statistics.evaluations.incrementAndGet( );
+    statistics.evaluationNanos.addAndGet( System.nanoTime( ) - startNanos );
+  }
+  
+  V get( final List<Object> key, final Callable<V> loader ) throws AuthException {
+    final Entry<V> entry = this.cache.getIfPresent( key );
+    if ( entry != null && !entry.isExpired( ) ) {
+      this.hits.incrementAndGet( );
+      return entry.value;
+    }
+    this.misses.incrementAndGet( );
+    final V value;
+    try {
+      value = loader.call( );
+    } catch ( final AuthException e ) {
+      throw e;
+    } catch ( final Exception e ) {
+      throw new AuthException( e );
+    }
+    this.cache.put( key, new Entry<V>( value ) );
+    return value;
+  }
+  
+  V getIfPresent( final List<Object> key ) {
+    final Entry<V> entry = this.cache.getIfPresent( key );
+    if ( entry != null && !entry.isExpired( ) ) {
+      this.hits.incrementAndGet( );
+      return entry.value;
+    }
+    this.misses.incrementAndGet( );
+    return null;
+  }
+  
+  void put( final List<Object> key, final V value ) {
+    this.cache.put( key, new Entry<V>( value ) );
+  }
+  
+  private static final class Entry<V> {
+    private final V    value;
+    private final long expires;
+    
+    private Entry( final V value ) {
+      this.value = value;
+      this.expires = System.currentTimeMillis( ) + TimeUnit.SECONDS.toMillis( AuthenticationProperties.AUTHORIZATION_CACHE_TTL );
+    }
+    
+    private boolean isExpired( ) {
+      return System.currentTimeMillis( ) > this.expires || !isEnabled( );
+    }
+  }
+  
+  public static class CacheStatistics {
+    private final AtomicLong authorizationHits   = new AtomicLong( );
+    private final AtomicLong authorizationMisses = new AtomicLong( );
+    private final AtomicLong decisionHits        = new AtomicLong( );
+    private final AtomicLong decisionMisses      = new AtomicLong( );
+    private final AtomicLong evaluations         = new AtomicLong( );
+    private final AtomicLong evaluationNanos     = new AtomicLong( );
+    
+    public long getAuthorizationHits( ) {
+      return this.authorizationHits.get( );
+    }
+    
+    public long getAuthorizationMisses( ) {
+      return this.authorizationMisses.get( );
+    }
+    
+    public long getDecisionHits( ) {
+      return this.decisionHits.get( );
+    }
+    
+    public long getDecisionMisses( ) {
+      return this.decisionMisses.get( );
+    }
+    
+    public double getDecisionHitRate( ) {
+      final long hits = this.decisionHits.get( );
+      final long total = hits + this.decisionMisses.get( );
+      return total == 0 ? 0d : ( double ) hits / total;
+    }
+    
+    public long getEvaluations( ) {
+      return this.evaluations.get( );
+    }
+    
+    public long getAverageEvaluationMicros( ) {
+      final long evaluations = this.evaluations.get( );
+      return evaluations == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros( this.evaluationNanos.get( ) / evaluations );
+    }
+    
+    public long getVersion( ) {
+      return version.get( );
+    }
+  }
+}
@@ -65,9 +65,12 @@ package com.eucalyptus.auth.policy;
 import static org.hamcrest.Matchers.notNullValue;
 import static com.eucalyptus.auth.principal.Principal.PrincipalType;
 import static com.eucalyptus.util.Parameters.checkParam;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Pattern;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -92,6 +95,7 @@ import com.eucalyptus.auth.principal.Condition;
 import com.eucalyptus.auth.principal.Group;
 import com.eucalyptus.auth.principal.Policy;
 import com.eucalyptus.auth.principal.Principal;
+import com.eucalyptus.auth.principal.RoleUser;
 import com.eucalyptus.auth.principal.User;
 import com.eucalyptus.auth.principal.Authorization.EffectType;
 import com.eucalyptus.auth.principal.User.RegistrationStatus;
@@ -99,10 +103,15 @@ import com.eucalyptus.util.Exceptions;
 import com.google.common.base.Function;
 import com.google.common.base.Supplier;
 import com.google.common.base.Suppliers;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
 
 /**
  * The implementation of policy engine, which evaluates a request against specified policies.
@@ -114,6 +123,10 @@ public class PolicyEngineImpl implements PolicyEngine {
   @Nonnull
   private final Function<String,String> accountResolver;
 
+  private final PolicyCache<CompiledAuthorizations> authorizationCache = PolicyCache.forAuthorizations( );
+
+  private final PolicyCache<Decision> decisionCache = PolicyCache.forDecisions( );
+
   private enum Decision {
     DEFAULT, // no match
     DENY,    // explicit deny
@@ -124,14 +137,20 @@ public class PolicyEngineImpl implements PolicyEngine {
     boolean match( String pattern, String instance );
   }
   
+  private static final LoadingCache<String, Pattern> PATTERNS =
+      CacheBuilder.newBuilder( ).maximumSize( 10000 ).build( CacheLoader.from( PatternCompiler.INSTANCE ) );
+
+  private static final ConcurrentMap<String, ConditionOp> CONDITION_OPS = Maps.newConcurrentMap( );
+
+  private static final ConcurrentMap<String, Key> CONDITION_KEYS = Maps.newConcurrentMap( );
+
   private static final Matcher PATTERN_MATCHER = new Matcher( ) {
     @Override
     public boolean match( String pattern, String instance ) {
-      pattern = PatternUtils.toJavaPattern( pattern );
       if ( pattern == null ) {
         return false;
       }
-      return Pattern.matches( pattern, instance );
+      return PATTERNS.getUnchecked( pattern ).matcher( instance ).matches( );
     }
   };
   
@@ -178,6 +197,7 @@ public class PolicyEngineImpl implements PolicyEngine {
                                      @Nullable final String resourceAccountNumber,
                                      @Nonnull  final String resourceName,
                                      @Nonnull  final Map<Contract.Type, Contract> contracts ) throws AuthException {
+    final long start = System.nanoTime( );
     try {
       if ( Decision.ALLOW != evaluateResourceAuthorization( context, resourceAccountNumber, resourceName, contracts ) ) {
         throw new AuthException( AuthException.ACCESS_DENIED );
@@ -187,7 +207,9 @@ public class PolicyEngineImpl implements PolicyEngine {
       throw e;
     } catch ( Exception e ) {
       throw new AuthException( "An error occurred while trying to evaluate policy for resource access", e );
-    }    
+    } finally {
+      PolicyCache.evaluated( start );
+    }
   }
 
   @Override
@@ -196,6 +218,7 @@ public class PolicyEngineImpl implements PolicyEngine {
                                      @Nullable final String resourceAccountNumber,
                                      @Nonnull  final String resourceName,
                                      @Nonnull  final Map<Contract.Type, Contract> contracts ) throws AuthException {
+    final long start = System.nanoTime( );
     try {
       final EvaluationContextImpl evaluationContext = (EvaluationContextImpl)context;
       final ContractKeyEvaluator contractEval = new ContractKeyEvaluator( contracts );
@@ -237,6 +260,8 @@ public class PolicyEngineImpl implements PolicyEngine {
     } catch ( Exception e ) {
       LOG.debug( e, e );
       throw new AuthException( "An error occurred while trying to evaluate policy for resource access", e );
+    } finally {
+      PolicyCache.evaluated( start );
     }
   }
 
@@ -277,7 +302,7 @@ public class PolicyEngineImpl implements PolicyEngine {
   public EvaluationContext createEvaluationContext( final String resourceType,
                                                     final String action,
                                                     final User requestUser ) {
-    return new EvaluationContextImpl( resourceType, action, requestUser );
+    return new EvaluationContextImpl( resourceType, action, requestUser, null, null, authorizationCache );
   }
 
   @Override
@@ -286,7 +311,7 @@ public class PolicyEngineImpl implements PolicyEngine {
                                                     final User requestUser,
                                                     final PrincipalType principalType,
                                                     final String principalName ) {
-    return new EvaluationContextImpl( resourceType, action, requestUser, principalType, principalName );
+    return new EvaluationContextImpl( resourceType, action, requestUser, principalType, principalName, authorizationCache );
   }
 
   private Decision evaluateResourceAuthorization( @Nonnull  final EvaluationContext context,
@@ -296,7 +321,6 @@ public class PolicyEngineImpl implements PolicyEngine {
     final EvaluationContextImpl evaluationContext = (EvaluationContextImpl)context;
     final ContractKeyEvaluator contractEval = new ContractKeyEvaluator( contracts );
     final CachedKeyEvaluator keyEval = new CachedKeyEvaluator( );
-    final String action = evaluationContext.getAction( );
     final User requestUser = evaluationContext.getRequestUser( );
     final String resourceType = evaluationContext.getResourceType( );
     resourceName = PolicySpec.canonicalizeResourceName( resourceType, resourceName );
@@ -308,6 +332,29 @@ public class PolicyEngineImpl implements PolicyEngine {
 
     // Disabled user can't do anything
     verifyUser( requestUser );
+
+    // Decisions for condition free authorizations depend only on the action and resource
+    final List<Object> decisionKey = evaluationContext.decisionKey( resourceAccountNumber, resourceName );
+    if ( decisionKey != null ) {
+      final Decision cached = decisionCache.getIfPresent( decisionKey );
+      if ( cached != null ) {
+        return cached;
+      }
+    }
+    final Decision decision = evaluateResourceAuthorization( evaluationContext, resourceAccountNumber, resourceName, keyEval, contractEval );
+    if ( decisionKey != null && evaluationContext.isConditionFree( ) ) {
+      decisionCache.put( decisionKey, decision );
+    }
+    return decision;
+  }
+
+  private Decision evaluateResourceAuthorization( @Nonnull  final EvaluationContextImpl evaluationContext,
+                                                  @Nullable final String resourceAccountNumber,
+                                                  @Nonnull  final String resourceName,
+                                                  @Nonnull  final CachedKeyEvaluator keyEval,
+                                                  @Nonnull  final ContractKeyEvaluator contractEval ) throws AuthException {
+    final String action = evaluationContext.getAction( );
+    final User requestUser = evaluationContext.getRequestUser( );
     final Account account = evaluationContext.getRequestAccount( );
 
     // Check global (inter-account) authorizations first //TODO:STEVE: Should these apply for roles?
@@ -396,7 +443,7 @@ public class PolicyEngineImpl implements PolicyEngine {
     return result;
   }
   
-  private boolean matchActions( Authorization auth, String action ) throws AuthException {
+  private static boolean matchActions( Authorization auth, String action ) throws AuthException {
     return evaluateElement( matchOne( auth.getActions( ), action, PATTERN_MATCHER ), auth.isNotAction( ) );
   }
 
@@ -438,7 +485,7 @@ public class PolicyEngineImpl implements PolicyEngine {
     return accountResolver.apply( accountNumberOrAlias );
   }
 
-  private boolean evaluateElement( boolean patternMatched, boolean isNot ) {
+  private static boolean evaluateElement( boolean patternMatched, boolean isNot ) {
     return ( ( patternMatched && !isNot ) || ( !patternMatched && isNot ) );
   }
   
@@ -447,8 +494,8 @@ public class PolicyEngineImpl implements PolicyEngine {
    */
   private boolean evaluateConditions( List<? extends Condition> conditions, String action, String resourceType, CachedKeyEvaluator keyEval, ContractKeyEvaluator contractEval ) throws AuthException {
     for ( Condition cond : conditions ) {
-      ConditionOp op = Conditions.getOpInstance( cond.getType( ) );
-      Key key = Keys.getKeyInstance( Keys.getKeyClass( cond.getKey( ) ) );
+      ConditionOp op = conditionOp( cond.getType( ) );
+      Key key = conditionKey( cond.getKey( ) );
       final boolean applies = key.canApply( action, resourceType );
       if ( key instanceof ContractKey ) {
         if ( applies ) contractEval.addContract( ( ContractKey ) key, cond.getValues( ) );
@@ -468,6 +515,27 @@ public class PolicyEngineImpl implements PolicyEngine {
     return true;
   }
   
+  /**
+   * Condition operators and keys are stateless so instances are shared.
+   */
+  private static ConditionOp conditionOp( final String type ) {
+    ConditionOp op = CONDITION_OPS.get( type );
+    if ( op == null ) {
+      op = Conditions.getOpInstance( type );
+      CONDITION_OPS.putIfAbsent( type, op );
+    }
+    return op;
+  }
+
+  private static Key conditionKey( final String name ) {
+    Key key = CONDITION_KEYS.get( name );
+    if ( key == null ) {
+      key = Keys.getKeyInstance( Keys.getKeyClass( name ) );
+      CONDITION_KEYS.putIfAbsent( name, key );
+    }
+    return key;
+  }
+
   /**
    * Lookup global (inter-accounts) authorizations.
    * 
@@ -634,6 +702,10 @@ public class PolicyEngineImpl implements PolicyEngine {
     private Boolean systemUser;
     private List<Authorization> globalAuthorizations;
     private List<Authorization> localAuthorizations;
+    @Nullable
+    private final PolicyCache<CompiledAuthorizations> authorizationCache;
+    private CompiledAuthorizations globalCompiled;
+    private CompiledAuthorizations localCompiled;
 
     EvaluationContextImpl( final String resourceType,
                            final String action,
@@ -646,11 +718,21 @@ public class PolicyEngineImpl implements PolicyEngine {
                            final User requestUser,
                            @Nullable final PrincipalType principalType,
                            @Nullable final String principalName ) {
+      this( resourceType, action, requestUser, principalType, principalName, null );
+    }
+
+    EvaluationContextImpl( final String resourceType,
+                           final String action,
+                           final User requestUser,
+                           @Nullable final PrincipalType principalType,
+                           @Nullable final String principalName,
+                           @Nullable final PolicyCache<CompiledAuthorizations> authorizationCache ) {
       this.resourceType = resourceType;
       this.action = action.toLowerCase();
       this.requestUser = requestUser;
       this.principalType = principalType;
       this.principalName = principalName;
+      this.authorizationCache = authorizationCache;
     }
 
     @Override
@@ -719,23 +801,143 @@ public class PolicyEngineImpl implements PolicyEngine {
 
     public List<Authorization> lookupGlobalAuthorizations( ) throws AuthException {
       if ( globalAuthorizations == null ) {
-        globalAuthorizations = cached( PolicyEngineImpl.lookupGlobalAuthorizations( resourceType, getRequestAccount() ) );
+        if ( isCaching( ) ) {
+          globalCompiled = authorizationCache.get(
+              Arrays.<Object>asList( PolicyCache.version( ), "global", getRequestAccount( ).getAccountNumber( ), resourceType ),
+              new Callable<CompiledAuthorizations>( ) {
+                @Override
+                public CompiledAuthorizations call( ) throws AuthException {
+                  return new CompiledAuthorizations( loadGlobalAuthorizations( ) );
+                }
+              } );
+          globalAuthorizations = globalCompiled.getAuthorizations( );
+        } else {
+          globalAuthorizations = cached( loadGlobalAuthorizations( ) );
+        }
       }
       return globalAuthorizations;
     }
 
     public List<Authorization> lookupLocalAuthorizations( ) throws AuthException {
       if ( localAuthorizations == null ) {
-        localAuthorizations = cached( PolicyEngineImpl.lookupLocalAuthorizations( resourceType, getRequestUser( ) ) );
+        if ( isCaching( ) ) {
+          localCompiled = authorizationCache.get(
+              Arrays.<Object>asList( PolicyCache.version( ), "local", principalKey( ), resourceType ),
+              new Callable<CompiledAuthorizations>( ) {
+                @Override
+                public CompiledAuthorizations call( ) throws AuthException {
+                  return new CompiledAuthorizations( loadLocalAuthorizations( ) );
+                }
+              } );
+          localAuthorizations = localCompiled.getAuthorizations( );
+        } else {
+          localAuthorizations = cached( loadLocalAuthorizations( ) );
+        }
       }
       return localAuthorizations;
     }
 
+    List<Authorization> loadGlobalAuthorizations( ) throws AuthException {
+      return PolicyEngineImpl.lookupGlobalAuthorizations( resourceType, getRequestAccount( ) );
+    }
+
+    List<Authorization> loadLocalAuthorizations( ) throws AuthException {
+      return PolicyEngineImpl.lookupLocalAuthorizations( resourceType, getRequestUser( ) );
+    }
+
+    /**
+     * Key for caching the decision for this request and the given resource.
+     *
+     * @return The key or null if decisions should not be cached
+     */
+    @Nullable
+    List<Object> decisionKey( @Nullable final String resourceAccountNumber,
+                              @Nonnull  final String resourceName ) throws AuthException {
+      return isCaching( ) ?
+          Arrays.<Object>asList( PolicyCache.version( ), principalKey( ), getRequestAccount( ).getAccountNumber( ),
+              requestUser.isAccountAdmin( ), isSystemUser( ), resourceType, action, resourceAccountNumber, resourceName ) :
+          null;
+    }
+
+    /**
+     * Were all the authorizations evaluated for the action free of conditions.
+     */
+    boolean isConditionFree( ) throws AuthException {
+      return isCaching( ) &&
+          ( globalCompiled == null || globalCompiled.isConditionFree( action ) ) &&
+          ( localCompiled == null || localCompiled.isConditionFree( action ) );
+    }
+
+    private boolean isCaching( ) {
+      return authorizationCache != null && PolicyCache.isEnabled( );
+    }
+
+    private String principalKey( ) {
+      return requestUser instanceof RoleUser ?
+          "role:" + ( (RoleUser) requestUser ).getRole( ).getRoleId( ) :
+          "user:" + requestUser.getUserId( );
+    }
+
     private List<Authorization> cached( final List<Authorization> authorizations ) {
       return ImmutableList.copyOf( Iterables.transform( authorizations, CachedAuthorizationTransform.INSTANCE ) );
     }
   }
 
+  /**
+   * Authorizations for an account or user and resource type, with deny statements first.
+   *
+   * <p>All authorization details are loaded on construction so instances can be shared.
+   * Condition values are kept as loaded, each condition operator parses its operands when
+   * checked.</p>
+   */
+  private static final class CompiledAuthorizations {
+    private final List<Authorization> authorizations;
+    private final ConcurrentMap<String, Boolean> conditionFree = Maps.newConcurrentMap( );
+
+    private CompiledAuthorizations( final List<Authorization> authorizations ) throws AuthException {
+      final List<Authorization> compiled = Lists.newArrayList( );
+      for ( final Authorization authorization : authorizations ) {
+        final Authorization cached = CachedAuthorizationTransform.INSTANCE.apply( authorization );
+        cached.getActions( );
+        cached.getResources( );
+        cached.getPrincipal( );
+        for ( final Condition condition : cached.getConditions( ) ) {
+          condition.getValues( );
+        }
+        compiled.add( cached );
+      }
+      this.authorizations = ImmutableList.copyOf( EffectOrdering.INSTANCE.sortedCopy( compiled ) );
+    }
+
+    List<Authorization> getAuthorizations( ) {
+      return authorizations;
+    }
+
+    boolean isConditionFree( final String action ) throws AuthException {
+      Boolean free = conditionFree.get( action );
+      if ( free == null ) {
+        free = true;
+        for ( final Authorization authorization : authorizations ) {
+          if ( !authorization.getConditions( ).isEmpty( ) && matchActions( authorization, action ) ) {
+            free = false;
+            break;
+          }
+        }
+        conditionFree.put( action, free );
+      }
+      return free;
+    }
+  }
+
+  private static final class EffectOrdering extends Ordering<Authorization> {
+    private static final EffectOrdering INSTANCE = new EffectOrdering( );
+
+    @Override
+    public int compare( final Authorization left, final Authorization right ) {
+      return Boolean.compare( right.getEffect( ) == EffectType.Deny, left.getEffect( ) == EffectType.Deny );
+    }
+  }
+
   private static final class CachedDelegatingAuthorization implements Authorization {
     private static final long serialVersionUID = 1L;
     private final Authorization delegate;
@@ -858,6 +1060,15 @@ public class PolicyEngineImpl implements PolicyEngine {
     }
   }
 
+  private enum PatternCompiler implements Function<String,Pattern> {
+    INSTANCE;
+
+    @Override
+    public Pattern apply( final String pattern ) {
+      return Pattern.compile( PatternUtils.toJavaPattern( pattern ) );
+    }
+  }
+
   private enum EucalyptusAccountNumberSupplier implements Supplier<String> {
     INSTANCE;
 
@@ -0,0 +1,203 @@
+/*************************************************************************
+ * Copyright 2009-2014 Eucalyptus Systems, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ *
+ * Please contact Eucalyptus Systems, Inc., 6755 Hollister Ave., Goleta
+ * CA 93117, USA or visit http://www.eucalyptus.com/licenses/ if you need
+ * additional information or have any questions.
+ ************************************************************************/
+package com.eucalyptus.auth.policy
+
+import static org.junit.Assert.*
+import com.eucalyptus.auth.AuthException
+import com.eucalyptus.auth.entities.AuthorizationEntity
+import com.eucalyptus.auth.entities.ConditionEntity
+import com.eucalyptus.auth.entities.StatementEntity
+import com.eucalyptus.auth.policy.condition.ConditionOp
+import com.eucalyptus.auth.policy.condition.Conditions
+import com.eucalyptus.auth.policy.condition.StringEquals
+import com.eucalyptus.auth.policy.key.Key
+import com.eucalyptus.auth.policy.key.Keys
+import com.eucalyptus.auth.principal.Authorization
+import com.eucalyptus.auth.principal.Condition
+import com.eucalyptus.auth.principal.Group
+import com.eucalyptus.auth.principal.Principal
+import com.eucalyptus.auth.principal.TestAccount
+import com.eucalyptus.auth.principal.TestUser
+import com.eucalyptus.auth.principal.User
+import com.google.common.base.Function
+import groovy.transform.TupleConstructor
+import net.sf.json.JSONException
+import org.junit.Before
+import org.junit.BeforeClass
+import org.junit.Test
+
+/**
+ * Authorization and decision caching, mutations are simulated by changing the policies that
+ * are loaded and invalidating as the database proxies do.
+ */
+class PolicyCacheTest {
+
+  private static final String ALLOW_ALL = policy( "Allow", "*" )
+  private static final String DENY_ALL = policy( "Deny", "*" )
+
+  private static volatile String flag
+
+  private final Map<String,List<String>> localPolicies = [:]
+  private final Map<String,List<String>> globalPolicies = [:]
+  private final Map<String,Integer> loads = [:].withDefault{ 0 }
+  private PolicyEngineImpl engine
+  private PolicyCache<?> authorizationCache
+  private User user
+
+  @BeforeClass
+  static void registerConditions( ) {
+    Conditions.registerCondition( Conditions.STRINGEQUALS, StringEquals, true )
+    Keys.registerKey( FlagKey.KEY, FlagKey )
+  }
+
+  @Before
+  void setUp( ) {
+    engine = new PolicyEngineImpl( { String account -> account } as Function<String,String> )
+    authorizationCache = PolicyCache.forAuthorizations( )
+    user = new TestUser( userId: "AIDAAAAAAAAAAAAAAAAAA", name: "test", accountNumber: "111111111111",
+        account: new TestAccount( accountNumber: "111111111111", name: "test" ) ).activate( )
+    flag = "on"
+  }
+
+  @Test
+  void testDecisionCached( ) {
+    localPolicies[ "user" ] = [ ALLOW_ALL ]
+    assertTrue( "Allowed", allowed( ) )
+    localPolicies[ "user" ] = [ DENY_ALL ]
+    assertTrue( "Cached decision", allowed( ) )
+    assertEquals( "Local authorization loads", 1, loads[ "local" ] )
+  }
+
+  @Test
+  void testPolicyMutationInvalidates( ) {
+    localPolicies[ "user" ] = [ ALLOW_ALL ]
+    assertTrue( "Allowed", allowed( ) )
+    localPolicies[ "user" ] << DENY_ALL // User.addPolicy
+    PolicyCache.invalidate( )
+    assertFalse( "Denied after policy added", allowed( ) )
+  }
+
+  @Test
+  void testGroupMutationInvalidates( ) {
+    localPolicies[ "group" ] = [ ALLOW_ALL ]
+    assertTrue( "Allowed", allowed( ) )
+    localPolicies.remove( "group" ) // Group.removeUserByName
+    PolicyCache.invalidate( )
+    assertFalse( "Denied after group membership removed", allowed( ) )
+  }
+
+  @Test
+  void testUserMutationInvalidates( ) {
+    localPolicies[ "user" ] = [ ALLOW_ALL ]
+    assertTrue( "Allowed", allowed( ) )
+    localPolicies[ "user" ] = [ ] // User.removePolicy
+    PolicyCache.invalidate( )
+    assertFalse( "Denied after user policy removed", allowed( ) )
+  }
+
+  @Test
+  void testAccountMutationInvalidates( ) {
+    localPolicies[ "group" ] = [ ALLOW_ALL ]
+    assertTrue( "Allowed", allowed( ) )
+    globalPolicies[ "account" ] = [ DENY_ALL ] // Account policy change
+    localPolicies.remove( "group" ) // Account.deleteGroup
+    PolicyCache.invalidate( )
+    assertFalse( "Denied after account change", allowed( ) )
+    assertEquals( "Global authorization loads", 2, loads[ "global" ] )
+  }
+
+  @Test
+  void testConditionalDecisionsNotCached( ) {
+    localPolicies[ "user" ] = [ policy( "Allow", "*", """{ "StringEquals": { "${FlagKey.KEY}": "on" } }""" ) ]
+    assertTrue( "Allowed when condition matches", allowed( ) )
+    flag = "off"
+    assertFalse( "Denied when condition does not match", allowed( ) )
+    flag = "on"
+    assertTrue( "Allowed when condition matches again", allowed( ) )
+    assertEquals( "Local authorization loads", 1, loads[ "local" ] )
+  }
+
+  @Test
+  void testConditionsForOtherActionsCached( ) {
+    localPolicies[ "user" ] = [
+        ALLOW_ALL,
+        policy( "Deny", "ec2:RunInstances", """{ "StringEquals": { "${FlagKey.KEY}": "on" } }""" ) ]
+    assertTrue( "Allowed", allowed( ) )
+    flag = "off"
+    localPolicies[ "user" ] = [ DENY_ALL ]
+    assertTrue( "Cached decision", allowed( ) )
+  }
+
+  private boolean allowed( ) {
+    PolicyEngineImpl.EvaluationContextImpl context = new PolicyEngineImpl.EvaluationContextImpl(
+        "ec2:instance", "ec2:DescribeInstances", user, null, null, authorizationCache ) {
+      @Override List<Authorization> loadGlobalAuthorizations( ) {
+        loads[ "global" ]++
+        authorizations( globalPolicies.values( ).flatten( ) as List<String> )
+      }
+      @Override List<Authorization> loadLocalAuthorizations( ) {
+        loads[ "local" ]++
+        authorizations( localPolicies.values( ).flatten( ) as List<String> )
+      }
+    }
+    try {
+      engine.evaluateAuthorization( context, "111111111111", "i-00000001", [:] )
+      true
+    } catch ( AuthException e ) {
+      false
+    }
+  }
+
+  private static String policy( String effect, String action, String condition = null ) {
+    """{ "Statement": [ { "Effect": "${effect}", "Action": "${action}", "Resource": "*"${condition ? ', "Condition": ' + condition : ''} } ] }"""
+  }
+
+  private static List<Authorization> authorizations( List<String> policies ) {
+    policies.collect{ String policy ->
+      PolicyParser.instance.parse( policy ).statements.collect{ StatementEntity statement ->
+        statement.authorizations.collect{ AuthorizationEntity authorization ->
+          new AuthorizationEntityAsAuthorization( authorization )
+        }
+      }
+    }.flatten( ) as List<Authorization>
+  }
+
+  public static class FlagKey implements Key {
+    static final String KEY = "test:flag"
+
+    @Override String value( ) { flag }
+    @Override void validateConditionType( Class<? extends ConditionOp> conditionClass ) throws JSONException { }
+    @Override void validateValueType( String value ) throws JSONException { }
+    @Override boolean canApply( String action, String resourceType ) { true }
+  }
+
+  @TupleConstructor private static class AuthorizationEntityAsAuthorization implements Authorization {
+    @Delegate AuthorizationEntity entity
+    @Override List<Condition> getConditions( ) {
+      entity.statement.conditions.collect{ ConditionEntity condition -> new ConditionEntityAsCondition( condition ) } as List<Condition>
+    }
+    @Override Group getGroup( ) { null }
+    @Override Principal getPrincipal( ) { null }
+  }
+
+  @TupleConstructor private static class ConditionEntityAsCondition implements Condition {
+    @Delegate ConditionEntity entity
+  }
+}
@@ -15,6 +15,21 @@ public class BlockStorageGlobalConfiguration {
 	@ConfigurableField( description = "Maximum total snapshot capacity (GB)", displayName = "Maximum total size allowed for snapshots" )
 	public static Integer global_total_snapshot_size_limit_gb = DEFAULT_GLOBAL_TOTAL_SNAPSHOT_SIZE_GB;
 
+	@ConfigurableField( description = "Part size (MB) for multipart snapshot transfers. Snapshots larger than this are transferred in parts", displayName = "Snapshot part size" )
+	public static Integer snapshot_part_size_mb = 100;
+
+	@ConfigurableField( description = "Maximum number of snapshot parts transferred concurrently", displayName = "Snapshot transfer concurrency" )
+	public static Integer snapshot_transfer_concurrency = 4;
+
+	@ConfigurableField( description = "Upload only the chunks changed since the previous snapshot of a volume", displayName = "Incremental snapshots" )
+	public static Boolean snapshot_incremental = Boolean.FALSE;
+
+	@ConfigurableField( description = "Chunk size (MB) used to detect changes for incremental snapshots", displayName = "Incremental snapshot chunk size" )
+	public static Integer snapshot_chunk_size_mb = 4;
+
+	@ConfigurableField( description = "Maximum number of consecutive incremental snapshots before a full snapshot is taken", displayName = "Incremental snapshot chain length" )
+	public static Integer snapshot_max_incremental_chain = 7;
+
 	/*
 	@EntityUpgrade(entities = { BlockStorageGlobalConfiguration.class }, since = Version.v4_0_0, value = Storage.class)
 	public static void upgrade3_4_To4_0() throws Exception {
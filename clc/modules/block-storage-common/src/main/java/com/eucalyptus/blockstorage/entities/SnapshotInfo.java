@@ -123,6 +123,10 @@ public class SnapshotInfo extends AbstractPersistent {
     
     @Column(name = "snapshot_size_gb")
     private Integer sizeGb;
+
+    //Set for incremental snapshots, the snapshot whose objects this one depends on
+    @Column(name = "parent_snapshot_id")
+    private String parentSnapshotId;
     
     public Integer getSizeGb() {
 		return sizeGb;
@@ -237,6 +241,14 @@ public class SnapshotInfo extends AbstractPersistent {
 		return true;
 	}
 
+	public String getParentSnapshotId() {
+		return parentSnapshotId;
+	}
+
+	public void setParentSnapshotId(String parentSnapshotId) {
+		this.parentSnapshotId = parentSnapshotId;
+	}
+
 	public String getSnapPointId() {
 		return snapPointId;
 	}
@@ -0,0 +1,156 @@
+/*************************************************************************
+ * Copyright 2009-2014 Eucalyptus Systems, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ *
+ * Please contact Eucalyptus Systems, Inc., 6755 Hollister Ave., Goleta
+ * CA 93117, USA or visit http://www.eucalyptus.com/licenses/ if you need
+ * additional information or have any questions.
+ ************************************************************************/
+package com.eucalyptus.blockstorage.entities;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.PersistenceContext;
+import javax.persistence.Table;
+
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+
+import com.eucalyptus.blockstorage.util.StorageProperties;
+import com.eucalyptus.entities.AbstractPersistent;
+
+/**
+ * A part of a multipart snapshot upload that has been accepted by the object store.
+ * Recorded as each part completes so an interrupted upload can resume from the
+ * parts already sent, removed once the upload completes or is aborted. The size and
+ * modification time of the snapshot file are recorded with each part so parts sent
+ * from a file that has since changed are not reused.
+ */
+@Entity
+@PersistenceContext(name="eucalyptus_storage")
+@Table( name = "snapshot_parts" )
+@Cache( usage = CacheConcurrencyStrategy.TRANSACTIONAL )
+public class SnapshotPart extends AbstractPersistent {
+	@Column(name = "sc_name")
+	private String scName;
+	@Column(name = "snapshot_name")
+	private String snapshotId;
+	@Column(name = "snapshot_key")
+	private String snapshotKey;
+	@Column(name = "upload_id")
+	private String uploadId;
+	@Column(name = "part_number")
+	private Integer partNumber;
+	@Column(name = "part_size")
+	private Long partSize;
+	@Column(name = "etag")
+	private String etag;
+	@Column(name = "file_size")
+	private Long fileSize;
+	@Column(name = "file_last_modified")
+	private Long fileLastModified;
+
+	public SnapshotPart() {
+		this.scName = StorageProperties.NAME;
+	}
+
+	public SnapshotPart(String snapshotId) {
+		this();
+		this.snapshotId = snapshotId;
+	}
+
+	public SnapshotPart(String snapshotId, String snapshotKey, String uploadId, Integer partNumber, Long partSize, String etag,
+			Long fileSize, Long fileLastModified) {
+		this(snapshotId);
+		this.snapshotKey = snapshotKey;
+		this.uploadId = uploadId;
+		this.partNumber = partNumber;
+		this.partSize = partSize;
+		this.etag = etag;
+		this.fileSize = fileSize;
+		this.fileLastModified = fileLastModified;
+	}
+
+	public String getScName() {
+		return scName;
+	}
+
+	public void setScName(String scName) {
+		this.scName = scName;
+	}
+
+	public String getSnapshotId() {
+		return snapshotId;
+	}
+
+	public void setSnapshotId(String snapshotId) {
+		this.snapshotId = snapshotId;
+	}
+
+	public String getSnapshotKey() {
+		return snapshotKey;
+	}
+
+	public void setSnapshotKey(String snapshotKey) {
+		this.snapshotKey = snapshotKey;
+	}
+
+	public String getUploadId() {
+		return uploadId;
+	}
+
+	public void setUploadId(String uploadId) {
+		this.uploadId = uploadId;
+	}
+
+	public Integer getPartNumber() {
+		return partNumber;
+	}
+
+	public void setPartNumber(Integer partNumber) {
+		this.partNumber = partNumber;
+	}
+
+	public Long getPartSize() {
+		return partSize;
+	}
+
+	public void setPartSize(Long partSize) {
+		this.partSize = partSize;
+	}
+
+	public String getEtag() {
+		return etag;
+	}
+
+	public void setEtag(String etag) {
+		this.etag = etag;
+	}
+
+	public Long getFileSize() {
+		return fileSize;
+	}
+
+	public void setFileSize(Long fileSize) {
+		this.fileSize = fileSize;
+	}
+
+	public Long getFileLastModified() {
+		return fileLastModified;
+	}
+
+	public void setFileLastModified(Long fileLastModified) {
+		this.fileLastModified = fileLastModified;
+	}
+}
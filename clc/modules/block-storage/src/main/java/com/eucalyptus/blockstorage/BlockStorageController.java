@@ -1342,6 +1342,7 @@ public class BlockStorageController {
 		private String snapshotKey;
 		private String snapshotFileName;
 		private String snapPointId;
+		private SnapshotManifest manifest;
 
 		/**
 		 * Initializes the Snapshotter task. snapPointId should be null if no snap point has been created yet.
@@ -1454,6 +1455,10 @@ public class BlockStorageController {
 					}
 				}
 			} catch(Exception ex) {
+				snapshotOps.abortSnapshotUpload(snapshotId);
+				if(snapshotFileName != null) {
+					removeDeltaFile(new File(snapshotFileName + ".delta"));
+				}
 				try {
 					LOG.error("Disconnecting snapshot " + snapshotId + " on failed snapshot attempt");
 					blockManager.finishVolume(snapshotId);
@@ -1502,21 +1507,94 @@ public class BlockStorageController {
 					}
 				}
 			}
-			SnapshotProgressCallback callback = new SnapshotProgressCallback(snapshotId, size, StorageProperties.TRANSFER_CHUNK_SIZE);
+			File uploadFile = snapshotFile;
+			File deltaFile = new File(snapshotFileName + ".delta");
+			if(Boolean.TRUE.equals(BlockStorageGlobalConfiguration.snapshot_incremental)) {
+				//Reuse the manifest and delta of a failed attempt, rebuilding the delta would change
+				//its modification time and discard the parts already uploaded
+				if(manifest == null || (manifest.isIncremental() && !deltaFile.exists())) {
+					manifest = createManifest(snapshotFile, deltaFile);
+				}
+				if(manifest.isIncremental()) {
+					uploadFile = deltaFile;
+					size = deltaFile.length();
+				}
+			}
+			SnapshotProgressCallback callback = new SnapshotProgressCallback(snapshotId, Math.max(1, size), StorageProperties.TRANSFER_CHUNK_SIZE);
 			//TODO: zhill, leaving this in for future use if we add snapshot abort capability
 			//Add to the map to make available for cancellation asynchronously
 			//httpTransferMap.put(snapshotId, httpWriter);
-			try {
-				snapshotOps.uploadSnapshot(snapshotFile, callback, snapshotKey, snapshotId);
-			} catch(Exception ex) {
-				LOG.error(ex, ex);
-				checker.cleanFailedSnapshot(snapshotId);
-			} 
+			//Failures are retried by the caller, multipart uploads resume from the parts already sent
+			snapshotOps.uploadSnapshot(uploadFile, callback, snapshotKey, snapshotId);
+			if(manifest != null) {
+				snapshotOps.uploadManifest(manifest, snapshotKey);
+			}
+			removeDeltaFile(deltaFile);
 			/*Part of snap abort if added
 			 * finally {
 				//httpTransferMap.remove(snapshotId);
 			}*/
 		}
+
+		private void removeDeltaFile(File deltaFile) {
+			if(deltaFile.exists() && !deltaFile.delete()) {
+				LOG.warn("Unable to remove snapshot delta file " + deltaFile.getAbsolutePath());
+			}
+		}
+
+		/**
+		 * Builds the manifest for this snapshot against the latest available snapshot of the
+		 * same volume, recording the dependency so the parent's objects are kept while needed.
+		 */
+		private SnapshotManifest createManifest(File snapshotFile, File deltaFile) throws EucalyptusCloudException {
+			SnapshotInfo parent = null;
+			EntityWrapper<SnapshotInfo> db = StorageProperties.getEntityWrapper();
+			try {
+				SnapshotInfo example = new SnapshotInfo();
+				example.setVolumeId(volumeId);
+				example.setStatus(StorageProperties.Status.available.toString());
+				for(SnapshotInfo candidate : db.query(example)) {
+					if(!snapshotId.equals(candidate.getSnapshotId()) && candidate.getStartTime() != null &&
+							(parent == null || candidate.getStartTime().after(parent.getStartTime()))) {
+						parent = candidate;
+					}
+				}
+			} finally {
+				db.commit();
+			}
+
+			SnapshotManifest parentManifest = null;
+			if(parent != null) {
+				try {
+					parentManifest = snapshotOps.getManifest(parent.getSnapshotLocation());
+				} catch(EucalyptusCloudException e) {
+					LOG.warn("Unable to get manifest of snapshot " + parent.getSnapshotId() + ", taking a full snapshot of " + volumeId, e);
+				}
+			}
+			Integer chunkSizeMb = BlockStorageGlobalConfiguration.snapshot_chunk_size_mb;
+			Integer maxChain = BlockStorageGlobalConfiguration.snapshot_max_incremental_chain;
+			SnapshotManifest manifest = SnapshotManifest.create(snapshotFile,
+					snapshotKey,
+					Math.max(1, chunkSizeMb == null ? 4 : chunkSizeMb) * StorageProperties.MB,
+					parentManifest,
+					parent == null ? null : parent.getSnapshotId(),
+					maxChain == null ? 0 : maxChain,
+					deltaFile);
+
+			db = StorageProperties.getEntityWrapper();
+			try {
+				SnapshotInfo snapshotInfo = db.getUnique(new SnapshotInfo(snapshotId));
+				snapshotInfo.setParentSnapshotId(manifest.getParentSnapshotId());
+				db.commit();
+			} catch(EucalyptusCloudException e) {
+				db.rollback();
+				throw e;
+			}
+			if(manifest.isIncremental()) {
+				LOG.info("Snapshot " + snapshotId + " is incremental on " + manifest.getParentSnapshotId() + ", uploading " + deltaFile.length() + " of " + snapshotFile.length() + " bytes");
+			}
+			return manifest;
+		}
 	}
 
 
@@ -1974,12 +2052,60 @@ public class BlockStorageController {
 					LOG.error(e);
 					continue;
 				}
+				deleteSnapshotObjects(foundSnapshotInfo);
+			}	
+		}
+
+		/**
+		 * Deletes the snapshot's objects unless an existing incremental snapshot still refers
+		 * to them, then retries any deleted parent that was only kept for this snapshot.
+		 */
+		private void deleteSnapshotObjects(SnapshotInfo snapshotInfo) {
+			String snapshotId = snapshotInfo.getSnapshotId();
+			if(hasLiveDependents(snapshotId)) {
+				LOG.info("Snapshot " + snapshotId + " objects retained for dependent incremental snapshots");
+				return;
+			}
+			try {
+				snapshotOps.deleteSnapshot(snapshotInfo.getSnapshotLocation(), snapshotId);
+			} catch (EucalyptusCloudException e) {
+				LOG.error(e);
+			}
+			if(snapshotInfo.getParentSnapshotId() != null) {
+				EntityWrapper<SnapshotInfo> db = StorageProperties.getEntityWrapper();
+				SnapshotInfo parent = null;
 				try {
-					snapshotOps.deleteSnapshot(foundSnapshotInfo.getSnapshotLocation(), snapshotId);
+					parent = db.getUnique(new SnapshotInfo(snapshotInfo.getParentSnapshotId()));
+					db.commit();
 				} catch (EucalyptusCloudException e) {
-					LOG.error(e);
+					db.rollback();
 				}
-			}	
+				if(parent != null && StorageProperties.Status.deleted.toString().equals(parent.getStatus())) {
+					deleteSnapshotObjects(parent);
+				}
+			}
+		}
+
+		private boolean hasLiveDependents(String snapshotId) {
+			EntityWrapper<SnapshotInfo> db = StorageProperties.getEntityWrapper();
+			List<SnapshotInfo> children;
+			try {
+				SnapshotInfo example = new SnapshotInfo();
+				example.setParentSnapshotId(snapshotId);
+				children = db.query(example);
+			} finally {
+				db.commit();
+			}
+			for(SnapshotInfo child : children) {
+				if(!StorageProperties.Status.deleted.toString().equals(child.getStatus()) &&
+						!StorageProperties.Status.failed.toString().equals(child.getStatus())) {
+					return true;
+				}
+				if(hasLiveDependents(child.getSnapshotId())) {
+					return true;
+				}
+			}
+			return false;
 		}
 	}
 
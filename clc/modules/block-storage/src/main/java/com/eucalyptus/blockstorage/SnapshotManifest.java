@@ -0,0 +1,282 @@
+/*************************************************************************
+ * Copyright 2009-2014 Eucalyptus Systems, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ *
+ * Please contact Eucalyptus Systems, Inc., 6755 Hollister Ave., Goleta
+ * CA 93117, USA or visit http://www.eucalyptus.com/licenses/ if you need
+ * additional information or have any questions.
+ ************************************************************************/
+package com.eucalyptus.blockstorage;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.eucalyptus.auth.util.Hashes;
+import com.eucalyptus.util.EucalyptusCloudException;
+import com.google.common.base.Charsets;
+
+/**
+ * Block map of a snapshot stored alongside the snapshot object.
+ *
+ * The snapshot is divided into fixed size chunks. For each chunk the manifest
+ * records its SHA-1 and the object key and offset holding its data, so an
+ * incremental snapshot only stores the chunks that changed since its parent and
+ * refers to the objects of earlier snapshots for the rest. All-zero chunks are
+ * not stored at all. References are always to the object actually holding the
+ * data, so restoring never has to walk the chain of parents.
+ */
+public class SnapshotManifest {
+	public static final String MANIFEST_SUFFIX = ".manifest";
+	private static final String HEADER = "# snapshot-manifest 1";
+	private static final String ZERO = "zero";
+
+	private final long size;
+	private final long chunkSize;
+	private final int depth;
+	private final String parentSnapshotId;
+	private final List<Chunk> chunks;
+
+	public static class Chunk {
+		private final String hash;
+		private final String objectKey;
+		private final long offset;
+
+		Chunk(String hash, String objectKey, long offset) {
+			this.hash = hash;
+			this.objectKey = objectKey;
+			this.offset = offset;
+		}
+
+		public String getHash() {
+			return hash;
+		}
+
+		public String getObjectKey() {
+			return objectKey;
+		}
+
+		public long getOffset() {
+			return offset;
+		}
+
+		public boolean isZero() {
+			return objectKey == null;
+		}
+	}
+
+	private SnapshotManifest(long size, long chunkSize, int depth, String parentSnapshotId, List<Chunk> chunks) {
+		this.size = size;
+		this.chunkSize = chunkSize;
+		this.depth = depth;
+		this.parentSnapshotId = parentSnapshotId;
+		this.chunks = chunks;
+	}
+
+	public static String manifestKey(String snapshotKey) {
+		return snapshotKey + MANIFEST_SUFFIX;
+	}
+
+	/**
+	 * Builds the manifest for snapshotFile. If parent is usable the chunks that differ from it are
+	 * written to deltaFile, which becomes the snapshot object, otherwise the snapshot file itself
+	 * is the snapshot object and deltaFile is not written.
+	 *
+	 * @param parent manifest of the previous snapshot of the same volume, may be null
+	 * @param parentSnapshotId id of the snapshot parent belongs to
+	 * @param maxDepth maximum number of incremental snapshots before a full snapshot is taken
+	 */
+	public static SnapshotManifest create(File snapshotFile,
+			String snapshotKey,
+			long chunkSize,
+			SnapshotManifest parent,
+			String parentSnapshotId,
+			int maxDepth,
+			File deltaFile) throws EucalyptusCloudException {
+		final long size = snapshotFile.length();
+		final boolean incremental = parent != null &&
+				parent.size == size &&
+				parent.chunkSize == chunkSize &&
+				parent.depth < maxDepth;
+		final List<Chunk> chunks = new ArrayList<Chunk>();
+		RandomAccessFile raf = null;
+		OutputStream delta = null;
+		try {
+			raf = new RandomAccessFile(snapshotFile, "r");
+			FileChannel channel = raf.getChannel();
+			if (incremental) {
+				delta = new FileOutputStream(deltaFile);
+			}
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			ByteBuffer buffer = ByteBuffer.allocate((int) chunkSize);
+			long deltaOffset = 0;
+			for (int index = 0; (long) index * chunkSize < size; index++) {
+				long position = index * chunkSize;
+				buffer.clear();
+				buffer.limit((int) Math.min(chunkSize, size - position));
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer, position + buffer.position()) < 0) {
+						throw new IOException("Unexpected end of snapshot file " + snapshotFile.getAbsolutePath());
+					}
+				}
+				buffer.flip();
+				if (isZero(buffer)) {
+					chunks.add(new Chunk(ZERO, incremental ? null : snapshotKey, position));
+					continue;
+				}
+				digest.reset();
+				digest.update(buffer.duplicate());
+				String hash = Hashes.bytesToHex(digest.digest());
+				if (!incremental) {
+					chunks.add(new Chunk(hash, snapshotKey, position));
+				} else {
+					Chunk previous = parent.chunks.get(index);
+					if (hash.equals(previous.hash)) {
+						chunks.add(previous);
+					} else {
+						delta.write(buffer.array(), 0, buffer.limit());
+						chunks.add(new Chunk(hash, snapshotKey, deltaOffset));
+						deltaOffset += buffer.limit();
+					}
+				}
+			}
+		} catch (Exception ex) {
+			throw new EucalyptusCloudException("Unable to create manifest for snapshot file " + snapshotFile.getAbsolutePath(), ex);
+		} finally {
+			closeQuietly(delta);
+			closeQuietly(raf);
+		}
+		return new SnapshotManifest(size, chunkSize, incremental ? parent.depth + 1 : 0, incremental ? parentSnapshotId : null, chunks);
+	}
+
+	public static SnapshotManifest read(InputStream in) throws EucalyptusCloudException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, Charsets.UTF_8));
+		try {
+			if (!HEADER.equals(reader.readLine())) {
+				throw new EucalyptusCloudException("Unrecognized snapshot manifest");
+			}
+			long size = Long.parseLong(value(reader.readLine(), "size"));
+			long chunkSize = Long.parseLong(value(reader.readLine(), "chunk"));
+			int depth = Integer.parseInt(value(reader.readLine(), "depth"));
+			String parent = value(reader.readLine(), "parent");
+			List<Chunk> chunks = new ArrayList<Chunk>();
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.isEmpty()) {
+					continue;
+				}
+				String[] fields = line.split(" ");
+				if (fields.length != 3) {
+					throw new EucalyptusCloudException("Malformed snapshot manifest entry: " + line);
+				}
+				chunks.add(ZERO.equals(fields[0]) && "-".equals(fields[1]) ?
+						new Chunk(ZERO, null, Long.parseLong(fields[2])) :
+						new Chunk(fields[0], fields[1], Long.parseLong(fields[2])));
+			}
+			if ((long) chunks.size() != (size + chunkSize - 1) / chunkSize) {
+				throw new EucalyptusCloudException("Snapshot manifest has " + chunks.size() + " chunks for size " + size);
+			}
+			return new SnapshotManifest(size, chunkSize, depth, "-".equals(parent) ? null : parent, chunks);
+		} catch (EucalyptusCloudException ex) {
+			throw ex;
+		} catch (Exception ex) {
+			throw new EucalyptusCloudException("Unable to read snapshot manifest", ex);
+		}
+	}
+
+	public void write(OutputStream out) throws IOException {
+		BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out, Charsets.UTF_8));
+		writer.write(HEADER);
+		writer.newLine();
+		writer.write("size " + size);
+		writer.newLine();
+		writer.write("chunk " + chunkSize);
+		writer.newLine();
+		writer.write("depth " + depth);
+		writer.newLine();
+		writer.write("parent " + (parentSnapshotId == null ? "-" : parentSnapshotId));
+		writer.newLine();
+		for (Chunk chunk : chunks) {
+			writer.write(chunk.hash + " " + (chunk.objectKey == null ? "-" : chunk.objectKey) + " " + chunk.offset);
+			writer.newLine();
+		}
+		writer.flush();
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public long getChunkSize() {
+		return chunkSize;
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	public boolean isIncremental() {
+		return depth > 0;
+	}
+
+	public String getParentSnapshotId() {
+		return parentSnapshotId;
+	}
+
+	public List<Chunk> getChunks() {
+		return chunks;
+	}
+
+	public long getChunkLength(int index) {
+		return Math.min(chunkSize, size - index * chunkSize);
+	}
+
+	private static boolean isZero(ByteBuffer buffer) {
+		for (int i = buffer.position(); i < buffer.limit(); i++) {
+			if (buffer.get(i) != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static String value(String line, String name) throws EucalyptusCloudException {
+		if (line == null || !line.startsWith(name + " ")) {
+			throw new EucalyptusCloudException("Snapshot manifest missing " + name);
+		}
+		return line.substring(name.length() + 1);
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		if (closeable != null) {
+			try {
+				closeable.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+}
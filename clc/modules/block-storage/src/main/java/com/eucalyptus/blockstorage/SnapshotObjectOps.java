@@ -62,23 +62,50 @@
 
 package com.eucalyptus.blockstorage;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
+import org.bouncycastle.util.encoders.Hex;
 
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
 import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.UploadPartRequest;
 import com.eucalyptus.auth.Accounts;
 import com.eucalyptus.auth.principal.AccessKey;
 import com.eucalyptus.auth.principal.Account;
 import com.eucalyptus.auth.principal.User;
+import com.eucalyptus.blockstorage.entities.BlockStorageGlobalConfiguration;
+import com.eucalyptus.blockstorage.entities.SnapshotPart;
 import com.eucalyptus.blockstorage.util.StorageProperties;
+import com.eucalyptus.entities.EntityWrapper;
 import com.eucalyptus.objectstorage.util.S3Client;
+import com.eucalyptus.system.Threads;
 import com.eucalyptus.util.EucalyptusCloudException;
 
 
@@ -124,6 +151,10 @@ public class SnapshotObjectOps {
 				throw new EucalyptusCloudException(e);
 			}
 		}
+		if(snapshotFile.length() > getPartSize()) {
+			uploadSnapshotParts(snapshotFile, callback, snapshotKey, snapshotId);
+			return;
+		}
 		try {
 			ObjectMetadata metadata = new ObjectMetadata();
 			metadata.setContentLength(snapshotFile.length());
@@ -135,9 +166,305 @@ public class SnapshotObjectOps {
 		}
 	}
 
+	/**
+	 * Uploads the snapshot as a multipart upload, sending parts concurrently. The MD5 of
+	 * each part is computed as the part is read for sending and checked against the ETag
+	 * returned for the part. Parts are recorded once accepted, so a later call for the same
+	 * snapshot resumes the upload and only sends the parts that are missing, provided
+	 * the snapshot file still has the size and modification time it had when they were sent.
+	 */
+	private void uploadSnapshotParts(final File snapshotFile,
+			final SnapshotProgressCallback callback,
+			final String snapshotKey,
+			final String snapshotId) throws EucalyptusCloudException {
+		final AmazonS3Client client = s3Client.getS3Client();
+		final long partSize = getPartSize();
+		final long fileLastModified = snapshotFile.lastModified();
+		final long fileSize = snapshotFile.length();
+		final int partCount = (int) ((fileSize + partSize - 1) / partSize);
+		final Map<Integer, PartETag> completed = new ConcurrentSkipListMap<Integer, PartETag>();
+		String existingUploadId = loadPartProgress(snapshotId, snapshotKey, partSize, fileSize, fileLastModified, completed);
+		if (existingUploadId == null) {
+			try {
+				existingUploadId = client.initiateMultipartUpload(new InitiateMultipartUploadRequest(StorageProperties.SNAPSHOT_BUCKET, snapshotKey)).getUploadId();
+			} catch (Exception ex) {
+				LOG.error("Snapshot " + snapshotId + " upload failed to initiate for: " + snapshotKey, ex);
+				throw new EucalyptusCloudException(ex);
+			}
+		} else {
+			LOG.info("Resuming upload of snapshot " + snapshotId + " with " + completed.size() + " of " + partCount + " parts already sent");
+		}
+		final String uploadId = existingUploadId;
+
+		final AtomicLong bytesSent = new AtomicLong(0);
+		for (Integer partNumber : completed.keySet()) {
+			bytesSent.addAndGet(partLength(fileSize, partSize, partNumber));
+		}
+		callback.update(bytesSent.get());
+
+		long startTime = System.currentTimeMillis();
+		ExecutorService executor = transferExecutor("snapshot-part-upload");
+		List<Future<PartETag>> pending = new ArrayList<Future<PartETag>>();
+		for (int partNumber = 1; partNumber <= partCount; partNumber++) {
+			if (completed.containsKey(partNumber)) {
+				continue;
+			}
+			final int part = partNumber;
+			pending.add(executor.submit(new Callable<PartETag>() {
+				@Override
+				public PartETag call() throws Exception {
+					long offset = (part - 1) * partSize;
+					long length = partLength(fileSize, partSize, part);
+					PartETag etag;
+					PartInputStream partStream = new PartInputStream(snapshotFile, offset, length);
+					try {
+						etag = client.uploadPart(new UploadPartRequest()
+								.withBucketName(StorageProperties.SNAPSHOT_BUCKET)
+								.withKey(snapshotKey)
+								.withUploadId(uploadId)
+								.withPartNumber(part)
+								.withInputStream(partStream)
+								.withPartSize(length)).getPartETag();
+					} finally {
+						partStream.close();
+					}
+					if (!partStream.md5Hex().equalsIgnoreCase(etag.getETag().replace("\"", ""))) {
+						throw new EucalyptusCloudException("Part " + part + " of snapshot " + snapshotId + " was corrupted in transfer, MD5 "
+								+ partStream.md5Hex() + " does not match ETag " + etag.getETag());
+					}
+					savePart(new SnapshotPart(snapshotId, snapshotKey, uploadId, part, partSize, etag.getETag(), fileSize, fileLastModified));
+					completed.put(part, etag);
+					long sent = bytesSent.addAndGet(length);
+					synchronized (callback) {
+						callback.update(sent);
+					}
+					return etag;
+				}
+			}));
+		}
+
+		Exception failure = null;
+		for (Future<PartETag> future : pending) {
+			try {
+				future.get();
+			} catch (Exception ex) {
+				if (failure == null) {
+					failure = ex;
+					//Stop sending further parts, those already sent are kept for resume
+					for (Future<PartETag> other : pending) {
+						other.cancel(false);
+					}
+				}
+			}
+		}
+		if (failure != null) {
+			LOG.error("Snapshot " + snapshotId + " upload failed to: " + snapshotKey + ", " + completed.size() + " of " + partCount + " parts sent", failure);
+			throw new EucalyptusCloudException(failure);
+		}
+
+		try {
+			client.completeMultipartUpload(new CompleteMultipartUploadRequest(StorageProperties.SNAPSHOT_BUCKET, snapshotKey, uploadId, new ArrayList<PartETag>(completed.values())));
+		} catch (Exception ex) {
+			//The recorded parts cannot be completed, start over on the next attempt
+			LOG.error("Snapshot " + snapshotId + " upload failed to complete for: " + snapshotKey, ex);
+			abortSnapshotUpload(snapshotId);
+			throw new EucalyptusCloudException(ex);
+		}
+		clearPartProgress(snapshotId);
+		LOG.info("Snapshot " + snapshotId + " upload of " + partCount + " parts took " + Long.toString(System.currentTimeMillis() - startTime) + "ms");
+		callback.finish();
+	}
+
+	/**
+	 * Aborts any multipart upload in progress for the snapshot and discards its recorded parts.
+	 */
+	public void abortSnapshotUpload(String snapshotId) {
+		EntityWrapper<SnapshotPart> db = EntityWrapper.get(SnapshotPart.class);
+		try {
+			List<SnapshotPart> parts = db.query(new SnapshotPart(snapshotId));
+			if (!parts.isEmpty()) {
+				SnapshotPart part = parts.get(0);
+				try {
+					s3Client.getS3Client().abortMultipartUpload(new AbortMultipartUploadRequest(StorageProperties.SNAPSHOT_BUCKET, part.getSnapshotKey(), part.getUploadId()));
+				} catch (Exception ex) {
+					LOG.warn("Unable to abort upload " + part.getUploadId() + " for snapshot " + snapshotId + ": " + ex.getMessage());
+				}
+				for (SnapshotPart p : parts) {
+					db.delete(p);
+				}
+			}
+			db.commit();
+		} catch (Exception ex) {
+			LOG.error("Unable to discard upload progress for snapshot " + snapshotId, ex);
+			db.rollback();
+		}
+	}
+
+	/**
+	 * Loads the recorded parts for the snapshot upload into completed, returning the upload id
+	 * to resume or null if there is nothing usable to resume.
+	 */
+	private String loadPartProgress(String snapshotId, String snapshotKey, long partSize, long fileSize, long fileLastModified,
+			Map<Integer, PartETag> completed) {
+		String uploadId = null;
+		boolean usable = true;
+		EntityWrapper<SnapshotPart> db = EntityWrapper.get(SnapshotPart.class);
+		try {
+			for (SnapshotPart part : db.query(new SnapshotPart(snapshotId))) {
+				if (!snapshotKey.equals(part.getSnapshotKey()) ||
+						part.getPartSize() == null || part.getPartSize() != partSize ||
+						part.getFileSize() == null || part.getFileSize() != fileSize ||
+						part.getFileLastModified() == null || part.getFileLastModified() != fileLastModified ||
+						(uploadId != null && !uploadId.equals(part.getUploadId()))) {
+					usable = false;
+					break;
+				}
+				uploadId = part.getUploadId();
+				completed.put(part.getPartNumber(), new PartETag(part.getPartNumber(), part.getEtag()));
+			}
+			db.commit();
+		} catch (Exception ex) {
+			LOG.error("Unable to load upload progress for snapshot " + snapshotId, ex);
+			db.rollback();
+			usable = false;
+		}
+		if (!usable) {
+			//Part layout or snapshot file changed since the last attempt
+			abortSnapshotUpload(snapshotId);
+			completed.clear();
+			return null;
+		}
+		return uploadId;
+	}
+
+	private void savePart(SnapshotPart part) throws EucalyptusCloudException {
+		EntityWrapper<SnapshotPart> db = EntityWrapper.get(SnapshotPart.class);
+		try {
+			db.add(part);
+			db.commit();
+		} catch (Exception ex) {
+			db.rollback();
+			throw new EucalyptusCloudException("Unable to record part " + part.getPartNumber() + " of snapshot " + part.getSnapshotId(), ex);
+		}
+	}
+
+	private void clearPartProgress(String snapshotId) {
+		EntityWrapper<SnapshotPart> db = EntityWrapper.get(SnapshotPart.class);
+		try {
+			for (SnapshotPart part : db.query(new SnapshotPart(snapshotId))) {
+				db.delete(part);
+			}
+			db.commit();
+		} catch (Exception ex) {
+			LOG.error("Unable to clear upload progress for snapshot " + snapshotId, ex);
+			db.rollback();
+		}
+	}
+
+	private static long getPartSize() {
+		Integer partSizeMb = BlockStorageGlobalConfiguration.snapshot_part_size_mb;
+		//Object storage requires parts of at least 5MB
+		return Math.max(5, partSizeMb == null ? 100 : partSizeMb) * 1024L * 1024L;
+	}
+
+	private static ExecutorService transferExecutor(String name) {
+		Integer concurrency = BlockStorageGlobalConfiguration.snapshot_transfer_concurrency;
+		return Threads.lookup(Storage.class, SnapshotObjectOps.class, name).limitTo(Math.max(1, concurrency == null ? 4 : concurrency));
+	}
+
+	private static long partLength(long fileSize, long partSize, int partNumber) {
+		return Math.min(partSize, fileSize - (partNumber - 1) * partSize);
+	}
+
+	/**
+	 * Stream for one part of a file that computes the MD5 of the bytes read. Mark and
+	 * reset restore the digest along with the position, so the part can be resent
+	 * when a request is retried.
+	 */
+	private static class PartInputStream extends InputStream {
+		private final RandomAccessFile file;
+		private final FileChannel channel;
+		private final long end;
+		private long position;
+		private long markPosition;
+		private MessageDigest digest;
+		private MessageDigest markDigest;
+
+		private PartInputStream(File file, long offset, long length) throws Exception {
+			this.file = new RandomAccessFile(file, "r");
+			this.channel = this.file.getChannel();
+			this.end = offset + length;
+			this.position = offset;
+			this.markPosition = offset;
+			this.digest = MessageDigest.getInstance("MD5");
+			this.markDigest = copy(this.digest);
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] single = new byte[1];
+			int read = read(single, 0, 1);
+			return read < 0 ? -1 : single[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (position >= end) {
+				return -1;
+			}
+			int read = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+			if (read < 0) {
+				throw new IOException("Unexpected end of snapshot file at " + position);
+			}
+			digest.update(b, off, read);
+			position += read;
+			return read;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(Integer.MAX_VALUE, end - position);
+		}
+
+		@Override
+		public boolean markSupported() {
+			return true;
+		}
+
+		@Override
+		public synchronized void mark(int readlimit) {
+			markPosition = position;
+			markDigest = copy(digest);
+		}
+
+		@Override
+		public synchronized void reset() throws IOException {
+			position = markPosition;
+			digest = copy(markDigest);
+		}
+
+		@Override
+		public void close() throws IOException {
+			file.close();
+		}
+
+		private String md5Hex() {
+			return new String(Hex.encode(copy(digest).digest()));
+		}
+
+		private static MessageDigest copy(MessageDigest digest) {
+			try {
+				return (MessageDigest) digest.clone();
+			} catch (CloneNotSupportedException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
 	public void deleteSnapshot(String snapshotLocation, String snapshotId) throws EucalyptusCloudException {
 		try {
 			s3Client.getS3Client().deleteObject(StorageProperties.SNAPSHOT_BUCKET, snapshotLocation);
+			s3Client.getS3Client().deleteObject(StorageProperties.SNAPSHOT_BUCKET, SnapshotManifest.manifestKey(snapshotLocation));
 		} catch (Exception ex) {
 			LOG.error("Snapshot delete failed for: " + snapshotId, ex);
 			throw new EucalyptusCloudException(ex);
@@ -214,7 +541,18 @@ public class SnapshotObjectOps {
 		GetObjectRequest getObjectRequest = new GetObjectRequest(snapshotBucket, snapshotLocation);
 		try {
 			long startTime = System.currentTimeMillis();			
-			s3Client.getS3Client().getObject(getObjectRequest, tmpCompressedFile);
+			SnapshotManifest manifest = getManifest(snapshotLocation);
+			if(manifest != null && manifest.isIncremental()) {
+				restoreSnapshot(snapshotBucket, manifest, tmpCompressedFile);
+				LOG.info("Snapshot " + snapshotBucket + "/" + snapshotLocation + " restore from manifest took " + Long.toString(System.currentTimeMillis() - startTime) + "ms");
+				return;
+			}
+			ObjectMetadata metadata = s3Client.getS3Client().getObjectMetadata(snapshotBucket, snapshotLocation);
+			if(metadata.getContentLength() > getPartSize()) {
+				downloadSnapshotParts(snapshotBucket, snapshotLocation, metadata, tmpCompressedFile);
+			} else {
+				s3Client.getS3Client().getObject(getObjectRequest, tmpCompressedFile);
+			}
 			LOG.info("Snapshot " + snapshotBucket + "/" + snapshotLocation + " download took " + Long.toString(System.currentTimeMillis() - startTime) + "ms");					
 		} catch (Exception ex) {
 			LOG.error("Snapshot download failed for: " + snapshotLocation, ex);
@@ -222,4 +560,179 @@ public class SnapshotObjectOps {
 		}
 	}
 
+	/**
+	 * Stores the manifest for the snapshot alongside the snapshot object.
+	 */
+	public void uploadManifest(SnapshotManifest manifest, String snapshotKey) throws EucalyptusCloudException {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			manifest.write(out);
+			byte[] bytes = out.toByteArray();
+			ObjectMetadata metadata = new ObjectMetadata();
+			metadata.setContentLength(bytes.length);
+			s3Client.getS3Client().putObject(StorageProperties.SNAPSHOT_BUCKET, SnapshotManifest.manifestKey(snapshotKey), new ByteArrayInputStream(bytes), metadata);
+		} catch (Exception ex) {
+			LOG.error("Snapshot manifest upload failed for: " + snapshotKey, ex);
+			throw new EucalyptusCloudException(ex);
+		}
+	}
+
+	/**
+	 * Returns the manifest stored for the snapshot, or null if the snapshot has none.
+	 */
+	public SnapshotManifest getManifest(String snapshotKey) throws EucalyptusCloudException {
+		S3Object object = null;
+		try {
+			object = s3Client.getS3Client().getObject(StorageProperties.SNAPSHOT_BUCKET, SnapshotManifest.manifestKey(snapshotKey));
+		} catch (AmazonServiceException ex) {
+			if (ex.getStatusCode() == 404) {
+				return null;
+			}
+			throw new EucalyptusCloudException("Unable to get manifest for snapshot " + snapshotKey, ex);
+		} catch (Exception ex) {
+			throw new EucalyptusCloudException("Unable to get manifest for snapshot " + snapshotKey, ex);
+		}
+		InputStream in = object.getObjectContent();
+		try {
+			return SnapshotManifest.read(in);
+		} finally {
+			try {
+				in.close();
+			} catch (IOException e) {
+				LOG.debug("Error closing manifest stream for " + snapshotKey, e);
+			}
+		}
+	}
+
+	/**
+	 * Reassembles a snapshot from its manifest. Runs of chunks stored contiguously in the
+	 * same object are fetched with a single ranged GET, all-zero chunks are left as holes.
+	 */
+	private void restoreSnapshot(String snapshotBucket, SnapshotManifest manifest, File destination) throws Exception {
+		final long maxRange = getPartSize();
+		final List<long[]> ranges = new ArrayList<long[]>();
+		final List<String> rangeKeys = new ArrayList<String>();
+		List<SnapshotManifest.Chunk> chunks = manifest.getChunks();
+		for (int index = 0; index < chunks.size(); index++) {
+			SnapshotManifest.Chunk chunk = chunks.get(index);
+			if (chunk.isZero()) {
+				continue;
+			}
+			long length = manifest.getChunkLength(index);
+			long destinationOffset = index * manifest.getChunkSize();
+			int last = ranges.size() - 1;
+			if (last >= 0) {
+				long[] range = ranges.get(last);
+				if (rangeKeys.get(last).equals(chunk.getObjectKey()) &&
+						range[0] + range[2] == chunk.getOffset() &&
+						range[1] + range[2] == destinationOffset &&
+						range[2] + length <= maxRange) {
+					range[2] += length;
+					continue;
+				}
+			}
+			ranges.add(new long[] { chunk.getOffset(), destinationOffset, length });
+			rangeKeys.add(chunk.getObjectKey());
+		}
+
+		RandomAccessFile raf = new RandomAccessFile(destination, "rw");
+		try {
+			raf.setLength(manifest.getSize());
+			FileChannel channel = raf.getChannel();
+			ExecutorService executor = transferExecutor("snapshot-part-download");
+			List<Future<Long>> pending = new ArrayList<Future<Long>>();
+			for (int i = 0; i < ranges.size(); i++) {
+				long[] range = ranges.get(i);
+				pending.add(executor.submit(rangeDownload(snapshotBucket, rangeKeys.get(i), null, range[0], range[0] + range[2] - 1, range[1], channel)));
+			}
+			awaitAll(pending);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Downloads the snapshot with concurrent ranged GETs, each written directly to its
+	 * offset in the destination file. Ranges are pinned to the ETag read up front.
+	 */
+	private void downloadSnapshotParts(final String snapshotBucket,
+			final String snapshotLocation,
+			final ObjectMetadata metadata,
+			final File tmpCompressedFile) throws Exception {
+		final long partSize = getPartSize();
+		final long size = metadata.getContentLength();
+		final RandomAccessFile raf = new RandomAccessFile(tmpCompressedFile, "rw");
+		try {
+			raf.setLength(size);
+			final FileChannel channel = raf.getChannel();
+			ExecutorService executor = transferExecutor("snapshot-part-download");
+			List<Future<Long>> pending = new ArrayList<Future<Long>>();
+			for (long offset = 0; offset < size; offset += partSize) {
+				pending.add(executor.submit(rangeDownload(snapshotBucket, snapshotLocation, metadata.getETag(), offset, Math.min(size, offset + partSize) - 1, offset, channel)));
+			}
+			awaitAll(pending);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Fetches bytes start to end (inclusive) of the object and writes them to channel at position.
+	 */
+	private Callable<Long> rangeDownload(final String snapshotBucket,
+			final String key,
+			final String etag,
+			final long start,
+			final long end,
+			final long position,
+			final FileChannel channel) {
+		return new Callable<Long>() {
+			@Override
+			public Long call() throws Exception {
+				GetObjectRequest rangeRequest = new GetObjectRequest(snapshotBucket, key);
+				rangeRequest.setRange(start, end);
+				if (etag != null) {
+					List<String> etags = new ArrayList<String>();
+					etags.add(etag);
+					rangeRequest.setMatchingETagConstraints(etags);
+				}
+				S3Object object = s3Client.getS3Client().getObject(rangeRequest);
+				if (object == null) {
+					throw new IOException("Snapshot " + key + " changed during download");
+				}
+				InputStream in = object.getObjectContent();
+				try {
+					byte[] bytes = new byte[StorageProperties.TRANSFER_CHUNK_SIZE * 8];
+					long written = 0;
+					int read;
+					while ((read = in.read(bytes)) > 0) {
+						ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, read);
+						while (buffer.hasRemaining()) {
+							written += channel.write(buffer, position + written);
+						}
+					}
+					if (written != end - start + 1) {
+						throw new IOException("Short read for range " + start + "-" + end + " of snapshot " + key);
+					}
+					return written;
+				} finally {
+					in.close();
+				}
+			}
+		};
+	}
+
+	private static void awaitAll(List<Future<Long>> pending) throws Exception {
+		try {
+			for (Future<Long> future : pending) {
+				future.get();
+			}
+		} catch (Exception ex) {
+			for (Future<Long> future : pending) {
+				future.cancel(true);
+			}
+			throw ex;
+		}
+	}
+
 }
@@ -85,6 +85,11 @@ public class ExternalStorageControllerSoapPipeline extends FilteredPipeline {
     return (message.getUri( ).endsWith( "/services/Storage" ) || message.getUri( ).endsWith( "/services/Storage/" )) && message.getHeaderNames().contains( "SOAPAction" ) && message.getHeader("SOAPAction").trim().startsWith("\"EucalyptusSC#");
   }
 
+  @Override
+  public boolean checkRoutable( final String path, final boolean soap ) {
+    return soap;
+  }
+
   @Override
   public String getName( ) {
     return "storage-controller-external-soap";
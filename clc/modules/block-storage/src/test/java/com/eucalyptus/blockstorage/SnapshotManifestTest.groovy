@@ -0,0 +1,171 @@
+/*************************************************************************
+ * Copyright 2009-2014 Eucalyptus Systems, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ *
+ * Please contact Eucalyptus Systems, Inc., 6755 Hollister Ave., Goleta
+ * CA 93117, USA or visit http://www.eucalyptus.com/licenses/ if you need
+ * additional information or have any questions.
+ ************************************************************************/
+package com.eucalyptus.blockstorage
+
+import static org.junit.Assert.*
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import com.eucalyptus.util.EucalyptusCloudException
+
+/**
+ *
+ */
+class SnapshotManifestTest {
+  private static final int CHUNK = 1024
+  private static final long SIZE = 4 * CHUNK + 100
+  private File dir
+
+  @Before
+  void setUp( ) {
+    dir = File.createTempFile( 'snapshot-manifest', '' )
+    dir.delete( )
+    dir.mkdirs( )
+  }
+
+  @After
+  void tearDown( ) {
+    dir.deleteDir( )
+  }
+
+  @Test
+  void testFullManifest( ) {
+    File snapshot = snapshotFile( 'snap-1', content( 1 ) )
+    File delta = new File( dir, 'snap-1.delta' )
+    SnapshotManifest manifest = SnapshotManifest.create( snapshot, 'snap-1', CHUNK, null, null, 3, delta )
+
+    assertFalse( 'Incremental', manifest.isIncremental( ) )
+    assertNull( 'Parent', manifest.getParentSnapshotId( ) )
+    assertFalse( 'Delta written', delta.exists( ) )
+    assertEquals( 'Chunks', 5, manifest.getChunks( ).size( ) )
+    assertEquals( 'Last chunk length', 100, manifest.getChunkLength( 4 ) )
+    manifest.getChunks( ).eachWithIndex { SnapshotManifest.Chunk chunk, int index ->
+      assertEquals( 'Object key', 'snap-1', chunk.getObjectKey( ) )
+      assertEquals( 'Offset', (long) index * CHUNK, chunk.getOffset( ) )
+    }
+    assertEquals( 'Zero chunk hash', 'zero', manifest.getChunks( ).get( 1 ).getHash( ) )
+    assertEquals( 'Restored', content( 1 ).toList( ), restore( manifest, [ 'snap-1': snapshot ] ).toList( ) )
+  }
+
+  @Test
+  void testIncrementalStoresChangedChunks( ) {
+    byte[] data = content( 1 )
+    File first = snapshotFile( 'snap-1', data )
+    SnapshotManifest parent = SnapshotManifest.create( first, 'snap-1', CHUNK, null, null, 3, new File( dir, 'snap-1.delta' ) )
+
+    data[ 2 * CHUNK + 7 ] = (byte) ( data[ 2 * CHUNK + 7 ] + 1 )
+    File second = snapshotFile( 'snap-2', data )
+    File delta = new File( dir, 'snap-2.delta' )
+    SnapshotManifest manifest = SnapshotManifest.create( second, 'snap-2', CHUNK, parent, 'snap-1', 3, delta )
+
+    assertTrue( 'Incremental', manifest.isIncremental( ) )
+    assertEquals( 'Depth', 1, manifest.getDepth( ) )
+    assertEquals( 'Parent', 'snap-1', manifest.getParentSnapshotId( ) )
+    assertEquals( 'Delta length', CHUNK, delta.length( ) )
+    assertEquals( 'Changed chunk key', 'snap-2', manifest.getChunks( ).get( 2 ).getObjectKey( ) )
+    assertEquals( 'Changed chunk offset', 0L, manifest.getChunks( ).get( 2 ).getOffset( ) )
+    assertTrue( 'Zero chunk', manifest.getChunks( ).get( 1 ).isZero( ) )
+    [ 0, 3, 4 ].each { int index ->
+      assertEquals( 'Unchanged chunk key', 'snap-1', manifest.getChunks( ).get( index ).getObjectKey( ) )
+      assertEquals( 'Unchanged chunk offset', (long) index * CHUNK, manifest.getChunks( ).get( index ).getOffset( ) )
+    }
+    assertEquals( 'Restored', data.toList( ), restore( manifest, [ 'snap-1': first, 'snap-2': delta ] ).toList( ) )
+  }
+
+  @Test
+  void testChainResumesFromStoredManifest( ) {
+    byte[] data = content( 1 )
+    Map<String,File> objects = [ 'snap-1': snapshotFile( 'snap-1', data ) ]
+    SnapshotManifest manifest = SnapshotManifest.create( objects[ 'snap-1' ], 'snap-1', CHUNK, null, null, 3, new File( dir, 'snap-1.delta' ) )
+
+    ( 2..3 ).each { int generation ->
+      // each snapshot continues from the manifest as stored with the previous one
+      ByteArrayOutputStream out = new ByteArrayOutputStream( )
+      manifest.write( out )
+      SnapshotManifest stored = SnapshotManifest.read( new ByteArrayInputStream( out.toByteArray( ) ) )
+      assertEquals( 'Stored chunks', manifest.getChunks( )*.getObjectKey( ), stored.getChunks( )*.getObjectKey( ) )
+      assertEquals( 'Stored offsets', manifest.getChunks( )*.getOffset( ), stored.getChunks( )*.getOffset( ) )
+
+      data[ generation * CHUNK ] = (byte) generation
+      String key = "snap-${generation}"
+      File delta = new File( dir, "${key}.delta" )
+      manifest = SnapshotManifest.create( snapshotFile( key, data ), key, CHUNK, stored, "snap-${generation - 1}", 3, delta )
+      objects[ key ] = delta
+      assertEquals( 'Depth', generation - 1, manifest.getDepth( ) )
+    }
+
+    assertEquals( 'Latest chunk', 'snap-3', manifest.getChunks( ).get( 3 ).getObjectKey( ) )
+    assertEquals( 'Earlier chunk', 'snap-2', manifest.getChunks( ).get( 2 ).getObjectKey( ) )
+    assertEquals( 'Original chunk', 'snap-1', manifest.getChunks( ).get( 0 ).getObjectKey( ) )
+    assertEquals( 'Restored', data.toList( ), restore( manifest, objects ).toList( ) )
+  }
+
+  @Test
+  void testFullSnapshotWhenChainTooDeepOrSizeChanged( ) {
+    byte[] data = content( 1 )
+    SnapshotManifest parent = SnapshotManifest.create( snapshotFile( 'snap-1', data ), 'snap-1', CHUNK, null, null, 1, new File( dir, 'snap-1.delta' ) )
+    SnapshotManifest child = SnapshotManifest.create( snapshotFile( 'snap-2', data ), 'snap-2', CHUNK, parent, 'snap-1', 1, new File( dir, 'snap-2.delta' ) )
+    assertEquals( 'Child depth', 1, child.getDepth( ) )
+
+    SnapshotManifest deep = SnapshotManifest.create( snapshotFile( 'snap-3', data ), 'snap-3', CHUNK, child, 'snap-2', 1, new File( dir, 'snap-3.delta' ) )
+    assertFalse( 'Depth limit', deep.isIncremental( ) )
+    assertFalse( 'Delta written', new File( dir, 'snap-3.delta' ).exists( ) )
+
+    byte[] grown = Arrays.copyOf( data, data.length + CHUNK )
+    SnapshotManifest resized = SnapshotManifest.create( snapshotFile( 'snap-4', grown ), 'snap-4', CHUNK, parent, 'snap-1', 3, new File( dir, 'snap-4.delta' ) )
+    assertFalse( 'Size changed', resized.isIncremental( ) )
+  }
+
+  @Test( expected = EucalyptusCloudException )
+  void testReadRejectsTruncatedManifest( ) {
+    SnapshotManifest manifest = SnapshotManifest.create( snapshotFile( 'snap-1', content( 1 ) ), 'snap-1', CHUNK, null, null, 3, new File( dir, 'snap-1.delta' ) )
+    ByteArrayOutputStream out = new ByteArrayOutputStream( )
+    manifest.write( out )
+    List<String> lines = new String( out.toByteArray( ), 'UTF-8' ).readLines( )
+    SnapshotManifest.read( new ByteArrayInputStream( lines.subList( 0, lines.size( ) - 1 ).join( '\n' ).getBytes( 'UTF-8' ) ) )
+  }
+
+  private File snapshotFile( String name, byte[] data ) {
+    File file = new File( dir, name )
+    file.bytes = data
+    file
+  }
+
+  /**
+   * Random content with an all-zero second chunk
+   */
+  private static byte[] content( long seed ) {
+    byte[] data = new byte[ SIZE ]
+    new Random( seed ).nextBytes( data )
+    Arrays.fill( data, CHUNK, 2 * CHUNK, (byte) 0 )
+    data
+  }
+
+  private static byte[] restore( SnapshotManifest manifest, Map<String,File> objects ) {
+    byte[] data = new byte[ manifest.getSize( ) ]
+    manifest.getChunks( ).eachWithIndex { SnapshotManifest.Chunk chunk, int index ->
+      if ( !chunk.isZero( ) ) {
+        byte[] object = objects[ chunk.getObjectKey( ) ].bytes
+        System.arraycopy( object, (int) chunk.getOffset( ), data, index * CHUNK, (int) manifest.getChunkLength( index ) )
+      }
+    }
+    data
+  }
+}
@@ -40,6 +40,7 @@ import org.apache.log4j.Logger;
 import com.eucalyptus.auth.Permissions;
 import com.eucalyptus.auth.policy.PolicySpec;
 import com.eucalyptus.auth.principal.Principals;
+import com.eucalyptus.bootstrap.OrderedShutdown;
 import com.eucalyptus.cloudwatch.domain.DBCleanupService;
 import com.eucalyptus.cloudwatch.domain.alarms.AlarmEntity;
 import com.eucalyptus.cloudwatch.domain.alarms.AlarmEntity.ComparisonOperator;
@@ -51,11 +52,13 @@ import com.eucalyptus.cloudwatch.domain.alarms.AlarmManager.ActionManager;
 import com.eucalyptus.cloudwatch.domain.alarms.AlarmManager;
 import com.eucalyptus.cloudwatch.domain.alarms.AlarmStateEvaluationDispatcher;
 import com.eucalyptus.cloudwatch.domain.listmetrics.ListMetric;
+import com.eucalyptus.cloudwatch.domain.listmetrics.ListMetricIndex;
 import com.eucalyptus.cloudwatch.domain.listmetrics.ListMetricManager;
 import com.eucalyptus.cloudwatch.domain.metricdata.MetricDataQueue;
 import com.eucalyptus.cloudwatch.domain.metricdata.MetricEntity.MetricType;
 import com.eucalyptus.cloudwatch.domain.metricdata.MetricEntity.Units;
 import com.eucalyptus.cloudwatch.domain.metricdata.MetricManager;
+import com.eucalyptus.cloudwatch.domain.metricdata.MetricRollupStore;
 import com.eucalyptus.cloudwatch.domain.metricdata.MetricStatistics;
 import com.eucalyptus.cloudwatch.domain.metricdata.MetricUtils;
 import com.eucalyptus.component.Faults;
@@ -89,6 +92,20 @@ public class CloudWatchService {
         .newSingleThreadScheduledExecutor();
     dbCleanupService.scheduleAtFixedRate(new DBCleanupService(), 0, 1,
         TimeUnit.DAYS);
+    ScheduledExecutorService listMetricsService = Executors
+        .newSingleThreadScheduledExecutor();
+    listMetricsService.scheduleAtFixedRate(new ListMetricIndex.WriteBehindTask(), 1, 1,
+        TimeUnit.MINUTES);
+    ScheduledExecutorService metricRollupService = Executors
+        .newSingleThreadScheduledExecutor();
+    metricRollupService.scheduleAtFixedRate(new MetricRollupStore.WriteBehindTask(), 1, 1,
+        TimeUnit.MINUTES);
+    OrderedShutdown.registerShutdownHook(CloudWatch.class, new Runnable() {
+      @Override
+      public void run() {
+        MetricRollupStore.getInstance().write();
+      }
+    });
   }
 
   private static final Logger LOG = Logger.getLogger(CloudWatchService.class);
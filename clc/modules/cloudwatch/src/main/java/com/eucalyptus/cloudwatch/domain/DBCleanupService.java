@@ -20,6 +20,8 @@
 package com.eucalyptus.cloudwatch.domain;
 
 import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 
@@ -27,36 +29,71 @@ import com.eucalyptus.cloudwatch.domain.absolute.AbsoluteMetricHelper;
 import com.eucalyptus.cloudwatch.domain.alarms.AlarmManager;
 import com.eucalyptus.cloudwatch.domain.listmetrics.ListMetricManager;
 import com.eucalyptus.cloudwatch.domain.metricdata.MetricManager;
+import com.eucalyptus.configurable.ConfigurableClass;
+import com.eucalyptus.configurable.ConfigurableField;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.collect.Maps;
 
+@ConfigurableClass(root = "cloudwatch", description = "Parameters controlling cloud watch data retention")
 public class DBCleanupService implements Runnable {
   Logger LOG = Logger.getLogger(DBCleanupService.class);
+
+  @ConfigurableField(initial = "14", description = "Number of days metric data, alarm history and metrics are retained")
+  public static volatile Integer DB_RETENTION_DAYS = 14;
+
+  @ConfigurableField(initial = "", description = "Number of days metric data is retained for namespaces that differ from the default, e.g. AWS/EC2=7,MyNamespace=30")
+  public static volatile String DB_NAMESPACE_RETENTION_DAYS = "";
+
+  @ConfigurableField(initial = "true", description = "Store metric data and alarm history in daily partitions and expire data by dropping partitions (PostgreSQL only)")
+  public static volatile Boolean DB_PARTITIONING_ENABLED = true;
+
   public DBCleanupService() {
   }
 
   @Override
   public void run() {
     LOG.info("Calling cloudwatch db cleanup service");
-    Date twoWeeksAgo = new Date(System.currentTimeMillis() - 2 * 7 * 24 * 60 * 60 * 1000L);
+    Date now = new Date();
+    Date retentionDate = daysAgo(now, DB_RETENTION_DAYS);
+    Map<String, Date> namespaceRetentionDates = Maps.newHashMap();
+    Date oldestRetentionDate = retentionDate;
+    for (Map.Entry<String, Integer> entry : getNamespaceRetentionDays().entrySet()) {
+      Date namespaceRetentionDate = daysAgo(now, entry.getValue());
+      namespaceRetentionDates.put(entry.getKey(), namespaceRetentionDate);
+      if (namespaceRetentionDate.before(oldestRetentionDate)) {
+        oldestRetentionDate = namespaceRetentionDate;
+      }
+    }
+    if (Boolean.TRUE.equals(DB_PARTITIONING_ENABLED) && PartitionManager.isSupported()) {
+      try {
+        // partitions hold all namespaces so are kept for the longest retention
+        PartitionManager.maintainPartitions(now, oldestRetentionDate);
+      } catch (Exception ex) {
+        LOG.error(ex);
+        LOG.error(ex, ex);
+      }
+    }
     try {
-      MetricManager.deleteMetrics(twoWeeksAgo);
+      MetricManager.deleteMetrics(retentionDate, namespaceRetentionDates);
     } catch (Exception ex) {
       LOG.error(ex);
       LOG.error(ex, ex);
     }
     try {
-      ListMetricManager.deleteMetrics(twoWeeksAgo);
+      ListMetricManager.deleteMetrics(retentionDate);
     } catch (Exception ex) {
       LOG.error(ex);
       LOG.error(ex, ex);
     }
     try {
-      AlarmManager.deleteAlarmHistory(twoWeeksAgo);
+      AlarmManager.deleteAlarmHistory(retentionDate);
     } catch (Exception ex) {
       LOG.error(ex);
       LOG.error(ex, ex);
     }
     try {
-      AbsoluteMetricHelper.deleteAbsoluteMetricHistory(twoWeeksAgo);
+      AbsoluteMetricHelper.deleteAbsoluteMetricHistory(retentionDate);
     } catch (Exception ex) {
       LOG.error(ex);
       LOG.error(ex, ex);
@@ -64,4 +101,27 @@ public class DBCleanupService implements Runnable {
     LOG.info("Done cleaning up cloudwatch db");
   }
 
+  private Map<String, Integer> getNamespaceRetentionDays() {
+    Map<String, Integer> namespaceRetentionDays = Maps.newHashMap();
+    try {
+      for (String namespaceRetention : Splitter.on(',').trimResults().omitEmptyStrings()
+          .split(Strings.nullToEmpty(DB_NAMESPACE_RETENTION_DAYS))) {
+        int separator = namespaceRetention.lastIndexOf('=');
+        if (separator < 1) {
+          throw new IllegalArgumentException(namespaceRetention);
+        }
+        namespaceRetentionDays.put(namespaceRetention.substring(0, separator).trim(),
+            Integer.valueOf(namespaceRetention.substring(separator + 1).trim()));
+      }
+    } catch (IllegalArgumentException ex) {
+      LOG.error("Invalid namespace retention, using default retention for all namespaces: " + DB_NAMESPACE_RETENTION_DAYS);
+      namespaceRetentionDays.clear();
+    }
+    return namespaceRetentionDays;
+  }
+
+  private static Date daysAgo(Date now, int days) {
+    return new Date(now.getTime() - TimeUnit.DAYS.toMillis(days));
+  }
+
 }
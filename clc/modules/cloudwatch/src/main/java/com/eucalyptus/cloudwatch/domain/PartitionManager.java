@@ -0,0 +1,371 @@
+/*************************************************************************
+ * Copyright 2009-2014 Eucalyptus Systems, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ *
+ * Please contact Eucalyptus Systems, Inc., 6755 Hollister Ave., Goleta
+ * CA 93117, USA or visit http://www.eucalyptus.com/licenses/ if you need
+ * additional information or have any questions.
+ ************************************************************************/
+package com.eucalyptus.cloudwatch.domain;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
+import javax.persistence.Table;
+
+import org.apache.log4j.Logger;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.ejb.Ejb3Configuration;
+import org.hibernate.engine.spi.ExecuteUpdateResultCheckStyle;
+import org.hibernate.mapping.PersistentClass;
+
+import groovy.sql.GroovyRowResult;
+import groovy.sql.Sql;
+
+import com.eucalyptus.bootstrap.Databases;
+import com.eucalyptus.cloudwatch.domain.alarms.AlarmHistory;
+import com.eucalyptus.cloudwatch.domain.metricdata.MetricEntityFactory;
+import com.eucalyptus.cloudwatch.domain.metricdata.MetricRollupEntity;
+import com.eucalyptus.entities.PersistenceContexts;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Longs;
+
+/**
+ * Daily partitions for cloud watch time series tables.
+ *
+ * Each table is the parent of one child table per day, with a check
+ * constraint on the timestamp so that PostgreSQL constraint exclusion skips
+ * partitions outside the time range of a query. Rows inserted into the
+ * parent by hibernate are redirected to the partition for their day by a
+ * before insert trigger. The trigger function is regenerated with a branch
+ * for each existing partition whenever partitions are created or dropped, so
+ * no catalog lookup is needed per row. Rows for days without a partition
+ * stay in the parent.
+ *
+ * As a redirected insert reports no rows for the parent, the insert row count
+ * check must be disabled for the entity, see {@link PartitionTriggerConfigurer}.
+ * This is only done for tables that have the partition trigger installed when
+ * the persistence context is built, so a table partitioned for the first time
+ * uses an after insert trigger that moves each row from the parent to the
+ * partition. The trigger is replaced with the before insert trigger once the
+ * check is disabled, on the next start.
+ *
+ * Expired data is removed by dropping partitions, rows remaining in the
+ * parent are removed by the usual deletes in DBCleanupService.
+ */
+public class PartitionManager {
+  private static final Logger LOG = Logger.getLogger(PartitionManager.class);
+
+  private static final String PERSISTENCE_CONTEXT = "eucalyptus_cloudwatch";
+  private static final String PARTITION_SUFFIX = "_p";
+  private static final String PARTITION_DATE_FORMAT = "yyyyMMdd";
+  private static final int PARTITIONS_AHEAD = 7;
+  private static final int TRIGGER_TYPE_BEFORE = 1 << 1;
+
+  private static volatile Set<String> insertCheckDisabledTables = Collections.emptySet();
+
+  /**
+   * Check if partitioning is supported by the database.
+   */
+  public static boolean isSupported() {
+    return String.valueOf(Databases.getHibernateDialect()).contains("PostgreSQL");
+  }
+
+  /**
+   * Disables the insert row count check for the partitioned entities whose
+   * table has the partition trigger installed, an insert redirected to a
+   * partition by the trigger reports no rows for the parent.
+   */
+  public static class PartitionTriggerConfigurer implements PersistenceContexts.PersistenceContextConfigurer {
+    @Override
+    public void configure(String persistenceContext, Ejb3Configuration configuration) {
+      if (PERSISTENCE_CONTEXT.equals(persistenceContext) && isSupported()) {
+        Set<String> tables = ImmutableSet.copyOf(Sets.intersection(getPartitionedTables(), getTriggerTables()));
+        if (!tables.isEmpty()) {
+          LOG.info("Disabling insert row count check for partitioned tables " + tables);
+          disableInsertCheck(configuration.getHibernateConfiguration(), tables);
+          insertCheckDisabledTables = tables;
+        }
+      }
+    }
+  }
+
+  private static Set<String> getTriggerTables() {
+    Set<String> tables = Sets.newHashSet();
+    Sql sql = null;
+    try {
+      sql = Databases.getBootstrapper().getConnection(PERSISTENCE_CONTEXT);
+      for (GroovyRowResult row : sql.rows(
+          "SELECT c.relname FROM pg_trigger t JOIN pg_class c ON c.oid = t.tgrelid " +
+          "WHERE t.tgname = c.relname || '_partition_trigger'")) {
+        tables.add(String.valueOf(row.get("relname")));
+      }
+    } catch (Exception ex) {
+      LOG.error("Error finding partition triggers, insert row count check remains enabled", ex);
+      tables.clear();
+    } finally {
+      if (sql != null) {
+        sql.close();
+      }
+    }
+    return tables;
+  }
+
+  private static void disableInsertCheck(Configuration configuration, Set<String> tables) {
+    configuration.buildMappings();
+    for (Iterator<PersistentClass> mappings = configuration.getClassMappings(); mappings.hasNext(); ) {
+      PersistentClass mapping = mappings.next();
+      if (tables.contains(mapping.getTable().getName().toLowerCase())) {
+        mapping.setCustomSQLInsert(null, false, ExecuteUpdateResultCheckStyle.NONE);
+      }
+    }
+  }
+
+  /**
+   * Create partitions for the coming days and drop partitions with data
+   * older than the given date.
+   *
+   * @param now The current time
+   * @param before The date to drop partitions before, a partition is only
+   *               dropped if all of its day is before this date
+   */
+  public static void maintainPartitions(Date now, Date before) {
+    for (String table : getPartitionedTables()) {
+      try {
+        maintainPartitions(table, now, before);
+      } catch (RuntimeException ex) {
+        LOG.error("Error maintaining partitions for " + table, ex);
+      }
+    }
+  }
+
+  private static void maintainPartitions(String table, Date now, Date before) {
+    EntityManager entityManager = PersistenceContexts.getEntityManagerFactory(PERSISTENCE_CONTEXT).createEntityManager();
+    try {
+      Set<String> partitions = Sets.newHashSet();
+      EntityTransaction db = entityManager.getTransaction();
+      db.begin();
+      try {
+        for (Object partition : entityManager.createNativeQuery(
+            "SELECT c.relname FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid " +
+            "JOIN pg_class p ON p.oid = i.inhparent WHERE p.relname = '" + table + "'").getResultList()) {
+          partitions.add(String.valueOf(partition));
+        }
+        db.commit();
+      } finally {
+        if (db.isActive())
+          db.rollback();
+      }
+      Date day = startOfDay(now, 0);
+      for (int i = 0; i <= PARTITIONS_AHEAD; i++) {
+        Date partitionDay = startOfDay(day, i);
+        String partition = partitionName(table, partitionDay);
+        if (!partitions.contains(partition) && createPartition(entityManager, table, partition, partitionDay)) {
+          partitions.add(partition);
+        }
+      }
+      Set<String> expired = Sets.newHashSet();
+      for (String partition : partitions) {
+        Date partitionDay = partitionDay(table, partition);
+        if (partitionDay != null && !startOfDay(partitionDay, 1).after(before)) {
+          expired.add(partition);
+        }
+      }
+      // stop routing rows to expired partitions before dropping them
+      createTrigger(entityManager, table, Sets.difference(partitions, expired), day);
+      for (String partition : expired) {
+        dropPartition(entityManager, partition);
+      }
+    } finally {
+      entityManager.close();
+    }
+  }
+
+  private static void createTrigger(EntityManager entityManager, String table, Set<String> partitions, final Date today) {
+    List<Date> days = Lists.newArrayList();
+    for (String partition : partitions) {
+      Date partitionDay = partitionDay(table, partition);
+      if (partitionDay != null) {
+        days.add(partitionDay);
+      }
+    }
+    // most rows are for the current day, so test the closest days first
+    Collections.sort(days, new Comparator<Date>() {
+      @Override
+      public int compare(Date first, Date second) {
+        return Longs.compare(Math.abs(first.getTime() - today.getTime()), Math.abs(second.getTime() - today.getTime()));
+      }
+    });
+    // a redirected insert fails the row count check unless it is disabled
+    boolean redirect = insertCheckDisabledTables.contains(table);
+
+    EntityTransaction db = entityManager.getTransaction();
+    db.begin();
+    try {
+      String id = redirect ? null : primaryKey(entityManager, table);
+      SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+      StringBuilder function = new StringBuilder();
+      // no colons, hibernate would take them for parameters
+      function.append("CREATE OR REPLACE FUNCTION ").append(table).append("_partition_insert() RETURNS trigger AS $$\n")
+          .append("BEGIN\n");
+      for (Date partitionDay : days) {
+        function.append(partitionDay == days.get(0) ? "  IF " : "  ELSIF ")
+            .append("NEW.\"timestamp\" >= TIMESTAMP '").append(format.format(partitionDay)).append("' AND ")
+            .append("NEW.\"timestamp\" < TIMESTAMP '").append(format.format(startOfDay(partitionDay, 1))).append("' THEN\n")
+            .append("    INSERT INTO ").append(partitionName(table, partitionDay)).append(" VALUES (NEW.*);\n");
+        if (!redirect) {
+          function.append("    DELETE FROM ONLY ").append(table).append(" WHERE ").append(id).append(" = NEW.").append(id).append(";\n");
+        }
+      }
+      if (days.isEmpty()) {
+        function.append("  RETURN NEW;\n");
+      } else {
+        function.append("  ELSE\n")
+            .append("    RETURN NEW;\n")
+            .append("  END IF;\n")
+            .append("  RETURN NULL;\n");
+      }
+      function.append("END;\n")
+          .append("$$ LANGUAGE plpgsql");
+      entityManager.createNativeQuery(function.toString()).executeUpdate();
+
+      List<?> triggerTypes = entityManager.createNativeQuery(
+          "SELECT CAST(t.tgtype AS integer) FROM pg_trigger t JOIN pg_class c ON c.oid = t.tgrelid " +
+          "WHERE c.relname = '" + table + "' AND t.tgname = '" + table + "_partition_trigger'").getResultList();
+      boolean before = !triggerTypes.isEmpty() && (((Number) triggerTypes.get(0)).intValue() & TRIGGER_TYPE_BEFORE) != 0;
+      if (triggerTypes.isEmpty() || before != redirect) {
+        LOG.info((triggerTypes.isEmpty() ? "Enabling" : "Updating") + " daily partitions for " + table +
+            (redirect ? " with a before insert trigger" : " with an after insert trigger"));
+        entityManager.createNativeQuery(
+            "DROP TRIGGER IF EXISTS " + table + "_partition_trigger ON " + table).executeUpdate();
+        entityManager.createNativeQuery(
+            "CREATE TRIGGER " + table + "_partition_trigger " + (redirect ? "BEFORE" : "AFTER") + " INSERT ON " + table +
+            " FOR EACH ROW EXECUTE PROCEDURE " + table + "_partition_insert()").executeUpdate();
+      }
+      db.commit();
+    } finally {
+      if (db.isActive())
+        db.rollback();
+    }
+  }
+
+  private static String primaryKey(EntityManager entityManager, String table) {
+    List<?> primaryKey = entityManager.createNativeQuery(
+        "SELECT a.attname FROM pg_index i JOIN pg_class c ON c.oid = i.indrelid " +
+        "JOIN pg_attribute a ON a.attrelid = i.indrelid AND a.attnum = ANY(i.indkey) " +
+        "WHERE c.relname = '" + table + "' AND i.indisprimary").getResultList();
+    if (primaryKey.size() != 1) {
+      throw new IllegalStateException("Expected a single primary key column for " + table + ", found " + primaryKey);
+    }
+    return String.valueOf(primaryKey.get(0));
+  }
+
+  private static boolean createPartition(EntityManager entityManager, String table, String partition, Date day) {
+    SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+    EntityTransaction db = entityManager.getTransaction();
+    db.begin();
+    try {
+      LOG.info("Creating partition " + partition);
+      entityManager.createNativeQuery(
+          "CREATE TABLE " + partition + " (LIKE " + table + " INCLUDING ALL)").executeUpdate();
+      entityManager.createNativeQuery(
+          "ALTER TABLE " + partition + " ADD CONSTRAINT " + partition + "_timestamp_check CHECK (" +
+          "\"timestamp\" >= TIMESTAMP '" + format.format(day) + "' AND " +
+          "\"timestamp\" < TIMESTAMP '" + format.format(startOfDay(day, 1)) + "')").executeUpdate();
+      entityManager.createNativeQuery(
+          "ALTER TABLE " + partition + " INHERIT " + table).executeUpdate();
+      db.commit();
+      return true;
+    } catch (RuntimeException ex) {
+      LOG.error("Error creating partition " + partition, ex);
+      return false;
+    } finally {
+      if (db.isActive())
+        db.rollback();
+    }
+  }
+
+  private static void dropPartition(EntityManager entityManager, String partition) {
+    EntityTransaction db = entityManager.getTransaction();
+    db.begin();
+    try {
+      LOG.info("Dropping partition " + partition);
+      entityManager.createNativeQuery("DROP TABLE IF EXISTS " + partition).executeUpdate();
+      db.commit();
+    } catch (RuntimeException ex) {
+      LOG.error("Error dropping partition " + partition, ex);
+    } finally {
+      if (db.isActive())
+        db.rollback();
+    }
+  }
+
+  private static Set<String> getPartitionedTables() {
+    Set<String> tables = Sets.newLinkedHashSet();
+    for (Class c : MetricEntityFactory.getAllClassesForEntitiesGet()) {
+      tables.add(tableName(c));
+    }
+    tables.add(tableName(MetricRollupEntity.class));
+    tables.add(tableName(AlarmHistory.class));
+    return tables;
+  }
+
+  // unquoted identifiers are lower case in PostgreSQL
+  private static String tableName(Class<?> c) {
+    return c.getAnnotation(Table.class).name().toLowerCase();
+  }
+
+  private static String partitionName(String table, Date day) {
+    return table + PARTITION_SUFFIX + new SimpleDateFormat(PARTITION_DATE_FORMAT).format(day);
+  }
+
+  private static Date partitionDay(String table, String partition) {
+    String prefix = table + PARTITION_SUFFIX;
+    if (!partition.startsWith(prefix)) {
+      return null;
+    }
+    try {
+      SimpleDateFormat format = new SimpleDateFormat(PARTITION_DATE_FORMAT);
+      format.setLenient(false);
+      return format.parse(partition.substring(prefix.length()));
+    } catch (ParseException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Partitions are by local day, as timestamps are stored in local time.
+   */
+  private static Date startOfDay(Date date, int addDays) {
+    Calendar calendar = Calendar.getInstance();
+    calendar.setTime(date);
+    calendar.set(Calendar.HOUR_OF_DAY, 0);
+    calendar.set(Calendar.MINUTE, 0);
+    calendar.set(Calendar.SECOND, 0);
+    calendar.set(Calendar.MILLISECOND, 0);
+    calendar.add(Calendar.DAY_OF_MONTH, addDays);
+    return calendar.getTime();
+  }
+}
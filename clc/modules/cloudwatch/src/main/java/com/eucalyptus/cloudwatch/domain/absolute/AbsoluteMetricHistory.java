@@ -27,6 +27,7 @@ import javax.persistence.PersistenceContext;
 import javax.persistence.Table;
 import org.hibernate.annotations.Cache;
 import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.Index;
 import com.eucalyptus.entities.AbstractPersistent;
 
 @Entity
@@ -43,6 +44,7 @@ public class AbsoluteMetricHistory extends AbstractPersistent {
   private String metricName;
   @Column(name = "dimension_name", nullable = false)
   private String dimensionName;
+  @Index(name = "absolute_metric_history_dimension_value_idx")
   @Column(name = "dimension_value", nullable = false)
   private String dimensionValue;
   @Column(name = "timestamp", nullable = false)
@@ -0,0 +1,456 @@
+/*************************************************************************
+ * Copyright 2009-2014 Eucalyptus Systems, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ *
+ * Please contact Eucalyptus Systems, Inc., 6755 Hollister Ave., Goleta
+ * CA 93117, USA or visit http://www.eucalyptus.com/licenses/ if you need
+ * additional information or have any questions.
+ ************************************************************************/
+package com.eucalyptus.cloudwatch.domain.alarms;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.EntityTransaction;
+
+import org.apache.log4j.Logger;
+import org.hibernate.Criteria;
+import org.hibernate.criterion.Projections;
+import org.hibernate.criterion.Restrictions;
+
+import com.eucalyptus.cloudwatch.domain.metricdata.MetricEntity;
+import com.eucalyptus.cloudwatch.domain.metricdata.MetricEntity.MetricType;
+import com.eucalyptus.cloudwatch.domain.metricdata.MetricManager;
+import com.eucalyptus.cloudwatch.domain.metricdata.MetricManager.MetricDataListener;
+import com.eucalyptus.cloudwatch.domain.metricdata.MetricStatistics;
+import com.eucalyptus.configurable.ConfigurableClass;
+import com.eucalyptus.configurable.ConfigurableField;
+import com.eucalyptus.entities.Entities;
+import com.eucalyptus.records.Logs;
+import com.eucalyptus.util.Mbeans;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Incremental alarm state evaluation.
+ *
+ * Each alarm is subscribed to its metric and keeps a window of minute
+ * aggregates (see AlarmWindow) that is updated as metric data is added. The
+ * window is loaded once from metric data when the alarm is subscribed, after
+ * that alarms are evaluated in memory when their metric data changes or a
+ * period has passed. Alarm state changes and actions are persisted in batches.
+ *
+ * Alarms are synchronized with the database each cycle by loading only the
+ * alarms updated since the previous cycle.
+ */
+@ConfigurableClass(root = "cloudwatch", description = "Parameters controlling cloud watch alarm evaluation")
+public class AlarmEvaluator implements MetricDataListener {
+  private static final Logger LOG = Logger.getLogger(AlarmEvaluator.class);
+
+  @ConfigurableField(initial = "true", description = "Set this to false to evaluate every alarm from metric data each minute")
+  public static volatile Boolean INCREMENTAL_ALARM_EVALUATION_ENABLED = true;
+
+  private static final int MAX_ALARMS_PER_TRANSACTION = 100;
+  // alarms are found by update time, allow for transactions committing after the sync
+  private static final long SYNC_MARGIN = TimeUnit.MINUTES.toMillis(5);
+
+  private static final AlarmEvaluator singleton = new AlarmEvaluator();
+  private static final EvaluationStatistics statistics = new EvaluationStatistics();
+  private static final AtomicBoolean registered = new AtomicBoolean(false);
+
+  // alarms by account and alarm name
+  private final ConcurrentMap<List<Object>, AlarmSubscription> alarms =
+      new ConcurrentHashMap<List<Object>, AlarmSubscription>();
+  // alarms by metric and the first of their dimensions
+  private final ConcurrentMap<List<Object>, List<AlarmSubscription>> subscriptions =
+      new ConcurrentHashMap<List<Object>, List<AlarmSubscription>>();
+  private Date lastSync;
+
+  public static AlarmEvaluator getInstance() {
+    if (registered.compareAndSet(false, true)) {
+      MetricManager.addMetricDataListener(singleton);
+      Mbeans.register(statistics);
+    }
+    return singleton;
+  }
+
+  /**
+   * Evaluate alarms with changed metric data or a period since they were last evaluated.
+   *
+   * Called by the dispatcher each minute, alarms are evaluated in batches using the given executor.
+   */
+  public void evaluate(ExecutorService executorService) {
+    sync(new Date());
+    List<AlarmSubscription> subscribed = Lists.newArrayList(alarms.values());
+    for (final List<AlarmSubscription> batch : Iterables.partition(subscribed, MAX_ALARMS_PER_TRANSACTION)) {
+      executorService.submit(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            evaluate(batch);
+          } catch (RuntimeException ex) {
+            LOG.error(ex, ex);
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * Discard all alarm subscriptions, alarms are loaded again on the next evaluation.
+   */
+  public synchronized void clear() {
+    alarms.clear();
+    subscriptions.clear();
+    lastSync = null;
+  }
+
+  @Override
+  public void metricDataAdded(Collection<MetricEntity> entities) {
+    if (alarms.isEmpty()) return;
+    for (MetricEntity me : entities) {
+      Map<String, String> dimensionMap = me.getDimensionMap();
+      add(subscriptions.get(subscriptionKey(me.getAccountId(), me.getMetricType(), me.getNamespace(),
+          me.getMetricName(), null, null)), me, dimensionMap);
+      for (Map.Entry<String, String> dimension : dimensionMap.entrySet()) {
+        add(subscriptions.get(subscriptionKey(me.getAccountId(), me.getMetricType(), me.getNamespace(),
+            me.getMetricName(), dimension.getKey(), dimension.getValue())), me, dimensionMap);
+      }
+    }
+  }
+
+  private static void add(List<AlarmSubscription> candidates, MetricEntity me, Map<String, String> dimensionMap) {
+    if (candidates == null) return;
+    for (AlarmSubscription subscription : candidates) {
+      if (subscription.matches(me, dimensionMap)) {
+        subscription.window.add(me.getTimestamp(), me.getSampleSize(), me.getSampleMax(),
+            me.getSampleMin(), me.getSampleSum());
+        subscription.changed.set(true);
+      }
+    }
+  }
+
+  private synchronized void sync(Date now) {
+    List<AlarmEntity> updated;
+    long count;
+    EntityTransaction db = Entities.get(AlarmEntity.class);
+    try {
+      Criteria criteria = Entities.createCriteria(AlarmEntity.class);
+      if (lastSync != null) {
+        criteria = criteria.add(Restrictions.gt("lastUpdateTimestamp", new Date(lastSync.getTime() - SYNC_MARGIN)));
+      }
+      updated = (List<AlarmEntity>) criteria.list();
+      count = ((Number) Entities.createCriteria(AlarmEntity.class)
+          .setProjection(Projections.rowCount())
+          .uniqueResult()).longValue();
+      db.commit();
+    } catch (RuntimeException ex) {
+      Logs.extreme().error(ex, ex);
+      throw ex;
+    } finally {
+      if (db.isActive())
+        db.rollback();
+    }
+    final List<AlarmSubscription> added = Lists.newArrayList();
+    for (AlarmEntity alarmEntity : updated) {
+      AlarmSubscription existing = alarms.get(alarmKey(alarmEntity.getAccountId(), alarmEntity.getAlarmName()));
+      if (existing != null && existing.hasConfiguration(alarmEntity)) {
+        existing.alarmEntity = alarmEntity;
+      } else {
+        if (existing != null) {
+          unsubscribe(existing);
+        }
+        added.add(new AlarmSubscription(alarmEntity));
+      }
+    }
+    if (!added.isEmpty()) {
+      // metric data created from this time is added to the windows as it is written
+      Date createdBefore = MetricManager.withWritesQuiesced(new Runnable() {
+        @Override
+        public void run() {
+          for (AlarmSubscription subscription : added) {
+            subscribe(subscription);
+          }
+        }
+      });
+      for (AlarmSubscription subscription : added) {
+        subscription.createdBefore = createdBefore;
+      }
+    }
+    lastSync = now;
+    if (count != alarms.size()) {
+      removeDeleted();
+      if (count != alarms.size()) {
+        LOG.warn("Alarm count mismatch, reloading all alarms");
+        lastSync = null;
+      }
+    }
+  }
+
+  private void removeDeleted() {
+    Set<List<Object>> keys = Sets.newHashSet();
+    EntityTransaction db = Entities.get(AlarmEntity.class);
+    try {
+      List<Object[]> results = (List<Object[]>) Entities.createCriteria(AlarmEntity.class)
+          .setProjection(Projections.projectionList()
+              .add(Projections.property("accountId"))
+              .add(Projections.property("alarmName")))
+          .list();
+      for (Object[] result : results) {
+        keys.add(alarmKey(result[0], result[1]));
+      }
+      db.commit();
+    } catch (RuntimeException ex) {
+      Logs.extreme().error(ex, ex);
+      throw ex;
+    } finally {
+      if (db.isActive())
+        db.rollback();
+    }
+    for (Map.Entry<List<Object>, AlarmSubscription> entry : alarms.entrySet()) {
+      if (!keys.contains(entry.getKey())) {
+        unsubscribe(entry.getValue());
+      }
+    }
+  }
+
+  private void subscribe(AlarmSubscription subscription) {
+    AlarmEntity alarmEntity = subscription.alarmEntity;
+    alarms.put(alarmKey(alarmEntity.getAccountId(), alarmEntity.getAlarmName()), subscription);
+    List<Object> key = subscription.getSubscriptionKey();
+    List<AlarmSubscription> candidates = subscriptions.get(key);
+    if (candidates == null) {
+      List<AlarmSubscription> newCandidates = new CopyOnWriteArrayList<AlarmSubscription>();
+      candidates = subscriptions.putIfAbsent(key, newCandidates);
+      if (candidates == null) {
+        candidates = newCandidates;
+      }
+    }
+    candidates.add(subscription);
+  }
+
+  private void unsubscribe(AlarmSubscription subscription) {
+    AlarmEntity alarmEntity = subscription.alarmEntity;
+    alarms.remove(alarmKey(alarmEntity.getAccountId(), alarmEntity.getAlarmName()), subscription);
+    List<AlarmSubscription> candidates = subscriptions.get(subscription.getSubscriptionKey());
+    if (candidates != null) {
+      candidates.remove(subscription);
+    }
+  }
+
+  private void evaluate(List<AlarmSubscription> batch) {
+    Map<String, AlarmState> states = Maps.newHashMap();
+    Map<String, AlarmSubscription> evaluated = Maps.newHashMap();
+    for (AlarmSubscription subscription : batch) {
+      if (!subscription.evaluating.compareAndSet(false, true)) continue;
+      try {
+        Date now = new Date();
+        AlarmEntity alarmEntity = subscription.alarmEntity;
+        if (!subscription.loaded) {
+          load(subscription, now);
+        }
+        boolean changed = subscription.changed.getAndSet(false);
+        if (!changed && now.getTime() - subscription.lastEvaluated < 1000L * alarmEntity.getPeriod()) {
+          statistics.evaluationsSkipped.incrementAndGet();
+          subscription.evaluating.set(false);
+          continue;
+        }
+        Date bufferStartDate = AlarmStateEvaluationWorker.getBufferStartDate(alarmEntity, MetricManager.stripSeconds(now));
+        subscription.window.prune(bufferStartDate);
+        AlarmState state = AlarmStateEvaluationWorker.evaluateState(alarmEntity,
+            subscription.window.getStatistics(bufferStartDate, MetricManager.stripSeconds(now), alarmEntity.getPeriod()), now);
+        subscription.lastEvaluated = now.getTime();
+        statistics.evaluations.incrementAndGet();
+        if (state.getStateValue() != alarmEntity.getStateValue() ||
+            (AlarmStateEvaluationWorker.moreThanOnePeriodHasPassed(alarmEntity, now) &&
+                Boolean.TRUE.equals(alarmEntity.getActionsEnabled()) &&
+                !AlarmUtils.getActionsByState(alarmEntity, state).isEmpty())) {
+          states.put(alarmEntity.getNaturalId(), state);
+          evaluated.put(alarmEntity.getNaturalId(), subscription);
+        } else {
+          subscription.evaluating.set(false);
+        }
+      } catch (RuntimeException ex) {
+        subscription.evaluating.set(false);
+        LOG.error("Error evaluating alarm " + subscription.alarmEntity.getAlarmName(), ex);
+      }
+    }
+    try {
+      if (!states.isEmpty()) {
+        update(states, evaluated);
+      }
+    } finally {
+      for (AlarmSubscription subscription : evaluated.values()) {
+        subscription.evaluating.set(false);
+      }
+    }
+  }
+
+  /**
+   * Load the window for a new subscription from metric data created before it was subscribed.
+   */
+  private void load(AlarmSubscription subscription, Date now) {
+    AlarmEntity alarmEntity = subscription.alarmEntity;
+    Date startDate = AlarmStateEvaluationWorker.getBufferStartDate(alarmEntity, MetricManager.stripSeconds(now));
+    Date endDate = MetricManager.stripSeconds(new Date(now.getTime() + MetricManager.FUTURE_TIMESTAMP_BUFFER + 60000L));
+    Collection<MetricStatistics> metricStatisticsList = MetricManager.getMetricStatistics(alarmEntity.getAccountId(),
+        alarmEntity.getMetricName(), alarmEntity.getNamespace(), alarmEntity.getDimensionMap(),
+        alarmEntity.getMetricType(), alarmEntity.getUnit(), startDate, endDate, 60, subscription.createdBefore);
+    for (MetricStatistics metricStatistics : metricStatisticsList) {
+      subscription.window.add(metricStatistics.getTimestamp(), metricStatistics.getSampleSize(),
+          metricStatistics.getSampleMax(), metricStatistics.getSampleMin(), metricStatistics.getSampleSum());
+    }
+    subscription.loaded = true;
+    statistics.windowsLoaded.incrementAndGet();
+  }
+
+  /**
+   * Persist state changes and execute actions for alarms in one transaction.
+   *
+   * @param states the evaluated states by alarm natural id
+   * @param evaluated the evaluated subscriptions by alarm natural id
+   */
+  private void update(Map<String, AlarmState> states, Map<String, AlarmSubscription> evaluated) {
+    Date evaluationDate = new Date();
+    EntityTransaction db = Entities.get(AlarmEntity.class);
+    try {
+      Criteria criteria = Entities.createCriteria(AlarmEntity.class)
+          .add(Restrictions.in("naturalId", states.keySet()));
+      for (AlarmEntity alarmEntity : (List<AlarmEntity>) criteria.list()) {
+        // the alarm configuration may have changed since it was evaluated
+        if (!evaluated.get(alarmEntity.getNaturalId()).hasConfiguration(alarmEntity)) continue;
+        AlarmState state = states.get(alarmEntity.getNaturalId());
+        if (state.getStateValue() != alarmEntity.getStateValue()) {
+          AlarmManager.changeAlarmState(alarmEntity, state, evaluationDate);
+          AlarmManager.executeActions(alarmEntity, state, true, evaluationDate);
+          statistics.stateChanges.incrementAndGet();
+        } else if (AlarmStateEvaluationWorker.moreThanOnePeriodHasPassed(alarmEntity, evaluationDate)) {
+          AlarmManager.executeActions(alarmEntity, state, false, evaluationDate);
+        }
+      }
+      db.commit();
+      statistics.transactions.incrementAndGet();
+    } catch (RuntimeException ex) {
+      Logs.extreme().error(ex, ex);
+      throw ex;
+    } finally {
+      if (db.isActive())
+        db.rollback();
+    }
+  }
+
+  private static List<Object> alarmKey(Object accountId, Object alarmName) {
+    return Arrays.asList(accountId, alarmName);
+  }
+
+  private static List<Object> subscriptionKey(String accountId, MetricType metricType, String namespace,
+      String metricName, String dimensionName, String dimensionValue) {
+    return Arrays.<Object>asList(accountId, metricType, namespace, metricName, dimensionName, dimensionValue);
+  }
+
+  private static class AlarmSubscription {
+    private volatile AlarmEntity alarmEntity;
+    private final Map<String, String> dimensionMap;
+    private final AlarmWindow window = new AlarmWindow();
+    private final AtomicBoolean changed = new AtomicBoolean(true);
+    private final AtomicBoolean evaluating = new AtomicBoolean(false);
+    private volatile Date createdBefore;
+    private volatile boolean loaded;
+    private volatile long lastEvaluated;
+
+    private AlarmSubscription(AlarmEntity alarmEntity) {
+      this.alarmEntity = alarmEntity;
+      this.dimensionMap = alarmEntity.getDimensionMap();
+    }
+
+    private List<Object> getSubscriptionKey() {
+      String dimensionName = null;
+      String dimensionValue = null;
+      if (!dimensionMap.isEmpty()) {
+        Map.Entry<String, String> first = dimensionMap.entrySet().iterator().next();
+        dimensionName = first.getKey();
+        dimensionValue = first.getValue();
+      }
+      return subscriptionKey(alarmEntity.getAccountId(), alarmEntity.getMetricType(), alarmEntity.getNamespace(),
+          alarmEntity.getMetricName(), dimensionName, dimensionValue);
+    }
+
+    /**
+     * Check if the alarm is for the same metric data and statistics as this subscription.
+     */
+    private boolean hasConfiguration(AlarmEntity other) {
+      return alarmEntity.getNaturalId().equals(other.getNaturalId()) &&
+          alarmEntity.getAlarmConfigurationUpdatedTimestamp().equals(other.getAlarmConfigurationUpdatedTimestamp());
+    }
+
+    /**
+     * System metric data is included in statistics for any subset of its dimensions,
+     * custom metric data only for its exact dimensions.
+     */
+    private boolean matches(MetricEntity me, Map<String, String> metricDimensionMap) {
+      AlarmEntity alarmEntity = this.alarmEntity;
+      if (alarmEntity.getUnit() != null && alarmEntity.getUnit() != me.getUnits()) return false;
+      if (me.getMetricType() != MetricType.System && dimensionMap.size() != metricDimensionMap.size()) return false;
+      for (Map.Entry<String, String> dimension : dimensionMap.entrySet()) {
+        if (!dimension.getValue().equals(metricDimensionMap.get(dimension.getKey()))) return false;
+      }
+      return true;
+    }
+  }
+
+  public static class EvaluationStatistics {
+    private final AtomicLong windowsLoaded = new AtomicLong();
+    private final AtomicLong evaluations = new AtomicLong();
+    private final AtomicLong evaluationsSkipped = new AtomicLong();
+    private final AtomicLong stateChanges = new AtomicLong();
+    private final AtomicLong transactions = new AtomicLong();
+
+    public long getAlarmsSubscribed() {
+      return singleton.alarms.size();
+    }
+
+    public long getWindowsLoaded() {
+      return windowsLoaded.get();
+    }
+
+    public long getEvaluations() {
+      return evaluations.get();
+    }
+
+    public long getEvaluationsSkipped() {
+      return evaluationsSkipped.get();
+    }
+
+    public long getStateChanges() {
+      return stateChanges.get();
+    }
+
+    public long getTransactions() {
+      return transactions.get();
+    }
+  }
+}
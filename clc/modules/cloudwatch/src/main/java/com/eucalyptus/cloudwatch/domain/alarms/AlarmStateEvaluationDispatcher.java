@@ -47,6 +47,12 @@ public class AlarmStateEvaluationDispatcher implements Runnable {
   public void run() {
     if (!CloudWatchService.DISABLE_CLOUDWATCH_SERVICE && Bootstrap.isOperational( ) && Topology.isEnabledLocally( CloudWatch.class )) {
       LOG.debug("Kicking off AlarmStateEvaluationDispatcher");
+      AlarmEvaluator evaluator = AlarmEvaluator.getInstance();
+      if (AlarmEvaluator.INCREMENTAL_ALARM_EVALUATION_ENABLED) {
+        evaluator.evaluate(executorService);
+        return;
+      }
+      evaluator.clear();
       EntityTransaction db = Entities.get(AlarmEntity.class);
       try {
         Criteria criteria = Entities.createCriteria(AlarmEntity.class);
@@ -63,6 +69,9 @@ public class AlarmStateEvaluationDispatcher implements Runnable {
         if (db.isActive())
           db.rollback();
       }
+    } else {
+      // metric data is not added to alarm windows while the service is not enabled here
+      AlarmEvaluator.getInstance().clear();
     }
   }
 }
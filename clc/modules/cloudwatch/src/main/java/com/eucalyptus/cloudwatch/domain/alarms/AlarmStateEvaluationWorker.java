@@ -81,7 +81,7 @@ public class AlarmStateEvaluationWorker implements Runnable {
     }
   }
 
-  private boolean moreThanOnePeriodHasPassed(AlarmEntity alarmEntity, Date now) {
+  static boolean moreThanOnePeriodHasPassed(AlarmEntity alarmEntity, Date now) {
     now = MetricManager.stripSeconds(now);
     Date then = MetricManager.stripSeconds(alarmEntity.getLastActionsUpdatedTimestamp());
     return now.getTime() - then.getTime() >= 1000L * alarmEntity.getPeriod();
@@ -90,11 +90,25 @@ public class AlarmStateEvaluationWorker implements Runnable {
   private AlarmState evaluateState(AlarmEntity alarmEntity) {
     Date queryDate = new Date();
     Date endDate = MetricManager.stripSeconds(queryDate);
+    Date bufferStartDate = getBufferStartDate(alarmEntity, endDate);
+    Collection<MetricStatistics> metricStatisticsList = MetricManager.getMetricStatistics(accountId, alarmEntity.getMetricName(), alarmEntity.getNamespace(), alarmEntity.getDimensionMap(), alarmEntity.getMetricType(), alarmEntity.getUnit(), bufferStartDate, endDate, alarmEntity.getPeriod());
+    return evaluateState(alarmEntity, metricStatisticsList, queryDate);
+  }
+
+  static Date getBufferStartDate(AlarmEntity alarmEntity, Date endDate) {
     Date startDate = new Date(endDate.getTime() - 1000L * alarmEntity.getPeriod() * alarmEntity.getEvaluationPeriods());
     // We put in a slight buffer in addition to the regular window time (two additional periods or 5 minutes, whichever is greater) to delay
     // insufficient data from going down... 
-    Date bufferStartDate = new Date(startDate.getTime() - 1000L * alarmEntity.getPeriod() * numBufferPeriods(alarmEntity.getPeriod()));
-    Collection<MetricStatistics> metricStatisticsList = MetricManager.getMetricStatistics(accountId, alarmEntity.getMetricName(), alarmEntity.getNamespace(), alarmEntity.getDimensionMap(), alarmEntity.getMetricType(), alarmEntity.getUnit(), bufferStartDate, endDate, alarmEntity.getPeriod());
+    return new Date(startDate.getTime() - 1000L * alarmEntity.getPeriod() * numBufferPeriods(alarmEntity.getPeriod()));
+  }
+
+  /**
+   * Evaluate the alarm state from statistics for the alarm period starting at the buffer start date.
+   */
+  static AlarmState evaluateState(AlarmEntity alarmEntity, Collection<MetricStatistics> metricStatisticsList, Date queryDate) {
+    Date endDate = MetricManager.stripSeconds(queryDate);
+    Date startDate = new Date(endDate.getTime() - 1000L * alarmEntity.getPeriod() * alarmEntity.getEvaluationPeriods());
+    Date bufferStartDate = getBufferStartDate(alarmEntity, endDate);
     TreeMap<Long, StateAndMetricValue> dataPointMap = new TreeMap<Long, StateAndMetricValue>();
     for (long L = bufferStartDate.getTime(); L < endDate.getTime(); L += alarmEntity.getPeriod() * 1000L) {
       dataPointMap.put(L, new StateAndMetricValue(StateValue.INSUFFICIENT_DATA, null));
@@ -172,7 +186,7 @@ public class AlarmStateEvaluationWorker implements Runnable {
     }
   }
 
-  private StateAndMetricValue calculateLocalStateAndMetricValue(
+  private static StateAndMetricValue calculateLocalStateAndMetricValue(
       AlarmEntity alarmEntity, MetricStatistics metricStatistics) {
     Double metricValue = AlarmUtils.calculateMetricValue(alarmEntity.getStatistic(), metricStatistics);
 
@@ -196,7 +210,7 @@ public class AlarmStateEvaluationWorker implements Runnable {
       return metricValue;
     }
   }
-  private Integer numBufferPeriods(Integer period) {
+  private static Integer numBufferPeriods(Integer period) {
     // it is the greater of 5 minutes or two periods, but it should be a whole number of periods.
     Integer periodMinutes = period / 60;
     if (periodMinutes == 1) return 5;
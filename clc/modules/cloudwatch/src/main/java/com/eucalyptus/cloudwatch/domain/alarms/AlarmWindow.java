@@ -0,0 +1,87 @@
+/*************************************************************************
+ * Copyright 2009-2014 Eucalyptus Systems, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ *
+ * Please contact Eucalyptus Systems, Inc., 6755 Hollister Ave., Goleta
+ * CA 93117, USA or visit http://www.eucalyptus.com/licenses/ if you need
+ * additional information or have any questions.
+ ************************************************************************/
+package com.eucalyptus.cloudwatch.domain.alarms;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.eucalyptus.cloudwatch.domain.metricdata.MetricManager;
+import com.eucalyptus.cloudwatch.domain.metricdata.MetricStatistics;
+import com.google.common.collect.Lists;
+
+/**
+ * Minute aggregates of the metric data for an alarm.
+ *
+ * Statistics for any period alignment can be calculated from the minute
+ * aggregates, so the window is updated as metric data is added and the alarm
+ * is evaluated without querying metric data.
+ */
+class AlarmWindow {
+  private final TreeMap<Long, double[]> minutes = new TreeMap<Long, double[]>();
+
+  synchronized void add(Date timestamp, double sampleSize, double sampleMax, double sampleMin, double sampleSum) {
+    long minute = MetricManager.stripSeconds(timestamp).getTime();
+    double[] values = minutes.get(minute);
+    if (values == null) {
+      minutes.put(minute, new double[] { sampleSize, sampleMax, sampleMin, sampleSum });
+    } else {
+      values[0] += sampleSize;
+      values[1] = Math.max(values[1], sampleMax);
+      values[2] = Math.min(values[2], sampleMin);
+      values[3] += sampleSum;
+    }
+  }
+
+  /**
+   * Discard aggregates before the given time.
+   */
+  synchronized void prune(Date before) {
+    minutes.headMap(before.getTime()).clear();
+  }
+
+  /**
+   * Get statistics for periods from the start time (inclusive) to the end time (exclusive).
+   */
+  synchronized List<MetricStatistics> getStatistics(Date startTime, Date endTime, Integer period) {
+    Map<Long, MetricStatistics> statistics = new TreeMap<Long, MetricStatistics>();
+    for (Map.Entry<Long, double[]> entry : minutes.subMap(startTime.getTime(), endTime.getTime()).entrySet()) {
+      Date periodStart = MetricManager.getPeriodStart(new Date(entry.getKey()), startTime, period);
+      double[] values = entry.getValue();
+      MetricStatistics totalSoFar = statistics.get(periodStart.getTime());
+      if (totalSoFar == null) {
+        totalSoFar = new MetricStatistics();
+        totalSoFar.setTimestamp(periodStart);
+        totalSoFar.setSampleSize(values[0]);
+        totalSoFar.setSampleMax(values[1]);
+        totalSoFar.setSampleMin(values[2]);
+        totalSoFar.setSampleSum(values[3]);
+        statistics.put(periodStart.getTime(), totalSoFar);
+      } else {
+        totalSoFar.setSampleSize(totalSoFar.getSampleSize() + values[0]);
+        totalSoFar.setSampleMax(Math.max(totalSoFar.getSampleMax(), values[1]));
+        totalSoFar.setSampleMin(Math.min(totalSoFar.getSampleMin(), values[2]));
+        totalSoFar.setSampleSum(totalSoFar.getSampleSum() + values[3]);
+      }
+    }
+    return Lists.newArrayList(statistics.values());
+  }
+}
@@ -0,0 +1,436 @@
+/*************************************************************************
+ * Copyright 2009-2014 Eucalyptus Systems, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ *
+ * Please contact Eucalyptus Systems, Inc., 6755 Hollister Ave., Goleta
+ * CA 93117, USA or visit http://www.eucalyptus.com/licenses/ if you need
+ * additional information or have any questions.
+ ************************************************************************/
+package com.eucalyptus.cloudwatch.domain.listmetrics;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.EntityTransaction;
+
+import org.apache.log4j.Logger;
+import org.hibernate.criterion.Restrictions;
+
+import com.eucalyptus.bootstrap.Bootstrap;
+import com.eucalyptus.cloudwatch.CloudWatch;
+import com.eucalyptus.cloudwatch.CloudWatchException;
+import com.eucalyptus.cloudwatch.CloudWatchService;
+import com.eucalyptus.cloudwatch.InvalidParameterValueException;
+import com.eucalyptus.cloudwatch.domain.metricdata.MetricEntity.MetricType;
+import com.eucalyptus.component.Topology;
+import com.eucalyptus.configurable.ConfigurableClass;
+import com.eucalyptus.configurable.ConfigurableField;
+import com.eucalyptus.entities.Entities;
+import com.eucalyptus.records.Logs;
+import com.eucalyptus.util.Mbeans;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * In memory index of list metrics.
+ *
+ * Metrics are held by account, namespace and metric name, then by their
+ * dimensions, and in creation order for paging. The index is loaded from the
+ * database on first use and kept up to date as metrics are added, so
+ * ListMetrics requests do not use the database.
+ *
+ * New metrics are persisted when they are added. Updates to the last seen
+ * time of existing metrics are only held in memory and written behind
+ * periodically, so a metric seen many times between writes is updated once.
+ */
+@ConfigurableClass(root = "cloudwatch", description = "Parameters controlling cloud watch list metrics")
+public class ListMetricIndex {
+  private static final Logger LOG = Logger.getLogger(ListMetricIndex.class);
+
+  @ConfigurableField(initial = "60", description = "Interval in minutes at which the last seen time of metrics is written to the database")
+  public static volatile Integer LIST_METRICS_WRITE_BEHIND_INTERVAL = 60;
+
+  private static final int MAX_METRICS_PER_TRANSACTION = 500;
+
+  private static final ListMetricIndex singleton = new ListMetricIndex();
+  private static final IndexStatistics statistics = new IndexStatistics();
+  private static final AtomicBoolean registered = new AtomicBoolean(false);
+
+  // account -> namespace -> metric name -> metrics
+  private final ConcurrentMap<String, ConcurrentNavigableMap<String, ConcurrentNavigableMap<String, IndexedMetrics>>> accounts =
+      new ConcurrentHashMap<String, ConcurrentNavigableMap<String, ConcurrentNavigableMap<String, IndexedMetrics>>>();
+  private final ConcurrentMap<String, IndexedMetric> metricsByNaturalId = new ConcurrentHashMap<String, IndexedMetric>();
+  private final Set<IndexedMetric> pendingUpdates = Collections.newSetFromMap(new ConcurrentHashMap<IndexedMetric, Boolean>());
+  private volatile boolean loaded;
+  private volatile long lastWritten = System.currentTimeMillis();
+
+  public static ListMetricIndex getInstance() {
+    if (registered.compareAndSet(false, true)) {
+      Mbeans.register(statistics);
+    }
+    return singleton;
+  }
+
+  /**
+   * Find an indexed metric.
+   *
+   * @return The metric or null if not found
+   */
+  IndexedMetric lookup(ListMetric metric) {
+    load();
+    IndexedMetrics metrics = metrics(metric.getAccountId(), metric.getNamespace(), metric.getMetricName(), false);
+    return metrics == null ? null : metrics.byDimensions.get(metric.getDimensionMap());
+  }
+
+  /**
+   * Mark a metric as seen, the last seen time is written behind.
+   *
+   * Synchronized with clear, so no metric is marked between a write and clear
+   * done while holding the index lock.
+   */
+  synchronized void touch(IndexedMetric metric, Date now) {
+    metric.lastUpdateTimestamp = now.getTime();
+    if (pendingUpdates.add(metric)) {
+      statistics.updatesQueued.incrementAndGet();
+    } else {
+      statistics.updatesCoalesced.incrementAndGet();
+    }
+  }
+
+  /**
+   * Add metrics once they have been persisted.
+   */
+  synchronized void add(Collection<ListMetric> persisted) {
+    // an unloaded index will load these from the database
+    if (!loaded) return;
+    for (ListMetric metric : persisted) {
+      index(metric);
+    }
+  }
+
+  /**
+   * List indexed metrics, see ListMetricManager#listMetrics
+   */
+  List<ListMetric> list(String accountId, String metricName, String namespace, Map<String, String> dimensionMap,
+      Date after, Date before, Integer maxRecords, String nextToken) throws CloudWatchException {
+    load();
+    statistics.queries.incrementAndGet();
+    IndexedMetric nextTokenMetric = null;
+    if (nextToken != null) {
+      nextTokenMetric = metricsByNaturalId.get(nextToken);
+      if (nextTokenMetric == null) {
+        // ListMetrics uses InvalidParameterValue rather than InvalidNextToken
+        throw new InvalidParameterValueException("Invalid nextToken");
+      }
+    }
+    List<IndexedMetrics> candidates = Lists.newArrayList();
+    for (String account : accountId != null ? Collections.singleton(accountId) : accounts.keySet()) {
+      ConcurrentNavigableMap<String, ConcurrentNavigableMap<String, IndexedMetrics>> namespaces = accounts.get(account);
+      if (namespaces == null) continue;
+      for (String ns : namespace != null ? Collections.singleton(namespace) : namespaces.keySet()) {
+        ConcurrentNavigableMap<String, IndexedMetrics> metricNames = namespaces.get(ns);
+        if (metricNames == null) continue;
+        if (metricName != null) {
+          IndexedMetrics metrics = metricNames.get(metricName);
+          if (metrics != null) {
+            candidates.add(metrics);
+          }
+        } else {
+          candidates.addAll(metricNames.values());
+        }
+      }
+    }
+    // each candidate is in creation order, so at most maxRecords are needed from each
+    List<IndexedMetric> matches = Lists.newArrayList();
+    for (IndexedMetrics metrics : candidates) {
+      NavigableSet<IndexedMetric> ordered = nextTokenMetric == null ?
+          metrics.ordered : metrics.ordered.tailSet(nextTokenMetric, false);
+      int matched = 0;
+      for (IndexedMetric metric : ordered) {
+        if (metric.matches(dimensionMap, after, before)) {
+          matches.add(metric);
+          if (maxRecords != null && ++matched >= maxRecords) break;
+        }
+      }
+    }
+    Collections.sort(matches, CREATION_ORDER);
+    if (maxRecords != null && matches.size() > maxRecords) {
+      matches = matches.subList(0, maxRecords);
+    }
+    List<ListMetric> results = Lists.newArrayListWithCapacity(matches.size());
+    for (IndexedMetric metric : matches) {
+      results.add(metric.toListMetric());
+    }
+    return results;
+  }
+
+  /**
+   * Write pending last seen times if the write behind interval has passed.
+   */
+  public void writeIfDue() {
+    if (System.currentTimeMillis() - lastWritten >= TimeUnit.MINUTES.toMillis(LIST_METRICS_WRITE_BEHIND_INTERVAL)) {
+      write();
+    }
+  }
+
+  /**
+   * Write pending last seen times to the database.
+   */
+  public void write() {
+    lastWritten = System.currentTimeMillis();
+    List<IndexedMetric> updates = Lists.newArrayList();
+    for (IndexedMetric metric : pendingUpdates) {
+      // metrics seen again after removal are written next time
+      if (pendingUpdates.remove(metric)) {
+        updates.add(metric);
+      }
+    }
+    for (List<IndexedMetric> batch : Iterables.partition(updates, MAX_METRICS_PER_TRANSACTION)) {
+      Map<String, IndexedMetric> batchByNaturalId = Maps.newHashMapWithExpectedSize(batch.size());
+      for (IndexedMetric metric : batch) {
+        batchByNaturalId.put(metric.naturalId, metric);
+      }
+      EntityTransaction db = Entities.get(ListMetric.class);
+      try {
+        List<ListMetric> inDbMetrics = (List<ListMetric>) Entities.createCriteria(ListMetric.class)
+            .add(Restrictions.in("naturalId", batchByNaturalId.keySet()))
+            .list();
+        for (ListMetric inDbMetric : inDbMetrics) {
+          // the last seen time, not the time of this write
+          inDbMetric.setLastUpdateTimestamp(new Date(batchByNaturalId.get(inDbMetric.getNaturalId()).lastUpdateTimestamp));
+        }
+        db.commit();
+        statistics.updatesWritten.addAndGet(inDbMetrics.size());
+      } catch (RuntimeException ex) {
+        Logs.extreme().error(ex, ex);
+        LOG.error("Error writing list metric updates, will retry", ex);
+        pendingUpdates.addAll(batch);
+      } finally {
+        if (db.isActive())
+          db.rollback();
+      }
+    }
+  }
+
+  /**
+   * Write pending last seen times then discard all indexed metrics.
+   */
+  public synchronized void writeAndClear() {
+    write();
+    clear();
+  }
+
+  /**
+   * Discard all indexed metrics, metrics are loaded again on next use.
+   *
+   * Pending updates are discarded so should be written first, while holding
+   * the index lock if metrics may be marked as seen concurrently.
+   */
+  public synchronized void clear() {
+    loaded = false;
+    accounts.clear();
+    metricsByNaturalId.clear();
+    pendingUpdates.clear();
+  }
+
+  private void load() {
+    if (loaded) return;
+    synchronized (this) {
+      if (loaded) return;
+      EntityTransaction db = Entities.get(ListMetric.class);
+      try {
+        List<ListMetric> metrics = (List<ListMetric>) Entities.createCriteria(ListMetric.class).list();
+        for (ListMetric metric : metrics) {
+          index(metric);
+        }
+        db.commit();
+        LOG.info("Loaded " + metrics.size() + " list metrics");
+      } catch (RuntimeException ex) {
+        Logs.extreme().error(ex, ex);
+        accounts.clear();
+        metricsByNaturalId.clear();
+        throw ex;
+      } finally {
+        if (db.isActive())
+          db.rollback();
+      }
+      statistics.loads.incrementAndGet();
+      loaded = true;
+    }
+  }
+
+  private void index(ListMetric metric) {
+    IndexedMetric indexed = new IndexedMetric(metric);
+    IndexedMetrics metrics = metrics(indexed.accountId, indexed.namespace, indexed.metricName, true);
+    IndexedMetric previous = metrics.byDimensions.put(indexed.dimensionMap, indexed);
+    if (previous != null) {
+      metrics.ordered.remove(previous);
+      metricsByNaturalId.remove(previous.naturalId);
+    }
+    metrics.ordered.add(indexed);
+    metricsByNaturalId.put(indexed.naturalId, indexed);
+  }
+
+  private IndexedMetrics metrics(String accountId, String namespace, String metricName, boolean create) {
+    ConcurrentNavigableMap<String, ConcurrentNavigableMap<String, IndexedMetrics>> namespaces = accounts.get(accountId);
+    if (namespaces == null) {
+      if (!create) return null;
+      accounts.putIfAbsent(accountId, new ConcurrentSkipListMap<String, ConcurrentNavigableMap<String, IndexedMetrics>>());
+      namespaces = accounts.get(accountId);
+    }
+    ConcurrentNavigableMap<String, IndexedMetrics> metricNames = namespaces.get(namespace);
+    if (metricNames == null) {
+      if (!create) return null;
+      namespaces.putIfAbsent(namespace, new ConcurrentSkipListMap<String, IndexedMetrics>());
+      metricNames = namespaces.get(namespace);
+    }
+    IndexedMetrics metrics = metricNames.get(metricName);
+    if (metrics == null) {
+      if (!create) return null;
+      metricNames.putIfAbsent(metricName, new IndexedMetrics());
+      metrics = metricNames.get(metricName);
+    }
+    return metrics;
+  }
+
+  // the order used for NextToken paging, see NextTokenUtils
+  private static final Comparator<IndexedMetric> CREATION_ORDER = new Comparator<IndexedMetric>() {
+    @Override
+    public int compare(IndexedMetric metric1, IndexedMetric metric2) {
+      int result = Long.compare(metric1.creationTimestamp, metric2.creationTimestamp);
+      return result != 0 ? result : metric1.naturalId.compareTo(metric2.naturalId);
+    }
+  };
+
+  private static class IndexedMetrics {
+    private final ConcurrentMap<Map<String, String>, IndexedMetric> byDimensions =
+        new ConcurrentHashMap<Map<String, String>, IndexedMetric>();
+    private final ConcurrentSkipListSet<IndexedMetric> ordered = new ConcurrentSkipListSet<IndexedMetric>(CREATION_ORDER);
+  }
+
+  static class IndexedMetric {
+    private final String naturalId;
+    private final long creationTimestamp;
+    private final String accountId;
+    private final String namespace;
+    private final String metricName;
+    private final MetricType metricType;
+    private final Map<String, String> dimensionMap;
+    private volatile long lastUpdateTimestamp;
+
+    private IndexedMetric(ListMetric metric) {
+      this.naturalId = metric.getNaturalId();
+      this.creationTimestamp = metric.getCreationTimestamp().getTime();
+      this.accountId = metric.getAccountId();
+      this.namespace = metric.getNamespace();
+      this.metricName = metric.getMetricName();
+      this.metricType = metric.getMetricType();
+      this.dimensionMap = Collections.unmodifiableMap(new TreeMap<String, String>(metric.getDimensionMap()));
+      this.lastUpdateTimestamp = metric.getLastUpdateTimestamp() != null ?
+          metric.getLastUpdateTimestamp().getTime() : creationTimestamp;
+    }
+
+    private boolean matches(Map<String, String> dimensionFilter, Date after, Date before) {
+      if (before != null && lastUpdateTimestamp > before.getTime()) return false;
+      if (after != null && lastUpdateTimestamp < after.getTime()) return false;
+      return dimensionFilter == null || dimensionMap.entrySet().containsAll(dimensionFilter.entrySet());
+    }
+
+    private ListMetric toListMetric() {
+      ListMetric metric = new ListMetric();
+      metric.setNaturalId(naturalId);
+      metric.setCreationTimestamp(new Date(creationTimestamp));
+      metric.setLastUpdateTimestamp(new Date(lastUpdateTimestamp));
+      metric.setAccountId(accountId);
+      metric.setNamespace(namespace);
+      metric.setMetricName(metricName);
+      metric.setMetricType(metricType);
+      metric.setDimensions(ListMetricManager.toDimensions(dimensionMap));
+      return metric;
+    }
+  }
+
+  /**
+   * Writes behind the last seen time of metrics while the service is enabled
+   * locally, otherwise the index is discarded so it is loaded again once the
+   * service is enabled.
+   */
+  public static class WriteBehindTask implements Runnable {
+    @Override
+    public void run() {
+      try {
+        ListMetricIndex index = getInstance();
+        if (!CloudWatchService.DISABLE_CLOUDWATCH_SERVICE && Bootstrap.isOperational( ) && Topology.isEnabledLocally( CloudWatch.class )) {
+          index.writeIfDue();
+        } else {
+          index.writeAndClear();
+        }
+      } catch (RuntimeException ex) {
+        LOG.error(ex, ex);
+      }
+    }
+  }
+
+  public static class IndexStatistics {
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong updatesQueued = new AtomicLong();
+    private final AtomicLong updatesCoalesced = new AtomicLong();
+    private final AtomicLong updatesWritten = new AtomicLong();
+
+    public long getMetricsIndexed() {
+      return singleton.metricsByNaturalId.size();
+    }
+
+    public long getPendingUpdates() {
+      return singleton.pendingUpdates.size();
+    }
+
+    public long getLoads() {
+      return loads.get();
+    }
+
+    public long getQueries() {
+      return queries.get();
+    }
+
+    public long getUpdatesQueued() {
+      return updatesQueued.get();
+    }
+
+    public long getUpdatesCoalesced() {
+      return updatesCoalesced.get();
+    }
+
+    public long getUpdatesWritten() {
+      return updatesWritten.get();
+    }
+  }
+}
@@ -22,25 +22,19 @@ package com.eucalyptus.cloudwatch.domain.listmetrics;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
 import java.util.TreeSet;
 
 import javax.annotation.Nullable;
 import javax.persistence.EntityTransaction;
 
 import org.apache.log4j.Logger;
-import org.hibernate.Criteria;
-import org.hibernate.criterion.Disjunction;
-import org.hibernate.criterion.Restrictions;
 
 import com.eucalyptus.cloudwatch.CloudWatchException;
 import com.eucalyptus.cloudwatch.domain.DimensionEntity;
-import com.eucalyptus.cloudwatch.domain.NextTokenUtils;
 import com.eucalyptus.cloudwatch.domain.metricdata.MetricEntity.MetricType;
 import com.eucalyptus.cloudwatch.domain.metricdata.SimpleMetricEntity;
 import com.eucalyptus.entities.Entities;
@@ -52,18 +46,11 @@ import com.google.common.collect.Sets;
 
 public class ListMetricManager {
   private static final Logger LOG = Logger.getLogger(ListMetricManager.class);
+  // list metrics are folded by dimension so concurrent batches would add the same rows
+  private static final Object addLock = new Object();
+
   public static void addMetric(String accountId, String metricName, String namespace, Map<String, String> dimensionMap, MetricType metricType) {
-    EntityTransaction db = Entities.get(ListMetric.class);
-    try {
-      addMetric(db, accountId, metricName, namespace, dimensionMap, metricType);
-      db.commit();
-    } catch (RuntimeException ex) {
-      Logs.extreme().error(ex, ex);
-      throw ex;
-    } finally {
-      if (db.isActive())
-        db.rollback();
-    }
+    addMetrics(foldMetric(accountId, metricName, namespace, dimensionMap, metricType));
   }
   private static List<ListMetric> foldMetric(String accountId, String metricName, String namespace, Map<String, String> dimensionMap, MetricType metricType) {
     List<ListMetric> metrics = Lists.newArrayList();
@@ -72,13 +59,7 @@ public class ListMetricManager {
     } else if (dimensionMap.size() > ListMetric.MAX_DIM_NUM) {
       throw new IllegalArgumentException("Too many dimensions for metric, " + dimensionMap.size());
     }
-    TreeSet<DimensionEntity> dimensions = new TreeSet<DimensionEntity>();
-    for (Map.Entry<String,String> entry: dimensionMap.entrySet()) {
-      DimensionEntity d = new DimensionEntity();
-      d.setName(entry.getKey());
-      d.setValue(entry.getValue());
-      dimensions.add(d);
-    }
+    TreeSet<DimensionEntity> dimensions = toDimensions(dimensionMap);
     Set<Set<DimensionEntity>> permutations = null;
     if (metricType == MetricType.System) {
       // do dimension folding (i.e. insert 2^n metrics.  
@@ -109,35 +90,6 @@ public class ListMetricManager {
     }
     return metrics;
   }
-  private static void addMetric(EntityTransaction db, String accountId, String metricName, String namespace, Map<String, String> dimensionMap, MetricType metricType) {
-    List<ListMetric> foldedMetrics = foldMetric(accountId, metricName, namespace, dimensionMap, metricType);
-    for (ListMetric metric: foldedMetrics) {
-      Criteria criteria = Entities.createCriteria(ListMetric.class)
-          .add( Restrictions.eq( "accountId" , metric.getAccountId() ) )
-          .add( Restrictions.eq( "metricName" , metric.getMetricName() ) )
-          .add( Restrictions.eq( "namespace" , metric.getNamespace() ) );
-    
-      // add dimension restrictions
-      int dimIndex = 1;
-      for (DimensionEntity d: metric.getDimensions()) {
-        criteria.add( Restrictions.eq( "dim" + dimIndex + "Name", d.getName() ) );
-        criteria.add( Restrictions.eq( "dim" + dimIndex + "Value", d.getValue() ) );
-        dimIndex++;
-      }
-      while (dimIndex <= ListMetric.MAX_DIM_NUM) {
-        criteria.add( Restrictions.isNull( "dim" + dimIndex + "Name") );
-        criteria.add( Restrictions.isNull( "dim" + dimIndex + "Value") );
-        dimIndex++;
-      }
-      ListMetric inDbMetric = (ListMetric) criteria.uniqueResult();
-      if (inDbMetric != null) {
-        inDbMetric.setVersion(1 + inDbMetric.getVersion());
-      } else {
-        Entities.persist(metric);
-      }
-    }
-  }
-  
   public static void deleteAllMetrics() {
     EntityTransaction db = Entities.get(ListMetric.class);
     try {
@@ -149,6 +101,7 @@ public class ListMetricManager {
     } finally {
       if (db.isActive())
         db.rollback();
+      ListMetricIndex.getInstance().clear();
     }
   }
 
@@ -157,18 +110,25 @@ public class ListMetricManager {
    * @param before the date to delete before (inclusive)
    */
   public static void deleteMetrics(Date before) {
-    EntityTransaction db = Entities.get(ListMetric.class);
-    try {
-      Map<String, Date> criteria = new HashMap<String, Date>();
-      criteria.put("before", before);
-      Entities.deleteAllMatching(ListMetric.class, "WHERE lastUpdateTimestamp < :before", criteria);
-      db.commit();
-    } catch (RuntimeException ex) {
-      Logs.extreme().error(ex, ex);
-      throw ex;
-    } finally {
-      if (db.isActive())
-        db.rollback();
+    ListMetricIndex index = ListMetricIndex.getInstance();
+    // last seen times are written behind, so write them before deleting by
+    // them and hold the index lock so none are marked before the clear
+    synchronized (index) {
+      index.write();
+      EntityTransaction db = Entities.get(ListMetric.class);
+      try {
+        Map<String, Date> criteria = new HashMap<String, Date>();
+        criteria.put("before", before);
+        Entities.deleteAllMatching(ListMetric.class, "WHERE lastUpdateTimestamp < :before", criteria);
+        db.commit();
+      } catch (RuntimeException ex) {
+        Logs.extreme().error(ex, ex);
+        throw ex;
+      } finally {
+        if (db.isActive())
+          db.rollback();
+        index.clear();
+      }
     }
   }
    
@@ -188,116 +148,79 @@ public class ListMetricManager {
     if (dimensionMap != null && dimensionMap.size() > ListMetric.MAX_DIM_NUM) {
       throw new IllegalArgumentException("Too many dimensions " + dimensionMap.size());
     }
-    EntityTransaction db = Entities.get(ListMetric.class);
-    try {
-      Date nextTokenCreatedTime = NextTokenUtils.getNextTokenCreatedTime(nextToken, ListMetric.class, false);
-      Map<String, String> sortedDimensionMap = new TreeMap<String, String>();
-      Criteria criteria = Entities.createCriteria(ListMetric.class);
-      if (accountId != null) {
-        criteria = criteria.add(Restrictions.eq("accountId", accountId));
-      }
-      if (metricName != null) {
-        criteria = criteria.add(Restrictions.eq("metricName", metricName));
-      }
-      if (namespace != null) {
-        criteria = criteria.add(Restrictions.eq("namespace", namespace));
-      }
-      if (before != null) {
-        criteria = criteria.add(Restrictions.le("lastUpdateTimestamp", before));
-      }
-      if (after != null) {
-        criteria = criteria.add(Restrictions.ge("lastUpdateTimestamp", after));
-      }
-      if (dimensionMap != null && !dimensionMap.isEmpty()) {
-        // sort the map 
-        sortedDimensionMap.putAll(dimensionMap);
-        // now we are going to add a bunch of restrictions to the criteria...
-        // note though there are certain dimensions we don't need to check.
-        // For example if we have two dimensions, we don't need to check dimension 10 for
-        // the first item or dimension 1 for the last item.
-        int numDimensions = sortedDimensionMap.size();
-        int lowDimNum = 1;
-        int highDimNum = ListMetric.MAX_DIM_NUM + 1 - numDimensions;
-        for (Map.Entry<String, String> dimEntry : sortedDimensionMap.entrySet()) {
-          Disjunction or = Restrictions.disjunction();
-          for (int i = lowDimNum; i <= highDimNum; i++) {
-            or.add(Restrictions.conjunction()
-                .add(Restrictions.eq("dim" + i + "Name", dimEntry.getKey()))
-                .add(Restrictions.eq("dim" + i + "Value", dimEntry.getValue())));
-          }
-          lowDimNum++;
-          highDimNum++;
-          criteria = criteria.add(or);
-        }
-      }
-      criteria = NextTokenUtils.addNextTokenConstraints(maxRecords, nextToken, nextTokenCreatedTime, criteria);
-      List<ListMetric> dbResult = (List<ListMetric>) criteria.list();
-      db.commit();
-      return dbResult;
-    } catch (RuntimeException ex) {
-      Logs.extreme().error(ex, ex);
-      throw ex;
-    } finally {
-      if (db.isActive())
-        db.rollback();
-    }
+    return ListMetricIndex.getInstance().list(accountId, metricName, namespace, dimensionMap, after, before, maxRecords, nextToken);
   }
 
   public static void addMetricBatch(List<SimpleMetricEntity> dataBatch) {
-    EntityTransaction db = Entities.get(ListMetric.class);
-    try {
-      HashSet<ListMetricCacheLoadKey> loadedKeys = Sets.newHashSet();
-      HashMap<ListMetricCacheKey, ListMetric> cache = Maps.newHashMap();
-      Collection<ListMetricCacheKey> cacheKeys = prune(dataBatch);
-      List<ListMetric> foldedMetrics = Lists.newArrayList();
-      for (ListMetricCacheKey cacheKey:cacheKeys) {
-        foldedMetrics.addAll(foldMetric(cacheKey.getLoadKey().getAccountId(), 
-            cacheKey.getMetricName(), cacheKey.getLoadKey().getNamespace(), 
-            cacheKey.getDimensionMap(), cacheKey.getMetricType()));
-      }
+    Collection<ListMetricCacheKey> cacheKeys = prune(dataBatch);
+    List<ListMetric> foldedMetrics = Lists.newArrayList();
+    for (ListMetricCacheKey cacheKey:cacheKeys) {
+      foldedMetrics.addAll(foldMetric(cacheKey.getLoadKey().getAccountId(), 
+          cacheKey.getMetricName(), cacheKey.getLoadKey().getNamespace(), 
+          cacheKey.getDimensionMap(), cacheKey.getMetricType()));
+    }
+    addMetrics(foldedMetrics);
+  }
+
+  /**
+   * Mark existing metrics as seen and persist new metrics.
+   *
+   * Existing metrics are found in the index and their last seen time is
+   * written behind, so only new metrics use the database.
+   */
+  private static void addMetrics(List<ListMetric> foldedMetrics) {
+    synchronized (addLock) {
+      ListMetricIndex index = ListMetricIndex.getInstance();
+      Date now = new Date();
+      Map<ListMetricCacheKey, ListMetric> newMetrics = Maps.newLinkedHashMap();
       for (ListMetric metric: foldedMetrics) {
-        ListMetricCacheLoadKey loadKey = new ListMetricCacheLoadKey();
-        loadKey.setAccountId(metric.getAccountId());
-        loadKey.setNamespace(metric.getNamespace());
-        if (!loadedKeys.contains(loadKey)) {
-          Criteria criteria = Entities.createCriteria(ListMetric.class)
-              .add( Restrictions.eq( "accountId" , metric.getAccountId() ) )
-              .add( Restrictions.eq( "namespace" , metric.getNamespace() ) );
-          List<ListMetric> results = (List<ListMetric>) criteria.list();
-          for (ListMetric result: results) {
-            ListMetricCacheKey key = new ListMetricCacheKey();
-            key.setLoadKey(loadKey);
-            key.setDimensionMap(result.getDimensionMap());
-            key.setMetricName(result.getMetricName());
-            key.setMetricType(result.getMetricType());
-            cache.put(key, result);
+        ListMetricIndex.IndexedMetric indexedMetric = index.lookup(metric);
+        if (indexedMetric != null) {
+          index.touch(indexedMetric, now);
+        } else {
+          ListMetricCacheLoadKey loadKey = new ListMetricCacheLoadKey();
+          loadKey.setAccountId(metric.getAccountId());
+          loadKey.setNamespace(metric.getNamespace());
+          ListMetricCacheKey key = new ListMetricCacheKey();
+          key.setDimensionMap(metric.getDimensionMap());
+          key.setLoadKey(loadKey);
+          key.setMetricName(metric.getMetricName());
+          key.setMetricType(metric.getMetricType());
+          if (!newMetrics.containsKey(key)) {
+            newMetrics.put(key, metric);
           }
-          loadedKeys.add(loadKey);
         }
-
-        ListMetricCacheKey key = new ListMetricCacheKey();
-        key.setDimensionMap(metric.getDimensionMap());
-        key.setLoadKey(loadKey);
-        key.setMetricName(metric.getMetricName());
-        key.setMetricType(metric.getMetricType());
-        ListMetric inDbMetric = cache.get(key);
-        if (inDbMetric != null) {
-          inDbMetric.setVersion(1 + inDbMetric.getVersion());
-        } else {
-          cache.put(key, metric);
+      }
+      if (newMetrics.isEmpty()) {
+        return;
+      }
+      EntityTransaction db = Entities.get(ListMetric.class);
+      try {
+        for (ListMetric metric: newMetrics.values()) {
           Entities.persist(metric);
         }
+        db.commit();
+      } catch (RuntimeException ex) {
+        Logs.extreme().error(ex, ex);
+        throw ex;
+      } finally {
+      if (db.isActive())
+        db.rollback();
       }
-      db.commit();
-    } catch (RuntimeException ex) {
-      Logs.extreme().error(ex, ex);
-      throw ex;
-    } finally {
-    if (db.isActive())
-      db.rollback();
+      index.add(newMetrics.values());
     }
   }
 
+  static TreeSet<DimensionEntity> toDimensions(Map<String, String> dimensionMap) {
+    TreeSet<DimensionEntity> dimensions = new TreeSet<DimensionEntity>();
+    for (Map.Entry<String,String> entry: dimensionMap.entrySet()) {
+      DimensionEntity d = new DimensionEntity();
+      d.setName(entry.getKey());
+      d.setValue(entry.getValue());
+      dimensions.add(d);
+    }
+    return dimensions;
+  }
 
   private static Collection<ListMetricCacheKey> prune(
       List<SimpleMetricEntity> dataBatch) {
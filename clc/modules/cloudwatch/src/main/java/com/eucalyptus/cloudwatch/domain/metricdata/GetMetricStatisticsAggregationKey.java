@@ -113,6 +113,17 @@ public class GetMetricStatisticsAggregationKey {
     this.dimensionHash = dimensionHash;
   }
 
+  public GetMetricStatisticsAggregationKey(MetricRollupEntity rollup, Date startTime,
+      Integer period, String dimensionHash) {
+    this.accountId = rollup.getAccountId();
+    this.namespace = rollup.getNamespace();
+    this.metricName = rollup.getMetricName();
+    this.units = rollup.getUnits();
+    this.metricType = rollup.getMetricType();
+    this.timestamp = MetricManager.getPeriodStart(rollup.getTimestamp(), startTime, period);
+    this.dimensionHash = dimensionHash;
+  }
+
   @Override
   public int hashCode() {
     final int prime = 31;
@@ -25,11 +25,11 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.persistence.EntityTransaction;
 
@@ -47,20 +47,47 @@ import com.eucalyptus.cloudwatch.domain.absolute.AbsoluteMetricHelper.MetricDiff
 import com.eucalyptus.cloudwatch.domain.listmetrics.ListMetricManager;
 import com.eucalyptus.cloudwatch.domain.metricdata.MetricEntity.MetricType;
 import com.eucalyptus.cloudwatch.domain.metricdata.MetricEntity.Units;
+import com.eucalyptus.configurable.ConfigurableClass;
+import com.eucalyptus.configurable.ConfigurableField;
 import com.eucalyptus.entities.Entities;
 import com.eucalyptus.records.Logs;
+import com.eucalyptus.util.Mbeans;
 import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
+/**
+ * Queue for metric data added by PutMetricData and by the system.
+ *
+ * Metric data is partitioned into shards by the first character of the hash
+ * of its dimensions, which is also the metric data table for the series (see
+ * MetricEntityFactory). Each shard has a bounded queue drained continuously
+ * by its own writer, batches are written when full or when the oldest item
+ * has waited for the batch delay. Data for an instance or volume has the same
+ * dimensions for every metric so absolute metric handling for a resource
+ * stays in one shard.
+ */
+@ConfigurableClass(root = "cloudwatch", description = "Parameters controlling cloud watch metric data ingestion")
 public class MetricDataQueue {
   private static final Logger LOG = Logger.getLogger(MetricDataQueue.class);
-  final static LinkedBlockingQueue<MetricQueueItem> dataQueue = new LinkedBlockingQueue<MetricQueueItem>();
 
-  private static final ScheduledExecutorService dataFlushTimer = Executors
-      .newSingleThreadScheduledExecutor();
+  @ConfigurableField(initial = "10000", description = "Maximum number of metric data points queued in each of the 16 shards, further data points are dropped")
+  public static volatile Integer METRIC_DATA_SHARD_QUEUE_SIZE = 10000;
+
+  @ConfigurableField(initial = "1000", description = "Maximum number of metric data points written in one batch")
+  public static volatile Integer METRIC_DATA_BATCH_SIZE = 1000;
+
+  @ConfigurableField(initial = "5000", description = "Maximum time in milliseconds metric data waits for a batch to fill")
+  public static volatile Long METRIC_DATA_BATCH_DELAY = 5000L;
+
+  private static final int SHARDS = 16;
+
+  private static final IngestStatistics statistics = new IngestStatistics();
+  private static final Shard[] shards = new Shard[SHARDS];
+
+  private static final ExecutorService shardWriters = Executors.newFixedThreadPool(SHARDS);
 
   private static MetricDataQueue singleton = getInstance();
 
@@ -72,48 +99,101 @@ public class MetricDataQueue {
     return singleton;
   }
 
+  static {
+    for (int i = 0; i < SHARDS; i++) {
+      shards[i] = new Shard(i);
+      shardWriters.submit(shards[i]);
+    }
+    Mbeans.register(statistics);
+  }
+
   private void queue(Supplier<MetricQueueItem> metriMetaDataSupplier) {
     final MetricQueueItem metricData = metriMetaDataSupplier.get();
-    dataQueue.offer(metricData);
+    metricData.setQueuedTime(System.currentTimeMillis());
+    Shard shard = shards[shard(metricData)];
+    if (shard.queue.size() >= METRIC_DATA_SHARD_QUEUE_SIZE || !shard.queue.offer(metricData)) {
+      statistics.itemsDropped.incrementAndGet();
+      shard.dropped.incrementAndGet();
+    } else {
+      statistics.itemsQueued.incrementAndGet();
+    }
+  }
+
+  private static int shard(MetricQueueItem item) {
+    ArrayList<Dimension> dimensions = Lists.newArrayList();
+    MetricDatum datum = item.getMetricDatum();
+    if (datum.getDimensions() != null && datum.getDimensions().getMember() != null) {
+      dimensions = datum.getDimensions().getMember();
+    }
+    return Character.digit(MetricManager.hash(makeDimensionMap(dimensions)).charAt(0), SHARDS);
   }
 
-  private static Runnable safeRunner = new Runnable() {
+  private static class Shard implements Runnable {
+    private final int index;
+    private final LinkedBlockingQueue<MetricQueueItem> queue = new LinkedBlockingQueue<MetricQueueItem>();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private Shard(int index) {
+      this.index = index;
+    }
+
     @Override
     public void run() {
-      long before = System.currentTimeMillis();
-      try {
-        List<MetricQueueItem> dataBatch = Lists.newArrayList();
-        dataQueue.drainTo(dataBatch, 15000);
-        LOG.debug("Timing:dataBatch.size()="+dataBatch.size());
-        long t1 = System.currentTimeMillis();
-        dataBatch = dealWithAbsoluteMetrics(dataBatch);
-        long t2 = System.currentTimeMillis();
-        LOG.debug("Timing:dataBatch.dealWithAbsoluteMetrics():time="+(t2-t1));
-        List<SimpleMetricEntity> simpleDataBatch = convertToSimpleDataBatch(dataBatch);
-        long t3 = System.currentTimeMillis();
-        LOG.debug("Timing:dataBatch.convertToSimpleDataBatch():time="+(t3-t2));
-        simpleDataBatch = aggregate(simpleDataBatch);
-        long t4 = System.currentTimeMillis();
-        LOG.debug("Timing:dataBatch.aggregate():time="+(t4-t3));
-        MetricManager.addMetricBatch(simpleDataBatch);
-        long t5 = System.currentTimeMillis();
-        LOG.debug("Timing:dataBatch.MetricManager.addMetricBatch():time="+(t5-t4));
-        ListMetricManager.addMetricBatch(simpleDataBatch);
-        long t6 = System.currentTimeMillis();
-        LOG.debug("Timing:ListMetricManager.addMetricBatch:time="+(t6-t5));
-      } catch (Throwable ex) {
-        LOG.debug("error");
-        ex.printStackTrace();
-        LOG.error(ex,ex);
-      } finally {
-        long after = System.currentTimeMillis();
-        LOG.debug("Timing:time="+(after-before));
+      Thread.currentThread().setName("cloudwatch-metric-data-" + Integer.toHexString(index));
+      List<MetricQueueItem> dataBatch = Lists.newArrayList();
+      while (!Thread.currentThread().isInterrupted()) {
+        try {
+          MetricQueueItem first = queue.take();
+          dataBatch.add(first);
+          int batchSize = METRIC_DATA_BATCH_SIZE;
+          long batchDeadline = first.getQueuedTime() + METRIC_DATA_BATCH_DELAY;
+          while (dataBatch.size() < batchSize) {
+            queue.drainTo(dataBatch, batchSize - dataBatch.size());
+            long wait = batchDeadline - System.currentTimeMillis();
+            if (dataBatch.size() >= batchSize || wait <= 0) break;
+            MetricQueueItem item = queue.poll(wait, TimeUnit.MILLISECONDS);
+            if (item == null) break;
+            dataBatch.add(item);
+          }
+          long droppedSinceLastBatch = dropped.getAndSet(0);
+          if (droppedSinceLastBatch > 0) {
+            LOG.warn("Metric data queue shard " + Integer.toHexString(index) + " full, dropped "
+                + droppedSinceLastBatch + " data points");
+          }
+          write(dataBatch);
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        } catch (Throwable ex) {
+          statistics.batchesFailed.incrementAndGet();
+          LOG.error(ex, ex);
+        } finally {
+          dataBatch.clear();
+        }
       }
     }
-  };
+  }
 
-  static {
-    dataFlushTimer.scheduleAtFixedRate(safeRunner, 0, 1, TimeUnit.MINUTES);
+  private static void write(List<MetricQueueItem> dataBatch) {
+    long before = System.currentTimeMillis();
+    long oldestQueuedTime = before;
+    for (MetricQueueItem item : dataBatch) {
+      oldestQueuedTime = Math.min(oldestQueuedTime, item.getQueuedTime());
+    }
+    LOG.debug("Timing:dataBatch.size()="+dataBatch.size());
+    List<MetricQueueItem> absoluteDataBatch = dealWithAbsoluteMetrics(dataBatch);
+    long t1 = System.currentTimeMillis();
+    LOG.debug("Timing:dataBatch.dealWithAbsoluteMetrics():time="+(t1-before));
+    List<SimpleMetricEntity> simpleDataBatch = convertToSimpleDataBatch(absoluteDataBatch);
+    simpleDataBatch = aggregate(simpleDataBatch);
+    long t2 = System.currentTimeMillis();
+    LOG.debug("Timing:dataBatch.aggregate():time="+(t2-t1));
+    MetricManager.addMetricBatch(simpleDataBatch);
+    long t3 = System.currentTimeMillis();
+    LOG.debug("Timing:dataBatch.MetricManager.addMetricBatch():time="+(t3-t2));
+    ListMetricManager.addMetricBatch(simpleDataBatch);
+    long after = System.currentTimeMillis();
+    LOG.debug("Timing:ListMetricManager.addMetricBatch:time="+(after-t3));
+    statistics.batchWritten(dataBatch.size(), after - before, after - oldestQueuedTime);
   }
 
   public static List<SimpleMetricEntity> aggregate(List<SimpleMetricEntity> dataBatch) {
@@ -471,12 +551,13 @@ public class MetricDataQueue {
     }
 
     public void load(String namespace, String dimensionName, String dimensionValue) {
-      AbsoluteMetricLoadCacheKey loadKey = new AbsoluteMetricLoadCacheKey(namespace, dimensionName);
+      // shards load only the resources they write
+      AbsoluteMetricLoadCacheKey loadKey = new AbsoluteMetricLoadCacheKey(namespace, dimensionName, dimensionValue);
       if (!loaded.contains(loadKey)) {
         Criteria criteria = Entities.createCriteria(AbsoluteMetricHistory.class)
             .add( Restrictions.eq( "namespace", namespace ) )
-            .add( Restrictions.eq( "dimensionName", dimensionName ) );
-//            .add( Restrictions.eq( "dimensionValue", dimensionValue ) );
+            .add( Restrictions.eq( "dimensionName", dimensionName ) )
+            .add( Restrictions.eq( "dimensionValue", dimensionValue ) );
         List<AbsoluteMetricHistory> list = (List<AbsoluteMetricHistory>) criteria.list();
         for (AbsoluteMetricHistory item: list) {
           cacheMap.put(new AbsoluteMetricCacheKey(item), item);
@@ -499,6 +580,7 @@ public class MetricDataQueue {
   public static class AbsoluteMetricLoadCacheKey {
     private String namespace;
     private String dimensionName;
+    private String dimensionValue;
 
     public String getNamespace() {
       return namespace;
@@ -512,10 +594,17 @@ public class MetricDataQueue {
     public void setDimensionName(String dimensionName) {
       this.dimensionName = dimensionName;
     }
-    private AbsoluteMetricLoadCacheKey(String namespace, String dimensionName) {
+    public String getDimensionValue() {
+      return dimensionValue;
+    }
+    public void setDimensionValue(String dimensionValue) {
+      this.dimensionValue = dimensionValue;
+    }
+    private AbsoluteMetricLoadCacheKey(String namespace, String dimensionName, String dimensionValue) {
       super();
       this.namespace = namespace;
       this.dimensionName = dimensionName;
+      this.dimensionValue = dimensionValue;
     }
     @Override
     public int hashCode() {
@@ -523,6 +612,8 @@ public class MetricDataQueue {
       int result = 1;
       result = prime * result
           + ((dimensionName == null) ? 0 : dimensionName.hashCode());
+      result = prime * result
+          + ((dimensionValue == null) ? 0 : dimensionValue.hashCode());
       result = prime * result
           + ((namespace == null) ? 0 : namespace.hashCode());
       return result;
@@ -541,6 +632,11 @@ public class MetricDataQueue {
           return false;
       } else if (!dimensionName.equals(other.dimensionName))
         return false;
+      if (dimensionValue == null) {
+        if (other.dimensionValue != null)
+          return false;
+      } else if (!dimensionValue.equals(other.dimensionValue))
+        return false;
       if (namespace == null) {
         if (other.namespace != null)
           return false;
@@ -641,4 +737,88 @@ public class MetricDataQueue {
     }
   }
   
+
+  public static class IngestStatistics {
+    private final AtomicLong itemsQueued = new AtomicLong();
+    private final AtomicLong itemsDropped = new AtomicLong();
+    private final AtomicLong itemsWritten = new AtomicLong();
+    private final AtomicLong batchesWritten = new AtomicLong();
+    private final AtomicLong batchesFailed = new AtomicLong();
+    private final AtomicLong writeMillis = new AtomicLong();
+    private final AtomicLong ingestLatencyMillis = new AtomicLong();
+    private volatile long lastBatchSize;
+    private volatile long lastIngestLatency;
+
+    private void batchWritten(int size, long writeTime, long ingestLatency) {
+      itemsWritten.addAndGet(size);
+      batchesWritten.incrementAndGet();
+      writeMillis.addAndGet(writeTime);
+      ingestLatencyMillis.addAndGet(ingestLatency);
+      lastBatchSize = size;
+      lastIngestLatency = ingestLatency;
+    }
+
+    public long getQueueDepth() {
+      long depth = 0;
+      for (Shard shard : shards) {
+        depth += shard.queue.size();
+      }
+      return depth;
+    }
+
+    public long getMaxShardQueueDepth() {
+      long depth = 0;
+      for (Shard shard : shards) {
+        depth = Math.max(depth, shard.queue.size());
+      }
+      return depth;
+    }
+
+    public long getItemsQueued() {
+      return itemsQueued.get();
+    }
+
+    public long getItemsDropped() {
+      return itemsDropped.get();
+    }
+
+    public long getItemsWritten() {
+      return itemsWritten.get();
+    }
+
+    public long getBatchesWritten() {
+      return batchesWritten.get();
+    }
+
+    public long getBatchesFailed() {
+      return batchesFailed.get();
+    }
+
+    public long getLastBatchSize() {
+      return lastBatchSize;
+    }
+
+    public long getAverageBatchSize() {
+      long batches = batchesWritten.get();
+      return batches == 0 ? 0 : itemsWritten.get() / batches;
+    }
+
+    public long getAverageBatchWriteMillis() {
+      long batches = batchesWritten.get();
+      return batches == 0 ? 0 : writeMillis.get() / batches;
+    }
+
+    /**
+     * Time from the oldest data point in the last batch being queued to the batch being written.
+     */
+    public long getLastIngestLatencyMillis() {
+      return lastIngestLatency;
+    }
+
+    public long getAverageIngestLatencyMillis() {
+      long batches = batchesWritten.get();
+      return batches == 0 ? 0 : ingestLatencyMillis.get() / batches;
+    }
+  }
 }
+
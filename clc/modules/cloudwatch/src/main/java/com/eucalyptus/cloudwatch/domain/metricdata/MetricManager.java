@@ -21,13 +21,17 @@ package com.eucalyptus.cloudwatch.domain.metricdata;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.persistence.Column;
 import javax.persistence.EntityTransaction;
@@ -36,23 +40,68 @@ import javax.persistence.Enumerated;
 
 import org.apache.log4j.Logger;
 import org.hibernate.Criteria;
+import org.hibernate.criterion.Criterion;
 import org.hibernate.criterion.Order;
 import org.hibernate.criterion.Restrictions;
 
 import com.eucalyptus.cloudwatch.domain.DimensionEntity;
 import com.eucalyptus.cloudwatch.domain.metricdata.MetricEntity.MetricType;
 import com.eucalyptus.cloudwatch.domain.metricdata.MetricEntity.Units;
+import com.eucalyptus.cloudwatch.domain.metricdata.MetricRollupEntity.Resolution;
 import com.eucalyptus.cloudwatch.hashing.HashUtils;
 import com.eucalyptus.entities.Entities;
 import com.eucalyptus.records.Logs;
 import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
-import com.google.common.collect.Sets;
 
 public class MetricManager {
 	public static final Logger LOG = Logger.getLogger(MetricManager.class);
+  // PutMetricData accepts timestamps up to two hours in the future
+  public static final long FUTURE_TIMESTAMP_BUFFER = TimeUnit.HOURS.toMillis(2);
+  private static final int MAX_HASHES_PER_QUERY = 500;
+
+  // metric data writes hold the read lock from persisting until listeners are notified
+  private static final ReadWriteLock writeBarrier = new ReentrantReadWriteLock();
+  private static final List<MetricDataListener> listeners = new CopyOnWriteArrayList<MetricDataListener>();
+
+  /**
+   * Listener for metric data, notified after the metric data is committed.
+   */
+  public interface MetricDataListener {
+    void metricDataAdded(Collection<MetricEntity> entities);
+  }
+
+  public static void addMetricDataListener(MetricDataListener listener) {
+    listeners.add(listener);
+  }
+
+  public static void removeMetricDataListener(MetricDataListener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Run the given callback with no metric data writes in progress.
+   *
+   * Metric data created before the returned time is committed and listeners
+   * were notified of it before the callback ran. Metric data created at or
+   * after the returned time will be notified after the callback returns.
+   *
+   * @return The time of the callback
+   */
+  public static Date withWritesQuiesced(Runnable callback) {
+    writeBarrier.writeLock().lock();
+    try {
+      Date now = new Date();
+      callback.run();
+      return now;
+    } finally {
+      writeBarrier.writeLock().unlock();
+    }
+  }
+
   public static void addMetric(String accountId, 
       String metricName, String namespace, Map<String, String> dimensionMap,
       MetricType metricType, Units units, Date timestamp, Double sampleSize,
@@ -70,7 +119,7 @@ public class MetricManager {
     simpleMetricEntity.setTimestamp(timestamp);
     simpleMetricEntity.setUnits(units);
     validateMetricQueueItem(simpleMetricEntity);
-    addManyMetrics(makeMetricMap(foldAndHash(simpleMetricEntity)));
+    addManyMetrics(makeMetricMap(hashMetric(simpleMetricEntity)));
   }
   
   private static Multimap<Class, MetricEntity> makeMetricMap(Collection<MetricEntity> entities) {
@@ -85,7 +134,7 @@ public class MetricManager {
   }
   
 
-  private static List<MetricEntity> foldAndHash(SimpleMetricEntity simpleMetricEntity) {
+  private static List<MetricEntity> hashMetric(SimpleMetricEntity simpleMetricEntity) {
     if (simpleMetricEntity == null) return new ArrayList<MetricEntity>();
     TreeSet<DimensionEntity> dimensions = new TreeSet<DimensionEntity>();
     for (Map.Entry<String, String> entry : simpleMetricEntity.getDimensionMap().entrySet()) {
@@ -94,49 +143,63 @@ public class MetricManager {
       d.setValue(entry.getValue());
       dimensions.add(d);
     }
-    Set<Set<DimensionEntity>> permutations = null;
-    if (simpleMetricEntity.getMetricType() == MetricType.System) {
-      permutations = Sets.powerSet(dimensions);
-    } else {
-      permutations = Sets.newHashSet();
-      permutations.add(dimensions);
-    }
-    ArrayList<MetricEntity> returnValue = new ArrayList<MetricEntity>();
-    for (Set<DimensionEntity> dimensionsPermutation : permutations) {
-      String dimensionHash = hash(dimensionsPermutation);
-      MetricEntity metric = MetricEntityFactory.getNewMetricEntity(simpleMetricEntity.getMetricType(),
-          dimensionHash);
-      metric.setAccountId(simpleMetricEntity.getAccountId());
-      metric.setMetricName(simpleMetricEntity.getMetricName());
-      metric.setNamespace(simpleMetricEntity.getNamespace());
-      metric.setDimensions(dimensions);// arguable, but has complete list
-      metric.setDimensionHash(dimensionHash);
-      metric.setMetricType(simpleMetricEntity.getMetricType());
-      metric.setUnits(simpleMetricEntity.getUnits());
-      metric.setTimestamp(simpleMetricEntity.getTimestamp());
-      metric.setSampleMax(simpleMetricEntity.getSampleMax());
-      metric.setSampleMin(simpleMetricEntity.getSampleMin());
-      metric.setSampleSum(simpleMetricEntity.getSampleSum());
-      metric.setSampleSize(simpleMetricEntity.getSampleSize());
-      returnValue.add(metric);
-    }
-    return returnValue;
+    // Metric data is stored once for the full set of dimensions, system metric queries for a
+    // subset of the dimensions use the series index (see MetricSeriesIndex)
+    String dimensionHash = hash(dimensions);
+    MetricEntity metric = MetricEntityFactory.getNewMetricEntity(simpleMetricEntity.getMetricType(),
+        dimensionHash);
+    metric.setAccountId(simpleMetricEntity.getAccountId());
+    metric.setMetricName(simpleMetricEntity.getMetricName());
+    metric.setNamespace(simpleMetricEntity.getNamespace());
+    metric.setDimensions(dimensions);
+    metric.setDimensionHash(dimensionHash);
+    metric.setMetricType(simpleMetricEntity.getMetricType());
+    metric.setUnits(simpleMetricEntity.getUnits());
+    metric.setTimestamp(simpleMetricEntity.getTimestamp());
+    metric.setSampleMax(simpleMetricEntity.getSampleMax());
+    metric.setSampleMin(simpleMetricEntity.getSampleMin());
+    metric.setSampleSum(simpleMetricEntity.getSampleSum());
+    metric.setSampleSize(simpleMetricEntity.getSampleSize());
+    return Lists.newArrayList(metric);
   }
 
   private static void addManyMetrics(Multimap<Class, MetricEntity> metricMap) {
+    MetricRollupStore rollupStore = MetricRollupStore.getInstance();
+    MetricSeriesIndex seriesIndex = MetricSeriesIndex.getInstance();
     for (Class c : metricMap.keySet()) {
+      Collection<MetricEntity> entities = metricMap.get(c);
+      // entities for a class share the first character of the dimension hash
+      String dimensionHash = entities.iterator().next().getDimensionHash();
+      rollupStore.beginWrite(dimensionHash);
+      writeBarrier.readLock().lock();
       EntityTransaction db = Entities.get(c);
       try {
-        for (MetricEntity me : metricMap.get(c)) {
+        // series are added first, metric data created after the first series is not folded
+        List<MetricSeriesEntity> addedSeries = seriesIndex.addSeries(entities);
+        // lookups are done before any inserts so that the inserts are flushed together in
+        // JDBC batches on commit
+        for (MetricEntity me : entities) {
           Entities.persist(me);
         }
         db.commit();
+        seriesIndex.seriesAdded(entities, addedSeries);
+        // rollups are written behind, see MetricRollupStore
+        rollupStore.addRollups(entities);
+        for (MetricDataListener listener : listeners) {
+          try {
+            listener.metricDataAdded(entities);
+          } catch (RuntimeException ex) {
+            LOG.error(ex, ex);
+          }
+        }
       } catch (RuntimeException ex) {
         Logs.extreme().error(ex, ex);
         throw ex;
       } finally {
         if (db.isActive())
           db.rollback();
+        writeBarrier.readLock().unlock();
+        rollupStore.endWrite(dimensionHash);
       }
     }
   }
@@ -170,6 +233,8 @@ public class MetricManager {
   }
 
   public static void deleteAllMetrics() {
+    MetricRollupStore.getInstance().deleteAllRollups();
+    MetricSeriesIndex.getInstance().deleteAllSeries();
     for (Class c : MetricEntityFactory.getAllClassesForEntitiesGet()) {
       EntityTransaction db = Entities.get(c);
       try {
@@ -192,12 +257,29 @@ public class MetricManager {
    *          the date to delete before (inclusive)
    */
   public static void deleteMetrics(Date before) {
+    deleteMetrics(before, Collections.<String, Date>emptyMap());
+  }
+
+  /**
+   * Delete metric data older than the given date, or older than the date
+   * for its namespace if the namespace has its own retention.
+   *
+   * @param before The date for namespaces without their own retention
+   * @param namespaceBefore The dates for namespaces with their own retention
+   */
+  public static void deleteMetrics(Date before, Map<String, Date> namespaceBefore) {
+    MetricRollupStore.getInstance().deleteRollups(before, namespaceBefore);
+    Date seriesBefore = before;
+    for (Date date : namespaceBefore.values()) {
+      if (date.before(seriesBefore)) {
+        seriesBefore = date;
+      }
+    }
+    MetricSeriesIndex.getInstance().deleteSeries(seriesBefore);
     for (Class c : MetricEntityFactory.getAllClassesForEntitiesGet()) {
       EntityTransaction db = Entities.get(c);
       try {
-        Map<String, Date> criteria = new HashMap<String, Date>();
-        criteria.put("before", before);
-        Entities.deleteAllMatching(c, "WHERE timestamp < :before", criteria);
+        deleteAllMatching(c, before, namespaceBefore);
         db.commit();
       } catch (RuntimeException ex) {
         Logs.extreme().error(ex, ex);
@@ -209,10 +291,46 @@ public class MetricManager {
     }
   }
 
+  /**
+   * Delete entities older than the given date for each namespace, caller
+   * must have an active transaction.
+   */
+  static void deleteAllMatching(Class c, Date before, Map<String, Date> namespaceBefore) {
+    Map<String, Object> criteria = new HashMap<String, Object>();
+    criteria.put("before", before);
+    if (namespaceBefore.isEmpty()) {
+      Entities.deleteAllMatching(c, "WHERE timestamp < :before", criteria);
+    } else {
+      criteria.put("namespaces", namespaceBefore.keySet());
+      Entities.deleteAllMatching(c, "WHERE timestamp < :before AND namespace NOT IN (:namespaces)", criteria);
+      for (Map.Entry<String, Date> entry : namespaceBefore.entrySet()) {
+        Map<String, Object> namespaceCriteria = new HashMap<String, Object>();
+        namespaceCriteria.put("namespace", entry.getKey());
+        namespaceCriteria.put("before", entry.getValue());
+        Entities.deleteAllMatching(c, "WHERE namespace = :namespace AND timestamp < :before", namespaceCriteria);
+      }
+    }
+  }
+
 
   public static Collection<MetricStatistics> getMetricStatistics(String accountId, 
       String metricName, String namespace, Map<String, String> dimensionMap,
       MetricType metricType, Units units, Date startTime, Date endTime, Integer period) {
+    return getMetricStatistics(accountId, metricName, namespace, dimensionMap, metricType, units,
+        startTime, endTime, period, null);
+  }
+
+  /**
+   * Get statistics for metric data created before the given time.
+   *
+   * Rollups are not used when createdBefore is set, as they include later metric data.
+   *
+   * @param createdBefore the creation time for metric data, null for all metric data
+   */
+  public static Collection<MetricStatistics> getMetricStatistics(String accountId, 
+      String metricName, String namespace, Map<String, String> dimensionMap,
+      MetricType metricType, Units units, Date startTime, Date endTime, Integer period,
+      Date createdBefore) {
     if (dimensionMap == null) {
       dimensionMap = new HashMap<String, String>();
     } else if (dimensionMap.size() > MetricEntity.MAX_DIM_NUM) {
@@ -259,8 +377,70 @@ public class MetricManager {
       throw new IllegalArgumentException("namespace must not be null");
     }
     String hash = hash(dimensions);
-    Class metricEntityClass = MetricEntityFactory.getClassForEntitiesGet(metricType, hash);
     Map<GetMetricStatisticsAggregationKey, MetricStatistics> aggregationMap = new TreeMap<GetMetricStatisticsAggregationKey, MetricStatistics>(GetMetricStatisticsAggregationKey.COMPARATOR_WITH_NULLS.INSTANCE);
+    // System metric data is stored for the full dimensions of each series, the series for the
+    // requested dimensions come from the index. Data added before the index cutover was stored
+    // for each subset of the dimensions and is found by hash.
+    Collection<String> seriesHashes = Collections.singleton(hash);
+    Date cutover = null;
+    if (metricType == MetricType.System) {
+      MetricSeriesIndex seriesIndex = MetricSeriesIndex.getInstance();
+      cutover = seriesIndex.getCutover();
+      if (cutover == null) {
+        seriesHashes = Collections.emptySet();
+      } else {
+        seriesHashes = seriesIndex.lookupSeries(accountId, namespace, metricName, dimensions, hash);
+      }
+    }
+    // Statistics come from rollups where possible, and from metric data before rollup coverage starts
+    MetricRollupStore rollupStore = MetricRollupStore.getInstance();
+    Resolution resolution = createdBefore != null ? null :
+        rollupStore.selectResolution(startTime, endTime, period);
+    Date rawEndTime = endTime;
+    if (resolution != null) {
+      Date coverageStart = rollupStore.getCoverageStart(resolution);
+      if (!coverageStart.after(startTime)) {
+        rawEndTime = startTime;
+      } else if (coverageStart.before(endTime)) {
+        rawEndTime = coverageStart;
+      }
+    }
+    if (startTime.before(rawEndTime)) {
+      Criterion createdAfterCutover = null;
+      if (metricType == MetricType.System &&
+          (cutover == null || startTime.getTime() < cutover.getTime() + FUTURE_TIMESTAMP_BUFFER)) {
+        aggregateMetricData(aggregationMap, MetricEntityFactory.getClassForEntitiesGet(metricType, hash),
+            Restrictions.eq("dimensionHash", hash),
+            cutover == null ? null : Restrictions.lt("creationTimestamp", cutover), createdBefore,
+            accountId, metricName, namespace, units, startTime, rawEndTime, period, hash, dimensions);
+        createdAfterCutover = cutover == null ? null : Restrictions.ge("creationTimestamp", cutover);
+      }
+      Multimap<Class, String> seriesHashesByClass = ArrayListMultimap.create();
+      for (String seriesHash : seriesHashes) {
+        seriesHashesByClass.put(MetricEntityFactory.getClassForEntitiesGet(metricType, seriesHash), seriesHash);
+      }
+      for (Class metricEntityClass : seriesHashesByClass.keySet()) {
+        for (List<String> hashes : Iterables.partition(seriesHashesByClass.get(metricEntityClass), MAX_HASHES_PER_QUERY)) {
+          aggregateMetricData(aggregationMap, metricEntityClass, Restrictions.in("dimensionHash", hashes),
+              createdAfterCutover, createdBefore, accountId, metricName, namespace, units, startTime, rawEndTime,
+              period, hash, dimensions);
+        }
+      }
+    }
+    if (rawEndTime.before(endTime)) {
+      for (MetricRollupEntity rollup : rollupStore.getRollups(accountId, metricType, namespace,
+          metricName, seriesHashes, units, resolution, rawEndTime, endTime)) {
+        aggregate(aggregationMap, new GetMetricStatisticsAggregationKey(rollup, startTime, period, hash),
+            new MetricStatistics(rollup, startTime, period, dimensions));
+      }
+    }
+    return Lists.newArrayList(aggregationMap.values());
+  }
+
+  private static void aggregateMetricData(Map<GetMetricStatisticsAggregationKey, MetricStatistics> aggregationMap,
+      Class metricEntityClass, Criterion dimensionHashRestriction, Criterion creationRestriction,
+      Date createdBefore, String accountId, String metricName, String namespace, Units units, Date startTime, Date endTime,
+      Integer period, String hash, Collection<DimensionEntity> dimensions) {
     EntityTransaction db = Entities.get(metricEntityClass);
     try {
       Criteria criteria = Entities.createCriteria(metricEntityClass);
@@ -269,7 +449,13 @@ public class MetricManager {
       criteria = criteria.add(Restrictions.eq("namespace", namespace));
       criteria = criteria.add(Restrictions.lt("timestamp", endTime));
       criteria = criteria.add(Restrictions.ge("timestamp", startTime));
-      criteria = criteria.add(Restrictions.eq("dimensionHash", hash));
+      criteria = criteria.add(dimensionHashRestriction);
+      if (creationRestriction != null) {
+        criteria = criteria.add(creationRestriction);
+      }
+      if (createdBefore != null) {
+        criteria = criteria.add(Restrictions.lt("creationTimestamp", createdBefore));
+      }
       if (units != null) {
         criteria = criteria.add(Restrictions.eq("units", units));
       }
@@ -280,17 +466,8 @@ public class MetricManager {
         MetricEntity me = (MetricEntity) o;
         // Note: dimensions from metric entity are the actual dimensions for the point.  dimensions passed in are from the
         // hash (used for aggregation).  The hash dimensions are what we want.
-        GetMetricStatisticsAggregationKey key = new GetMetricStatisticsAggregationKey(me, startTime, period, hash);
-        MetricStatistics item = new MetricStatistics(me, startTime, period, dimensions);
-        if (!aggregationMap.containsKey(key)) {
-          aggregationMap.put(key, item);
-        } else {
-          MetricStatistics totalSoFar = aggregationMap.get(key);
-          totalSoFar.setSampleMax(Math.max(item.getSampleMax(), totalSoFar.getSampleMax()));
-          totalSoFar.setSampleMin(Math.min(item.getSampleMin(), totalSoFar.getSampleMin()));
-          totalSoFar.setSampleSize(totalSoFar.getSampleSize() + item.getSampleSize());
-          totalSoFar.setSampleSum(totalSoFar.getSampleSum() + item.getSampleSum());
-        }
+        aggregate(aggregationMap, new GetMetricStatisticsAggregationKey(me, startTime, period, hash),
+            new MetricStatistics(me, startTime, period, dimensions));
       }
       db.commit();
     } catch (RuntimeException ex) {
@@ -300,8 +477,20 @@ public class MetricManager {
       if (db.isActive())
         db.rollback();
     }
-    return Lists.newArrayList(aggregationMap.values());
-  }    
+  }
+
+  private static void aggregate(Map<GetMetricStatisticsAggregationKey, MetricStatistics> aggregationMap,
+      GetMetricStatisticsAggregationKey key, MetricStatistics item) {
+    if (!aggregationMap.containsKey(key)) {
+      aggregationMap.put(key, item);
+    } else {
+      MetricStatistics totalSoFar = aggregationMap.get(key);
+      totalSoFar.setSampleMax(Math.max(item.getSampleMax(), totalSoFar.getSampleMax()));
+      totalSoFar.setSampleMin(Math.min(item.getSampleMin(), totalSoFar.getSampleMin()));
+      totalSoFar.setSampleSize(totalSoFar.getSampleSize() + item.getSampleSize());
+      totalSoFar.setSampleSum(totalSoFar.getSampleSum() + item.getSampleSum());
+    }
+  }
 
   public static Date getPeriodStart(Date originalTimestamp, Date startTime, Integer period) {
     long difference = originalTimestamp.getTime() - startTime.getTime();
@@ -337,7 +526,7 @@ public class MetricManager {
     ArrayList<MetricEntity> metricEntities = new ArrayList<MetricEntity>();
     for (SimpleMetricEntity simpleMetricEntity: dataBatch) {
       validateMetricQueueItem(simpleMetricEntity);
-      metricEntities.addAll(foldAndHash(simpleMetricEntity));
+      metricEntities.addAll(hashMetric(simpleMetricEntity));
     }
     addManyMetrics(makeMetricMap(metricEntities));
   }
@@ -9,6 +9,7 @@ public class MetricQueueItem {
   private MetricDatum metricDatum;
   private String namespace;
   private MetricType metricType;
+  private long queuedTime;
   public String getAccountId() {
     return accountId;
   }
@@ -33,4 +34,10 @@ public class MetricQueueItem {
   public void setMetricType(MetricType metricType) {
     this.metricType = metricType;
   }
+  public long getQueuedTime() {
+    return queuedTime;
+  }
+  public void setQueuedTime(long queuedTime) {
+    this.queuedTime = queuedTime;
+  }
 }
@@ -0,0 +1,230 @@
+/*************************************************************************
+ * Copyright 2009-2014 Eucalyptus Systems, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ *
+ * Please contact Eucalyptus Systems, Inc., 6755 Hollister Ave., Goleta
+ * CA 93117, USA or visit http://www.eucalyptus.com/licenses/ if you need
+ * additional information or have any questions.
+ ************************************************************************/
+package com.eucalyptus.cloudwatch.domain.metricdata;
+
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.PersistenceContext;
+import javax.persistence.Table;
+
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.Index;
+
+import com.eucalyptus.cloudwatch.domain.metricdata.MetricEntity.MetricType;
+import com.eucalyptus.cloudwatch.domain.metricdata.MetricEntity.Units;
+import com.eucalyptus.entities.AbstractPersistent;
+
+/**
+ * Pre-aggregated metric data for one series over one rollup bucket.
+ *
+ * Rollups are keyed the same way as metric data (account, namespace, metric
+ * name, dimension hash, metric type and units) and are maintained in the same
+ * transaction as the metric data they summarize.
+ */
+@Entity
+@PersistenceContext(name = "eucalyptus_cloudwatch")
+@Table(name = "metric_rollup")
+@Cache(usage = CacheConcurrencyStrategy.TRANSACTIONAL)
+public class MetricRollupEntity extends AbstractPersistent {
+
+  public enum Resolution {
+    FiveMinutes(300), OneHour(3600), OneDay(86400);
+
+    private final int seconds;
+
+    Resolution(int seconds) {
+      this.seconds = seconds;
+    }
+
+    public int getSeconds() {
+      return seconds;
+    }
+
+    public long getMillis() {
+      return 1000L * seconds;
+    }
+
+    public long bucketStart(long time) {
+      return time - time % getMillis();
+    }
+
+    public boolean isAligned(long time) {
+      return time % getMillis() == 0;
+    }
+  }
+
+  @Column(name = "account_id", nullable = false)
+  private String accountId;
+  @Column(name = "namespace", nullable = false)
+  private String namespace;
+  @Column(name = "metric_name", nullable = false)
+  private String metricName;
+  @Index(name = "metric_rollup_dimension_hash_idx")
+  @Column(name = "dimension_hash", nullable = false)
+  private String dimensionHash;
+  @Column(name = "units", nullable = false)
+  @Enumerated(EnumType.STRING)
+  private Units units;
+  @Column(name = "metric_type", nullable = false)
+  @Enumerated(EnumType.STRING)
+  private MetricType metricType;
+  @Column(name = "resolution", nullable = false)
+  @Enumerated(EnumType.STRING)
+  private Resolution resolution;
+  @Column(name = "timestamp", nullable = false)
+  private Date timestamp;
+  @Column(name = "sample_size", nullable = false)
+  private Double sampleSize;
+  @Column(name = "sample_max", nullable = false)
+  private Double sampleMax;
+  @Column(name = "sample_min", nullable = false)
+  private Double sampleMin;
+  @Column(name = "sample_sum", nullable = false)
+  private Double sampleSum;
+
+  public MetricRollupEntity() {
+  }
+
+  public MetricRollupEntity(MetricEntity me, Resolution resolution) {
+    this.accountId = me.getAccountId();
+    this.namespace = me.getNamespace();
+    this.metricName = me.getMetricName();
+    this.dimensionHash = me.getDimensionHash();
+    this.units = me.getUnits();
+    this.metricType = me.getMetricType();
+    this.resolution = resolution;
+    this.timestamp = new Date(resolution.bucketStart(me.getTimestamp().getTime()));
+    this.sampleSize = me.getSampleSize();
+    this.sampleMax = me.getSampleMax();
+    this.sampleMin = me.getSampleMin();
+    this.sampleSum = me.getSampleSum();
+  }
+
+  /**
+   * Fold a sample into this rollup.
+   */
+  public void add(Double sampleSize, Double sampleMax, Double sampleMin, Double sampleSum) {
+    this.sampleSize = this.sampleSize + sampleSize;
+    this.sampleMax = Math.max(this.sampleMax, sampleMax);
+    this.sampleMin = Math.min(this.sampleMin, sampleMin);
+    this.sampleSum = this.sampleSum + sampleSum;
+  }
+
+  public String getAccountId() {
+    return accountId;
+  }
+
+  public void setAccountId(String accountId) {
+    this.accountId = accountId;
+  }
+
+  public String getNamespace() {
+    return namespace;
+  }
+
+  public void setNamespace(String namespace) {
+    this.namespace = namespace;
+  }
+
+  public String getMetricName() {
+    return metricName;
+  }
+
+  public void setMetricName(String metricName) {
+    this.metricName = metricName;
+  }
+
+  public String getDimensionHash() {
+    return dimensionHash;
+  }
+
+  public void setDimensionHash(String dimensionHash) {
+    this.dimensionHash = dimensionHash;
+  }
+
+  public Units getUnits() {
+    return units;
+  }
+
+  public void setUnits(Units units) {
+    this.units = units;
+  }
+
+  public MetricType getMetricType() {
+    return metricType;
+  }
+
+  public void setMetricType(MetricType metricType) {
+    this.metricType = metricType;
+  }
+
+  public Resolution getResolution() {
+    return resolution;
+  }
+
+  public void setResolution(Resolution resolution) {
+    this.resolution = resolution;
+  }
+
+  public Date getTimestamp() {
+    return timestamp;
+  }
+
+  public void setTimestamp(Date timestamp) {
+    this.timestamp = timestamp;
+  }
+
+  public Double getSampleSize() {
+    return sampleSize;
+  }
+
+  public void setSampleSize(Double sampleSize) {
+    this.sampleSize = sampleSize;
+  }
+
+  public Double getSampleMax() {
+    return sampleMax;
+  }
+
+  public void setSampleMax(Double sampleMax) {
+    this.sampleMax = sampleMax;
+  }
+
+  public Double getSampleMin() {
+    return sampleMin;
+  }
+
+  public void setSampleMin(Double sampleMin) {
+    this.sampleMin = sampleMin;
+  }
+
+  public Double getSampleSum() {
+    return sampleSum;
+  }
+
+  public void setSampleSum(Double sampleSum) {
+    this.sampleSum = sampleSum;
+  }
+}
@@ -0,0 +1,227 @@
+/*************************************************************************
+ * Copyright 2009-2014 Eucalyptus Systems, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ *
+ * Please contact Eucalyptus Systems, Inc., 6755 Hollister Ave., Goleta
+ * CA 93117, USA or visit http://www.eucalyptus.com/licenses/ if you need
+ * additional information or have any questions.
+ ************************************************************************/
+package com.eucalyptus.cloudwatch.domain.metricdata;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import com.eucalyptus.cloudwatch.domain.metricdata.MetricEntity.MetricType;
+import com.eucalyptus.cloudwatch.domain.metricdata.MetricEntity.Units;
+import com.eucalyptus.cloudwatch.domain.metricdata.MetricRollupEntity.Resolution;
+
+/**
+ * Recent rollups for one metric series (all units) held in primitive ring
+ * buffers, one ring per resolution.
+ *
+ * Each resolution has a window of buckets ending at the newest bucket seen,
+ * older buckets fall out of the window as newer data arrives. Empty buckets
+ * are marked with a NaN minimum so that samples with a zero sample size are
+ * still reported, as they are for raw metric data.
+ */
+class MetricRollupSeries {
+
+  private static final Map<Resolution, Integer> CAPACITY = new EnumMap<Resolution, Integer>(Resolution.class);
+  static {
+    CAPACITY.put(Resolution.FiveMinutes, 288); // one day
+    CAPACITY.put(Resolution.OneHour, 336); // two weeks
+    CAPACITY.put(Resolution.OneDay, 15); // two weeks
+  }
+
+  private final String accountId;
+  private final MetricType metricType;
+  private final String namespace;
+  private final String metricName;
+  private final String dimensionHash;
+  private final long[] heads = new long[Resolution.values().length];
+  private final Map<Units, Ring[]> rings = new EnumMap<Units, Ring[]>(Units.class);
+
+  /**
+   * @param accountId the series account
+   * @param metricType the series metric type
+   * @param namespace the series namespace
+   * @param metricName the series metric name
+   * @param dimensionHash the series dimension hash
+   * @param latest the latest time for which data may already exist
+   */
+  MetricRollupSeries(String accountId, MetricType metricType, String namespace,
+      String metricName, String dimensionHash, long latest) {
+    this.accountId = accountId;
+    this.metricType = metricType;
+    this.namespace = namespace;
+    this.metricName = metricName;
+    this.dimensionHash = dimensionHash;
+    for (Resolution resolution : Resolution.values()) {
+      heads[resolution.ordinal()] = latest / resolution.getMillis();
+    }
+  }
+
+  /**
+   * The start of the oldest bucket held for the given resolution.
+   */
+  synchronized long getWindowStart(Resolution resolution) {
+    return (heads[resolution.ordinal()] - capacity(resolution) + 1) * resolution.getMillis();
+  }
+
+  /**
+   * Add a sample to every resolution.
+   */
+  synchronized void add(Units units, long timestamp, double sampleSize,
+      double sampleMax, double sampleMin, double sampleSum) {
+    for (Resolution resolution : Resolution.values()) {
+      add(resolution, units, timestamp, sampleSize, sampleMax, sampleMin, sampleSum);
+    }
+  }
+
+  /**
+   * Add a sample or rollup to a single resolution.
+   */
+  synchronized void add(Resolution resolution, Units units, long timestamp,
+      double sampleSize, double sampleMax, double sampleMin, double sampleSum) {
+    long bucket = timestamp / resolution.getMillis();
+    advance(resolution, bucket);
+    if (bucket <= heads[resolution.ordinal()] - capacity(resolution)) {
+      return; // outside of window
+    }
+    ring(units, resolution).add(bucket, sampleSize, sampleMax, sampleMin, sampleSum);
+  }
+
+  /**
+   * Collect rollups for buckets in the given range.
+   *
+   * @param resolution the rollup resolution
+   * @param units the units to collect, null for all units
+   * @param startTime the range start (inclusive)
+   * @param endTime the range end (exclusive)
+   * @param results the list to add rollups to
+   * @return false if the range is not covered by the window for the resolution
+   */
+  synchronized boolean collect(Resolution resolution, Units units, long startTime,
+      long endTime, List<MetricRollupEntity> results) {
+    long firstBucket = startTime / resolution.getMillis();
+    long lastBucket = (endTime - 1) / resolution.getMillis();
+    if (firstBucket <= heads[resolution.ordinal()] - capacity(resolution)) {
+      return false;
+    }
+    lastBucket = Math.min(lastBucket, heads[resolution.ordinal()]);
+    for (Map.Entry<Units, Ring[]> entry : rings.entrySet()) {
+      if (units != null && units != entry.getKey()) continue;
+      Ring ring = entry.getValue()[resolution.ordinal()];
+      if (ring == null) continue;
+      for (long bucket = firstBucket; bucket <= lastBucket; bucket++) {
+        int slot = ring.slot(bucket);
+        if (Double.isNaN(ring.sampleMin[slot])) continue;
+        MetricRollupEntity rollup = new MetricRollupEntity();
+        rollup.setAccountId(accountId);
+        rollup.setMetricType(metricType);
+        rollup.setNamespace(namespace);
+        rollup.setMetricName(metricName);
+        rollup.setDimensionHash(dimensionHash);
+        rollup.setUnits(entry.getKey());
+        rollup.setResolution(resolution);
+        rollup.setTimestamp(new Date(bucket * resolution.getMillis()));
+        rollup.setSampleSize(ring.sampleSize[slot]);
+        rollup.setSampleMax(ring.sampleMax[slot]);
+        rollup.setSampleMin(ring.sampleMin[slot]);
+        rollup.setSampleSum(ring.sampleSum[slot]);
+        results.add(rollup);
+      }
+    }
+    return true;
+  }
+
+  private void advance(Resolution resolution, long bucket) {
+    int index = resolution.ordinal();
+    long head = heads[index];
+    if (bucket <= head) return;
+    long clearFrom = Math.max(head + 1, bucket - capacity(resolution) + 1);
+    for (Ring[] unitsRings : rings.values()) {
+      Ring ring = unitsRings[index];
+      if (ring != null) {
+        for (long cleared = clearFrom; cleared <= bucket; cleared++) {
+          ring.clear(cleared);
+        }
+      }
+    }
+    heads[index] = bucket;
+  }
+
+  private Ring ring(Units units, Resolution resolution) {
+    Ring[] unitsRings = rings.get(units);
+    if (unitsRings == null) {
+      unitsRings = new Ring[Resolution.values().length];
+      rings.put(units, unitsRings);
+    }
+    Ring ring = unitsRings[resolution.ordinal()];
+    if (ring == null) {
+      ring = new Ring(capacity(resolution));
+      unitsRings[resolution.ordinal()] = ring;
+    }
+    return ring;
+  }
+
+  private static int capacity(Resolution resolution) {
+    return CAPACITY.get(resolution);
+  }
+
+  private static final class Ring {
+    private final double[] sampleSize;
+    private final double[] sampleMax;
+    private final double[] sampleMin;
+    private final double[] sampleSum;
+
+    private Ring(int capacity) {
+      sampleSize = new double[capacity];
+      sampleMax = new double[capacity];
+      sampleMin = new double[capacity];
+      sampleSum = new double[capacity];
+      Arrays.fill(sampleMin, Double.NaN);
+    }
+
+    private int slot(long bucket) {
+      return (int) (bucket % sampleMin.length);
+    }
+
+    private void add(long bucket, double size, double max, double min, double sum) {
+      int slot = slot(bucket);
+      if (Double.isNaN(sampleMin[slot])) {
+        sampleSize[slot] = size;
+        sampleMax[slot] = max;
+        sampleMin[slot] = min;
+        sampleSum[slot] = sum;
+      } else {
+        sampleSize[slot] += size;
+        sampleMax[slot] = Math.max(sampleMax[slot], max);
+        sampleMin[slot] = Math.min(sampleMin[slot], min);
+        sampleSum[slot] += sum;
+      }
+    }
+
+    private void clear(long bucket) {
+      int slot = slot(bucket);
+      sampleSize[slot] = 0;
+      sampleMax[slot] = 0;
+      sampleMin[slot] = Double.NaN;
+      sampleSum[slot] = 0;
+    }
+  }
+}
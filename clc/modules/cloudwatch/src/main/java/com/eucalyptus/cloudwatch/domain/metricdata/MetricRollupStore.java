@@ -0,0 +1,702 @@
+/*************************************************************************
+ * Copyright 2009-2014 Eucalyptus Systems, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ *
+ * Please contact Eucalyptus Systems, Inc., 6755 Hollister Ave., Goleta
+ * CA 93117, USA or visit http://www.eucalyptus.com/licenses/ if you need
+ * additional information or have any questions.
+ ************************************************************************/
+package com.eucalyptus.cloudwatch.domain.metricdata;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.persistence.EntityTransaction;
+
+import org.apache.log4j.Logger;
+import org.hibernate.Criteria;
+import org.hibernate.criterion.Disjunction;
+import org.hibernate.criterion.Projections;
+import org.hibernate.criterion.Restrictions;
+
+import com.eucalyptus.bootstrap.Bootstrap;
+import com.eucalyptus.cloudwatch.domain.metricdata.MetricEntity.MetricType;
+import com.eucalyptus.cloudwatch.domain.metricdata.MetricEntity.Units;
+import com.eucalyptus.cloudwatch.domain.metricdata.MetricRollupEntity.Resolution;
+import com.eucalyptus.configurable.ConfigurableClass;
+import com.eucalyptus.configurable.ConfigurableField;
+import com.eucalyptus.entities.Entities;
+import com.eucalyptus.records.Logs;
+import com.eucalyptus.util.Mbeans;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+/**
+ * Pre-aggregated 5 minute, 1 hour and 1 day rollups of metric data.
+ *
+ * Rollups for added metric data are held in memory once the metric data
+ * commits and written behind periodically, so metric data ingest does not
+ * read or update rollups. Queries combine persisted and pending rollups, a
+ * stripe is not read while its pending rollups are being written. Pending
+ * rollups are written on shutdown, they are lost if the service stops
+ * abruptly. Recently queried series are also held in memory (see
+ * MetricRollupSeries) and updated as metric data is added, so repeated
+ * queries need not touch the database.
+ *
+ * Rollups only exist for metric data added after they were introduced, the
+ * coverage start is the time from which rollups are complete. Statistics for
+ * earlier times must come from metric data.
+ */
+@ConfigurableClass(root = "cloudwatch", description = "Parameters controlling cloud watch metric rollups")
+public class MetricRollupStore {
+  private static final Logger LOG = Logger.getLogger(MetricRollupStore.class);
+
+  @ConfigurableField(initial = "true", description = "Set this to false to calculate metric statistics from metric data only")
+  public static volatile Boolean ROLLUP_QUERIES_ENABLED = true;
+
+  @ConfigurableField(initial = "1000", description = "Maximum number of metric series held in memory for metric statistics queries")
+  public static volatile Integer ROLLUP_SERIES_CACHE_SIZE = 1000;
+
+  @ConfigurableField(initial = "1", description = "Interval in minutes at which rollups for added metric data are written to the database")
+  public static volatile Integer ROLLUP_WRITE_BEHIND_INTERVAL = 1;
+
+  private static final int STRIPES = 16;
+  private static final int MAX_SERIES_LOADED_PER_QUERY = 16;
+  private static final int MAX_HASHES_PER_QUERY = 500;
+  private static final int MAX_SERIES_PER_TRANSACTION = 100;
+
+  private static final MetricRollupStore singleton = new MetricRollupStore();
+  private static final RollupStatistics statistics = new RollupStatistics();
+  private static final AtomicBoolean registered = new AtomicBoolean(false);
+
+  private final AtomicLongArray writesStarted = new AtomicLongArray(STRIPES);
+  private final AtomicLongArray writesFinished = new AtomicLongArray(STRIPES);
+  private final Object[] stripeLocks = new Object[STRIPES];
+  private final ReadWriteLock[] writeLocks = new ReadWriteLock[STRIPES];
+  // series key -> (units, resolution, bucket start) -> rollup, guarded by the stripe lock
+  private final List<Map<List<Object>, Map<List<Object>, MetricRollupEntity>>> pending = Lists.newArrayList();
+  private volatile Cache<List<Object>, MetricRollupSeries> seriesCache;
+  private volatile Map<Resolution, Long> coverage;
+  private volatile long lastWritten = System.currentTimeMillis();
+
+  private MetricRollupStore() {
+    for (int i = 0; i < STRIPES; i++) {
+      stripeLocks[i] = new Object();
+      writeLocks[i] = new ReentrantReadWriteLock();
+      pending.add(new HashMap<List<Object>, Map<List<Object>, MetricRollupEntity>>());
+    }
+  }
+
+  public static MetricRollupStore getInstance() {
+    if (registered.compareAndSet(false, true)) {
+      Mbeans.register(statistics);
+    }
+    return singleton;
+  }
+
+  /**
+   * Select the coarsest rollup resolution that can be used for the given query.
+   *
+   * @return The resolution or null if rollups cannot be used
+   */
+  public Resolution selectResolution(Date startTime, Date endTime, Integer period) {
+    if (!ROLLUP_QUERIES_ENABLED) return null;
+    Resolution[] resolutions = Resolution.values();
+    for (int i = resolutions.length - 1; i >= 0; i--) {
+      Resolution resolution = resolutions[i];
+      if (period % resolution.getSeconds() == 0 &&
+          resolution.isAligned(startTime.getTime()) &&
+          resolution.isAligned(endTime.getTime())) {
+        return resolution;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Get the time from which rollups at the given resolution can be used.
+   *
+   * The returned time is aligned to the resolution.
+   */
+  public Date getCoverageStart(Resolution resolution) {
+    Map<Resolution, Long> coverage = this.coverage;
+    if (coverage == null) {
+      coverage = loadCoverage();
+      this.coverage = coverage;
+    }
+    long start = coverage.get(resolution);
+    long remainder = start % resolution.getMillis();
+    return new Date(remainder == 0 ? start : start - remainder + resolution.getMillis());
+  }
+
+  private static Map<Resolution, Long> loadCoverage() {
+    long earliest = System.currentTimeMillis();
+    Map<Resolution, Long> firstBuckets = new EnumMap<Resolution, Long>(Resolution.class);
+    EntityTransaction db = Entities.get(MetricRollupEntity.class);
+    try {
+      Criteria criteria = Entities.createCriteria(MetricRollupEntity.class)
+          .setProjection(Projections.projectionList()
+              .add(Projections.groupProperty("resolution"))
+              .add(Projections.min("timestamp"))
+              .add(Projections.min("creationTimestamp")));
+      for (Object result : criteria.list()) {
+        Object[] values = (Object[]) result;
+        firstBuckets.put((Resolution) values[0], ((Date) values[1]).getTime());
+        earliest = Math.min(earliest, ((Date) values[2]).getTime());
+      }
+      db.commit();
+    } catch (RuntimeException ex) {
+      Logs.extreme().error(ex, ex);
+      throw ex;
+    } finally {
+      if (db.isActive())
+        db.rollback();
+    }
+    // system metric rollups added before the series index cutover were folded by dimension
+    Date cutover = MetricSeriesIndex.getInstance().getCutover();
+    earliest = Math.max(earliest, cutover == null ? System.currentTimeMillis() : cutover.getTime());
+    // metric data added before the first rollup may have a timestamp up to the buffer later,
+    // and buckets before the earliest remaining bucket may have been partly deleted for retention
+    Map<Resolution, Long> coverage = new EnumMap<Resolution, Long>(Resolution.class);
+    for (Resolution resolution : Resolution.values()) {
+      long start = earliest + MetricManager.FUTURE_TIMESTAMP_BUFFER;
+      if (firstBuckets.containsKey(resolution)) {
+        start = Math.max(start, firstBuckets.get(resolution));
+      }
+      coverage.put(resolution, start);
+    }
+    LOG.debug("Metric rollup coverage " + coverage);
+    return coverage;
+  }
+
+  /**
+   * Get rollups for metric series.
+   *
+   * @param dimensionHashes the dimension hashes for the series
+   * @param units the units to get rollups for, null for all units
+   * @param startTime the start time (inclusive) aligned to the resolution
+   * @param endTime the end time (exclusive) aligned to the resolution
+   */
+  public List<MetricRollupEntity> getRollups(String accountId, MetricType metricType,
+      String namespace, String metricName, Collection<String> dimensionHashes, Units units,
+      Resolution resolution, Date startTime, Date endTime) {
+    List<MetricRollupEntity> results = Lists.newArrayList();
+    if (collect(accountId, metricType, namespace, metricName, dimensionHashes, units,
+        resolution, startTime, endTime, results)) {
+      statistics.memoryQueries.incrementAndGet();
+      return results;
+    }
+    results.clear();
+    statistics.databaseQueries.incrementAndGet();
+    SortedSet<Integer> stripes = Sets.newTreeSet();
+    for (String dimensionHash : dimensionHashes) {
+      stripes.add(stripe(dimensionHash));
+    }
+    // stripes are locked in order, writes lock a single stripe
+    List<Lock> locks = Lists.newArrayList();
+    for (Integer stripe : stripes) {
+      Lock lock = writeLocks[stripe].readLock();
+      lock.lock();
+      locks.add(lock);
+    }
+    EntityTransaction db = Entities.get(MetricRollupEntity.class);
+    try {
+      for (List<String> hashes : Iterables.partition(dimensionHashes, MAX_HASHES_PER_QUERY)) {
+        Criteria criteria = metricCriteria(accountId, metricType, namespace, metricName)
+            .add(Restrictions.in("dimensionHash", hashes))
+            .add(Restrictions.eq("resolution", resolution))
+            .add(Restrictions.ge("timestamp", startTime))
+            .add(Restrictions.lt("timestamp", endTime));
+        if (units != null) {
+          criteria = criteria.add(Restrictions.eq("units", units));
+        }
+        for (Object result : criteria.list()) {
+          results.add((MetricRollupEntity) result);
+        }
+      }
+      db.commit();
+      for (String dimensionHash : dimensionHashes) {
+        synchronized (stripeLocks[stripe(dimensionHash)]) {
+          Map<List<Object>, MetricRollupEntity> rollups = pending(stripe(dimensionHash)).get(
+              key(accountId, metricType, namespace, metricName, dimensionHash));
+          if (rollups == null) continue;
+          for (MetricRollupEntity rollup : rollups.values()) {
+            if (rollup.getResolution() == resolution && (units == null || rollup.getUnits() == units) &&
+                !rollup.getTimestamp().before(startTime) && rollup.getTimestamp().before(endTime)) {
+              results.add(copy(rollup));
+            }
+          }
+        }
+      }
+    } catch (RuntimeException ex) {
+      Logs.extreme().error(ex, ex);
+      throw ex;
+    } finally {
+      if (db.isActive())
+        db.rollback();
+      for (Lock lock : locks) {
+        lock.unlock();
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Collect rollups from memory, loading a limited number of series if necessary.
+   *
+   * @return false if the rollups are not all in memory
+   */
+  private boolean collect(String accountId, MetricType metricType, String namespace, String metricName,
+      Collection<String> dimensionHashes, Units units, Resolution resolution, Date startTime, Date endTime,
+      List<MetricRollupEntity> results) {
+    Cache<List<Object>, MetricRollupSeries> seriesCache = seriesCache();
+    for (String dimensionHash : dimensionHashes) {
+      List<Object> key = key(accountId, metricType, namespace, metricName, dimensionHash);
+      MetricRollupSeries series = seriesCache.getIfPresent(key);
+      if (series == null) {
+        if (dimensionHashes.size() > MAX_SERIES_LOADED_PER_QUERY) return false;
+        series = loadSeries(key, accountId, metricType, namespace, metricName, dimensionHash);
+      }
+      if (!series.collect(resolution, units, startTime.getTime(), endTime.getTime(), results)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Load a series into memory from persisted rollups.
+   *
+   * The series is cached only if no metric data for the stripe was written
+   * while it was loading, otherwise it is returned for a single use.
+   */
+  private MetricRollupSeries loadSeries(List<Object> key, String accountId, MetricType metricType,
+      String namespace, String metricName, String dimensionHash) {
+    int stripe = stripe(dimensionHash);
+    long started = writesStarted.get(stripe);
+    boolean quiescent = writesFinished.get(stripe) == started;
+    MetricRollupSeries series = new MetricRollupSeries(accountId, metricType, namespace,
+        metricName, dimensionHash, System.currentTimeMillis() + MetricManager.FUTURE_TIMESTAMP_BUFFER);
+    Lock lock = writeLocks[stripe].readLock();
+    lock.lock();
+    EntityTransaction db = Entities.get(MetricRollupEntity.class);
+    try {
+      Disjunction windows = Restrictions.disjunction();
+      for (Resolution resolution : Resolution.values()) {
+        windows.add(Restrictions.and(
+            Restrictions.eq("resolution", resolution),
+            Restrictions.ge("timestamp", new Date(series.getWindowStart(resolution)))));
+      }
+      Criteria criteria = metricCriteria(accountId, metricType, namespace, metricName)
+          .add(Restrictions.eq("dimensionHash", dimensionHash))
+          .add(windows);
+      for (Object result : criteria.list()) {
+        MetricRollupEntity rollup = (MetricRollupEntity) result;
+        series.add(rollup.getResolution(), rollup.getUnits(), rollup.getTimestamp().getTime(),
+            rollup.getSampleSize(), rollup.getSampleMax(), rollup.getSampleMin(), rollup.getSampleSum());
+      }
+      db.commit();
+      synchronized (stripeLocks[stripe]) {
+        Map<List<Object>, MetricRollupEntity> rollups = pending(stripe).get(key);
+        if (rollups != null) {
+          for (MetricRollupEntity rollup : rollups.values()) {
+            series.add(rollup.getResolution(), rollup.getUnits(), rollup.getTimestamp().getTime(),
+                rollup.getSampleSize(), rollup.getSampleMax(), rollup.getSampleMin(), rollup.getSampleSum());
+          }
+        }
+      }
+    } catch (RuntimeException ex) {
+      Logs.extreme().error(ex, ex);
+      throw ex;
+    } finally {
+      if (db.isActive())
+        db.rollback();
+      lock.unlock();
+    }
+    synchronized (stripeLocks[stripe]) {
+      if (quiescent && writesStarted.get(stripe) == started) {
+        seriesCache().put(key, series);
+        statistics.seriesLoaded.incrementAndGet();
+      } else {
+        statistics.seriesNotCached.incrementAndGet();
+      }
+    }
+    return series;
+  }
+
+  /**
+   * Note the start of a metric data write for the given dimension hash.
+   *
+   * Every call must be matched by a call to endWrite.
+   */
+  public void beginWrite(String dimensionHash) {
+    writesStarted.incrementAndGet(stripe(dimensionHash));
+  }
+
+  public void endWrite(String dimensionHash) {
+    writesFinished.incrementAndGet(stripe(dimensionHash));
+  }
+
+  /**
+   * Add rollups for the given metric data to pending rollups and in memory series.
+   *
+   * Must be called after the metric data transaction commits and before endWrite.
+   */
+  public void addRollups(Collection<MetricEntity> entities) {
+    Cache<List<Object>, MetricRollupSeries> seriesCache = seriesCache();
+    for (MetricEntity me : entities) {
+      int stripe = stripe(me.getDimensionHash());
+      List<Object> key = key(me.getAccountId(), me.getMetricType(), me.getNamespace(), me.getMetricName(),
+          me.getDimensionHash());
+      synchronized (stripeLocks[stripe]) {
+        Map<List<Object>, MetricRollupEntity> rollups = pending(stripe).get(key);
+        if (rollups == null) {
+          rollups = new HashMap<List<Object>, MetricRollupEntity>();
+          pending(stripe).put(key, rollups);
+        }
+        for (Resolution resolution : Resolution.values()) {
+          List<Object> bucketKey = bucketKey(me.getUnits(), resolution, resolution.bucketStart(me.getTimestamp().getTime()));
+          MetricRollupEntity rollup = rollups.get(bucketKey);
+          if (rollup == null) {
+            rollups.put(bucketKey, new MetricRollupEntity(me, resolution));
+          } else {
+            rollup.add(me.getSampleSize(), me.getSampleMax(), me.getSampleMin(), me.getSampleSum());
+            statistics.rollupsCoalesced.incrementAndGet();
+          }
+        }
+        MetricRollupSeries series = seriesCache.getIfPresent(key);
+        if (series != null) {
+          series.add(me.getUnits(), me.getTimestamp().getTime(), me.getSampleSize(),
+              me.getSampleMax(), me.getSampleMin(), me.getSampleSum());
+        }
+      }
+    }
+  }
+
+  /**
+   * Write pending rollups if the write behind interval has passed.
+   */
+  public void writeIfDue() {
+    if (System.currentTimeMillis() - lastWritten >= TimeUnit.MINUTES.toMillis(ROLLUP_WRITE_BEHIND_INTERVAL)) {
+      write();
+    }
+  }
+
+  /**
+   * Write pending rollups to the database.
+   *
+   * Each batch of series is removed from the pending rollups and persisted
+   * while its stripe is locked against queries, so queries see each rollup
+   * either pending or persisted. Batches that fail are pending again.
+   */
+  public void write() {
+    lastWritten = System.currentTimeMillis();
+    for (int stripe = 0; stripe < STRIPES; stripe++) {
+      int pendingSeries;
+      synchronized (stripeLocks[stripe]) {
+        pendingSeries = pending(stripe).size();
+      }
+      // series added while writing are written next time
+      for (int batches = (pendingSeries + MAX_SERIES_PER_TRANSACTION - 1) / MAX_SERIES_PER_TRANSACTION; batches > 0; batches--) {
+        Lock lock = writeLocks[stripe].writeLock();
+        lock.lock();
+        try {
+          Map<List<Object>, Map<List<Object>, MetricRollupEntity>> batch = takePending(stripe);
+          if (batch.isEmpty()) break;
+          try {
+            persist(batch);
+          } catch (RuntimeException ex) {
+            LOG.error("Error writing metric rollups, will retry", ex);
+            restorePending(stripe, batch);
+            break;
+          }
+        } finally {
+          lock.unlock();
+        }
+      }
+    }
+  }
+
+  private Map<List<Object>, Map<List<Object>, MetricRollupEntity>> takePending(int stripe) {
+    Map<List<Object>, Map<List<Object>, MetricRollupEntity>> batch = new HashMap<List<Object>, Map<List<Object>, MetricRollupEntity>>();
+    synchronized (stripeLocks[stripe]) {
+      Iterator<Map.Entry<List<Object>, Map<List<Object>, MetricRollupEntity>>> iterator = pending(stripe).entrySet().iterator();
+      while (iterator.hasNext() && batch.size() < MAX_SERIES_PER_TRANSACTION) {
+        Map.Entry<List<Object>, Map<List<Object>, MetricRollupEntity>> entry = iterator.next();
+        batch.put(entry.getKey(), entry.getValue());
+        iterator.remove();
+      }
+    }
+    return batch;
+  }
+
+  private void restorePending(int stripe, Map<List<Object>, Map<List<Object>, MetricRollupEntity>> batch) {
+    synchronized (stripeLocks[stripe]) {
+      for (Map.Entry<List<Object>, Map<List<Object>, MetricRollupEntity>> entry : batch.entrySet()) {
+        Map<List<Object>, MetricRollupEntity> rollups = pending(stripe).get(entry.getKey());
+        if (rollups == null) {
+          rollups = new HashMap<List<Object>, MetricRollupEntity>();
+          pending(stripe).put(entry.getKey(), rollups);
+        }
+        for (Map.Entry<List<Object>, MetricRollupEntity> bucket : entry.getValue().entrySet()) {
+          MetricRollupEntity failed = bucket.getValue();
+          MetricRollupEntity rollup = rollups.get(bucket.getKey());
+          if (rollup == null) {
+            rollups.put(bucket.getKey(), copy(failed));
+          } else {
+            rollup.add(failed.getSampleSize(), failed.getSampleMax(), failed.getSampleMin(), failed.getSampleSum());
+          }
+        }
+      }
+    }
+  }
+
+  private static void persist(Map<List<Object>, Map<List<Object>, MetricRollupEntity>> batch) {
+    EntityTransaction db = Entities.get(MetricRollupEntity.class);
+    try {
+      // all existing rollups are loaded before any are persisted, so the queries do not flush
+      Map<List<Object>, MetricRollupEntity> existing = new HashMap<List<Object>, MetricRollupEntity>();
+      for (Map.Entry<List<Object>, Map<List<Object>, MetricRollupEntity>> entry : batch.entrySet()) {
+        MetricRollupEntity first = entry.getValue().values().iterator().next();
+        Set<Date> bucketStarts = Sets.newHashSet();
+        for (MetricRollupEntity rollup : entry.getValue().values()) {
+          bucketStarts.add(rollup.getTimestamp());
+        }
+        Criteria criteria = metricCriteria(first.getAccountId(), first.getMetricType(), first.getNamespace(),
+            first.getMetricName())
+            .add(Restrictions.eq("dimensionHash", first.getDimensionHash()))
+            .add(Restrictions.in("timestamp", bucketStarts));
+        for (Object result : criteria.list()) {
+          MetricRollupEntity rollup = (MetricRollupEntity) result;
+          existing.put(key(entry.getKey(), bucketKey(rollup.getUnits(), rollup.getResolution(),
+              rollup.getTimestamp().getTime())), rollup);
+        }
+      }
+      for (Map.Entry<List<Object>, Map<List<Object>, MetricRollupEntity>> entry : batch.entrySet()) {
+        for (Map.Entry<List<Object>, MetricRollupEntity> bucket : entry.getValue().entrySet()) {
+          MetricRollupEntity rollup = bucket.getValue();
+          MetricRollupEntity persisted = existing.get(key(entry.getKey(), bucket.getKey()));
+          if (persisted == null) {
+            Entities.persist(copy(rollup));
+            statistics.rollupsCreated.incrementAndGet();
+          } else {
+            persisted.add(rollup.getSampleSize(), rollup.getSampleMax(), rollup.getSampleMin(), rollup.getSampleSum());
+            statistics.rollupsUpdated.incrementAndGet();
+          }
+        }
+      }
+      db.commit();
+    } catch (RuntimeException ex) {
+      Logs.extreme().error(ex, ex);
+      throw ex;
+    } finally {
+      if (db.isActive())
+        db.rollback();
+    }
+  }
+
+  /**
+   * Delete rollups for buckets starting before the given date.
+   */
+  public void deleteRollups(Date before) {
+    deleteRollups(before, Collections.<String, Date>emptyMap());
+  }
+
+  public void deleteRollups(Date before, Map<String, Date> namespaceBefore) {
+    // pending rollups are written first so they are deleted if expired
+    write();
+    EntityTransaction db = Entities.get(MetricRollupEntity.class);
+    try {
+      MetricManager.deleteAllMatching(MetricRollupEntity.class, before, namespaceBefore);
+      db.commit();
+    } catch (RuntimeException ex) {
+      Logs.extreme().error(ex, ex);
+      throw ex;
+    } finally {
+      if (db.isActive())
+        db.rollback();
+      clear();
+    }
+  }
+
+  public void deleteAllRollups() {
+    for (int i = 0; i < STRIPES; i++) {
+      synchronized (stripeLocks[i]) {
+        pending(i).clear();
+      }
+    }
+    EntityTransaction db = Entities.get(MetricRollupEntity.class);
+    try {
+      Entities.deleteAll(MetricRollupEntity.class);
+      db.commit();
+    } catch (RuntimeException ex) {
+      Logs.extreme().error(ex, ex);
+      throw ex;
+    } finally {
+      if (db.isActive())
+        db.rollback();
+      clear();
+    }
+  }
+
+  private void clear() {
+    coverage = null;
+    for (int i = 0; i < STRIPES; i++) {
+      synchronized (stripeLocks[i]) {
+        writesStarted.incrementAndGet(i);
+        writesFinished.incrementAndGet(i);
+      }
+    }
+    seriesCache().invalidateAll();
+  }
+
+  private Cache<List<Object>, MetricRollupSeries> seriesCache() {
+    Cache<List<Object>, MetricRollupSeries> cache = seriesCache;
+    if (cache == null) {
+      synchronized (this) {
+        cache = seriesCache;
+        if (cache == null) {
+          cache = CacheBuilder.newBuilder().maximumSize(ROLLUP_SERIES_CACHE_SIZE).build();
+          seriesCache = cache;
+        }
+      }
+    }
+    return cache;
+  }
+
+  private static Criteria metricCriteria(String accountId, MetricType metricType, String namespace,
+      String metricName) {
+    return Entities.createCriteria(MetricRollupEntity.class)
+        .add(Restrictions.eq("accountId", accountId))
+        .add(Restrictions.eq("metricType", metricType))
+        .add(Restrictions.eq("namespace", namespace))
+        .add(Restrictions.eq("metricName", metricName));
+  }
+
+  private static List<Object> key(Object... values) {
+    return Arrays.asList(values);
+  }
+
+  private static List<Object> bucketKey(Units units, Resolution resolution, long bucketStart) {
+    return key(units, resolution, bucketStart);
+  }
+
+  private Map<List<Object>, Map<List<Object>, MetricRollupEntity>> pending(int stripe) {
+    return pending.get(stripe);
+  }
+
+  private static MetricRollupEntity copy(MetricRollupEntity rollup) {
+    MetricRollupEntity copy = new MetricRollupEntity();
+    copy.setAccountId(rollup.getAccountId());
+    copy.setMetricType(rollup.getMetricType());
+    copy.setNamespace(rollup.getNamespace());
+    copy.setMetricName(rollup.getMetricName());
+    copy.setDimensionHash(rollup.getDimensionHash());
+    copy.setUnits(rollup.getUnits());
+    copy.setResolution(rollup.getResolution());
+    copy.setTimestamp(rollup.getTimestamp());
+    copy.setSampleSize(rollup.getSampleSize());
+    copy.setSampleMax(rollup.getSampleMax());
+    copy.setSampleMin(rollup.getSampleMin());
+    copy.setSampleSum(rollup.getSampleSum());
+    return copy;
+  }
+
+  private static int stripe(String dimensionHash) {
+    return Math.max(0, Character.digit(dimensionHash.charAt(0), STRIPES));
+  }
+
+  /**
+   * Writes behind rollups for metric data added on this host.
+   */
+  public static class WriteBehindTask implements Runnable {
+    @Override
+    public void run() {
+      try {
+        if (Bootstrap.isOperational()) {
+          getInstance().writeIfDue();
+        }
+      } catch (RuntimeException ex) {
+        LOG.error(ex, ex);
+      }
+    }
+  }
+
+  public static class RollupStatistics {
+    private final AtomicLong memoryQueries = new AtomicLong();
+    private final AtomicLong databaseQueries = new AtomicLong();
+    private final AtomicLong seriesLoaded = new AtomicLong();
+    private final AtomicLong seriesNotCached = new AtomicLong();
+    private final AtomicLong rollupsCreated = new AtomicLong();
+    private final AtomicLong rollupsUpdated = new AtomicLong();
+    private final AtomicLong rollupsCoalesced = new AtomicLong();
+
+    public long getMemoryQueries() {
+      return memoryQueries.get();
+    }
+
+    public long getDatabaseQueries() {
+      return databaseQueries.get();
+    }
+
+    public long getSeriesLoaded() {
+      return seriesLoaded.get();
+    }
+
+    public long getSeriesNotCached() {
+      return seriesNotCached.get();
+    }
+
+    public long getRollupsCreated() {
+      return rollupsCreated.get();
+    }
+
+    public long getRollupsUpdated() {
+      return rollupsUpdated.get();
+    }
+
+    public long getRollupsCoalesced() {
+      return rollupsCoalesced.get();
+    }
+
+    public long getPendingSeries() {
+      long pendingSeries = 0;
+      for (int i = 0; i < STRIPES; i++) {
+        synchronized (singleton.stripeLocks[i]) {
+          pendingSeries += singleton.pending(i).size();
+        }
+      }
+      return pendingSeries;
+    }
+  }
+}
@@ -0,0 +1,112 @@
+/*************************************************************************
+ * Copyright 2009-2014 Eucalyptus Systems, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ *
+ * Please contact Eucalyptus Systems, Inc., 6755 Hollister Ave., Goleta
+ * CA 93117, USA or visit http://www.eucalyptus.com/licenses/ if you need
+ * additional information or have any questions.
+ ************************************************************************/
+package com.eucalyptus.cloudwatch.domain.metricdata;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.PersistenceContext;
+import javax.persistence.Table;
+
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.Index;
+
+import com.eucalyptus.cloudwatch.domain.AbstractPersistentWithDimensions;
+import com.eucalyptus.cloudwatch.domain.metricdata.MetricEntity.MetricType;
+
+/**
+ * A system metric series, i.e. a metric with a full set of dimensions.
+ *
+ * Metric data is stored once for the full set of dimensions, series are
+ * used to find the data for a subset of the dimensions.
+ */
+@Entity
+@PersistenceContext(name = "eucalyptus_cloudwatch")
+@Table(name = "metric_series")
+@Cache(usage = CacheConcurrencyStrategy.TRANSACTIONAL)
+public class MetricSeriesEntity extends AbstractPersistentWithDimensions {
+
+  @Column(name = "account_id", nullable = false)
+  private String accountId;
+  @Column(name = "namespace", nullable = false)
+  private String namespace;
+  @Column(name = "metric_name", nullable = false)
+  private String metricName;
+  @Index(name = "metric_series_dimension_hash_idx")
+  @Column(name = "dimension_hash", nullable = false)
+  private String dimensionHash;
+  @Column(name = "metric_type", nullable = false)
+  @Enumerated(EnumType.STRING)
+  private MetricType metricType;
+
+  public MetricSeriesEntity() {
+  }
+
+  public MetricSeriesEntity(MetricEntity me) {
+    this.accountId = me.getAccountId();
+    this.namespace = me.getNamespace();
+    this.metricName = me.getMetricName();
+    this.dimensionHash = me.getDimensionHash();
+    this.metricType = me.getMetricType();
+    setDimensions(me.getDimensions());
+  }
+
+  public String getAccountId() {
+    return accountId;
+  }
+
+  public void setAccountId(String accountId) {
+    this.accountId = accountId;
+  }
+
+  public String getNamespace() {
+    return namespace;
+  }
+
+  public void setNamespace(String namespace) {
+    this.namespace = namespace;
+  }
+
+  public String getMetricName() {
+    return metricName;
+  }
+
+  public void setMetricName(String metricName) {
+    this.metricName = metricName;
+  }
+
+  public String getDimensionHash() {
+    return dimensionHash;
+  }
+
+  public void setDimensionHash(String dimensionHash) {
+    this.dimensionHash = dimensionHash;
+  }
+
+  public MetricType getMetricType() {
+    return metricType;
+  }
+
+  public void setMetricType(MetricType metricType) {
+    this.metricType = metricType;
+  }
+}
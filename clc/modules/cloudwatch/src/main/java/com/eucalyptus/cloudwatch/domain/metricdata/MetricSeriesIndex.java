@@ -0,0 +1,268 @@
+/*************************************************************************
+ * Copyright 2009-2014 Eucalyptus Systems, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ *
+ * Please contact Eucalyptus Systems, Inc., 6755 Hollister Ave., Goleta
+ * CA 93117, USA or visit http://www.eucalyptus.com/licenses/ if you need
+ * additional information or have any questions.
+ ************************************************************************/
+package com.eucalyptus.cloudwatch.domain.metricdata;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.EntityTransaction;
+
+import org.apache.log4j.Logger;
+import org.hibernate.Criteria;
+import org.hibernate.criterion.Disjunction;
+import org.hibernate.criterion.Projections;
+import org.hibernate.criterion.Restrictions;
+
+import com.eucalyptus.cloudwatch.domain.DimensionEntity;
+import com.eucalyptus.cloudwatch.domain.metricdata.MetricEntity.MetricType;
+import com.eucalyptus.entities.Entities;
+import com.eucalyptus.records.Logs;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+/**
+ * Index of system metric series by dimension subset.
+ *
+ * System metrics can be queried using any subset of their dimensions. Metric
+ * data is stored once with the hash of its full dimension set and the series
+ * for a subset are found by dimension from the metric_series table. Lookups
+ * are cached and the cache is invalidated when series are added.
+ *
+ * Metric data added before the index was introduced was stored once for every
+ * subset of its dimensions. Such data was created before the cutover (the
+ * creation time of the first series) and is still found by the subset hash.
+ */
+public class MetricSeriesIndex {
+  private static final Logger LOG = Logger.getLogger(MetricSeriesIndex.class);
+
+  // series are marked as in use at most once per interval, see deleteSeries
+  private static final long TOUCH_INTERVAL = TimeUnit.DAYS.toMillis(1);
+  private static final long RETENTION_MARGIN = 2 * TOUCH_INTERVAL;
+
+  private static final MetricSeriesIndex singleton = new MetricSeriesIndex();
+
+  private final AtomicLong generation = new AtomicLong();
+  private final Cache<List<Object>, Boolean> touchedSeries = CacheBuilder.newBuilder()
+      .maximumSize(100000)
+      .expireAfterWrite(TOUCH_INTERVAL, TimeUnit.MILLISECONDS)
+      .build();
+  private final Cache<List<Object>, Set<String>> subsetSeries = CacheBuilder.newBuilder()
+      .maximumSize(10000)
+      .build();
+  private volatile Date cutover;
+
+  public static MetricSeriesIndex getInstance() {
+    return singleton;
+  }
+
+  /**
+   * Get the creation time of the first series.
+   *
+   * @return The cutover or null if there are no series yet
+   */
+  public Date getCutover() {
+    Date cutover = this.cutover;
+    if (cutover == null) {
+      EntityTransaction db = Entities.get(MetricSeriesEntity.class);
+      try {
+        cutover = (Date) Entities.createCriteria(MetricSeriesEntity.class)
+            .setProjection(Projections.min("creationTimestamp"))
+            .uniqueResult();
+        db.commit();
+      } catch (RuntimeException ex) {
+        Logs.extreme().error(ex, ex);
+        throw ex;
+      } finally {
+        if (db.isActive())
+          db.rollback();
+      }
+      this.cutover = cutover;
+    }
+    return cutover;
+  }
+
+  /**
+   * Add or mark as in use the series for the given metric data.
+   *
+   * Must be called in the metric data transaction.
+   *
+   * @return The added series
+   */
+  public List<MetricSeriesEntity> addSeries(Collection<MetricEntity> entities) {
+    List<MetricSeriesEntity> added = Lists.newArrayList();
+    Set<List<Object>> checked = Sets.newHashSet();
+    for (MetricEntity me : entities) {
+      if (me.getMetricType() != MetricType.System) continue;
+      List<Object> key = seriesKey(me.getAccountId(), me.getNamespace(), me.getMetricName(), me.getDimensionHash());
+      if (touchedSeries.getIfPresent(key) != null || !checked.add(key)) continue;
+      MetricSeriesEntity series = (MetricSeriesEntity) Entities.createCriteria(MetricSeriesEntity.class)
+          .add(Restrictions.eq("accountId", me.getAccountId()))
+          .add(Restrictions.eq("metricType", MetricType.System))
+          .add(Restrictions.eq("namespace", me.getNamespace()))
+          .add(Restrictions.eq("metricName", me.getMetricName()))
+          .add(Restrictions.eq("dimensionHash", me.getDimensionHash()))
+          .uniqueResult();
+      if (series != null) {
+        series.setVersion(1 + series.getVersion());
+      } else {
+        series = new MetricSeriesEntity(me);
+        Entities.persist(series);
+        added.add(series);
+      }
+    }
+    return added;
+  }
+
+  /**
+   * Update cached lookups once the metric data transaction has committed.
+   *
+   * @param entities the metric data passed to addSeries
+   * @param added the series returned by addSeries
+   */
+  public void seriesAdded(Collection<MetricEntity> entities, List<MetricSeriesEntity> added) {
+    if (!added.isEmpty()) {
+      generation.incrementAndGet();
+      for (MetricSeriesEntity series : added) {
+        for (Set<DimensionEntity> subset : Sets.powerSet(new TreeSet<DimensionEntity>(series.getDimensions()))) {
+          subsetSeries.invalidate(seriesKey(series.getAccountId(), series.getNamespace(),
+              series.getMetricName(), MetricManager.hash(subset)));
+        }
+      }
+    }
+    for (MetricEntity me : entities) {
+      if (me.getMetricType() != MetricType.System) continue;
+      touchedSeries.put(seriesKey(me.getAccountId(), me.getNamespace(), me.getMetricName(), me.getDimensionHash()), true);
+    }
+  }
+
+  /**
+   * Find the system metric series that have all of the given dimensions.
+   *
+   * @param dimensions the dimension subset
+   * @param dimensionHash the hash for the dimension subset
+   * @return The dimension hashes for the series
+   */
+  public Set<String> lookupSeries(String accountId, String namespace, String metricName,
+      Collection<DimensionEntity> dimensions, String dimensionHash) {
+    List<Object> key = seriesKey(accountId, namespace, metricName, dimensionHash);
+    Set<String> series = subsetSeries.getIfPresent(key);
+    if (series != null) {
+      return series;
+    }
+    long loadGeneration = generation.get();
+    EntityTransaction db = Entities.get(MetricSeriesEntity.class);
+    try {
+      Criteria criteria = Entities.createCriteria(MetricSeriesEntity.class)
+          .add(Restrictions.eq("accountId", accountId))
+          .add(Restrictions.eq("metricType", MetricType.System))
+          .add(Restrictions.eq("namespace", namespace))
+          .add(Restrictions.eq("metricName", metricName))
+          .setProjection(Projections.property("dimensionHash"));
+      // dimensions are stored sorted, so the n-th requested dimension can only be in a
+      // limited range of positions
+      int lowDimNum = 1;
+      int highDimNum = MetricEntity.MAX_DIM_NUM + 1 - dimensions.size();
+      for (DimensionEntity dimension : new TreeSet<DimensionEntity>(dimensions)) {
+        Disjunction or = Restrictions.disjunction();
+        for (int i = lowDimNum; i <= highDimNum; i++) {
+          or.add(Restrictions.conjunction()
+              .add(Restrictions.eq("dim" + i + "Name", dimension.getName()))
+              .add(Restrictions.eq("dim" + i + "Value", dimension.getValue())));
+        }
+        lowDimNum++;
+        highDimNum++;
+        criteria = criteria.add(or);
+      }
+      series = ImmutableSet.copyOf((List<String>) criteria.list());
+      db.commit();
+    } catch (RuntimeException ex) {
+      Logs.extreme().error(ex, ex);
+      throw ex;
+    } finally {
+      if (db.isActive())
+        db.rollback();
+    }
+    if (generation.get() == loadGeneration) {
+      subsetSeries.put(key, series);
+    }
+    return series;
+  }
+
+  /**
+   * Delete series that have not been used since before the given date.
+   *
+   * Series are only marked as in use periodically so a margin is allowed
+   * beyond the metric data retention. Metric data for deleted series has
+   * already been deleted, so the cutover moving forward is harmless.
+   */
+  public void deleteSeries(Date before) {
+    EntityTransaction db = Entities.get(MetricSeriesEntity.class);
+    try {
+      Map<String, Date> criteria = new HashMap<String, Date>();
+      criteria.put("before", new Date(before.getTime() - RETENTION_MARGIN));
+      Entities.deleteAllMatching(MetricSeriesEntity.class, "WHERE lastUpdateTimestamp < :before", criteria);
+      db.commit();
+    } catch (RuntimeException ex) {
+      Logs.extreme().error(ex, ex);
+      throw ex;
+    } finally {
+      if (db.isActive())
+        db.rollback();
+      clear();
+    }
+  }
+
+  public void deleteAllSeries() {
+    EntityTransaction db = Entities.get(MetricSeriesEntity.class);
+    try {
+      Entities.deleteAll(MetricSeriesEntity.class);
+      db.commit();
+      cutover = null;
+    } catch (RuntimeException ex) {
+      Logs.extreme().error(ex, ex);
+      throw ex;
+    } finally {
+      if (db.isActive())
+        db.rollback();
+      clear();
+    }
+  }
+
+  private void clear() {
+    generation.incrementAndGet();
+    subsetSeries.invalidateAll();
+    touchedSeries.invalidateAll();
+  }
+
+  private static List<Object> seriesKey(Object... values) {
+    return Arrays.asList(values);
+  }
+}
@@ -150,6 +150,9 @@ public class MetricStatistics {
     this.dimensions = dimensions;
   }
 
+  public MetricStatistics() {
+  }
+
   public MetricStatistics(MetricEntity me, Date startTime, Integer period, Collection<DimensionEntity> dimensions) {
     this.accountId = me.getAccountId();
     this.namespace = me.getNamespace();
@@ -164,4 +167,18 @@ public class MetricStatistics {
     this.dimensions = dimensions;
   }
 
+  public MetricStatistics(MetricRollupEntity rollup, Date startTime, Integer period, Collection<DimensionEntity> dimensions) {
+    this.accountId = rollup.getAccountId();
+    this.namespace = rollup.getNamespace();
+    this.metricName = rollup.getMetricName();
+    this.units = rollup.getUnits();
+    this.metricType = rollup.getMetricType();
+    this.timestamp = MetricManager.getPeriodStart(rollup.getTimestamp(), startTime, period);
+    this.sampleSize = rollup.getSampleSize();
+    this.sampleMax = rollup.getSampleMax();
+    this.sampleMin = rollup.getSampleMin();
+    this.sampleSum = rollup.getSampleSum();
+    this.dimensions = dimensions;
+  }
+
 }
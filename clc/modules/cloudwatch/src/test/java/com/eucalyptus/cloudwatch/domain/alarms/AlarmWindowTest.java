@@ -0,0 +1,72 @@
+/*************************************************************************
+ * Copyright 2009-2014 Eucalyptus Systems, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ *
+ * Please contact Eucalyptus Systems, Inc., 6755 Hollister Ave., Goleta
+ * CA 93117, USA or visit http://www.eucalyptus.com/licenses/ if you need
+ * additional information or have any questions.
+ ************************************************************************/
+package com.eucalyptus.cloudwatch.domain.alarms;
+
+import static org.junit.Assert.*;
+
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.eucalyptus.cloudwatch.domain.metricdata.MetricStatistics;
+
+public class AlarmWindowTest {
+
+  private static final double TOLERANCE = 0.000000001;
+  private static final long MINUTE = 60000L;
+  private static final long START = 100000 * MINUTE;
+
+  @Test
+  public void testPeriodsAlignedToStart() {
+    AlarmWindow window = new AlarmWindow();
+    for (int minute = 0; minute < 20; minute++) {
+      // samples within a minute are combined
+      window.add(new Date(START + minute * MINUTE + 1000), 1.0, minute, minute, minute);
+      window.add(new Date(START + minute * MINUTE + 2000), 1.0, minute + 0.5, minute + 0.5, minute + 0.5);
+    }
+    // 5 minute periods starting 2 minutes into the data
+    Date startTime = new Date(START + 2 * MINUTE);
+    List<MetricStatistics> statistics = window.getStatistics(startTime, new Date(START + 17 * MINUTE), 300);
+    assertEquals(3, statistics.size());
+    for (int i = 0; i < 3; i++) {
+      MetricStatistics period = statistics.get(i);
+      int first = 2 + 5 * i;
+      assertEquals(START + first * MINUTE, period.getTimestamp().getTime());
+      assertEquals(10.0, period.getSampleSize(), TOLERANCE);
+      assertEquals(first + 4.5, period.getSampleMax(), TOLERANCE);
+      assertEquals(first, period.getSampleMin(), TOLERANCE);
+      assertEquals(10 * first + 22.5, period.getSampleSum(), TOLERANCE);
+    }
+  }
+
+  @Test
+  public void testPrune() {
+    AlarmWindow window = new AlarmWindow();
+    for (int minute = 0; minute < 10; minute++) {
+      window.add(new Date(START + minute * MINUTE), 1.0, 1.0, 1.0, 1.0);
+    }
+    window.prune(new Date(START + 5 * MINUTE));
+    List<MetricStatistics> statistics = window.getStatistics(new Date(START), new Date(START + 10 * MINUTE), 600);
+    assertEquals(1, statistics.size());
+    assertEquals(START, statistics.get(0).getTimestamp().getTime());
+    assertEquals(5.0, statistics.get(0).getSampleSize(), TOLERANCE);
+  }
+}
@@ -0,0 +1,138 @@
+/*************************************************************************
+ * Copyright 2009-2014 Eucalyptus Systems, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ *
+ * Please contact Eucalyptus Systems, Inc., 6755 Hollister Ave., Goleta
+ * CA 93117, USA or visit http://www.eucalyptus.com/licenses/ if you need
+ * additional information or have any questions.
+ ************************************************************************/
+package com.eucalyptus.cloudwatch.domain.metricdata;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Ignore;
+
+import com.eucalyptus.cloudwatch.domain.DimensionEntity;
+import com.eucalyptus.cloudwatch.domain.metricdata.MetricEntity.MetricType;
+import com.eucalyptus.cloudwatch.domain.metricdata.MetricEntity.Units;
+import com.eucalyptus.cloudwatch.domain.metricdata.MetricRollupEntity.Resolution;
+
+/**
+ * Compares statistics query latency for minute metric data and rollups.
+ *
+ * Only the aggregation work is measured, the database reads that the metric
+ * data path also needs (one row per minute) are not included.
+ */
+@Ignore("Manual development test")
+public class MetricRollupBenchmark {
+
+  private static final long MINUTE = 60000L;
+  private static final long HOUR = 60 * MINUTE;
+  private static final long DAY = 24 * HOUR;
+  private static final int ITERATIONS = 200;
+
+  public static void main(String[] args) {
+    long end = Resolution.OneDay.bucketStart(System.currentTimeMillis());
+    long start = end - 14 * DAY;
+    String hash = MetricManager.hash(new ArrayList<DimensionEntity>());
+    List<MetricEntity> minuteData = new ArrayList<MetricEntity>();
+    MetricRollupSeries series = new MetricRollupSeries("account1", MetricType.System, "AWS/EC2",
+        "CPUUtilization", hash, end - MINUTE);
+    for (long time = start; time < end; time += MINUTE) {
+      double value = (time / MINUTE) % 100;
+      MetricEntity me = MetricEntityFactory.getNewMetricEntity(MetricType.System, hash);
+      me.setAccountId("account1");
+      me.setMetricType(MetricType.System);
+      me.setNamespace("AWS/EC2");
+      me.setMetricName("CPUUtilization");
+      me.setDimensionHash(hash);
+      me.setUnits(Units.Percent);
+      me.setTimestamp(new Date(time));
+      me.setSampleSize(1.0);
+      me.setSampleMax(value);
+      me.setSampleMin(value);
+      me.setSampleSum(value);
+      minuteData.add(me);
+      series.add(Units.Percent, time, 1.0, value, value, value);
+    }
+
+    long[][] queries = {
+        { HOUR, 300 },
+        { DAY, 300 },
+        { DAY, 3600 },
+        { 14 * DAY, 3600 },
+        { 14 * DAY, 86400 },
+    };
+    System.out.println("window(h)\tperiod(s)\tminute data(us)\trollups(us)");
+    for (long[] query : queries) {
+      Date startTime = new Date(end - query[0]);
+      Date endTime = new Date(end);
+      int period = (int) query[1];
+      Resolution resolution = MetricRollupStore.getInstance().selectResolution(startTime, endTime, period);
+      long rawNanos = 0;
+      long rollupNanos = 0;
+      for (int i = 0; i < ITERATIONS; i++) {
+        long before = System.nanoTime();
+        Map<GetMetricStatisticsAggregationKey, MetricStatistics> raw = newAggregationMap();
+        for (MetricEntity me : minuteData) {
+          if (me.getTimestamp().before(startTime) || !me.getTimestamp().before(endTime)) continue;
+          aggregate(raw, new GetMetricStatisticsAggregationKey(me, startTime, period, hash),
+              new MetricStatistics(me, startTime, period, null));
+        }
+        long middle = System.nanoTime();
+        Map<GetMetricStatisticsAggregationKey, MetricStatistics> rolled = newAggregationMap();
+        List<MetricRollupEntity> rollups = new ArrayList<MetricRollupEntity>();
+        if (!series.collect(resolution, null, startTime.getTime(), endTime.getTime(), rollups)) {
+          throw new IllegalStateException("Query not covered by rollups");
+        }
+        for (MetricRollupEntity rollup : rollups) {
+          aggregate(rolled, new GetMetricStatisticsAggregationKey(rollup, startTime, period, hash),
+              new MetricStatistics(rollup, startTime, period, null));
+        }
+        long after = System.nanoTime();
+        if (raw.size() != rolled.size()) {
+          throw new IllegalStateException("Result mismatch " + raw.size() + " / " + rolled.size());
+        }
+        rawNanos += middle - before;
+        rollupNanos += after - middle;
+      }
+      System.out.println(query[0] / HOUR + "\t" + period + "\t" +
+          TimeUnit.NANOSECONDS.toMicros(rawNanos / ITERATIONS) + "\t" +
+          TimeUnit.NANOSECONDS.toMicros(rollupNanos / ITERATIONS));
+    }
+  }
+
+  private static Map<GetMetricStatisticsAggregationKey, MetricStatistics> newAggregationMap() {
+    return new TreeMap<GetMetricStatisticsAggregationKey, MetricStatistics>(
+        GetMetricStatisticsAggregationKey.COMPARATOR_WITH_NULLS.INSTANCE);
+  }
+
+  private static void aggregate(Map<GetMetricStatisticsAggregationKey, MetricStatistics> aggregationMap,
+      GetMetricStatisticsAggregationKey key, MetricStatistics item) {
+    MetricStatistics totalSoFar = aggregationMap.get(key);
+    if (totalSoFar == null) {
+      aggregationMap.put(key, item);
+    } else {
+      totalSoFar.setSampleMax(Math.max(item.getSampleMax(), totalSoFar.getSampleMax()));
+      totalSoFar.setSampleMin(Math.min(item.getSampleMin(), totalSoFar.getSampleMin()));
+      totalSoFar.setSampleSize(totalSoFar.getSampleSize() + item.getSampleSize());
+      totalSoFar.setSampleSum(totalSoFar.getSampleSum() + item.getSampleSum());
+    }
+  }
+}
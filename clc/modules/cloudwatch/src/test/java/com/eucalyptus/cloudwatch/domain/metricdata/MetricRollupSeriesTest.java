@@ -0,0 +1,122 @@
+/*************************************************************************
+ * Copyright 2009-2014 Eucalyptus Systems, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ *
+ * Please contact Eucalyptus Systems, Inc., 6755 Hollister Ave., Goleta
+ * CA 93117, USA or visit http://www.eucalyptus.com/licenses/ if you need
+ * additional information or have any questions.
+ ************************************************************************/
+package com.eucalyptus.cloudwatch.domain.metricdata;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.eucalyptus.cloudwatch.domain.metricdata.MetricEntity.MetricType;
+import com.eucalyptus.cloudwatch.domain.metricdata.MetricEntity.Units;
+import com.eucalyptus.cloudwatch.domain.metricdata.MetricRollupEntity.Resolution;
+
+public class MetricRollupSeriesTest {
+
+  private static final double TOLERANCE = 0.000000001;
+  private static final long DAY = 24 * 60 * 60 * 1000L;
+  private static final long START = 1000 * DAY;
+
+  private static MetricRollupSeries series(long latest) {
+    return new MetricRollupSeries("account1", MetricType.Custom, "namespace1", "metric1", "0123", latest);
+  }
+
+  @Test
+  public void testRollupsMatchSamples() {
+    MetricRollupSeries series = series(START + DAY);
+    Random random = new Random(7);
+    double[] sum = new double[24];
+    double[] max = new double[24];
+    double[] min = new double[24];
+    double[] size = new double[24];
+    for (int minute = 0; minute < 24 * 60; minute++) {
+      if (random.nextInt(4) == 0) continue;
+      double value = random.nextDouble() * 100;
+      int hour = minute / 60;
+      series.add(Units.Percent, START + minute * 60000L, 1.0, value, value, value);
+      max[hour] = size[hour] == 0 ? value : Math.max(max[hour], value);
+      min[hour] = size[hour] == 0 ? value : Math.min(min[hour], value);
+      sum[hour] += value;
+      size[hour] += 1.0;
+    }
+    List<MetricRollupEntity> rollups = new ArrayList<MetricRollupEntity>();
+    assertTrue(series.collect(Resolution.OneHour, null, START, START + DAY, rollups));
+    assertEquals(24, rollups.size());
+    for (MetricRollupEntity rollup : rollups) {
+      int hour = (int) ((rollup.getTimestamp().getTime() - START) / (60 * 60000L));
+      assertEquals(Resolution.OneHour, rollup.getResolution());
+      assertEquals(Units.Percent, rollup.getUnits());
+      assertEquals(size[hour], rollup.getSampleSize(), TOLERANCE);
+      assertEquals(sum[hour], rollup.getSampleSum(), TOLERANCE);
+      assertEquals(max[hour], rollup.getSampleMax(), TOLERANCE);
+      assertEquals(min[hour], rollup.getSampleMin(), TOLERANCE);
+    }
+    rollups.clear();
+    assertTrue(series.collect(Resolution.OneDay, null, START, START + DAY, rollups));
+    assertEquals(1, rollups.size());
+    double total = 0;
+    for (double hourSum : sum) total += hourSum;
+    assertEquals(total, rollups.get(0).getSampleSum(), TOLERANCE);
+  }
+
+  @Test
+  public void testUnitsAndEmptySamples() {
+    MetricRollupSeries series = series(START);
+    series.add(Units.Count, START, 0.0, 0.0, 0.0, 0.0);
+    series.add(Units.Bytes, START + 60000L, 2.0, 5.0, 1.0, 6.0);
+    List<MetricRollupEntity> rollups = new ArrayList<MetricRollupEntity>();
+    assertTrue(series.collect(Resolution.FiveMinutes, null, START, START + 300000L, rollups));
+    assertEquals(2, rollups.size());
+    rollups.clear();
+    assertTrue(series.collect(Resolution.FiveMinutes, Units.Count, START, START + 300000L, rollups));
+    assertEquals(1, rollups.size());
+    assertEquals(0.0, rollups.get(0).getSampleSize(), TOLERANCE);
+  }
+
+  @Test
+  public void testWindow() {
+    MetricRollupSeries series = series(START);
+    series.add(Units.None, START - 60000L, 1.0, 1.0, 1.0, 1.0);
+    List<MetricRollupEntity> rollups = new ArrayList<MetricRollupEntity>();
+    assertTrue(series.collect(Resolution.FiveMinutes, null, START - DAY + 300000L, START, rollups));
+    assertEquals(1, rollups.size());
+    assertFalse(series.collect(Resolution.FiveMinutes, null, START - DAY, START, rollups));
+
+    // newer data moves the window and clears buckets that fall out of it
+    series.add(Units.None, START + DAY, 1.0, 1.0, 1.0, 1.0);
+    rollups.clear();
+    assertFalse(series.collect(Resolution.FiveMinutes, null, START - 300000L, START, rollups));
+    assertTrue(series.collect(Resolution.FiveMinutes, null, START + 300000L, START + DAY + 300000L, rollups));
+    assertEquals(1, rollups.size());
+    rollups.clear();
+    assertTrue(series.collect(Resolution.OneHour, null, START - DAY, START + DAY + 3600000L, rollups));
+    assertEquals(2, rollups.size());
+
+    // resolutions have separate windows, this is only too old for five minute rollups
+    series.add(Units.None, START - 60000L, 1.0, 1.0, 1.0, 1.0);
+    rollups.clear();
+    assertTrue(series.collect(Resolution.OneHour, null, START - DAY, START + DAY + 3600000L, rollups));
+    assertEquals(2, rollups.size());
+    assertEquals(2.0, rollups.get(0).getSampleSum(), TOLERANCE);
+  }
+}
@@ -0,0 +1,88 @@
+/*************************************************************************
+ * Copyright 2009-2014 Eucalyptus Systems, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ *
+ * Please contact Eucalyptus Systems, Inc., 6755 Hollister Ave., Goleta
+ * CA 93117, USA or visit http://www.eucalyptus.com/licenses/ if you need
+ * additional information or have any questions.
+ ************************************************************************/
+package com.eucalyptus.cloudwatch.domain.metricdata;
+
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Ignore;
+
+import com.eucalyptus.cloudwatch.domain.DimensionEntity;
+import com.google.common.collect.Sets;
+
+/**
+ * Compares the rows stored per day for system metrics when metric data is
+ * stored for every subset of the dimensions and when it is stored once for
+ * the series with the series indexed by dimension.
+ */
+@Ignore("Manual development test")
+public class MetricStorageBenchmark {
+
+  private static final int INSTANCES = 1000;
+  private static final int VOLUMES = 2000;
+  private static final int INSTANCE_METRICS = 10;
+  private static final int VOLUME_METRICS = 8;
+  private static final int SAMPLES_PER_DAY = 24 * 60 / 5;
+  // 5 minute, hourly and daily buckets
+  private static final int ROLLUPS_PER_DAY = 288 + 24 + 1;
+
+  public static void main(String[] args) {
+    long[] instanceRows = rows(INSTANCES / 2, INSTANCE_METRICS,
+        "AutoScalingGroupName", "InstanceId", "ImageId", "InstanceType");
+    long[] scaledInstanceRows = rows(INSTANCES - INSTANCES / 2, INSTANCE_METRICS,
+        "InstanceId", "ImageId", "InstanceType");
+    long[] volumeRows = rows(VOLUMES, VOLUME_METRICS, "VolumeId");
+    System.out.println("series\tsubset rows/day\tseries rows/day\tsubset rollups/day\tseries rollups/day");
+    print("instances (asg)", instanceRows);
+    print("instances", scaledInstanceRows);
+    print("volumes", volumeRows);
+    long[] total = new long[4];
+    for (long[] counts : new long[][] { instanceRows, scaledInstanceRows, volumeRows }) {
+      for (int i = 0; i < total.length; i++) total[i] += counts[i];
+    }
+    print("total", total);
+  }
+
+  /**
+   * @return metric data and rollup rows per day stored by subset and by series
+   */
+  private static long[] rows(int resources, int metrics, String... dimensionNames) {
+    TreeSet<DimensionEntity> dimensions = new TreeSet<DimensionEntity>();
+    for (String name : dimensionNames) {
+      DimensionEntity dimension = new DimensionEntity();
+      dimension.setName(name);
+      dimension.setValue(name + "-value");
+      dimensions.add(dimension);
+    }
+    Set<Set<DimensionEntity>> subsets = Sets.powerSet(dimensions);
+    long series = (long) resources * metrics;
+    return new long[] {
+        series * subsets.size() * SAMPLES_PER_DAY,
+        // one metric data row per sample, the series row is updated daily
+        series * SAMPLES_PER_DAY + series,
+        series * subsets.size() * ROLLUPS_PER_DAY,
+        series * ROLLUPS_PER_DAY,
+    };
+  }
+
+  private static void print(String name, long[] counts) {
+    System.out.println(name + "\t" + counts[0] + "\t" + counts[1] + "\t" + counts[2] + "\t" + counts[3]);
+  }
+}
@@ -179,7 +179,7 @@ public class UnassignAddressCallback extends MessageCallback<UnassignAddressType
       }
       if ( this.system ) {
         try {
-          VmInstances.lookupByPublicIp( this.address.getDisplayName( ) );
+          VmInstances.lookupAddressByPublicIp( this.address.getDisplayName( ) );
         } catch ( NoSuchElementException ex ) {
           this.address.release( );
         }
@@ -63,6 +63,8 @@
 package com.eucalyptus.cluster.callback;
 
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.concurrent.CancellationException;
@@ -82,13 +84,13 @@ import com.eucalyptus.vm.VmInstance.VmState;
 import com.eucalyptus.vm.VmInstance.VmStateSet;
 import com.eucalyptus.vm.VmInstances;
 import com.eucalyptus.vm.VmInstances.TerminatedInstanceException;
-import com.eucalyptus.vmtypes.VmType;
-import com.eucalyptus.vmtypes.VmTypes;
 import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
 import com.google.common.base.Supplier;
 import com.google.common.base.Suppliers;
 import com.google.common.collect.Collections2;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import edu.ucsb.eucalyptus.cloud.VmDescribeResponseType;
 import edu.ucsb.eucalyptus.cloud.VmDescribeType;
@@ -97,7 +99,7 @@ import edu.ucsb.eucalyptus.msgs.VmTypeInfo;
 
 public class VmStateCallback extends StateUpdateMessageCallback<Cluster, VmDescribeType, VmDescribeResponseType> {
   private static Logger               LOG                       = Logger.getLogger( VmStateCallback.class );
-  private final Supplier<Set<String>> initialInstances;
+  private final Supplier<Map<String, VmStateReconciler.LocalState>> initialInstances;
   
   public VmStateCallback( ) {
     super( new VmDescribeType( ) {
@@ -105,7 +107,7 @@ public class VmStateCallback extends StateUpdateMessageCallback<Cluster, VmDescr
         regarding( );
       }
     } );
-    this.initialInstances = createInstanceSupplier( this, partitionFilter( this ) );
+    this.initialInstances = createInstanceStateSupplier( partitionFilter( this ) );
   }
   
   private static Supplier<Set<String>> createInstanceSupplier( final StateUpdateMessageCallback<Cluster, ?, ?> cb, final Predicate<VmInstance> filter ) {
@@ -128,6 +130,32 @@ public class VmStateCallback extends StateUpdateMessageCallback<Cluster, VmDescr
     } );
   }
   
+  /**
+   * Like {@link #createInstanceSupplier} but also captures the local state of each instance
+   * from the same load, so unchanged instances can be skipped without another lookup.
+   */
+  private static Supplier<Map<String, VmStateReconciler.LocalState>> createInstanceStateSupplier( final Predicate<VmInstance> filter ) {
+    return Suppliers.memoize( new Supplier<Map<String, VmStateReconciler.LocalState>>( ) {
+      
+      @Override
+      public Map<String, VmStateReconciler.LocalState> get( ) {
+        final EntityTransaction db = Entities.get( VmInstance.class );
+        try {
+          final Map<String, VmStateReconciler.LocalState> instances = Maps.newHashMap( );
+          for ( final VmInstance vm : Collections2.filter( VmInstances.list( ), filter ) ) {
+            instances.put( vm.getDisplayName( ), new VmStateReconciler.LocalState( vm ) );
+          }
+          return instances;
+        } catch ( Exception ex ) {
+          Logs.extreme( ).error( ex, ex );
+          return Maps.newHashMap( );
+        } finally {
+          db.rollback();
+        }
+      }
+    } );
+  }
+  
   /**
    * @see com.eucalyptus.cluster.callback.StateUpdateMessageCallback#fireException(com.eucalyptus.util.async.FailedRequestException)
    * @param t
@@ -142,49 +170,75 @@ public class VmStateCallback extends StateUpdateMessageCallback<Cluster, VmDescr
     if ( Databases.isVolatile( ) ) {
       return;
     } else {
-      reply.setOriginCluster( this.getSubject( ).getConfiguration( ).getName( ) );
+      final long start = System.nanoTime( );
+      final String clusterName = this.getSubject( ).getConfiguration( ).getName( );
+      reply.setOriginCluster( clusterName );
       final Set<String> reportedInstances = Sets.newHashSet( );
+      Map<String, String> typeIndex = null;
       for ( VmInfo vmInfo : reply.getVms( ) ) {
         reportedInstances.add( vmInfo.getInstanceId( ) );
-        vmInfo.setPlacement( this.getSubject( ).getConfiguration( ).getName( ) );
+        vmInfo.setPlacement( clusterName );
         VmTypeInfo typeInfo = vmInfo.getInstanceType( );
         if ( typeInfo.getName( ) == null || "".equals( typeInfo.getName( ) ) ) {
-          for ( VmType t : VmTypes.list( ) ) {
-            if ( t.getCpu( ).equals( typeInfo.getCores( ) ) && t.getDisk( ).equals( typeInfo.getDisk( ) ) && t.getMemory( ).equals( typeInfo.getMemory( ) ) ) {
-              typeInfo.setName( t.getName( ) );
-            }
+          if ( typeIndex == null ) {
+            typeIndex = VmStateReconciler.typeIndex( );
+          }
+          final String typeName = typeIndex.get( VmStateReconciler.typeKey( typeInfo ) );
+          if ( typeName != null ) {
+            typeInfo.setName( typeName );
           }
         }
       }
       
-      final Set<String> unreportedInstances = Sets.newHashSet( Sets.difference( this.initialInstances.get( ), reportedInstances ) );
-      final Set<String> restoreInstances = Sets.newHashSet( Sets.difference( reportedInstances, this.initialInstances.get( ) ) );
+      final Map<String, VmStateReconciler.LocalState> localStates = this.initialInstances.get( );
+      final Set<String> unreportedInstances = Sets.newHashSet( Sets.difference( localStates.keySet( ), reportedInstances ) );
+      final Set<String> restoreInstances = Sets.newHashSet( Sets.difference( reportedInstances, localStates.keySet( ) ) );
+      final VmStateReconciler reconciler = VmStateReconciler.forCluster( clusterName );
+      final boolean fullSync = reconciler.beginCycle( );
+      final List<VmInfo> changedInstances = Lists.newArrayList( );
+      int skipped = 0;
       for ( final VmInfo runVm : reply.getVms( ) ) {
         if ( Databases.isVolatile( ) ) {
           return;
-        } else if ( this.initialInstances.get( ).contains( runVm.getInstanceId( ) ) ) {
-          VmStateCallback.handleReportedState( runVm );
+        } else if ( localStates.containsKey( runVm.getInstanceId( ) ) ) {
+          if ( !fullSync && reconciler.isUnchanged( runVm, localStates.get( runVm.getInstanceId( ) ) ) ) {
+            skipped++;
+          } else {
+            changedInstances.add( runVm );
+          }
         } else if ( restoreInstances.contains( runVm.getInstanceId( ) ) ) {
           VmStateCallback.handleRestore( runVm );
         }
       }
-      for ( final String vmId : unreportedInstances ) {
-        if ( Databases.isVolatile( ) ) {
-          return;
-        } else {
-          VmStateCallback.handleUnreported( vmId );
+      reconciler.retain( reportedInstances );
+      for ( final VmInfo runVm : VmStateReconciler.applyEach( changedInstances, new VmStateReconciler.Handler<VmInfo>( ) {
+        @Override
+        public boolean handle( final VmInfo runVm ) {
+          return VmStateCallback.handleReportedState( runVm );
         }
+      } ) ) {
+        reconciler.reconciled( runVm, localStates.get( runVm.getInstanceId( ) ) );
       }
+      if ( Databases.isVolatile( ) ) {
+        return;
+      }
+      VmStateReconciler.applyEach( unreportedInstances, new VmStateReconciler.Handler<String>( ) {
+        @Override
+        public boolean handle( final String vmId ) {
+          return VmStateCallback.handleUnreported( vmId );
+        }
+      } );
+      VmStateReconciler.recordCycle( start, reply.getVms( ).size( ), changedInstances.size( ) + unreportedInstances.size( ), skipped );
     }
   }
   
-  private static void handleUnreported( final String vmId ) {
+  private static boolean handleUnreported( final String vmId ) {
     final EntityTransaction db1 = Entities.get( VmInstance.class );
     try {
       VmInstance vm = VmInstances.cachedLookup( vmId );
       if ( VmState.PENDING.apply( vm ) && vm.lastUpdateMillis( ) < ( VmInstances.VM_INITIAL_REPORT_TIMEOUT * 1000 ) ) {
         //do nothing during first VM_INITIAL_REPORT_TIMEOUT millis of instance life
-        return;
+        return true;
       } else if ( vm.isBlockStorage( ) && VmInstances.Timeout.UNREPORTED.apply( vm ) ) {
         VmInstances.stopped( vm );
       } else if ( VmState.STOPPING.apply( vm ) ) {
@@ -200,17 +254,19 @@ public class VmStateCallback extends StateUpdateMessageCallback<Cluster, VmDescr
       } else if ( VmInstances.Timeout.UNREPORTED.apply( vm ) ) {
         VmInstances.terminated( vm );
       } else {
-        return;
+        return true;
       }
       Entities.commit( db1 );
+      return true;
     } catch ( final Exception ex ) {
       Logs.extreme( ).error( ex, ex );
+      return false;
     } finally {
       if ( db1.isActive() ) db1.rollback();
     }
   }
   
-  private static void handleReportedState( final VmInfo runVm ) {
+  private static boolean handleReportedState( final VmInfo runVm ) {
     final VmState runVmState = VmState.Mapper.get( runVm.getStateName( ) );
     try {
       final EntityTransaction db = Entities.get( VmInstance.class );
@@ -225,7 +281,7 @@ public class VmStateCallback extends StateUpdateMessageCallback<Cluster, VmDescr
           } else {
             LOG.trace( "Ignore state update to terminated instance: " + runVm.getInstanceId( ) );
           }
-          return;
+          return true;
         }
 
         if ( VmInstances.Timeout.EXPIRED.apply( vm ) ) {
@@ -237,16 +293,17 @@ public class VmStateCallback extends StateUpdateMessageCallback<Cluster, VmDescr
         } else if ( VmState.SHUTTING_DOWN.equals( runVmState ) ) {
           db.rollback();
           VmStateCallback.handleReportedTeardown( vm, runVm );
-          return;
+          return true;
         } else if ( VmStateSet.RUN.apply( vm ) ) {
           vm.doUpdate( ).apply( runVm );
         } else if ( !VmStateSet.RUN.apply( vm ) && VmStateSet.RUN.contains( runVmState )
                     && vm.lastUpdateMillis( ) > ( VmInstances.VOLATILE_STATE_TIMEOUT_SEC * 1000l ) ) {
           vm.doUpdate( ).apply( runVm );
         } else {
-          return;
+          return true;
         }
         Entities.commit( db );
+        return true;
       } catch ( Exception ex ) {
         LOG.error( ex );
         Logs.extreme( ).error( ex, ex );
@@ -256,11 +313,14 @@ public class VmStateCallback extends StateUpdateMessageCallback<Cluster, VmDescr
       }
     } catch ( TerminatedInstanceException ex1 ) {
       LOG.trace( "Ignore state update to terminated instance: " + runVm.getInstanceId( ) );
+      return true;
     } catch ( NoSuchElementException ex1 ) {
 //      VmStateCallback.handleRestore( runVm );
+      return false;
     } catch ( Exception ex1 ) {
       LOG.error( ex1 );
       Logs.extreme( ).error( ex1, ex1 );
+      return false;
     }
   }
   
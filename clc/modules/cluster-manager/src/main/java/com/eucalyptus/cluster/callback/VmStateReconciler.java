@@ -0,0 +1,292 @@
+/*************************************************************************
+ * Copyright 2009-2014 Eucalyptus Systems, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ *
+ * Please contact Eucalyptus Systems, Inc., 6755 Hollister Ave., Goleta
+ * CA 93117, USA or visit http://www.eucalyptus.com/licenses/ if you need
+ * additional information or have any questions.
+ ************************************************************************/
+package com.eucalyptus.cluster.callback;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+import com.eucalyptus.records.Logs;
+import com.eucalyptus.util.Mbeans;
+import com.eucalyptus.vm.VmInstance;
+import com.eucalyptus.vm.VmInstance.VmState;
+import com.eucalyptus.vm.VmInstances;
+import com.eucalyptus.vmtypes.VmType;
+import com.eucalyptus.vmtypes.VmTypes;
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import edu.ucsb.eucalyptus.cloud.VmInfo;
+import edu.ucsb.eucalyptus.msgs.AttachedVolume;
+import edu.ucsb.eucalyptus.msgs.VmTypeInfo;
+
+/**
+ * Tracks the last reconciled state of each reported instance for a cluster so that
+ * {@link VmStateCallback} only touches instances whose reported or local state changed.
+ *
+ * An instance is skipped when the cluster reports the same state it reported when the
+ * instance was last reconciled, and the local state is still the same steady running
+ * state. An unchanged instance is still reconciled once its last update is older than
+ * {@link VmInstances#VM_STATE_REFRESH_INTERVAL} so that the update timestamp used for the
+ * unreported timeouts stays current. Every {@link VmInstances#VM_STATE_FULL_SYNC_INTERVAL}
+ * polls all instances are reconciled regardless.
+ */
+class VmStateReconciler {
+  private static final Logger                                 LOG        = Logger.getLogger( VmStateReconciler.class );
+  private static final ConcurrentMap<String, VmStateReconciler> reconcilers = Maps.newConcurrentMap( );
+  private static final ReconcileStatistics                    statistics = new ReconcileStatistics( );
+  private static final AtomicBoolean                          registered = new AtomicBoolean( false );
+  
+  private final ConcurrentMap<String, Reconciled> reconciled = Maps.newConcurrentMap( );
+  private final AtomicInteger                     cycle      = new AtomicInteger( );
+  
+  /**
+   * State of an instance as loaded when the poll was issued.
+   */
+  static class LocalState {
+    private final VmState state;
+    private final boolean steady;
+    private final long    lastUpdateMillis;
+    
+    LocalState( final VmInstance vm ) {
+      this.state = vm.getState( );
+      this.steady = VmState.RUNNING.apply( vm ) && !VmInstances.Timeout.EXPIRED.apply( vm );
+      this.lastUpdateMillis = vm.lastUpdateMillis( );
+    }
+  }
+  
+  private static class Reconciled {
+    private final String  fingerprint;
+    private final VmState state;
+    
+    private Reconciled( final String fingerprint, final VmState state ) {
+      this.fingerprint = fingerprint;
+      this.state = state;
+    }
+  }
+  
+  interface Handler<T> {
+    /**
+     * Apply the update for the item in its own transaction.
+     * 
+     * @return true if the item is now consistent with the reported state
+     */
+    boolean handle( T item );
+  }
+  
+  static VmStateReconciler forCluster( final String clusterName ) {
+    if ( registered.compareAndSet( false, true ) ) {
+      Mbeans.register( statistics );
+    }
+    VmStateReconciler reconciler = reconcilers.get( clusterName );
+    if ( reconciler == null ) {
+      reconcilers.putIfAbsent( clusterName, new VmStateReconciler( ) );
+      reconciler = reconcilers.get( clusterName );
+    }
+    return reconciler;
+  }
+  
+  static ReconcileStatistics statistics( ) {
+    return statistics;
+  }
+  
+  /**
+   * Starts a reconciliation cycle, returning true if every instance should be reconciled.
+   */
+  boolean beginCycle( ) {
+    final int interval = VmInstances.VM_STATE_FULL_SYNC_INTERVAL == null ? 0 : VmInstances.VM_STATE_FULL_SYNC_INTERVAL;
+    return interval <= 1 || ( this.cycle.getAndIncrement( ) % interval ) == 0;
+  }
+  
+  boolean isUnchanged( final VmInfo runVm, final LocalState local ) {
+    final Reconciled last = this.reconciled.get( runVm.getInstanceId( ) );
+    return last != null
+           && local != null
+           && local.steady
+           && local.lastUpdateMillis < refreshIntervalMillis( )
+           && VmState.RUNNING.equals( VmState.Mapper.get( runVm.getStateName( ) ) )
+           && last.state == local.state
+           && last.fingerprint.equals( fingerprint( runVm ) );
+  }
+  
+  private static long refreshIntervalMillis( ) {
+    final Integer interval = VmInstances.VM_STATE_REFRESH_INTERVAL;
+    return interval == null ? 0L : TimeUnit.SECONDS.toMillis( interval );
+  }
+  
+  void reconciled( final VmInfo runVm, final LocalState local ) {
+    if ( local != null ) {
+      this.reconciled.put( runVm.getInstanceId( ), new Reconciled( fingerprint( runVm ), local.state ) );
+    }
+  }
+  
+  /**
+   * Discard tracked state for instances no longer reported.
+   */
+  void retain( final Set<String> reportedInstances ) {
+    this.reconciled.keySet( ).retainAll( reportedInstances );
+  }
+  
+  /**
+   * Applies the handler to each item. Each item is committed separately so a failure only
+   * affects the instance that caused it.
+   * 
+   * @return the items that were applied
+   */
+  static <T> List<T> applyEach( final Collection<T> items, final Handler<T> handler ) {
+    final List<T> applied = Lists.newArrayList( );
+    for ( final T item : items ) {
+      try {
+        if ( handler.handle( item ) ) {
+          applied.add( item );
+        } else {
+          statistics.failures.incrementAndGet( );
+        }
+      } catch ( final Exception ex ) {
+        statistics.failures.incrementAndGet( );
+        Logs.extreme( ).error( ex, ex );
+      }
+    }
+    return applied;
+  }
+  
+  /**
+   * Index of instance type names by cpu, memory and disk. Where several types match the
+   * last listed wins, as with the previous linear scan.
+   */
+  static Map<String, String> typeIndex( ) {
+    final Map<String, String> index = Maps.newHashMap( );
+    for ( final VmType t : VmTypes.list( ) ) {
+      index.put( typeKey( t.getCpu( ), t.getMemory( ), t.getDisk( ) ), t.getName( ) );
+    }
+    return index;
+  }
+  
+  static String typeKey( final VmTypeInfo typeInfo ) {
+    return typeKey( typeInfo.getCores( ), typeInfo.getMemory( ), typeInfo.getDisk( ) );
+  }
+  
+  private static String typeKey( final Integer cpu, final Integer memory, final Integer disk ) {
+    return cpu + "/" + memory + "/" + disk;
+  }
+  
+  /**
+   * The reported values consumed when updating an instance. Volume attach times are not
+   * included as they are not reliably reported.
+   */
+  private static String fingerprint( final VmInfo runVm ) {
+    final StringBuilder sb = new StringBuilder( 256 );
+    Joiner.on( '|' ).useForNull( "" ).appendTo( sb,
+      runVm.getStateName( ),
+      runVm.getBundleTaskStateName( ),
+      runVm.getServiceTag( ),
+      runVm.getNetParams( ) == null ? null : runVm.getNetParams( ).getIpAddress( ),
+      runVm.getNetParams( ) == null ? null : runVm.getNetParams( ).getIgnoredPublicIp( ),
+      runVm.getGuestStateName( ),
+      runVm.getBlockBytes( ),
+      runVm.getNetworkBytes( ),
+      runVm.getMigrationStateName( ),
+      runVm.getMigrationSource( ),
+      runVm.getMigrationDestination( ) );
+    if ( runVm.getVolumes( ) != null ) {
+      for ( final AttachedVolume volume : runVm.getVolumes( ) ) {
+        Joiner.on( ',' ).useForNull( "" ).appendTo( sb.append( '|' ),
+          volume.getVolumeId( ),
+          volume.getStatus( ),
+          volume.getDevice( ),
+          volume.getRemoteDevice( ) );
+      }
+    }
+    return sb.toString( );
+  }
+  
+  static void recordCycle( final long startNanos, final int reported, final int changed, final int skipped ) {
+    final long micros = ( System.nanoTime( ) - startNanos ) / 1000;
+    statistics.cycles.incrementAndGet( );
+    statistics.totalMicros.addAndGet( micros );
+    statistics.lastCycleMicros.set( micros );
+    statistics.lastReported.set( reported );
+    statistics.lastChanged.set( changed );
+    statistics.lastSkipped.set( skipped );
+    statistics.totalChanged.addAndGet( changed );
+    statistics.totalSkipped.addAndGet( skipped );
+  }
+  
+  public static class ReconcileStatistics {
+    private final AtomicLong cycles          = new AtomicLong( );
+    private final AtomicLong totalMicros     = new AtomicLong( );
+    private final AtomicLong lastCycleMicros = new AtomicLong( );
+    private final AtomicLong lastReported    = new AtomicLong( );
+    private final AtomicLong lastChanged     = new AtomicLong( );
+    private final AtomicLong lastSkipped     = new AtomicLong( );
+    private final AtomicLong totalChanged    = new AtomicLong( );
+    private final AtomicLong totalSkipped    = new AtomicLong( );
+    private final AtomicLong failures        = new AtomicLong( );
+    
+    public long getCycles( ) {
+      return this.cycles.get( );
+    }
+    
+    public long getAverageCycleMicros( ) {
+      final long count = this.cycles.get( );
+      return count == 0 ? 0 : this.totalMicros.get( ) / count;
+    }
+    
+    public long getLastCycleMicros( ) {
+      return this.lastCycleMicros.get( );
+    }
+    
+    public long getLastReported( ) {
+      return this.lastReported.get( );
+    }
+    
+    public long getLastChanged( ) {
+      return this.lastChanged.get( );
+    }
+    
+    public long getLastSkipped( ) {
+      return this.lastSkipped.get( );
+    }
+    
+    public long getTotalChanged( ) {
+      return this.totalChanged.get( );
+    }
+    
+    public long getTotalSkipped( ) {
+      return this.totalSkipped.get( );
+    }
+    
+    public long getFailures( ) {
+      return this.failures.get( );
+    }
+    
+    @Override
+    public String toString( ) {
+      return "VmStateReconciler:cycles=" + getCycles( ) + ":avgMicros=" + getAverageCycleMicros( ) + ":lastMicros=" + getLastCycleMicros( )
+             + ":lastReported=" + getLastReported( ) + ":lastChanged=" + getLastChanged( ) + ":lastSkipped=" + getLastSkipped( );
+    }
+  }
+}
@@ -0,0 +1,148 @@
+/*************************************************************************
+ * Copyright 2009-2014 Eucalyptus Systems, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ *
+ * Please contact Eucalyptus Systems, Inc., 6755 Hollister Ave., Goleta
+ * CA 93117, USA or visit http://www.eucalyptus.com/licenses/ if you need
+ * additional information or have any questions.
+ ************************************************************************/
+package com.eucalyptus.network;
+
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import com.google.common.collect.Maps;
+
+/**
+ * Allocator for a range of network tags or indexes.
+ *
+ * <p>Used values are tracked in a bitmap that is loaded from the database when
+ * first needed and again after a {@link #reset()}, when the range changes or
+ * when the range appears to be full. Values are handed out from a rotating
+ * cursor so allocation is amortized constant time and recently freed values
+ * are not immediately reused.</p>
+ *
+ * <p>Values allocated by transactions that have not completed are kept when the
+ * bitmap is reloaded, so concurrent allocations do not collide.</p>
+ */
+class BitmapAllocator {
+  private static final long     PENDING_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis( 1 );
+
+  private final Map<Long, Long> pending                = Maps.newHashMap( );
+  private BitSet                used;
+  private long                  min;
+  private long                  max;
+  private int                   cursor;
+
+  /**
+   * Allocate a value in the range [min, max).
+   *
+   * @param usedValues Callable for the values currently in use, called when the bitmap is loaded
+   * @return The allocated value or null if all values are in use
+   */
+  synchronized Long allocate( final long min,
+                              final long max,
+                              final Callable<? extends Iterable<? extends Number>> usedValues ) throws Exception {
+    boolean loaded = false;
+    if ( this.used == null || this.min != min || this.max != max ) {
+      this.load( min, max, usedValues.call( ) );
+      loaded = true;
+    }
+    Long value = this.next( );
+    if ( value == null && !loaded ) {
+      this.load( min, max, usedValues.call( ) );
+      value = this.next( );
+    }
+    if ( value != null ) {
+      this.pending.put( value, System.currentTimeMillis( ) );
+    }
+    return value;
+  }
+
+  /**
+   * Record a value allocated without using this allocator.
+   */
+  synchronized void allocated( final long value ) {
+    if ( this.used != null && this.inRange( value ) ) {
+      this.used.set( this.bit( value ) );
+    }
+  }
+
+  /**
+   * Record the completion of the transaction for an allocated value, the value
+   * is freed if the transaction did not commit.
+   */
+  synchronized void completed( final long value, final boolean committed ) {
+    this.pending.remove( value );
+    if ( !committed && this.used != null && this.inRange( value ) ) {
+      this.used.clear( this.bit( value ) );
+    }
+  }
+
+  /**
+   * Discard the bitmap so it is reloaded on the next allocation.
+   */
+  synchronized void reset( ) {
+    this.used = null;
+  }
+
+  private void load( final long min, final long max, final Iterable<? extends Number> usedValues ) {
+    this.min = min;
+    this.max = max;
+    this.used = new BitSet( this.size( ) );
+    this.cursor = Math.min( this.cursor, this.size( ) );
+    for ( final Number value : usedValues ) {
+      if ( value != null && this.inRange( value.longValue( ) ) ) {
+        this.used.set( this.bit( value.longValue( ) ) );
+      }
+    }
+    final long expiry = System.currentTimeMillis( ) - PENDING_TIMEOUT_MILLIS;
+    for ( final Iterator<Map.Entry<Long, Long>> it = this.pending.entrySet( ).iterator( ); it.hasNext( ); ) {
+      final Map.Entry<Long, Long> entry = it.next( );
+      if ( entry.getValue( ) < expiry ) {
+        it.remove( );
+      } else if ( this.inRange( entry.getKey( ) ) ) {
+        this.used.set( this.bit( entry.getKey( ) ) );
+      }
+    }
+  }
+
+  private Long next( ) {
+    int bit = this.used.nextClearBit( this.cursor );
+    if ( bit >= this.size( ) ) {
+      bit = this.used.nextClearBit( 0 );
+    }
+    if ( bit >= this.size( ) ) {
+      return null;
+    } else {
+      this.used.set( bit );
+      this.cursor = bit + 1;
+      return this.min + bit;
+    }
+  }
+
+  private int size( ) {
+    return ( int ) Math.max( 0L, this.max - this.min );
+  }
+
+  private boolean inRange( final long value ) {
+    return value >= this.min && value < this.max;
+  }
+
+  private int bit( final long value ) {
+    return ( int ) ( value - this.min );
+  }
+}
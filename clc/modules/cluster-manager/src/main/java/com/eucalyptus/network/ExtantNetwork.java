@@ -62,13 +62,12 @@
 
 package com.eucalyptus.network;
 
-import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import javax.persistence.CascadeType;
 import javax.persistence.Column;
@@ -80,12 +79,15 @@ import javax.persistence.OneToMany;
 import javax.persistence.OneToOne;
 import javax.persistence.PersistenceContext;
 import javax.persistence.Table;
+import javax.transaction.Status;
 import javax.transaction.Synchronization;
 import org.apache.log4j.Logger;
 import org.hibernate.annotations.Cache;
 import org.hibernate.annotations.CacheConcurrencyStrategy;
 import org.hibernate.annotations.NotFound;
 import org.hibernate.annotations.NotFoundAction;
+import org.hibernate.criterion.Projections;
+import org.hibernate.criterion.Restrictions;
 import com.eucalyptus.cloud.util.Reference;
 import com.eucalyptus.cloud.util.ResourceAllocationException;
 import com.eucalyptus.component.ComponentIds;
@@ -100,8 +102,7 @@ import com.eucalyptus.entities.UserMetadata;
 import com.eucalyptus.records.Logs;
 import com.eucalyptus.util.FullName;
 import com.eucalyptus.util.HasFullName;
-import com.eucalyptus.util.Numbers;
-import com.google.common.collect.Lists;
+import com.google.common.base.Objects;
 import com.google.common.collect.Maps;
 
 @Entity
@@ -111,7 +112,7 @@ import com.google.common.collect.Maps;
 public class ExtantNetwork extends UserMetadata<Reference.State> {
   private static final long                     serialVersionUID = 1L;
   private static final Logger                   LOG              = Logger.getLogger( ExtantNetwork.class );
-  private static final ConcurrentMap<NetworkIndexKey,Long> inFlightNetworkIndexes = Maps.newConcurrentMap();
+  private static final ConcurrentMap<Integer,BitmapAllocator> networkIndexAllocators = Maps.newConcurrentMap();
 
 
   @Column( name = "metadata_extant_network_tag", unique = true )
@@ -191,6 +192,7 @@ public class ExtantNetwork extends UserMetadata<Reference.State> {
       try {
         return Entities.uniqueResult( PrivateNetworkIndex.named( this, idx ) );
       } catch ( final Exception ex ) {
+        networkIndexAllocator( this.getTag( ) ).allocated( idx );
         return Entities.persist( PrivateNetworkIndex.create( this, idx ) ).allocate( );
       }
     }
@@ -208,29 +210,24 @@ public class ExtantNetwork extends UserMetadata<Reference.State> {
     } else {
       final EntityTransaction db = Entities.get( PrivateNetworkIndex.class );
       try {
-        final List<Long> networkIndexHolder = Lists.newArrayList();
+        final BitmapAllocator allocator = networkIndexAllocator( this.getTag( ) );
+        final Long i = allocator.allocate(
+            NetworkGroups.networkingConfiguration( ).getMinNetworkIndex( ),
+            NetworkGroups.networkingConfiguration( ).getMaxNetworkIndex( ),
+            usedNetworkIndexes( this.getTag( ) ) );
+        if ( i == null ) {
+          throw new NoSuchElementException( );
+        }
         Entities.registerSynchronization( ExtantNetwork.class, new Synchronization() {
           @Override public void beforeCompletion() { }
           @Override public void afterCompletion( final int status ) {
-            clearInFlight( networkIndexHolder );
+            allocator.completed( i, status == Status.STATUS_COMMITTED );
           }
         } );
-        for ( final Long i : Numbers.shuffled( NetworkGroups.networkIndexInterval() ) ) {
-          try {
-            Entities.uniqueResult( PrivateNetworkIndex.named( this, i ) );
-          } catch ( final NoSuchElementException ex ) {
-            if ( ifNotInFlight( i ) ) try {
-              networkIndexHolder.add( i );
-              PrivateNetworkIndex netIdx = Entities.persist( PrivateNetworkIndex.create( this, i ) );
-              PrivateNetworkIndex ref = netIdx.allocate( );
-              db.commit( );
-              return ref;
-            } catch ( final Exception ex1 ) {
-              Logs.exhaust().debug( ex1 );
-            }
-          }
-        }
-        throw new NoSuchElementException( );
+        PrivateNetworkIndex netIdx = Entities.persist( PrivateNetworkIndex.create( this, i ) );
+        PrivateNetworkIndex ref = netIdx.allocate( );
+        db.commit( );
+        return ref;
       } catch ( Exception ex ) {
         Logs.exhaust( ).error( ex, ex );
         db.rollback( );
@@ -239,20 +236,37 @@ public class ExtantNetwork extends UserMetadata<Reference.State> {
     }
   }
 
-  private void clearInFlight( final Collection<Long> indexes ) {
-    for ( final Long index: indexes ) {
-      final NetworkIndexKey key = new NetworkIndexKey( getTag(), index );
-      inFlightNetworkIndexes.remove( key );
+  /**
+   * Discard the cached network index bitmaps so they are reloaded from the
+   * database on next use.
+   */
+  static void resetNetworkIndexAllocators( ) {
+    for ( final BitmapAllocator allocator : networkIndexAllocators.values( ) ) {
+      allocator.reset( );
     }
   }
 
-  private boolean ifNotInFlight( final Long index ) {
-    final NetworkIndexKey key = new NetworkIndexKey( getTag(), index );
-    final Long reservedTime = inFlightNetworkIndexes.putIfAbsent( key, System.currentTimeMillis() );
-    return
-        reservedTime == null ||
-            ( reservedTime + TimeUnit.MINUTES.toMillis( 1 ) < System.currentTimeMillis() &&
-              inFlightNetworkIndexes.replace( key, reservedTime, System.currentTimeMillis() ) );
+  private static BitmapAllocator networkIndexAllocator( final Integer tag ) {
+    BitmapAllocator allocator = networkIndexAllocators.get( tag );
+    if ( allocator == null ) {
+      final BitmapAllocator newAllocator = new BitmapAllocator( );
+      allocator = Objects.firstNonNull( networkIndexAllocators.putIfAbsent( tag, newAllocator ), newAllocator );
+    }
+    return allocator;
+  }
+
+  private static Callable<List<Long>> usedNetworkIndexes( final Integer tag ) {
+    return new Callable<List<Long>>( ) {
+      @SuppressWarnings( "unchecked" )
+      @Override
+      public List<Long> call( ) {
+        return ( List<Long> ) Entities.createCriteria( PrivateNetworkIndex.class )
+            .add( Restrictions.like( "bogusId", tag + ":%" ) )
+            .setProjection( Projections.property( "index" ) )
+            .setCacheable( false )
+            .list( );
+      }
+    };
   }
 
   public NetworkGroup getNetworkGroup( ) {
@@ -373,36 +387,4 @@ public class ExtantNetwork extends UserMetadata<Reference.State> {
     return true;
   }
 
-  private static final class NetworkIndexKey {
-    private Integer tag;
-    private Long index;
-
-    private NetworkIndexKey( final Integer tag,
-                             final Long index ) {
-      this.tag = tag;
-      this.index = index;
-    }
-
-    @SuppressWarnings( "RedundantIfStatement" )
-    @Override
-    public boolean equals( final Object o ) {
-      if ( this == o ) return true;
-      if ( o == null || getClass() != o.getClass() ) return false;
-
-      final NetworkIndexKey that = (NetworkIndexKey) o;
-
-      if ( index != null ? !index.equals( that.index ) : that.index != null ) return false;
-      if ( tag != null ? !tag.equals( that.tag ) : that.tag != null ) return false;
-
-      return true;
-    }
-
-    @Override
-    public int hashCode() {
-      int result = tag != null ? tag.hashCode() : 0;
-      result = 31 * result + (index != null ? index.hashCode() : 0);
-      return result;
-    }
-  }
-
 }
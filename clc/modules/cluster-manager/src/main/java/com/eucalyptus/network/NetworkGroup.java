@@ -86,9 +86,12 @@ import javax.persistence.PreRemove;
 import javax.persistence.PreUpdate;
 import javax.persistence.Table;
 import javax.persistence.Transient;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
 import org.apache.log4j.Logger;
 import org.hibernate.annotations.Cache;
 import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.criterion.Projections;
 import com.eucalyptus.auth.Accounts;
 import com.eucalyptus.auth.DatabaseAuthProvider;
 import com.eucalyptus.auth.principal.AccountFullName;
@@ -104,7 +107,6 @@ import com.eucalyptus.entities.Entities;
 import com.eucalyptus.entities.TransientEntityException;
 import com.eucalyptus.util.Exceptions;
 import com.eucalyptus.util.FullName;
-import com.eucalyptus.util.Numbers;
 import com.eucalyptus.util.OwnerFullName;
 import com.eucalyptus.util.RestrictedTypes;
 import com.google.common.base.Function;
@@ -119,8 +121,9 @@ import groovy.sql.Sql;
 @Table( name = "metadata_network_group" )
 @Cache( usage = CacheConcurrencyStrategy.TRANSACTIONAL )
 public class NetworkGroup extends UserMetadata<NetworkGroup.State> implements NetworkGroupMetadata {
-  private static final long   serialVersionUID = 1L;
-  private static final Logger LOG              = Logger.getLogger( NetworkGroup.class );
+  private static final long            serialVersionUID    = 1L;
+  private static final Logger          LOG                 = Logger.getLogger( NetworkGroup.class );
+  private static final BitmapAllocator networkTagAllocator = new BitmapAllocator( );
   
   public enum State {
     DISABLED,
@@ -299,11 +302,58 @@ public class NetworkGroup extends UserMetadata<NetworkGroup.State> implements Ne
     } else if ( !Entities.isPersistent( this ) ) {
       throw new TransientEntityException( this.toString( ) );
     } else {
+      networkTagAllocator.allocated( i );
       ExtantNetwork exNet = Entities.persist( ExtantNetwork.create( this, i ) );
       this.setExtantNetwork( exNet );
       return this.getExtantNetwork( );
     }
   }
+
+  /**
+   * Allocate a network tag, the tag is freed if the current transaction does
+   * not commit.
+   * 
+   * @return The tag or null if all tags are in use
+   */
+  private static Integer allocateNetworkTag( ) throws NotEnoughResourcesException {
+    final Long tag;
+    try {
+      tag = networkTagAllocator.allocate(
+          NetworkGroups.networkingConfiguration( ).getMinNetworkTag( ),
+          NetworkGroups.networkingConfiguration( ).getMaxNetworkTag( ),
+          new Callable<List<Integer>>( ) {
+            @SuppressWarnings( "unchecked" )
+            @Override
+            public List<Integer> call( ) {
+              return ( List<Integer> ) Entities.createCriteria( ExtantNetwork.class )
+                  .setProjection( Projections.property( "tag" ) )
+                  .setCacheable( false )
+                  .list( );
+            }
+          } );
+    } catch ( final Exception ex ) {
+      throw new NotEnoughResourcesException( "Failed to load allocated network tags: " + ex.getMessage( ), ex );
+    }
+    if ( tag != null ) {
+      Entities.registerSynchronization( NetworkGroup.class, new Synchronization( ) {
+        @Override public void beforeCompletion( ) { }
+        @Override public void afterCompletion( final int status ) {
+          networkTagAllocator.completed( tag, status == Status.STATUS_COMMITTED );
+        }
+      } );
+      return tag.intValue( );
+    } else {
+      return null;
+    }
+  }
+
+  /**
+   * Discard the cached network tag bitmap so it is reloaded from the database
+   * on next use.
+   */
+  static void resetNetworkTagAllocator( ) {
+    networkTagAllocator.reset( );
+  }
   
   public ExtantNetwork extantNetwork( ) throws NotEnoughResourcesException, TransientEntityException {
     if ( !NetworkGroups.networkingConfiguration( ).hasNetworking( ) ) {
@@ -316,18 +366,14 @@ public class NetworkGroup extends UserMetadata<NetworkGroup.State> implements Ne
     } else {
       ExtantNetwork exNet = this.getExtantNetwork( );
       if ( exNet == null ) {
-        for ( Integer i : Numbers.shuffled( NetworkGroups.networkTagInterval( ) ) ) {
-          try {
-            Entities.uniqueResult( ExtantNetwork.named( i ) );
-            continue;
-          } catch ( Exception ex ) {
-            exNet = ExtantNetwork.create( this, i );
-            Entities.persist( exNet );
-            this.setExtantNetwork( exNet );
-            return this.getExtantNetwork( );
-          }
+        final Integer i = allocateNetworkTag( );
+        if ( i == null ) {
+          throw new NotEnoughResourcesException( "Failed to allocate network tag for network: " + this.getFullName( ) + ": no network tags are free." );
         }
-        throw new NotEnoughResourcesException( "Failed to allocate network tag for network: " + this.getFullName( ) + ": no network tags are free." );
+        exNet = ExtantNetwork.create( this, i );
+        Entities.persist( exNet );
+        this.setExtantNetwork( exNet );
+        return this.getExtantNetwork( );
       } else {
         return this.getExtantNetwork( );
       }
@@ -340,6 +340,12 @@ public class NetworkGroups {
     } catch ( MetadataException ex ) {
       LOG.error( ex );
     }
+    /**
+     * Reload the tag and index bitmaps from the database on next use so they reflect any
+     * tags or indexes released above or elsewhere.
+     */
+    NetworkGroup.resetNetworkTagAllocator( );
+    ExtantNetwork.resetNetworkIndexAllocators( );
   }
 
   static NetworkRangeConfiguration netConfig = new NetworkRangeConfiguration( );
@@ -426,22 +432,6 @@ public class NetworkGroups {
     }
   }
   
-  public static List<Long> networkIndexInterval( ) {
-    final List<Long> interval = Lists.newArrayList( );
-    for ( Long i = NetworkGroups.networkingConfiguration( ).getMinNetworkIndex( ); i < NetworkGroups.networkingConfiguration( ).getMaxNetworkIndex( ); i++ ) {
-      interval.add( i );
-    }
-    return interval;
-  }
-  
-  public static List<Integer> networkTagInterval( ) {
-    final List<Integer> interval = Lists.newArrayList( );
-    for ( Integer i = NetworkGroups.networkingConfiguration( ).getMinNetworkTag( ); i < NetworkGroups.networkingConfiguration( ).getMaxNetworkTag( ); i++ ) {
-      interval.add( i );
-    }
-    return interval;
-  }
-  
   public static synchronized NetworkRangeConfiguration networkingConfiguration( ) {
     return netConfig;
   }
@@ -95,6 +95,9 @@ import javax.persistence.ManyToMany;
 import javax.persistence.OneToMany;
 import javax.persistence.OneToOne;
 import javax.persistence.PersistenceContext;
+import javax.persistence.PostPersist;
+import javax.persistence.PostRemove;
+import javax.persistence.PostUpdate;
 import javax.persistence.PreRemove;
 import javax.persistence.Table;
 import org.apache.log4j.Logger;
@@ -288,6 +291,17 @@ public class VmInstance extends UserMetadata<VmState> implements VmInstanceMetad
       LOG.error( ex, ex );
     }
   }
+  
+  @PostPersist
+  @PostUpdate
+  void updateAddressIndex( ) {
+    VmInstanceAddressIndex.update( this );
+  }
+  
+  @PostRemove
+  void removeFromAddressIndex( ) {
+    VmInstanceAddressIndex.remove( this );
+  }
 
   public enum Filters implements Predicate<VmInstance> {
     BUNDLING {
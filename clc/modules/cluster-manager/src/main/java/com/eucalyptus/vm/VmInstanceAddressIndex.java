@@ -0,0 +1,378 @@
+/*************************************************************************
+ * Copyright 2009-2014 Eucalyptus Systems, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ *
+ * Please contact Eucalyptus Systems, Inc., 6755 Hollister Ave., Goleta
+ * CA 93117, USA or visit http://www.eucalyptus.com/licenses/ if you need
+ * additional information or have any questions.
+ ************************************************************************/
+package com.eucalyptus.vm;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+import javax.persistence.EntityTransaction;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import org.apache.log4j.Logger;
+import org.hibernate.criterion.Restrictions;
+import com.eucalyptus.bootstrap.Bootstrap;
+import com.eucalyptus.bootstrap.Hosts;
+import com.eucalyptus.component.Topology;
+import com.eucalyptus.component.id.Eucalyptus;
+import com.eucalyptus.entities.Entities;
+import com.eucalyptus.event.ClockTick;
+import com.eucalyptus.event.EventListener;
+import com.eucalyptus.event.Listeners;
+import com.eucalyptus.system.Threads;
+import com.eucalyptus.util.Mbeans;
+import com.eucalyptus.vm.VmInstance.VmState;
+import com.google.common.base.Objects;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * In-memory index of the addresses and DNS names of pending and running instances.
+ *
+ * The index is maintained from the {@link VmInstance} persistence callbacks, with changes
+ * applied only once the flushing transaction commits, and is checked against the
+ * database every {@link VmInstances#VM_ADDRESS_INDEX_RECONCILE_INTERVAL} seconds to repair
+ * any drift (e.g. from bulk updates).
+ *
+ * Until the first reconciliation completes, and on hosts other than the coordinator (which
+ * do not see local persistence callbacks for every change), a miss in the index is not
+ * authoritative and callers fall back to the database.
+ */
+public class VmInstanceAddressIndex {
+  private static Logger                                     LOG         = Logger.getLogger( VmInstanceAddressIndex.class );
+  private static final ConcurrentMap<String, VmAddressView> byInstance  = Maps.newConcurrentMap( );
+  private static final ConcurrentMap<String, String>        byPublicIp  = Maps.newConcurrentMap( );
+  private static final ConcurrentMap<String, String>        byPrivateIp = Maps.newConcurrentMap( );
+  private static final AtomicBoolean                        primed      = new AtomicBoolean( false );
+  private static final AtomicBoolean                        registered  = new AtomicBoolean( false );
+  private static final IndexStatistics                      statistics  = new IndexStatistics( );
+  
+  /**
+   * Immutable view of the addressing information for an instance.
+   */
+  public static class VmAddressView {
+    private final String  instanceId;
+    private final VmState state;
+    private final String  privateAddress;
+    private final String  publicAddress;
+    private final String  privateDnsName;
+    private final String  publicDnsName;
+    private final long    timestamp;
+    
+    private VmAddressView( final VmInstance vm ) {
+      this.instanceId = vm.getInstanceId( );
+      this.state = vm.getState( );
+      this.privateAddress = vm.getPrivateAddress( );
+      this.publicAddress = vm.getPublicAddress( );
+      this.privateDnsName = vm.getPrivateDnsName( );
+      this.publicDnsName = vm.getPublicDnsName( );
+      this.timestamp = System.nanoTime( );
+    }
+    
+    private VmAddressView( final VmAddressView view ) {
+      this.instanceId = view.instanceId;
+      this.state = view.state;
+      this.privateAddress = view.privateAddress;
+      this.publicAddress = view.publicAddress;
+      this.privateDnsName = view.privateDnsName;
+      this.publicDnsName = view.publicDnsName;
+      this.timestamp = System.nanoTime( );
+    }
+    
+    public String getInstanceId( ) {
+      return this.instanceId;
+    }
+    
+    public VmState getState( ) {
+      return this.state;
+    }
+    
+    public String getPrivateAddress( ) {
+      return this.privateAddress;
+    }
+    
+    public String getPublicAddress( ) {
+      return this.publicAddress;
+    }
+    
+    public String getPrivateDnsName( ) {
+      return this.privateDnsName;
+    }
+    
+    public String getPublicDnsName( ) {
+      return this.publicDnsName;
+    }
+    
+    private boolean sameAs( final VmAddressView other ) {
+      return other != null
+             && this.state == other.state
+             && Objects.equal( this.privateAddress, other.privateAddress )
+             && Objects.equal( this.publicAddress, other.publicAddress )
+             && Objects.equal( this.privateDnsName, other.privateDnsName )
+             && Objects.equal( this.publicDnsName, other.publicDnsName );
+    }
+    
+    @Override
+    public String toString( ) {
+      return "VmAddressView:" + this.instanceId + ":" + this.state + ":" + this.privateAddress + ":" + this.publicAddress;
+    }
+  }
+  
+  public static VmAddressView view( final VmInstance vm ) {
+    return new VmAddressView( vm );
+  }
+  
+  /**
+   * True when a miss in the index can be trusted without consulting the database.
+   */
+  public static boolean isAuthoritative( ) {
+    return primed.get( ) && Hosts.isCoordinator( );
+  }
+  
+  @Nullable
+  public static VmAddressView lookupByPublicIp( final String ip ) {
+    return lookup( byPublicIp, ip, true );
+  }
+  
+  @Nullable
+  public static VmAddressView lookupByPrivateIp( final String ip ) {
+    return lookup( byPrivateIp, ip, false );
+  }
+  
+  @Nullable
+  public static VmAddressView lookupByInstanceId( final String instanceId ) {
+    return instanceId == null ? null : byInstance.get( instanceId );
+  }
+  
+  private static VmAddressView lookup( final Map<String, String> addressMap, final String ip, final boolean publicAddress ) {
+    final String instanceId = ip == null ? null : addressMap.get( ip );
+    final VmAddressView view = instanceId == null ? null : byInstance.get( instanceId );
+    if ( view != null && ip.equals( publicAddress ? view.publicAddress : view.privateAddress ) ) {
+      statistics.hits.incrementAndGet( );
+      return view;
+    } else {
+      statistics.misses.incrementAndGet( );
+      return null;
+    }
+  }
+  
+  /**
+   * Update the index for the flushed instance when the current transaction commits.
+   */
+  static void update( final VmInstance vm ) {
+    try {
+      if ( vm.getInstanceId( ) == null ) {
+        return;
+      } else if ( VmState.RUNNING.apply( vm ) || VmState.PENDING.apply( vm ) ) {
+        onCommit( vm.getInstanceId( ), new VmAddressView( vm ) );
+      } else {
+        onCommit( vm.getInstanceId( ), null );
+      }
+    } catch ( final Exception ex ) {
+      LOG.debug( "Failed to update address index for " + vm.getInstanceId( ) + ": " + ex.getMessage( ) );
+    }
+  }
+  
+  /**
+   * Remove the deleted instance from the index when the current transaction commits.
+   */
+  static void remove( final VmInstance vm ) {
+    try {
+      onCommit( vm.getInstanceId( ), null );
+    } catch ( final Exception ex ) {
+      LOG.debug( "Failed to remove " + vm.getInstanceId( ) + " from address index: " + ex.getMessage( ) );
+    }
+  }
+  
+  private static void onCommit( final String instanceId, @Nullable final VmAddressView view ) {
+    Entities.registerSynchronization( VmInstance.class, new Synchronization( ) {
+      @Override public void beforeCompletion( ) { }
+      @Override public void afterCompletion( final int status ) {
+        if ( status == Status.STATUS_COMMITTED ) {
+          if ( view != null ) {
+            put( new VmAddressView( view ) );
+          } else {
+            remove( instanceId );
+          }
+        }
+      }
+    } );
+  }
+  
+  private static void put( final VmAddressView view ) {
+    final VmAddressView previous = byInstance.put( view.instanceId, view );
+    if ( previous != null ) {
+      unmap( byPublicIp, previous.publicAddress, view.publicAddress, view.instanceId );
+      unmap( byPrivateIp, previous.privateAddress, view.privateAddress, view.instanceId );
+    }
+    map( byPublicIp, view.publicAddress, view.instanceId );
+    map( byPrivateIp, view.privateAddress, view.instanceId );
+  }
+  
+  private static void remove( final String instanceId ) {
+    if ( instanceId != null ) {
+      final VmAddressView previous = byInstance.remove( instanceId );
+      if ( previous != null ) {
+        unmap( byPublicIp, previous.publicAddress, null, instanceId );
+        unmap( byPrivateIp, previous.privateAddress, null, instanceId );
+      }
+    }
+  }
+  
+  private static void map( final ConcurrentMap<String, String> addressMap, final String address, final String instanceId ) {
+    if ( address != null && !VmNetworkConfig.DEFAULT_IP.equals( address ) && !address.isEmpty( ) ) {
+      addressMap.put( address, instanceId );
+    }
+  }
+  
+  private static void unmap( final ConcurrentMap<String, String> addressMap, final String address, final String current, final String instanceId ) {
+    if ( address != null && !address.equals( current ) ) {
+      addressMap.remove( address, instanceId );
+    }
+  }
+  
+  /**
+   * Compare the index with the pending and running instances in the database, repairing any
+   * entries which were not updated since the database was read.
+   */
+  static void reconcile( ) {
+    final long started = System.nanoTime( );
+    final Map<String, VmAddressView> persisted = Maps.newHashMap( );
+    final EntityTransaction db = Entities.get( VmInstance.class );
+    try {
+      @SuppressWarnings( "unchecked" )
+      final List<VmInstance> instances = ( List<VmInstance> ) Entities.createCriteria( VmInstance.class )
+                                                                      .add( Restrictions.in( "state", new VmState[] { VmState.RUNNING, VmState.PENDING } ) )
+                                                                      .setCacheable( false )
+                                                                      .list( );
+      for ( final VmInstance vm : instances ) {
+        persisted.put( vm.getInstanceId( ), new VmAddressView( vm ) );
+      }
+      db.commit( );
+    } catch ( final Exception ex ) {
+      LOG.error( "Failed to load instances for address index reconciliation: " + ex.getMessage( ) );
+      return;
+    } finally {
+      if ( db.isActive( ) ) db.rollback( );
+    }
+    long drift = 0;
+    for ( final VmAddressView view : persisted.values( ) ) {
+      final VmAddressView current = byInstance.get( view.instanceId );
+      if ( ( current == null || current.timestamp < started ) && !view.sameAs( current ) ) {
+        put( view );
+        drift++;
+      }
+    }
+    final Set<String> indexed = Sets.newHashSet( byInstance.keySet( ) );
+    for ( final String instanceId : Sets.difference( indexed, persisted.keySet( ) ) ) {
+      final VmAddressView current = byInstance.get( instanceId );
+      if ( current != null && current.timestamp < started ) {
+        remove( instanceId );
+        drift++;
+      }
+    }
+    if ( drift > 0 && primed.get( ) ) {
+      LOG.warn( "Repaired " + drift + " stale entries in instance address index" );
+    }
+    primed.set( true );
+    statistics.reconciliations.incrementAndGet( );
+    statistics.repaired.addAndGet( drift );
+    statistics.lastReconcileMillis.set( TimeUnit.NANOSECONDS.toMillis( System.nanoTime( ) - started ) );
+  }
+  
+  public static class IndexStatistics {
+    private final AtomicLong hits                = new AtomicLong( );
+    private final AtomicLong misses              = new AtomicLong( );
+    private final AtomicLong reconciliations     = new AtomicLong( );
+    private final AtomicLong repaired            = new AtomicLong( );
+    private final AtomicLong lastReconcileMillis = new AtomicLong( );
+    
+    public long getHits( ) {
+      return this.hits.get( );
+    }
+    
+    public long getMisses( ) {
+      return this.misses.get( );
+    }
+    
+    public long getReconciliations( ) {
+      return this.reconciliations.get( );
+    }
+    
+    public long getRepaired( ) {
+      return this.repaired.get( );
+    }
+    
+    public long getLastReconcileMillis( ) {
+      return this.lastReconcileMillis.get( );
+    }
+    
+    public int getIndexedInstances( ) {
+      return byInstance.size( );
+    }
+    
+    public boolean isPrimed( ) {
+      return primed.get( );
+    }
+  }
+  
+  public static class AddressIndexReconcileEventListener implements EventListener<ClockTick>, Callable<Boolean> {
+    private static final AtomicBoolean ready         = new AtomicBoolean( true );
+    private static final AtomicLong    lastReconcile = new AtomicLong( );
+    
+    public static void register( ) {
+      Listeners.register( ClockTick.class, new AddressIndexReconcileEventListener( ) );
+      if ( registered.compareAndSet( false, true ) ) {
+        Mbeans.register( statistics );
+      }
+    }
+    
+    @Override
+    public void fireEvent( final ClockTick event ) {
+      final long interval = TimeUnit.SECONDS.toMillis( Math.max( 1, VmInstances.VM_ADDRESS_INDEX_RECONCILE_INTERVAL ) );
+      if ( Bootstrap.isFinished( )
+           && Topology.isEnabledLocally( Eucalyptus.class )
+           && ( !primed.get( ) || System.currentTimeMillis( ) - lastReconcile.get( ) >= interval )
+           && ready.compareAndSet( true, false ) ) {
+        try {
+          Threads.enqueue( Eucalyptus.class, VmInstanceAddressIndex.class, this );
+        } catch ( final Exception ex ) {
+          ready.set( true );
+        }
+      }
+    }
+    
+    @Override
+    public Boolean call( ) throws Exception {
+      try {
+        reconcile( );
+      } finally {
+        lastReconcile.set( System.currentTimeMillis( ) );
+        ready.set( true );
+      }
+      return true;
+    }
+  }
+}
@@ -350,6 +350,15 @@ public class VmInstances {
   @ConfigurableField( description = "Amount of time (in seconds) since completion of the creating run instance operation that the new instance is treated as unreported if not... reported.",
                       initial = "300" )
   public static Integer   VM_INITIAL_REPORT_TIMEOUT     = 300;
+  @ConfigurableField( description = "Number of instance state polls between full reconciliations of every reported instance, 1 or less to reconcile every instance on each poll.",
+                      initial = "10" )
+  public static Integer   VM_STATE_FULL_SYNC_INTERVAL   = 10;
+  @ConfigurableField( description = "Amount of time (in seconds) after which an unchanged reported instance is reconciled to refresh its last update time.",
+                      initial = "60" )
+  public static Integer   VM_STATE_REFRESH_INTERVAL     = 60;
+  @ConfigurableField( description = "Period (in seconds) between checks of the in-memory instance address index against the database.",
+                      initial = "300" )
+  public static Integer   VM_ADDRESS_INDEX_RECONCILE_INTERVAL = 300;
   
   public static class SubdomainListener implements PropertyChangeListener {
     @Override
@@ -397,7 +406,66 @@ public class VmInstances {
     return vmId;
   }
   
+  /**
+   * Lookup the instance for an address using the in-memory index.
+   *
+   * @return The instance, or null if the address is not indexed or the indexed instance is no longer pending or running.
+   */
+  @Nullable
+  private static VmInstance lookupIndexed( @Nullable final VmInstanceAddressIndex.VmAddressView view ) {
+    if ( view != null ) try {
+      final VmInstance vm = VmInstance.Lookup.INSTANCE.apply( view.getInstanceId( ) );
+      if ( VmState.RUNNING.apply( vm ) || VmState.PENDING.apply( vm ) ) {
+        return vm;
+      }
+    } catch ( final NoSuchElementException ex ) {
+      Logs.exhaust( ).debug( ex );
+    }
+    return null;
+  }
+  
+  /**
+   * Lookup the address information for a pending or running instance by public address.
+   *
+   * Served from the in-memory index when it is authoritative, use {@link #lookupByPublicIp}
+   * when the instance itself is required.
+   */
+  public static VmInstanceAddressIndex.VmAddressView lookupAddressByPublicIp( final String ip ) throws NoSuchElementException {
+    if ( VmInstanceAddressIndex.isAuthoritative( ) ) {
+      final VmInstanceAddressIndex.VmAddressView view = VmInstanceAddressIndex.lookupByPublicIp( ip );
+      if ( view == null ) {
+        throw new NoSuchElementException( "VmInstance with public ip: " + ip );
+      }
+      return view;
+    } else {
+      return VmInstanceAddressIndex.view( lookupByPublicIp( ip ) );
+    }
+  }
+  
+  /**
+   * Lookup the address information for a pending or running instance by private address.
+   *
+   * @see #lookupAddressByPublicIp
+   */
+  public static VmInstanceAddressIndex.VmAddressView lookupAddressByPrivateIp( final String ip ) throws NoSuchElementException {
+    if ( VmInstanceAddressIndex.isAuthoritative( ) ) {
+      final VmInstanceAddressIndex.VmAddressView view = VmInstanceAddressIndex.lookupByPrivateIp( ip );
+      if ( view == null ) {
+        throw new NoSuchElementException( "VmInstance with private ip: " + ip );
+      }
+      return view;
+    } else {
+      return VmInstanceAddressIndex.view( lookupByPrivateIp( ip ) );
+    }
+  }
+  
   public static VmInstance lookupByPrivateIp( final String ip ) throws NoSuchElementException {
+    final VmInstance indexed = lookupIndexed( VmInstanceAddressIndex.lookupByPrivateIp( ip ) );
+    if ( indexed != null && ip.equals( indexed.getPrivateAddress( ) ) ) {
+      return indexed;
+    } else if ( indexed == null && VmInstanceAddressIndex.isAuthoritative( ) ) {
+      throw new NoSuchElementException( "VmInstance with private ip: " + ip );
+    }
     final EntityTransaction db = Entities.get( VmInstance.class );
     try {
       VmInstance vmExample = VmInstance.exampleWithPrivateIp( ip );
@@ -530,6 +598,12 @@ public class VmInstances {
   };
 
   public static VmInstance lookupByPublicIp( final String ip ) throws NoSuchElementException {
+    final VmInstance indexed = lookupIndexed( VmInstanceAddressIndex.lookupByPublicIp( ip ) );
+    if ( indexed != null && ip.equals( indexed.getPublicAddress( ) ) ) {
+      return indexed;
+    } else if ( indexed == null && VmInstanceAddressIndex.isAuthoritative( ) ) {
+      throw new NoSuchElementException( "VmInstance with public ip: " + ip );
+    }
     final EntityTransaction db = Entities.get( VmInstance.class );
     try {
       VmInstance vmExample = VmInstance.exampleWithPublicIp( ip );
@@ -206,11 +206,11 @@ public enum InstanceDomainNames implements Function<Name, InetAddress> {
    */
   public static boolean isInstance( InetAddress ip ) {
     try {
-      VmInstances.lookupByPrivateIp( ip.getHostAddress( ) );
+      VmInstances.lookupAddressByPrivateIp( ip.getHostAddress( ) );
       return true;
     } catch ( NoSuchElementException ex ) {
       try {
-        VmInstances.lookupByPublicIp( ip.getHostAddress( ) );//this is an existence check and not an attempt to access the state
+        VmInstances.lookupAddressByPublicIp( ip.getHostAddress( ) );//this is an existence check and not an attempt to access the state
         return true;
       } catch ( NoSuchElementException ex1 ) {
         return false;
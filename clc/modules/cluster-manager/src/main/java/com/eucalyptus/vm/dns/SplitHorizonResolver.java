@@ -83,7 +83,7 @@ import com.eucalyptus.util.dns.DnsResolvers.DnsResolver;
 import com.eucalyptus.util.dns.DnsResolvers.DnsResponse;
 import com.eucalyptus.util.dns.DnsResolvers.RequestType;
 import com.eucalyptus.util.dns.DomainNameRecords;
-import com.eucalyptus.vm.VmInstance;
+import com.eucalyptus.vm.VmInstanceAddressIndex;
 import com.eucalyptus.vm.VmInstances;
 import com.google.common.base.Objects;
 import com.google.common.base.Predicate;
@@ -121,7 +121,7 @@ public abstract class SplitHorizonResolver implements DnsResolver {
         return true;
       } else {
         try {
-          VmInstances.lookupByPublicIp( input.getHostAddress( ) );
+          VmInstances.lookupAddressByPublicIp( input.getHostAddress( ) );
           return true;
         } catch ( NoSuchElementException ex1 ) {
           for ( final ServiceConfiguration clusterService : ServiceConfigurations.list( ClusterController.class ) ) {
@@ -161,11 +161,11 @@ public abstract class SplitHorizonResolver implements DnsResolver {
       if ( InstanceDomainNames.isInstance( ip ) ) {
         final String hostAddress = ip.getHostAddress( );
         if ( Addresses.getInstance( ).contains( hostAddress ) ) {
-          VmInstances.lookupByPublicIp( hostAddress );//existence check
+          VmInstances.lookupAddressByPublicIp( hostAddress );//existence check
           final Name dnsName = InstanceDomainNames.fromInetAddress( InstanceDomainNames.EXTERNAL, ip );
           return DnsResponse.forName( query.getName( ) ).answer( DomainNameRecords.ptrRecord( dnsName, ip ) );
         } else {
-          VmInstances.lookupByPrivateIp( hostAddress );//existence check
+          VmInstances.lookupAddressByPrivateIp( hostAddress );//existence check
           final Name dnsName = InstanceDomainNames.fromInetAddress( InstanceDomainNames.INTERNAL, ip );
           return DnsResponse.forName( query.getName( ) ).answer( DomainNameRecords.ptrRecord( dnsName, ip ) );
         }
@@ -183,7 +183,7 @@ public abstract class SplitHorizonResolver implements DnsResolver {
           final Name name = query.getName( );
           final Name instanceDomain = InstanceDomainNames.lookupInstanceDomain( name );
           final InetAddress ip = InstanceDomainNames.toInetAddress( name.relativize( instanceDomain ) );
-          VmInstances.lookupByPrivateIp( ip.getHostAddress( ) );//GRZE: existence check
+          VmInstances.lookupAddressByPrivateIp( ip.getHostAddress( ) );//GRZE: existence check
           final Record aRecord = DomainNameRecords.addressRecord( name, ip );
           return DnsResponse.forName( name ).answer( aRecord );
         } catch ( Exception ex ) {
@@ -222,7 +222,7 @@ public abstract class SplitHorizonResolver implements DnsResolver {
           final Name name = query.getName( );
           final InetAddress requestIp = InstanceDomainNames.toInetAddress( name.relativize( InstanceDomainNames.EXTERNAL.get( ) ) );
           //GRZE: here it is not necessary to lookup the instance -- they public address assignment must have the needed information
-          final VmInstance vm = VmInstances.lookupByPublicIp( requestIp.getHostAddress( ) );
+          final VmInstanceAddressIndex.VmAddressView vm = VmInstances.lookupAddressByPublicIp( requestIp.getHostAddress( ) );
           final InetAddress instanceAddress = InetAddresses.forString( vm.getPrivateAddress( ) );
           final Record instanceARecord = DomainNameRecords.addressRecord( name, instanceAddress );
           return DnsResponse.forName( name ).answer( instanceARecord );
@@ -251,7 +251,7 @@ public abstract class SplitHorizonResolver implements DnsResolver {
         try {
           final Name name = query.getName( );
           final InetAddress requestIp = InstanceDomainNames.toInetAddress( name.relativize( InstanceDomainNames.EXTERNAL.get( ) ) );
-          VmInstances.lookupByPublicIp( requestIp.getHostAddress( ) ); // Ensure used by instance
+          VmInstances.lookupAddressByPublicIp( requestIp.getHostAddress( ) ); // Ensure used by instance
           final Record instanceARecord = DomainNameRecords.addressRecord( name, requestIp );
           return DnsResponse.forName( name ).answer( instanceARecord );
         } catch ( Exception ex ) {
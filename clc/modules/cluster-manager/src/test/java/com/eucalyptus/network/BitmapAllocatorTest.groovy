@@ -0,0 +1,89 @@
+/*************************************************************************
+ * Copyright 2009-2014 Eucalyptus Systems, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ *
+ * Please contact Eucalyptus Systems, Inc., 6755 Hollister Ave., Goleta
+ * CA 93117, USA or visit http://www.eucalyptus.com/licenses/ if you need
+ * additional information or have any questions.
+ ************************************************************************/
+package com.eucalyptus.network
+
+import static org.junit.Assert.*
+import org.junit.Test
+import java.util.concurrent.Callable
+
+/**
+ *
+ */
+class BitmapAllocatorTest {
+
+  @Test
+  void testAllocateSkipsUsedValues() {
+    BitmapAllocator allocator = new BitmapAllocator( )
+    Callable<List<Long>> used = { [ 2L, 3L, 5L, 100L ] } as Callable<List<Long>>
+    assertEquals( "First value", 4L, allocator.allocate( 2, 8, used ) )
+    assertEquals( "Second value", 6L, allocator.allocate( 2, 8, used ) )
+    assertEquals( "Third value", 7L, allocator.allocate( 2, 8, used ) )
+    assertNull( "Range full", allocator.allocate( 2, 8, used ) )
+  }
+
+  @Test
+  void testFreedValuesReusedAfterReload() {
+    BitmapAllocator allocator = new BitmapAllocator( )
+    List<Long> persisted = [ ]
+    int loads = 0
+    Callable<List<Long>> used = { loads++; persisted } as Callable<List<Long>>
+    (0..3).each { int value ->
+      assertEquals( "Value " + value, (long) value, allocator.allocate( 0, 4, used ) )
+      allocator.completed( value, true )
+      persisted.add( (long) value )
+    }
+    assertEquals( "Loads", 1, loads )
+    persisted.remove( 2L )
+    assertEquals( "Freed value", 2L, allocator.allocate( 0, 4, used ) )
+    assertEquals( "Loads after range full", 2, loads )
+  }
+
+  @Test
+  void testRollbackFreesValue() {
+    BitmapAllocator allocator = new BitmapAllocator( )
+    Callable<List<Long>> used = { [ ] } as Callable<List<Long>>
+    assertEquals( "First value", 1L, allocator.allocate( 1, 3, used ) )
+    assertEquals( "Second value", 2L, allocator.allocate( 1, 3, used ) )
+    allocator.completed( 1L, false )
+    assertEquals( "Rolled back value", 1L, allocator.allocate( 1, 3, used ) )
+  }
+
+  @Test
+  void testPendingValuesKeptOnReset() {
+    BitmapAllocator allocator = new BitmapAllocator( )
+    Callable<List<Long>> used = { [ ] } as Callable<List<Long>>
+    assertEquals( "First value", 10L, allocator.allocate( 10, 12, used ) )
+    allocator.reset( )
+    assertEquals( "Value after reset", 11L, allocator.allocate( 10, 12, used ) )
+    assertNull( "Range full", allocator.allocate( 10, 12, used ) )
+  }
+
+  @Test
+  void testRangeChangeReloads() {
+    BitmapAllocator allocator = new BitmapAllocator( )
+    List<Long> persisted = [ 1L, 2L ]
+    Callable<List<Long>> used = { persisted } as Callable<List<Long>>
+    assertEquals( "Value", 3L, allocator.allocate( 1, 4, used ) )
+    allocator.completed( 3L, true )
+    persisted.add( 3L )
+    persisted.add( 4L )
+    assertEquals( "Value in new range", 5L, allocator.allocate( 3, 6, used ) )
+  }
+}
@@ -102,6 +102,7 @@ import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.log4j.Logger;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
 import org.xbill.DNS.CNAMERecord;
 import org.xbill.DNS.Credibility;
 import org.xbill.DNS.DClass;
@@ -127,7 +128,8 @@ import com.eucalyptus.dns.Zone;
 import com.eucalyptus.dns.Cache;
 import com.eucalyptus.util.dns.DnsResolvers;
 
-public class ConnectionHandler extends Thread {
+public class ConnectionHandler extends SimpleChannelUpstreamHandler {
+	private static Logger LOG = Logger.getLogger( ConnectionHandler.class );
 
 	static final int FLAG_DNSSECOK = 1;
 	static final int FLAG_SIGONLY = 2;
@@ -135,8 +137,73 @@ public class ConnectionHandler extends Thread {
 	Map caches = new ConcurrentHashMap();
 	//Map TSIGs;
 
+	/**
+	 * Answer a query received over UDP or TCP, using the response cache where possible.
+	 *
+	 * @return The response, or null if the query could not be parsed and should be dropped.
+	 */
 	byte []
-	      generateReply(Message query, byte [] in, int length, Socket s)
+	      reply(byte [] in, InetAddress remote, boolean tcp)
+	{
+		final long start = System.nanoTime();
+		final Message query;
+		try {
+			query = new Message(in);
+		} catch (IOException e) {
+			LOG.trace(e);
+			return null;
+		}
+		final Record question = query.getQuestion();
+		String zoneName = null;
+		boolean cached = false;
+		ConnectionHandler.setRemoteInetAddress( remote );
+		try {
+			if (question != null)
+				zoneName = zoneLabel(question.getName());
+			DnsResponseCache.Key key = DnsResponseCache.key(query, remote, maxLength(query, tcp));
+			byte [] response = key != null ? DnsResponseCache.lookup(key, query) : null;
+			if (response != null) {
+				cached = true;
+			} else {
+				response = generateReply(query, in, in.length, tcp);
+				if (key != null && response != null) {
+					DnsResponseCache.put(key, query, response);
+				}
+			}
+			return response;
+		} catch (Exception ex) {
+			LOG.error(ex);
+			return errorMessage(query, Rcode.SERVFAIL);
+		} finally {
+			ConnectionHandler.removeRemoteInetAddress( );
+			DnsServer.statistics().record(zoneName, cached, System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Zone used to group query statistics, reverse lookups are grouped together.
+	 */
+	String
+	zoneLabel(Name name) {
+		if (name.toString().endsWith("in-addr.arpa."))
+			return "in-addr.arpa.";
+		Zone zone = findBestZone(name);
+		return zone != null ? zone.getOrigin().toString() : null;
+	}
+
+	static int
+	maxLength(Message query, boolean tcp) {
+		OPTRecord queryOPT = query.getOPT();
+		if (tcp)
+			return 65535;
+		else if (queryOPT != null)
+			return Math.max(queryOPT.getPayloadSize(), 512);
+		else
+			return 512;
+	}
+
+	byte []
+	      generateReply(Message query, byte [] in, int length, boolean tcp)
 	throws IOException
 	{
 		Header header;
@@ -169,12 +236,7 @@ public class ConnectionHandler extends Thread {
 		if (queryOPT != null && queryOPT.getVersion() > 0)
 			badversion = true;
 
-		if (s != null)
-			maxLength = 65535;
-		else if (queryOPT != null)
-			maxLength = Math.max(queryOPT.getPayloadSize(), 512);
-		else
-			maxLength = 512;
+		maxLength = maxLength(query, tcp);
 
 		if (queryOPT != null && (queryOPT.getFlags() & ExtendedFlags.DO) != 0)
 			flags = FLAG_DNSSECOK;
@@ -62,8 +62,6 @@
 
 package com.eucalyptus.cloud.ws;
 
-import java.net.SocketException;
-import java.net.UnknownHostException;
 import java.util.Collection;
 import java.util.List;
 import java.util.NoSuchElementException;
@@ -120,30 +118,8 @@ public class DNSControl {
 
 	private static Logger LOG = Logger.getLogger( DNSControl.class );
 
-	static UDPListener udpListener;
-	static TCPListener tcpListener;
-	private static void initializeUDP() throws Exception {
-		try {
-			if (udpListener == null) {
-				udpListener = new UDPListener(Internets.localHostInetAddress( ), DNSProperties.PORT);
-				udpListener.start();
-			}
-		} catch(SocketException ex) {
-			LOG.error(ex);
-			throw ex;
-		}
-	}
-
-	private static void initializeTCP() throws Exception {
-		try {
-			if (tcpListener == null) {
-				tcpListener = new TCPListener(Internets.localHostInetAddress( ), DNSProperties.PORT);
-				tcpListener.start();
-			}
-		} catch(UnknownHostException ex) {
-			LOG.error(ex);
-			throw ex;
-		}
+	private static void initializeServer() throws Exception {
+		DnsServer.start(Internets.localHostInetAddress( ), DNSProperties.PORT);
 	}
 
 	public static void populateRecords() {
@@ -205,8 +181,7 @@ public class DNSControl {
 
 	public static void initialize() throws Exception {
 		try {
-			initializeUDP();
-			initializeTCP();
+			initializeServer();
 			populateRecords();
 		} catch(Exception ex) {
 			LOG.error("DNS could not be initialized. Is some other service running on port 53?");
@@ -215,14 +190,7 @@ public class DNSControl {
 	}
 
 	public static void stop() throws Exception {
-		if (udpListener != null) {
-			udpListener.close();
-			udpListener = null;
-		}
-		if (tcpListener != null) {
-			tcpListener.close();
-			tcpListener = null;
-		}
+		DnsServer.stop();
 	}
 	
 	public DNSControl() {}
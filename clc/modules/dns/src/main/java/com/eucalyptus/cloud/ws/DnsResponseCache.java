@@ -0,0 +1,250 @@
+/*************************************************************************
+ * Copyright 2009-2014 Eucalyptus Systems, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ *
+ * Please contact Eucalyptus Systems, Inc., 6755 Hollister Ave., Goleta
+ * CA 93117, USA or visit http://www.eucalyptus.com/licenses/ if you need
+ * additional information or have any questions.
+ ************************************************************************/
+package com.eucalyptus.cloud.ws;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+import org.xbill.DNS.ExtendedFlags;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Header;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.OPTRecord;
+import org.xbill.DNS.Opcode;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+import com.eucalyptus.configurable.ConfigurableClass;
+import com.eucalyptus.configurable.ConfigurableField;
+import com.eucalyptus.util.dns.DnsResolvers;
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Cache of encoded dns responses keyed on the question and the resolvers which accept it.
+ *
+ * Entries expire after the smallest ttl in the response (capped at {@link #max_ttl_seconds})
+ * and are invalidated when {@link ZoneManager} changes the zone they were answered from.
+ */
+@ConfigurableClass( root = "dns.cache",
+        description = "Parameters controlling the dns response cache." )
+public class DnsResponseCache {
+  @ConfigurableField( description = "Maximum number of dns responses to cache, 0 to disable caching." )
+  public static Integer max_entries = 10000;
+  @ConfigurableField( description = "Maximum time in seconds a dns response is cached, regardless of record ttls." )
+  public static Integer max_ttl_seconds = 30;
+  private static Logger LOG = Logger.getLogger( DnsResponseCache.class );
+
+  private static final int FLAG_OPT = 1;
+  private static final int FLAG_DO = 2;
+  private static final int FLAG_RD = 4;
+  private static final int FLAG_BADVERS = 8;
+
+  private static volatile Cache<Key, Entry> cache;
+  private static volatile int cacheSize;
+
+  static final class Key {
+    private final Name name;
+    private final int type;
+    private final int dclass;
+    private final int maxLength;
+    private final int flags;
+    private final String resolvers;
+
+    private Key( final Name name, final int type, final int dclass, final int maxLength, final int flags, final String resolvers ) {
+      this.name = name;
+      this.type = type;
+      this.dclass = dclass;
+      this.maxLength = maxLength;
+      this.flags = flags;
+      this.resolvers = resolvers;
+    }
+
+    @Override
+    public boolean equals( final Object o ) {
+      if ( this == o ) return true;
+      if ( o == null || getClass( ) != o.getClass( ) ) return false;
+      final Key key = ( Key ) o;
+      return this.type == key.type
+          && this.dclass == key.dclass
+          && this.maxLength == key.maxLength
+          && this.flags == key.flags
+          && this.name.equals( key.name )
+          && this.resolvers.equals( key.resolvers );
+    }
+
+    @Override
+    public int hashCode( ) {
+      return Objects.hashCode( this.name, this.type, this.dclass, this.maxLength, this.flags, this.resolvers );
+    }
+  }
+
+  private static final class Entry {
+    private final byte[] response;
+    private final String question;
+    private final long expires;
+
+    private Entry( final byte[] response, final String question, final long expires ) {
+      this.response = response;
+      this.question = question;
+      this.expires = expires;
+    }
+  }
+
+  /**
+   * Get the cache key for a query, or null if the response must not be cached.
+   */
+  static Key key( final Message query, final InetAddress remote, final int maxLength ) {
+    final Header header = query.getHeader( );
+    final Record question = query.getQuestion( );
+    if ( max_entries == null
+        || max_entries <= 0
+        || question == null
+        || header.getCount( Section.QUESTION ) != 1
+        || header.getOpcode( ) != Opcode.QUERY
+        || header.getRcode( ) != Rcode.NOERROR
+        || query.getTSIG( ) != null ) {
+      return null;
+    }
+    final OPTRecord opt = query.getOPT( );
+    int flags = header.getFlag( Flags.RD ) ? FLAG_RD : 0;
+    if ( opt != null ) {
+      flags |= FLAG_OPT;
+      if ( ( opt.getFlags( ) & ExtendedFlags.DO ) != 0 ) flags |= FLAG_DO;
+      if ( opt.getVersion( ) > 0 ) flags |= FLAG_BADVERS;
+    }
+    return new Key(
+        question.getName( ),
+        question.getType( ),
+        question.getDClass( ),
+        maxLength,
+        flags,
+        DnsResolvers.resolverKey( question, remote ) );
+  }
+
+  /**
+   * Lookup a cached response, returning a copy with the id of the given query.
+   */
+  static byte[] lookup( final Key key, final Message query ) {
+    final Cache<Key, Entry> cache = cache( );
+    final Entry entry = cache.getIfPresent( key );
+    if ( entry == null ) {
+      return null;
+    } else if ( System.nanoTime( ) - entry.expires > 0 ) {
+      cache.asMap( ).remove( key, entry );
+      return null;
+    } else if ( !entry.question.equals( query.getQuestion( ).getName( ).toString( ) ) ) {
+      return null; // question must be echoed with the same case
+    } else {
+      final byte[] response = entry.response.clone( );
+      final int id = query.getHeader( ).getID( );
+      response[0] = ( byte ) ( id >>> 8 );
+      response[1] = ( byte ) id;
+      return response;
+    }
+  }
+
+  static void put( final Key key, final Message query, final byte[] response ) {
+    final Message message;
+    try {
+      message = new Message( response );
+    } catch ( IOException e ) {
+      LOG.debug( "Not caching unparseable response for " + key.name + ": " + e.getMessage( ) );
+      return;
+    }
+    final Header header = message.getHeader( );
+    if ( ( header.getRcode( ) != Rcode.NOERROR && header.getRcode( ) != Rcode.NXDOMAIN ) || header.getFlag( Flags.TC ) ) {
+      return;
+    }
+    long ttl = max_ttl_seconds == null ? 0 : max_ttl_seconds;
+    boolean records = false;
+    for ( final int section : new int[] { Section.ANSWER, Section.AUTHORITY, Section.ADDITIONAL } ) {
+      for ( final Record record : message.getSectionArray( section ) ) {
+        if ( record.getType( ) != Type.OPT ) {
+          ttl = Math.min( ttl, record.getTTL( ) );
+          records = true;
+        }
+      }
+    }
+    if ( records && ttl > 0 ) {
+      cache( ).put( key, new Entry(
+          response.clone( ),
+          query.getQuestion( ).getName( ).toString( ),
+          System.nanoTime( ) + TimeUnit.SECONDS.toNanos( ttl ) ) );
+    }
+  }
+
+  /**
+   * Invalidate cached responses for names in the given zone.
+   */
+  public static void invalidate( final Name zone ) {
+    final Cache<Key, Entry> cache = DnsResponseCache.cache;
+    if ( cache != null ) {
+      for ( final Key key : cache.asMap( ).keySet( ) ) {
+        if ( key.name.subdomain( zone ) ) {
+          cache.invalidate( key );
+        }
+      }
+    }
+  }
+
+  public static void invalidate( final String zoneName ) {
+    try {
+      invalidate( Name.fromString( zoneName, Name.root ) );
+    } catch ( Exception ex ) {
+      invalidateAll( );
+    }
+  }
+
+  public static void invalidateAll( ) {
+    final Cache<Key, Entry> cache = DnsResponseCache.cache;
+    if ( cache != null ) {
+      cache.invalidateAll( );
+    }
+  }
+
+  static long size( ) {
+    final Cache<Key, Entry> cache = DnsResponseCache.cache;
+    return cache == null ? 0 : cache.size( );
+  }
+
+  private static Cache<Key, Entry> cache( ) {
+    final int size = max_entries == null ? 0 : Math.max( 0, max_entries );
+    Cache<Key, Entry> current = cache;
+    if ( current == null || cacheSize != size ) {
+      synchronized ( DnsResponseCache.class ) {
+        current = cache;
+        if ( current == null || cacheSize != size ) {
+          current = CacheBuilder.newBuilder( )
+              .maximumSize( size )
+              .expireAfterWrite( Math.max( 1, max_ttl_seconds == null ? 1 : max_ttl_seconds ), TimeUnit.SECONDS )
+              .build( );
+          cache = current;
+          cacheSize = size;
+        }
+      }
+    }
+    return current;
+  }
+}
@@ -0,0 +1,220 @@
+/*************************************************************************
+ * Copyright 2009-2014 Eucalyptus Systems, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ *
+ * Please contact Eucalyptus Systems, Inc., 6755 Hollister Ave., Goleta
+ * CA 93117, USA or visit http://www.eucalyptus.com/licenses/ if you need
+ * additional information or have any questions.
+ ************************************************************************/
+package com.eucalyptus.cloud.ws;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+import org.jboss.netty.bootstrap.ConnectionlessBootstrap;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.channel.ChannelFactory;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.FixedReceiveBufferSizePredictorFactory;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.channel.socket.nio.NioDatagramChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.handler.codec.frame.LengthFieldBasedFrameDecoder;
+import org.jboss.netty.handler.codec.frame.LengthFieldPrepender;
+import org.jboss.netty.handler.execution.ExecutionHandler;
+import org.jboss.netty.handler.execution.MemoryAwareThreadPoolExecutor;
+import org.jboss.netty.handler.timeout.ReadTimeoutHandler;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timer;
+import com.eucalyptus.configurable.ConfigurableClass;
+import com.eucalyptus.configurable.ConfigurableField;
+import com.eucalyptus.util.DNSProperties;
+import com.eucalyptus.util.Mbeans;
+import com.google.common.collect.Maps;
+
+/**
+ * Non-blocking UDP and TCP dns server.
+ *
+ * Sockets are serviced by netty I/O threads and queries are answered on a shared pool of
+ * {@link #worker_threads} so a burst of lookups is not serialized behind a single thread.
+ */
+@ConfigurableClass( root = "dns.server",
+        description = "Parameters controlling the dns server." )
+public class DnsServer {
+  @ConfigurableField( description = "Number of threads used to answer dns queries, takes effect when the dns service is next started." )
+  public static Integer worker_threads = 16;
+  private static Logger LOG = Logger.getLogger( DnsServer.class );
+  private static final QueryStatistics statistics = new QueryStatistics( );
+  private static final AtomicBoolean registered = new AtomicBoolean( false );
+
+  private static ChannelGroup channels;
+  private static ChannelFactory udpChannelFactory;
+  private static ChannelFactory tcpChannelFactory;
+  private static ExecutionHandler executionHandler;
+  private static Timer timer;
+
+  public static synchronized void start( final InetAddress address, final int port ) throws Exception {
+    if ( channels != null ) {
+      return;
+    }
+    if ( registered.compareAndSet( false, true ) ) {
+      Mbeans.register( statistics );
+    }
+    final InetSocketAddress socketAddress = new InetSocketAddress( address, port );
+    channels = new DefaultChannelGroup( DnsServer.class.getSimpleName( ) + ":" + socketAddress );
+    executionHandler = new ExecutionHandler( new MemoryAwareThreadPoolExecutor( Math.max( 1, worker_threads ), 0, 0 ) );
+    timer = new HashedWheelTimer( );
+    try {
+      final UDPHandler udpHandler = new UDPHandler( );
+      udpChannelFactory = new NioDatagramChannelFactory( Executors.newCachedThreadPool( ) );
+      final ConnectionlessBootstrap udpBootstrap = new ConnectionlessBootstrap( udpChannelFactory );
+      udpBootstrap.setPipelineFactory( new ChannelPipelineFactory( ) {
+        @Override
+        public ChannelPipeline getPipeline( ) throws Exception {
+          return Channels.pipeline( executionHandler, udpHandler );
+        }
+      } );
+      udpBootstrap.setOption( "receiveBufferSizePredictorFactory", new FixedReceiveBufferSizePredictorFactory( 65535 ) );
+      udpBootstrap.setOption( "reuseAddress", true );
+      channels.add( udpBootstrap.bind( socketAddress ) );
+
+      final TCPHandler tcpHandler = new TCPHandler( );
+      final LengthFieldPrepender lengthFieldPrepender = new LengthFieldPrepender( 2 );
+      tcpChannelFactory = new NioServerSocketChannelFactory( Executors.newCachedThreadPool( ), Executors.newCachedThreadPool( ) );
+      final ServerBootstrap tcpBootstrap = new ServerBootstrap( tcpChannelFactory );
+      tcpBootstrap.setPipelineFactory( new ChannelPipelineFactory( ) {
+        @Override
+        public ChannelPipeline getPipeline( ) throws Exception {
+          return Channels.pipeline(
+              new ReadTimeoutHandler( timer, TCPHandler.timeout_seconds ),
+              new LengthFieldBasedFrameDecoder( DNSProperties.MAX_MESSAGE_SIZE + 2, 0, 2, 0, 2 ),
+              lengthFieldPrepender,
+              executionHandler,
+              tcpHandler );
+        }
+      } );
+      tcpBootstrap.setOption( "backlog", 128 );
+      tcpBootstrap.setOption( "reuseAddress", true );
+      tcpBootstrap.setOption( "child.tcpNoDelay", true );
+      channels.add( tcpBootstrap.bind( socketAddress ) );
+      LOG.info( "DNS server listening on " + socketAddress );
+    } catch ( final Exception ex ) {
+      stop( );
+      throw ex;
+    }
+  }
+
+  public static synchronized void stop( ) {
+    if ( channels != null ) {
+      channels.close( ).awaitUninterruptibly( );
+      channels = null;
+    }
+    if ( udpChannelFactory != null ) {
+      udpChannelFactory.releaseExternalResources( );
+      udpChannelFactory = null;
+    }
+    if ( tcpChannelFactory != null ) {
+      tcpChannelFactory.releaseExternalResources( );
+      tcpChannelFactory = null;
+    }
+    if ( executionHandler != null ) {
+      executionHandler.releaseExternalResources( );
+      executionHandler = null;
+    }
+    if ( timer != null ) {
+      timer.stop( );
+      timer = null;
+    }
+    DnsResponseCache.invalidateAll( );
+  }
+
+  static QueryStatistics statistics( ) {
+    return statistics;
+  }
+
+  private static class ZoneCounters {
+    private final AtomicLong queries = new AtomicLong( );
+    private final AtomicLong cacheHits = new AtomicLong( );
+    private final AtomicLong totalMicros = new AtomicLong( );
+    private final AtomicLong maxMicros = new AtomicLong( );
+
+    private void record( final boolean cached, final long micros ) {
+      this.queries.incrementAndGet( );
+      if ( cached ) this.cacheHits.incrementAndGet( );
+      this.totalMicros.addAndGet( micros );
+      long max;
+      while ( micros > ( max = this.maxMicros.get( ) ) && !this.maxMicros.compareAndSet( max, micros ) );
+    }
+
+    @Override
+    public String toString( ) {
+      final long count = this.queries.get( );
+      return "queries=" + count
+          + " cacheHits=" + this.cacheHits.get( )
+          + " averageMicros=" + ( count == 0 ? 0 : this.totalMicros.get( ) / count )
+          + " maxMicros=" + this.maxMicros.get( );
+    }
+  }
+
+  public static class QueryStatistics {
+    private final ZoneCounters total = new ZoneCounters( );
+    private final ConcurrentMap<String, ZoneCounters> zones = Maps.newConcurrentMap( );
+
+    void record( final String zone, final boolean cached, final long nanos ) {
+      final long micros = TimeUnit.NANOSECONDS.toMicros( nanos );
+      final String key = zone == null ? "none" : zone;
+      ZoneCounters counters = this.zones.get( key );
+      if ( counters == null ) {
+        this.zones.putIfAbsent( key, new ZoneCounters( ) );
+        counters = this.zones.get( key );
+      }
+      counters.record( cached, micros );
+      this.total.record( cached, micros );
+    }
+
+    public long getQueries( ) {
+      return this.total.queries.get( );
+    }
+
+    public long getCacheHits( ) {
+      return this.total.cacheHits.get( );
+    }
+
+    public long getAverageMicros( ) {
+      final long count = this.total.queries.get( );
+      return count == 0 ? 0 : this.total.totalMicros.get( ) / count;
+    }
+
+    public long getCachedResponses( ) {
+      return DnsResponseCache.size( );
+    }
+
+    public Map<String, String> getZoneStatistics( ) {
+      final Map<String, String> zoneStatistics = Maps.newTreeMap( );
+      for ( final Map.Entry<String, ZoneCounters> entry : this.zones.entrySet( ) ) {
+        zoneStatistics.put( entry.getKey( ), entry.getValue( ).toString( ) );
+      }
+      return zoneStatistics;
+    }
+  }
+}
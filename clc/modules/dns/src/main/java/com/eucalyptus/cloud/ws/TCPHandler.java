@@ -62,81 +62,52 @@
 
 package com.eucalyptus.cloud.ws;
 
-import com.eucalyptus.component.id.Dns;
 import com.eucalyptus.configurable.ConfigurableClass;
 import com.eucalyptus.configurable.ConfigurableField;
-import com.eucalyptus.system.Threads;
-import com.eucalyptus.util.DNSProperties;
-import com.google.common.util.concurrent.SimpleTimeLimiter;
-import com.google.common.util.concurrent.TimeLimiter;
-import com.google.common.util.concurrent.UncheckedTimeoutException;
 import org.apache.log4j.Logger;
-import org.xbill.DNS.Message;
-import org.xbill.DNS.Rcode;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.handler.timeout.ReadTimeoutException;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
-import java.net.Socket;
-import java.util.concurrent.Callable;
-import java.util.concurrent.TimeUnit;
+import java.net.InetSocketAddress;
 
+/**
+ * Answers length prefixed queries on a TCP connection, framing is handled by the pipeline
+ * (see {@link DnsServer}) and idle connections are closed after {@link #timeout_seconds}.
+ */
 @ConfigurableClass( root = "dns.tcp",
         description = "Handles dns TCP requests." )
+@ChannelHandler.Sharable
 public class TCPHandler extends ConnectionHandler {
   @ConfigurableField( description = "Parameter controlling tcp handler timeout in seconds." )
   public static Integer timeout_seconds = 30;
   private static Logger LOG = Logger.getLogger( TCPHandler.class );
 
-  private final Socket socket;
-
-  public TCPHandler( final Socket s ) {
-    this.socket = s;
+  @Override
+  public void messageReceived( final ChannelHandlerContext ctx, final MessageEvent e ) {
+    final ChannelBuffer buffer = ( ChannelBuffer ) e.getMessage( );
+    final byte[] inBytes = new byte[ buffer.readableBytes( ) ];
+    buffer.readBytes( inBytes );
+    final InetSocketAddress remote = ( InetSocketAddress ) e.getRemoteAddress( );
+    final byte[] response = reply( inBytes, remote.getAddress( ), true );
+    if ( response != null ) {
+      e.getChannel( ).write( ChannelBuffers.wrappedBuffer( response ) );
+    } else {
+      e.getChannel( ).close( );
+    }
   }
 
-  public void run() {
-    try ( final Socket socket = this.socket ) {
-      socket.setSoTimeout( timeout_seconds * 1000 );
-      final TimeLimiter limiter = new SimpleTimeLimiter( Threads.lookup( Dns.class, TCPHandler.class ) );
-      final byte[] inBytes = limiter.callWithTimeout( new Callable<byte[]>( ) {
-        @Override
-        public byte[] call() throws Exception {
-          final DataInputStream inStream = new DataInputStream(socket.getInputStream());
-          final int inputLength = inStream.readUnsignedShort();
-          if( inputLength > DNSProperties.MAX_MESSAGE_SIZE ) {
-            throw new IOException("Maximum message size exceeded. Ignoring request.");
-          }
-          byte[] inBytes = new byte[inputLength];
-          inStream.readFully(inBytes);
-          return inBytes;
-        }
-      }, timeout_seconds, TimeUnit.SECONDS, false );
-
-      byte [] response = null;
-      try {
-        final Message query = new Message(inBytes);
-        ConnectionHandler.setRemoteInetAddress( socket.getInetAddress( ) );
-        try {
-          response = generateReply(query, inBytes, inBytes.length, socket);
-        } catch ( RuntimeException ex ) {
-          response = errorMessage(query, Rcode.SERVFAIL);
-          throw ex;
-        } finally {
-          ConnectionHandler.removeRemoteInetAddress( );
-        }
-        if (response == null)
-          return;
-      } catch ( IOException exception ) {
-        LOG.error(exception);
-      }
-      final DataOutputStream outStream = new DataOutputStream(socket.getOutputStream());
-      outStream.writeShort(response.length);
-      outStream.write(response);
-      outStream.flush();
-    } catch ( UncheckedTimeoutException e ) {
+  @Override
+  public void exceptionCaught( final ChannelHandlerContext ctx, final ExceptionEvent e ) {
+    if ( e.getCause( ) instanceof ReadTimeoutException ) {
       LOG.debug( "Timeout reading request." );
-    } catch(Exception ex) {
-      LOG.error(ex);
+    } else {
+      LOG.error( e.getCause( ) );
     }
+    e.getChannel( ).close( );
   }
 }
@@ -93,81 +93,35 @@
 
 package com.eucalyptus.cloud.ws;
 
-import java.io.IOException;
-import java.io.InterruptedIOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
 
 import org.apache.log4j.Logger;
-import org.xbill.DNS.Message;
-import org.xbill.DNS.Rcode;
-
-import com.eucalyptus.bootstrap.Bootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
 
 
+@ChannelHandler.Sharable
 public class UDPHandler extends ConnectionHandler {
 	private static Logger LOG = Logger.getLogger( UDPHandler.class );
 
-	DatagramSocket socket;
-	UDPHandler(DatagramSocket s) {
-		this.socket = s;
+	@Override
+	public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) {
+		final ChannelBuffer buffer = (ChannelBuffer) e.getMessage();
+		final byte [] in = new byte[buffer.readableBytes()];
+		buffer.readBytes(in);
+		final InetSocketAddress remote = (InetSocketAddress) e.getRemoteAddress();
+		final byte [] response = reply(in, remote.getAddress(), false);
+		if (response != null && e.getChannel().isOpen()) {
+			e.getChannel().write(ChannelBuffers.wrappedBuffer(response), remote);
+		}
 	}
 
-	public void run() {
-		final short udpLength = 512;
-		byte [] in = new byte[udpLength];
-		DatagramPacket indp = new DatagramPacket(in, in.length);
-		DatagramPacket outdp = null;
-		while (Bootstrap.isOperational( )) {
-			try {
-				indp.setLength(in.length);
-				try {
-					socket.receive(indp);
-				}
-				catch (InterruptedIOException e) {
-					continue;
-				}
-				Message query;
-				byte [] response = null;
-				try {
-					query = new Message(in);
-					ConnectionHandler.setRemoteInetAddress( indp.getAddress( ) );
-					try {
-						response = generateReply( query, in,
-								indp.getLength( ),
-								null );
-					} catch ( RuntimeException ex ) {
-						response = errorMessage(query, Rcode.SERVFAIL);
-						throw ex;
-					} finally {
-						ConnectionHandler.removeRemoteInetAddress( );
-					}
-					if (response == null)
-						continue;
-				} catch (Exception e) {
-					if ( response != null ) {
-						response = formerrMessage(in);
-					} else {
-						continue;
-					}
-				}
-				if (outdp == null)
-					outdp = new DatagramPacket(response,
-							response.length,
-							indp.getAddress(),
-							indp.getPort());
-				else {
-					outdp.setData(response);
-					outdp.setLength(response.length);
-					outdp.setAddress(indp.getAddress());
-					outdp.setPort(indp.getPort());
-				}
-				if(!socket.isClosed()) {
-					socket.send(outdp);
-				}
-			} catch (IOException e) {
-				LOG.trace(e);
-			}
-		}
+	@Override
+	public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) {
+		LOG.trace(e.getCause());
 	}
 }
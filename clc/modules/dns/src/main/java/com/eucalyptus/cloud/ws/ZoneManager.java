@@ -129,6 +129,7 @@ public class ZoneManager {
 
 	public static void registerZone( Name name, Zone z ) {
 		zones.putIfAbsent( name, z );
+		DnsResponseCache.invalidate( name );
 	}
 
 	public static void addZone(ZoneInfo zoneInfo, SOARecordInfo soaRecordInfo, NSRecordInfo nsRecordInfo) {
@@ -146,6 +147,7 @@ public class ZoneManager {
 			Record nsrec = new NSRecord(name, DClass.IN, nsTTL, Name.fromString(nsRecordInfo.getTarget()));
 			Zone zone = new Zone(name, new Record[]{soarec, nsrec});
 			zones.putIfAbsent(name, zone);
+			DnsResponseCache.invalidate(name);
 		} catch(Exception ex) {
 			LOG.error(ex);
 		}
@@ -230,6 +232,7 @@ public class ZoneManager {
 				zone.addRecord(record);
 			}
 		}
+		DnsResponseCache.invalidate(nameString);
 	}
 
 	public static void updateARecord(String zoneName, ARecord record) {
@@ -266,6 +269,8 @@ public class ZoneManager {
 			}
 		} catch(Exception ex) {
 			LOG.error(ex);
+		} finally {
+			DnsResponseCache.invalidate(zoneName);
 		}
 	}
 
@@ -302,6 +307,8 @@ public class ZoneManager {
 			}
 		} catch(Exception ex) {
 			LOG.error(ex);
+		} finally {
+			DnsResponseCache.invalidate(zoneName);
 		}
 	}
 	
@@ -329,6 +336,8 @@ public class ZoneManager {
 			}
 		} catch(Exception ex) {
 			LOG.error(ex);
+		} finally {
+			DnsResponseCache.invalidate(zoneName);
 		}    
 	}
 
@@ -352,6 +361,8 @@ public class ZoneManager {
 			}
 		} catch(Exception ex) {
 			LOG.error(ex);
+		} finally {
+			DnsResponseCache.invalidate(zoneName);
 		}        
 	}
 
@@ -360,6 +371,8 @@ public class ZoneManager {
 			zones.remove(new Name(zoneName));
 		} catch(Exception ex) {
 			LOG.error(ex);
+		} finally {
+			DnsResponseCache.invalidate(zoneName);
 		}
 	}
 
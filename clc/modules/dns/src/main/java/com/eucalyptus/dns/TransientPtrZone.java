@@ -74,7 +74,7 @@ import org.xbill.DNS.SOARecord;
 import org.xbill.DNS.SetResponse;
 
 import com.eucalyptus.util.Internets;
-import com.eucalyptus.vm.VmInstance;
+import com.eucalyptus.vm.VmInstanceAddressIndex;
 import com.eucalyptus.vm.VmInstances;
 import com.eucalyptus.ws.StackConfiguration;
 
@@ -109,11 +109,11 @@ public class TransientPtrZone extends Zone {
 		  return super.findRecords( name, type );
 		}
 		try {
-	      VmInstance instance = VmInstances.lookupByPublicIp( ipCandidate );
+	      VmInstanceAddressIndex.VmAddressView instance = VmInstances.lookupAddressByPublicIp( ipCandidate );
 	      target = new Name(instance.getPublicDnsName() + ".");
 	    } catch ( Exception e ) {
 	      try {
-	        VmInstance instance = VmInstances.lookupByPrivateIp( ipCandidate );
+	        VmInstanceAddressIndex.VmAddressView instance = VmInstances.lookupAddressByPrivateIp( ipCandidate );
 	        target = new Name(instance.getPrivateDnsName() + ".");
 	      } catch ( Exception e1 ) {
 	        return super.findRecords( name, type );
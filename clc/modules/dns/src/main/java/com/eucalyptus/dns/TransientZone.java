@@ -78,7 +78,7 @@ import org.xbill.DNS.TextParseException;
 import org.xbill.DNS.Type;
 
 import com.eucalyptus.util.Internets;
-import com.eucalyptus.vm.VmInstance;
+import com.eucalyptus.vm.VmInstanceAddressIndex;
 import com.eucalyptus.vm.VmInstances;
 import com.eucalyptus.ws.StackConfiguration;
 
@@ -171,10 +171,10 @@ public class TransientZone extends Zone {
           .append(tryIp[2]).append(".")
           .append(tryIp[3]).toString( );
         try {
-          VmInstances.lookupByPublicIp( ipCandidate );
+          VmInstances.lookupAddressByPublicIp( ipCandidate );
         } catch ( Exception e ) {
           try {
-            VmInstances.lookupByPrivateIp( ipCandidate );
+            VmInstances.lookupAddressByPrivateIp( ipCandidate );
           } catch ( Exception e1 ) {
             return super.findRecords( name, type );
           }
@@ -203,11 +203,11 @@ public class TransientZone extends Zone {
 		  return super.findRecords( name, type );
 		}
 		try {
-	      VmInstance instance = VmInstances.lookupByPublicIp( ipCandidate );
+	      VmInstanceAddressIndex.VmAddressView instance = VmInstances.lookupAddressByPublicIp( ipCandidate );
 	      target = new Name(instance.getPublicDnsName() + ".");
 	    } catch ( Exception e ) {
 	      try {
-	        VmInstance instance = VmInstances.lookupByPrivateIp( ipCandidate );
+	        VmInstanceAddressIndex.VmAddressView instance = VmInstances.lookupAddressByPrivateIp( ipCandidate );
 	        target = new Name(instance.getPrivateDnsName() + ".");
 	      } catch ( Exception e1 ) {
 	        return super.findRecords( name, type );
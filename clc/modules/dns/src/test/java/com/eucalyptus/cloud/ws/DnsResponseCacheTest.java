@@ -0,0 +1,156 @@
+/*************************************************************************
+ * Copyright 2009-2014 Eucalyptus Systems, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ *
+ * Please contact Eucalyptus Systems, Inc., 6755 Hollister Ave., Goleta
+ * CA 93117, USA or visit http://www.eucalyptus.com/licenses/ if you need
+ * additional information or have any questions.
+ ************************************************************************/
+package com.eucalyptus.cloud.ws;
+
+import static org.junit.Assert.*;
+
+import java.net.InetAddress;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+
+import com.eucalyptus.util.dns.DnsResolvers;
+
+public class DnsResponseCacheTest {
+
+  private static final InetAddress SOURCE = InetAddress.getLoopbackAddress();
+
+  private Boolean resolversEnabled;
+  private Integer maxEntries;
+  private Integer maxTtlSeconds;
+
+  @Before
+  public void setUp() {
+    // resolver key is empty when resolvers are disabled, no bootstrap needed
+    resolversEnabled = DnsResolvers.enabled;
+    maxEntries = DnsResponseCache.max_entries;
+    maxTtlSeconds = DnsResponseCache.max_ttl_seconds;
+    DnsResolvers.enabled = Boolean.FALSE;
+    DnsResponseCache.max_entries = 100;
+    DnsResponseCache.max_ttl_seconds = 30;
+    DnsResponseCache.invalidateAll();
+  }
+
+  @After
+  public void tearDown() {
+    DnsResponseCache.invalidateAll();
+    DnsResolvers.enabled = resolversEnabled;
+    DnsResponseCache.max_entries = maxEntries;
+    DnsResponseCache.max_ttl_seconds = maxTtlSeconds;
+  }
+
+  @Test
+  public void testHitUsesQueryId() throws Exception {
+    Message query = query("i-12345678.eucalyptus.example.com.");
+    cache(query, 60);
+
+    Message second = query("i-12345678.eucalyptus.example.com.");
+    byte[] cached = DnsResponseCache.lookup(key(second), second);
+    assertNotNull(cached);
+    Message response = new Message(cached);
+    assertEquals(second.getHeader().getID(), response.getHeader().getID());
+    assertEquals(1, response.getSectionArray(Section.ANSWER).length);
+  }
+
+  @Test
+  public void testExpiresAfterRecordTtl() throws Exception {
+    Message query = query("i-12345678.eucalyptus.example.com.");
+    cache(query, 1);
+    assertNotNull(DnsResponseCache.lookup(key(query), query));
+    Thread.sleep(1100);
+    assertNull(DnsResponseCache.lookup(key(query), query));
+  }
+
+  @Test
+  public void testTtlCappedByMaximum() throws Exception {
+    DnsResponseCache.max_ttl_seconds = 1;
+    Message query = query("i-12345678.eucalyptus.example.com.");
+    cache(query, 3600);
+    assertNotNull(DnsResponseCache.lookup(key(query), query));
+    Thread.sleep(1100);
+    assertNull(DnsResponseCache.lookup(key(query), query));
+  }
+
+  @Test
+  public void testZeroTtlNotCached() throws Exception {
+    Message query = query("i-12345678.eucalyptus.example.com.");
+    cache(query, 0);
+    assertNull(DnsResponseCache.lookup(key(query), query));
+    assertEquals(0, DnsResponseCache.size());
+  }
+
+  @Test
+  public void testDisabled() throws Exception {
+    DnsResponseCache.max_entries = 0;
+    assertNull(DnsResponseCache.key(query("i-12345678.eucalyptus.example.com."), SOURCE, 512));
+  }
+
+  @Test
+  public void testInvalidateZone() throws Exception {
+    Message inZone = query("i-12345678.eucalyptus.example.com.");
+    Message otherZone = query("walrus.example.com.");
+    cache(inZone, 60);
+    cache(otherZone, 60);
+
+    DnsResponseCache.invalidate("eucalyptus.example.com");
+    assertNull(DnsResponseCache.lookup(key(inZone), inZone));
+    assertNotNull(DnsResponseCache.lookup(key(otherZone), otherZone));
+  }
+
+  @Test
+  public void testInvalidateAll() throws Exception {
+    Message first = query("i-12345678.eucalyptus.example.com.");
+    Message second = query("walrus.example.com.");
+    cache(first, 60);
+    cache(second, 60);
+
+    DnsResponseCache.invalidateAll();
+    assertNull(DnsResponseCache.lookup(key(first), first));
+    assertNull(DnsResponseCache.lookup(key(second), second));
+  }
+
+  private static Message query(String name) throws Exception {
+    return Message.newQuery(Record.newRecord(Name.fromString(name), Type.A, DClass.IN));
+  }
+
+  private static DnsResponseCache.Key key(Message query) {
+    return DnsResponseCache.key(query, SOURCE, 512);
+  }
+
+  private static void cache(Message query, long ttl) throws Exception {
+    Message response = new Message(query.getHeader().getID());
+    response.getHeader().setFlag(Flags.QR);
+    response.getHeader().setFlag(Flags.AA);
+    response.addRecord(query.getQuestion(), Section.QUESTION);
+    response.addRecord(new ARecord(query.getQuestion().getName(), DClass.IN, ttl, InetAddress.getByName("10.1.2.3")), Section.ANSWER);
+    DnsResponseCache.Key key = key(query);
+    assertNotNull(key);
+    DnsResponseCache.put(key, query, response.toWire());
+  }
+}
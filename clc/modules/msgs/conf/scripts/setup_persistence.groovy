@@ -113,6 +113,14 @@ PersistenceContexts.list( ).each { String ctx_simplename ->
         'hibernate.cache.use_structured_entries': 'true',
       ] )
   
+  // Metric data is written in large batches of inserts
+  if ( ctx_simplename == 'eucalyptus_cloudwatch' ) {
+    hibernate_config.putAll( [
+          'hibernate.jdbc.batch_size': '50',
+          'hibernate.order_inserts': 'true',
+        ] )
+  }
+  
   // Register the properties with the config
   config = new Ejb3Configuration();
   LOG.info( "${ctx_simplename} Setting up persistence:        done." )
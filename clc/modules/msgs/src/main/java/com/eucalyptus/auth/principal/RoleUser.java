@@ -41,6 +41,10 @@ public final class RoleUser implements User {
     this.user = user;
   }
 
+  public Role getRole() {
+    return role;
+  }
+
   @Override
   public String getAccountNumber() throws AuthException {
     return role.getAccountNumber();
@@ -80,6 +80,7 @@ import com.eucalyptus.util.Exceptions;
 import com.eucalyptus.util.FullName;
 import com.eucalyptus.util.HasName;
 import com.eucalyptus.util.Internets;
+import com.eucalyptus.util.async.AsyncRequests;
 import com.eucalyptus.util.fsm.Automata;
 import com.eucalyptus.util.fsm.StateMachine;
 import com.eucalyptus.util.fsm.TransitionException;
@@ -388,6 +389,8 @@ public class Component implements HasName<Component> {
       } else if ( config.isVmLocal( ) ) {
         this.localService.compareAndSet( ret, null );
       }
+      TopologySnapshots.changed( );
+      AsyncRequests.closeChannels( config );
       return ret;
     }
     
@@ -424,6 +427,7 @@ public class Component implements HasName<Component> {
       BasicService ret = this.services.putIfAbsent( config, service );
       if ( ret == null ) {
         ret = service;
+        TopologySnapshots.changed( );
         try {
           config.lookupStateMachine( ).transition( Component.State.INITIALIZED ).get( );
           EventRecord.caller( Component.class, EventType.COMPONENT_SERVICE_REGISTERED,
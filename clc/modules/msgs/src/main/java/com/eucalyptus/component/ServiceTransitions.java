@@ -814,6 +814,12 @@ public class ServiceTransitions {
         }
       }
     },
+    TOPOLOGY_CHANGED {
+      @Override
+      public void fire( final ServiceConfiguration config ) {
+        TopologySnapshots.changed( );
+      }
+    },
     PROPERTIES_ADD {
       @Override
       public void fire( final ServiceConfiguration config ) {
@@ -74,7 +74,6 @@ import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
@@ -85,15 +84,15 @@ import com.eucalyptus.bootstrap.Databases;
 import com.eucalyptus.bootstrap.Host;
 import com.eucalyptus.bootstrap.Hosts;
 import com.eucalyptus.component.Component.State;
+import com.eucalyptus.component.id.ClusterController;
 import com.eucalyptus.configurable.ConfigurableClass;
 import com.eucalyptus.configurable.ConfigurableField;
 import com.eucalyptus.empyrean.DestroyServiceType;
 import com.eucalyptus.empyrean.Empyrean;
 import com.eucalyptus.empyrean.ServiceId;
 import com.eucalyptus.empyrean.ServiceTransitionType;
-import com.eucalyptus.event.ClockTick;
-import com.eucalyptus.event.EventListener;
-import com.eucalyptus.event.Listeners;
+import com.eucalyptus.event.IntervalListener;
+import com.eucalyptus.event.ListenerScheduler;
 import com.eucalyptus.records.EventRecord;
 import com.eucalyptus.records.EventType;
 import com.eucalyptus.records.Logs;
@@ -133,21 +132,11 @@ public class Topology {
   public static Integer                                         COORDINATOR_CHECK_BACKOFF_SECS = 10;
   @ConfigurableField( description = "Backoff between service state checks (in seconds)." )
   public static Integer                                         LOCAL_CHECK_BACKOFF_SECS       = 10;
+  @ConfigurableField( description = "Maximum age of the cached service topology sent with outbound messages (in milliseconds)." )
+  public static Integer                                         SERVICE_SNAPSHOT_MAX_AGE_MS    = 1000;
   private final ConcurrentMap<ServiceKey, ServiceConfiguration> services                       = new ConcurrentSkipListMap<Topology.ServiceKey, ServiceConfiguration>( );
   
   private enum Queue implements Function<Callable, Future> {
-    INTERNAL( 1 ) {
-      ServiceConfiguration internal;
-      
-      @Override
-      ServiceConfiguration queue( ) {
-        if ( this.internal == null ) {
-          this.internal = ServiceConfigurations.createEphemeral( Empyrean.INSTANCE, Topology.class.getSimpleName( ), "internal",
-                                                                 ServiceUris.internal( Empyrean.INSTANCE ) );
-        }
-        return this.internal;
-      }
-    },
     EXTERNAL( 32 ) {
       ServiceConfiguration external;
       
@@ -182,39 +171,26 @@ public class Topology {
     
   }
   
-  private enum TopologyTimer implements EventListener<ClockTick> {
+  /**
+   * Runs service state checks, the scheduler ensures checks do not overlap.
+   *
+   * <p>The backoff between checks is the interval, so no scheduler worker
+   * waits it out. Hosts other than the coordinator check every fifth
+   * interval.</p>
+   */
+  private enum TopologyTimer implements IntervalListener {
     INSTANCE;
     private static final AtomicInteger counter = new AtomicInteger( 0 );
-    private static final AtomicBoolean busy    = new AtomicBoolean( false );
     
     @Override
-    public void fireEvent( final ClockTick event ) {
-      final int backoff = Hosts.isCoordinator( ) ? COORDINATOR_CHECK_BACKOFF_SECS : LOCAL_CHECK_BACKOFF_SECS;
-      Callable<Object> call = new Callable<Object>( ) {
-        @Override
-        public Object call( ) {
-          try {
-            TimeUnit.SECONDS.sleep( backoff );
-            return RunChecks.INSTANCE.call( );
-          } catch ( InterruptedException ex ) {
-            return Exceptions.maybeInterrupted( ex );
-          } finally {
-            busy.set( false );
-          }
-        }
-      };
-      if ( Hosts.isCoordinator( ) && busy.compareAndSet( false, true ) ) {
-        try {
-          Queue.INTERNAL.enqueue( call );
-        } catch ( Exception ex ) {
-          busy.set( false );
-        }
-      } else if ( counter.incrementAndGet( ) % 5 == 0 && busy.compareAndSet( false, true ) ) {
-        try {
-          Queue.INTERNAL.enqueue( call );
-        } catch ( Exception ex ) {
-          busy.set( false );
-        }
+    public long getIntervalMillis( ) {
+      return TimeUnit.SECONDS.toMillis( Hosts.isCoordinator( ) ? COORDINATOR_CHECK_BACKOFF_SECS : LOCAL_CHECK_BACKOFF_SECS );
+    }
+    
+    @Override
+    public void fire( ) throws Exception {
+      if ( Hosts.isCoordinator( ) || counter.incrementAndGet( ) % 5 == 0 ) {
+        RunChecks.INSTANCE.call( );
       }
     }
     
@@ -222,7 +198,7 @@ public class Topology {
   
   private Topology( final int i ) {
     this.currentEpoch = i;
-    Listeners.register( ClockTick.class, TopologyTimer.INSTANCE );
+    ListenerScheduler.register( TopologyTimer.INSTANCE );
   }
   
   private static Predicate<ServiceConfiguration> componentFilter( final Class<? extends ComponentId> c ) {
@@ -235,51 +211,31 @@ public class Topology {
     };
   }
 
+  /**
+   * Add the epoch and service topology to a message sent to the given service.
+   *
+   * <p>The service lists are only read by Java services when handling a
+   * {@link ServiceTransitionType} message, other messages for those services
+   * carry only the epoch. Cluster and node controllers take the service lists
+   * from every message so always get the full lists.</p>
+   */
   public static void populateServices( final ServiceConfiguration config, BaseMessage msg ) {
     try {
-      Predicate<ServiceConfiguration> filter = new Predicate<ServiceConfiguration>( ) {
-        
-        @Override
-        public boolean apply( final ServiceConfiguration filterConfig ) {
-          ComponentId filteredComponent = filterConfig.getComponentId( );
-          ComponentId destComponent = config.getComponentId( );
-          if ( filteredComponent.isDistributedService( ) ) {
-            if ( destComponent.isAlwaysLocal( ) ) {
-              return filterConfig.lookupState( ).ordinal( ) >= Component.State.STOPPED.ordinal( );
-            } else if ( destComponent.isPartitioned( ) && filteredComponent.isPartitioned( ) ) {
-              return config.getPartition( ).equals( filterConfig.getPartition( ) );
-            } else {
-              return true;
-            }
-          } else {
-            return false;
-          }
-        }
-      };
-      Function<ServiceConfiguration, ServiceId> typeMapper = TypeMappers.lookup( ServiceConfiguration.class, ServiceId.class );
       if ( Hosts.isCoordinator( ) ) {
         msg.set_epoch( Topology.epoch( ) );
-        for ( ServiceConfiguration s : Topology.getInstance( ).getServices( ).values( ) ) {
-          if ( filter.apply( s ) ) {
-            msg.get_services( ).add( typeMapper.apply( s ) );
-          }
-        }
-                
-        for ( Component c : Components.list( ) ) {
-          for ( ServiceConfiguration s : c.services( ) ) {
-            if ( filter.apply( s ) && !msg.get_services( ).contains( s ) ) {
-              if ( State.DISABLED.apply( s ) ) {
-                msg.get_disabledServices().add( typeMapper.apply( s ) );
-              } else if ( State.STOPPED.apply( s ) ) {
-                msg.get_stoppedServices( ).add( typeMapper.apply( s ) );
-              } else if ( State.NOTREADY.ordinal( ) >= s.getStateMachine( ).getState( ).ordinal( ) ) {
-                msg.get_notreadyServices( ).add( typeMapper.apply( s ) );
-              } else if (State.ENABLED.apply(s) && c.getComponentId().isManyToOnePartition() && c.getComponentId().isDistributedService()) {
-            	  //Add many-to-one distributed services that are enabled.
-            	  msg.get_services().add(typeMapper.apply(s));
+        final TopologySnapshots.Snapshot snapshot = TopologySnapshots.lookup(
+            snapshotKey( config ),
+            SERVICE_SNAPSHOT_MAX_AGE_MS,
+            new Supplier<TopologySnapshots.Snapshot>( ) {
+              @Override
+              public TopologySnapshots.Snapshot get( ) {
+                return buildSnapshot( config );
               }
-            }
-          }
+            } );
+        if ( msg instanceof ServiceTransitionType || config.getComponentId( ).isAncestor( ClusterController.class ) ) {
+          TopologySnapshots.send( snapshot, msg );
+        } else {
+          TopologySnapshots.omit( snapshot );
         }
       }
     } catch ( Exception ex ) {
@@ -287,6 +243,64 @@ public class Topology {
     }
   }
 
+  /**
+   * The services sent to a destination depend only on its component and, for
+   * partitioned components, its partition.
+   */
+  private static String snapshotKey( final ServiceConfiguration config ) {
+    final ComponentId destComponent = config.getComponentId( );
+    return destComponent.isPartitioned( )
+      ? destComponent.name( ) + ":" + config.getPartition( )
+      : destComponent.name( );
+  }
+
+  private static TopologySnapshots.Snapshot buildSnapshot( final ServiceConfiguration config ) {
+    Predicate<ServiceConfiguration> filter = new Predicate<ServiceConfiguration>( ) {
+      
+      @Override
+      public boolean apply( final ServiceConfiguration filterConfig ) {
+        ComponentId filteredComponent = filterConfig.getComponentId( );
+        ComponentId destComponent = config.getComponentId( );
+        if ( filteredComponent.isDistributedService( ) ) {
+          if ( destComponent.isAlwaysLocal( ) ) {
+            return filterConfig.lookupState( ).ordinal( ) >= Component.State.STOPPED.ordinal( );
+          } else if ( destComponent.isPartitioned( ) && filteredComponent.isPartitioned( ) ) {
+            return config.getPartition( ).equals( filterConfig.getPartition( ) );
+          } else {
+            return true;
+          }
+        } else {
+          return false;
+        }
+      }
+    };
+    Function<ServiceConfiguration, ServiceId> typeMapper = TypeMappers.lookup( ServiceConfiguration.class, ServiceId.class );
+    final TopologySnapshots.Snapshot snapshot = new TopologySnapshots.Snapshot( );
+    for ( ServiceConfiguration s : Topology.getInstance( ).getServices( ).values( ) ) {
+      if ( filter.apply( s ) ) {
+        snapshot.getServices( ).add( typeMapper.apply( s ) );
+      }
+    }
+    
+    for ( Component c : Components.list( ) ) {
+      for ( ServiceConfiguration s : c.services( ) ) {
+        if ( filter.apply( s ) ) {
+          if ( State.DISABLED.apply( s ) ) {
+            snapshot.getDisabledServices( ).add( typeMapper.apply( s ) );
+          } else if ( State.STOPPED.apply( s ) ) {
+            snapshot.getStoppedServices( ).add( typeMapper.apply( s ) );
+          } else if ( State.NOTREADY.ordinal( ) >= s.getStateMachine( ).getState( ).ordinal( ) ) {
+            snapshot.getNotreadyServices( ).add( typeMapper.apply( s ) );
+          } else if (State.ENABLED.apply(s) && c.getComponentId().isManyToOnePartition() && c.getComponentId().isDistributedService()) {
+        	  //Add many-to-one distributed services that are enabled.
+        	  snapshot.getServices( ).add(typeMapper.apply(s));
+          }
+        }
+      }
+    }
+    return snapshot;
+  }
+
   public static void touch( final ServiceTransitionType msg ) {//TODO:GRZE: @Service interceptor
     if ( !Hosts.isCoordinator( ) && msg.get_epoch( ) != null ) {
       update( Iterables.concat(
@@ -495,6 +509,7 @@ public class Topology {
       @Override
       public boolean nextEpoch( ) {
         Topology.this.currentEpoch++;
+        TopologySnapshots.changed( );
         return true;
       }
       
@@ -511,6 +526,7 @@ public class Topology {
           return true;
         } else {
           Topology.this.currentEpoch++;
+          TopologySnapshots.changed( );
           LOG.trace( "tryEnable():true   " + Topology.this.toString( ) + " => " + config );
           return true;
         }
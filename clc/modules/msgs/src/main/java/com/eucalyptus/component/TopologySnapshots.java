@@ -0,0 +1,183 @@
+/*************************************************************************
+ * Copyright 2009-2014 Eucalyptus Systems, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ *
+ * Please contact Eucalyptus Systems, Inc., 6755 Hollister Ave., Goleta
+ * CA 93117, USA or visit http://www.eucalyptus.com/licenses/ if you need
+ * additional information or have any questions.
+ ************************************************************************/
+package com.eucalyptus.component;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import com.eucalyptus.empyrean.ServiceId;
+import com.eucalyptus.util.Mbeans;
+import com.google.common.base.Supplier;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import edu.ucsb.eucalyptus.msgs.BaseMessage;
+
+/**
+ * Cache of the service lists attached to outbound messages.
+ *
+ * <p>Snapshots are keyed by destination and are valid for a single topology
+ * version. The version changes on any service state transition, service
+ * (de)registration or change to the enabled services, snapshots are also
+ * rebuilt once they reach a maximum age.</p>
+ */
+public class TopologySnapshots {
+  private static final AtomicLong                     version    = new AtomicLong( );
+  private static final ConcurrentMap<String, Snapshot> snapshots  = Maps.newConcurrentMap( );
+  private static final SnapshotStatistics             statistics = new SnapshotStatistics( );
+  private static final AtomicBoolean                  registered = new AtomicBoolean( false );
+
+  /**
+   * Invalidate all snapshots.
+   */
+  static void changed( ) {
+    version.incrementAndGet( );
+  }
+
+  /**
+   * Lookup the snapshot for the given destination, building it if there is
+   * no snapshot for the current topology version.
+   *
+   * <p>The version is read before building so a snapshot that raced with a
+   * topology change is discarded on the next lookup.</p>
+   */
+  static Snapshot lookup( final String key, final long maxAgeMillis, final Supplier<Snapshot> builder ) {
+    if ( registered.compareAndSet( false, true ) ) {
+      Mbeans.register( statistics );
+    }
+    final long currentVersion = version.get( );
+    final long now = System.currentTimeMillis( );
+    final Snapshot cached = snapshots.get( key );
+    if ( cached != null && cached.version == currentVersion && ( now - cached.created ) <= maxAgeMillis ) {
+      statistics.reused.incrementAndGet( );
+      return cached;
+    } else {
+      final Snapshot snapshot = builder.get( );
+      snapshot.version = currentVersion;
+      snapshot.created = now;
+      snapshots.put( key, snapshot );
+      statistics.built.incrementAndGet( );
+      return snapshot;
+    }
+  }
+
+  /**
+   * Add the snapshot service lists to the given message.
+   */
+  static void send( final Snapshot snapshot, final BaseMessage msg ) {
+    msg.get_services( ).addAll( snapshot.services );
+    msg.get_disabledServices( ).addAll( snapshot.disabledServices );
+    msg.get_stoppedServices( ).addAll( snapshot.stoppedServices );
+    msg.get_notreadyServices( ).addAll( snapshot.notreadyServices );
+    statistics.sent.addAndGet( snapshot.size( ) );
+  }
+
+  /**
+   * Record that the snapshot service lists were not needed for a message.
+   */
+  static void omit( final Snapshot snapshot ) {
+    statistics.omitted.addAndGet( snapshot.size( ) );
+  }
+
+  static void clear( ) {
+    snapshots.clear( );
+    changed( );
+  }
+
+  public static SnapshotStatistics getStatistics( ) {
+    return statistics;
+  }
+
+  /**
+   * Service lists for a destination, the lists must not be modified once the
+   * snapshot is cached.
+   */
+  static class Snapshot {
+    private final ArrayList<ServiceId> services         = Lists.newArrayList( );
+    private final ArrayList<ServiceId> disabledServices = Lists.newArrayList( );
+    private final ArrayList<ServiceId> stoppedServices  = Lists.newArrayList( );
+    private final ArrayList<ServiceId> notreadyServices = Lists.newArrayList( );
+    private volatile long              version;
+    private volatile long              created;
+
+    ArrayList<ServiceId> getServices( ) {
+      return this.services;
+    }
+
+    ArrayList<ServiceId> getDisabledServices( ) {
+      return this.disabledServices;
+    }
+
+    ArrayList<ServiceId> getStoppedServices( ) {
+      return this.stoppedServices;
+    }
+
+    ArrayList<ServiceId> getNotreadyServices( ) {
+      return this.notreadyServices;
+    }
+
+    int size( ) {
+      return this.services.size( ) + this.disabledServices.size( ) + this.stoppedServices.size( ) + this.notreadyServices.size( );
+    }
+  }
+
+  public static class SnapshotStatistics {
+    private final AtomicLong built   = new AtomicLong( );
+    private final AtomicLong reused  = new AtomicLong( );
+    private final AtomicLong sent    = new AtomicLong( );
+    private final AtomicLong omitted = new AtomicLong( );
+
+    /**
+     * @return the number of snapshots built by walking the registered services
+     */
+    public long getBuilt( ) {
+      return this.built.get( );
+    }
+
+    /**
+     * @return the number of messages that used a cached snapshot
+     */
+    public long getReused( ) {
+      return this.reused.get( );
+    }
+
+    /**
+     * @return the number of service ids sent with messages
+     */
+    public long getSent( ) {
+      return this.sent.get( );
+    }
+
+    /**
+     * @return the number of service ids omitted from messages that carry only the epoch
+     */
+    public long getOmitted( ) {
+      return this.omitted.get( );
+    }
+
+    public long getVersion( ) {
+      return version.get( );
+    }
+
+    public int getSnapshots( ) {
+      return snapshots.size( );
+    }
+  }
+}
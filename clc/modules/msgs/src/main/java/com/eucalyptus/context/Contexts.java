@@ -140,6 +140,10 @@ public class Contexts {
     tlContext.set( ctx );
   }
   
+  static Context threadLocal( ) {
+    return tlContext.get( );
+  }
+  
   public static void removeThreadLocal( ) {//GRZE: really unhappy these are public.
     tlContext.remove( );
   }
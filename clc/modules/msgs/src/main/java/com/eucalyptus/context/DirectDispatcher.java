@@ -0,0 +1,330 @@
+/*************************************************************************
+ * Copyright 2009-2014 Eucalyptus Systems, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ *
+ * Please contact Eucalyptus Systems, Inc., 6755 Hollister Ave., Goleta
+ * CA 93117, USA or visit http://www.eucalyptus.com/licenses/ if you need
+ * additional information or have any questions.
+ ************************************************************************/
+
+package com.eucalyptus.context;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.log4j.Logger;
+import org.mule.api.MuleContext;
+import org.mule.api.component.Component;
+import org.mule.api.component.JavaComponent;
+import org.mule.api.lifecycle.Disposable;
+import org.mule.api.lifecycle.Initialisable;
+import org.mule.api.lifecycle.Startable;
+import org.mule.api.lifecycle.Stoppable;
+import org.mule.api.object.ObjectFactory;
+import org.mule.api.processor.MessageProcessor;
+import org.mule.api.routing.OutboundRouterCollection;
+import org.mule.api.service.Service;
+import com.eucalyptus.component.ComponentId;
+import com.eucalyptus.system.Threads;
+import com.eucalyptus.util.Mbeans;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import edu.ucsb.eucalyptus.msgs.BaseMessage;
+
+/**
+ * In-process dispatch of messages to local service components.
+ * 
+ * Services whose model is a single plain java component (no outbound routing, no mule lifecycle
+ * or callable interfaces) are invoked directly using the component method that accepts the
+ * message type, on a bounded per-component worker pool. Anything else is left to the service bus.
+ * 
+ * The method table is cached per service and message type and is discarded whenever the service
+ * bus context is rebuilt.
+ */
+class DirectDispatcher {
+  private static final Logger                                  LOG        = Logger.getLogger( DirectDispatcher.class );
+  private static final AtomicReference<MuleContext>            muleCtx    = new AtomicReference<MuleContext>( );
+  private static final ConcurrentMap<String, ServiceTable>     services   = Maps.newConcurrentMap( );
+  private static final ThreadLocal<String>                     worker     = new ThreadLocal<String>( );
+  private static final DispatchStatistics                      statistics = new DispatchStatistics( );
+  private static final AtomicBoolean                           registered = new AtomicBoolean( false );
+  
+  /**
+   * Lookup the direct dispatch target for the given message.
+   * 
+   * @return the target or null if the message must be sent using the service bus
+   */
+  static Target lookup( final ComponentId componentId, final String service, final Object msg ) throws Exception {
+    if ( registered.compareAndSet( false, true ) ) {
+      Mbeans.register( statistics );
+    }
+    if ( !( msg instanceof BaseMessage ) ) {
+      statistics.fallbacks.incrementAndGet( );
+      return null;
+    }
+    final MuleContext context = ServiceContextManager.getContext( );
+    final MuleContext previous = muleCtx.get( );
+    if ( previous != context && muleCtx.compareAndSet( previous, context ) ) {
+      services.clear( );
+    }
+    ServiceTable table = services.get( service );
+    if ( table == null ) {
+      final ServiceTable newTable = ServiceTable.resolve( context, componentId, service );
+      table = services.putIfAbsent( service, newTable );
+      if ( table == null ) {
+        table = newTable;
+      }
+    }
+    final Target target = table.lookup( msg.getClass( ) );
+    if ( target == null ) {
+      statistics.fallbacks.incrementAndGet( );
+    }
+    return target;
+  }
+  
+  private static Exception rethrow( final Throwable cause ) {
+    if ( cause instanceof Exception ) {
+      return ( Exception ) cause;
+    } else if ( cause instanceof Error ) {
+      throw ( Error ) cause;
+    } else {
+      return new ServiceDispatchException( String.valueOf( cause ), cause );
+    }
+  }
+  
+  static DispatchStatistics statistics( ) {
+    return statistics;
+  }
+  
+  static class ServiceTable {
+    private final String                            service;
+    private final MuleContext                       context;
+    private final ObjectFactory                     factory;
+    private final ExecutorService                   executor;
+    private final ConcurrentMap<Class<?>, Target>   targets = Maps.newConcurrentMap( );
+    private final AtomicReference<Object>           singleton = new AtomicReference<Object>( );
+    
+    private ServiceTable( final String service,
+                          final MuleContext context,
+                          final ObjectFactory factory,
+                          final ExecutorService executor ) {
+      this.service = service;
+      this.context = context;
+      this.factory = factory;
+      this.executor = executor;
+    }
+    
+    static ServiceTable resolve( final MuleContext context, final ComponentId componentId, final String service ) {
+      final Service muleService = context.getRegistry( ).lookupService( service );
+      if ( muleService == null ) {
+        LOG.debug( "Direct dispatch disabled for unknown service: " + service );
+        return new ServiceTable( service, context, null, null );
+      }
+      final Component component = muleService.getComponent( );
+      final MessageProcessor outbound = muleService.getOutboundMessageProcessor( );
+      if ( !( component instanceof JavaComponent ) ) {
+        LOG.debug( "Direct dispatch disabled for service " + service + " with component: " + component );
+        return new ServiceTable( service, context, null, null );
+      } else if ( outbound != null && ( !( outbound instanceof OutboundRouterCollection )
+                                        || !( ( OutboundRouterCollection ) outbound ).getRoutes( ).isEmpty( ) ) ) {
+        LOG.debug( "Direct dispatch disabled for service " + service + " with outbound routing: " + outbound );
+        return new ServiceTable( service, context, null, null );
+      }
+      final ObjectFactory factory = ( ( JavaComponent ) component ).getObjectFactory( );
+      final Class<?> type = factory == null ? null : factory.getObjectClass( );
+      if ( type == null
+           || org.mule.api.lifecycle.Callable.class.isAssignableFrom( type )
+           || Initialisable.class.isAssignableFrom( type )
+           || Startable.class.isAssignableFrom( type )
+           || Stoppable.class.isAssignableFrom( type )
+           || Disposable.class.isAssignableFrom( type ) ) {
+        LOG.debug( "Direct dispatch disabled for service " + service + " with component class: " + type );
+        return new ServiceTable( service, context, null, null );
+      }
+      final ExecutorService executor = Threads.lookup( componentId.getClass( ), DirectDispatcher.class, service )
+                                              .limitTo( ServiceContext.DIRECT_DISPATCH_WORKERS );
+      return new ServiceTable( service, context, factory, executor );
+    }
+    
+    Target lookup( final Class<?> messageType ) {
+      if ( this.factory == null ) {
+        return null;
+      }
+      Target target = this.targets.get( messageType );
+      if ( target == null ) {
+        final Method method = resolveMethod( this.factory.getObjectClass( ), messageType );
+        target = new Target( this, method );
+        this.targets.putIfAbsent( messageType, target );
+      }
+      return target.method == null ? null : target;
+    }
+    
+    Object instance( final Method method ) throws Exception {
+      if ( Modifier.isStatic( method.getModifiers( ) ) ) {
+        return null;
+      } else if ( this.factory.isSingleton( ) ) {
+        Object instance = this.singleton.get( );
+        if ( instance == null ) {
+          this.singleton.compareAndSet( null, this.factory.getInstance( this.context ) );
+          instance = this.singleton.get( );
+        }
+        return instance;
+      } else {
+        return this.factory.getInstance( this.context );
+      }
+    }
+    
+    /**
+     * Resolve the public single argument method accepting the message type, the most specific
+     * parameter type wins. Ambiguous matches are left for the service bus entry point resolvers.
+     */
+    private static Method resolveMethod( final Class<?> type, final Class<?> messageType ) {
+      final List<Method> candidates = Lists.newArrayList( );
+      for ( final Method method : type.getMethods( ) ) {
+        if ( method.getDeclaringClass( ) != Object.class
+             && !method.isBridge( )
+             && method.getParameterTypes( ).length == 1
+             && method.getParameterTypes( )[0].isAssignableFrom( messageType ) ) {
+          candidates.add( method );
+        }
+      }
+      Method best = null;
+      for ( final Method candidate : candidates ) {
+        final Class<?> param = candidate.getParameterTypes( )[0];
+        if ( best == null || best.getParameterTypes( )[0].isAssignableFrom( param ) ) {
+          best = candidate;
+        }
+      }
+      if ( best != null ) {
+        for ( final Method candidate : candidates ) {
+          if ( candidate != best && candidate.getParameterTypes( )[0].equals( best.getParameterTypes( )[0] ) ) {
+            return null;
+          } else if ( !candidate.getParameterTypes( )[0].isAssignableFrom( best.getParameterTypes( )[0] ) ) {
+            return null;
+          }
+        }
+      }
+      return best;
+    }
+  }
+  
+  static class Target {
+    private final ServiceTable table;
+    private final Method       method;
+    
+    private Target( final ServiceTable table, final Method method ) {
+      this.table = table;
+      this.method = method;
+    }
+    
+    /**
+     * Invoke the component method on the component worker pool. Calls made from any dispatch
+     * worker are run on the calling thread, so nested or cyclic sends cannot exhaust the
+     * bounded pools while waiting on each other.
+     */
+    Object invoke( final BaseMessage msg ) throws Exception {
+      statistics.direct.incrementAndGet( );
+      final Callable<Object> call = this.callable( msg );
+      if ( worker.get( ) != null ) {
+        return call.call( );
+      }
+      try {
+        return this.table.executor.submit( call ).get( );
+      } catch ( final ExecutionException e ) {
+        throw rethrow( e.getCause( ) );
+      }
+    }
+    
+    /**
+     * Invoke the component method on the component worker pool without waiting for the result,
+     * the given context is cleared once the invocation completes.
+     */
+    void dispatch( final BaseMessage msg, final Context wrapped ) throws Exception {
+      statistics.direct.incrementAndGet( );
+      final Callable<Object> call = this.callable( msg );
+      this.table.executor.submit( new Callable<Object>( ) {
+        @Override
+        public Object call( ) throws Exception {
+          try {
+            return call.call( );
+          } catch ( final Exception e ) {
+            LOG.error( "Failed to dispatch message " + msg.getClass( ).getSimpleName( ) + " to service " + Target.this.table.service
+                       + " because: " + e.getMessage( ), e );
+            throw e;
+          } finally {
+            if ( wrapped != null ) {
+              Contexts.clear( wrapped );
+            }
+          }
+        }
+      } );
+    }
+    
+    private Callable<Object> callable( final BaseMessage msg ) throws NoSuchContextException {
+      final Context context = Contexts.exists( msg.getCorrelationId( ) )
+        ? Contexts.lookup( msg.getCorrelationId( ) )
+        : null;
+      return new Callable<Object>( ) {
+        @Override
+        public Object call( ) throws Exception {
+          final String outer = worker.get( );
+          final Context outerContext = Contexts.threadLocal( );
+          worker.set( Target.this.table.service );
+          Contexts.threadLocal( context );
+          try {
+            return Target.this.method.invoke( Target.this.table.instance( Target.this.method ), msg );
+          } catch ( final InvocationTargetException e ) {
+            throw rethrow( e.getCause( ) );
+          } finally {
+            if ( outerContext == null ) {
+              Contexts.removeThreadLocal( );
+            } else {
+              Contexts.threadLocal( outerContext );
+            }
+            if ( outer == null ) {
+              worker.remove( );
+            } else {
+              worker.set( outer );
+            }
+          }
+        }
+      };
+    }
+  }
+  
+  public static class DispatchStatistics {
+    private final AtomicLong direct    = new AtomicLong( );
+    private final AtomicLong fallbacks = new AtomicLong( );
+    
+    public long getDirect( ) {
+      return this.direct.get( );
+    }
+    
+    public long getFallbacks( ) {
+      return this.fallbacks.get( );
+    }
+    
+    public int getServices( ) {
+      return services.size( );
+    }
+  }
+}
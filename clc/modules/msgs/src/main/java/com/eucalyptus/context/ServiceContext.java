@@ -98,6 +98,7 @@ import com.eucalyptus.configurable.PropertyChangeListener;
 import com.eucalyptus.empyrean.Empyrean;
 import com.eucalyptus.system.Threads;
 import com.eucalyptus.util.Exceptions;
+import com.google.common.base.Throwables;
 import edu.ucsb.eucalyptus.msgs.BaseMessage;
 
 @ConfigurableClass( root = "bootstrap.servicebus", description = "Parameters having to do with the service bus." )
@@ -112,6 +113,10 @@ public class ServiceContext {
   public static Integer                        HUP                      = 0;
   @ConfigurableField( initial = "64", description = "Internal connector core pool size." )
   public static Integer                        MIN_SCHEDULER_CORE_SIZE  = 64;
+  @ConfigurableField( initial = "true", description = "Invoke local service components directly where possible instead of using the service bus." )
+  public static Boolean                        DIRECT_DISPATCH          = Boolean.TRUE;
+  @ConfigurableField( initial = "32", description = "Max worker threads per component for direct dispatch.", changeListener = HupListener.class )
+  public static Integer                        DIRECT_DISPATCH_WORKERS  = 32;
   
   public static class HupListener implements PropertyChangeListener {
     @Override
@@ -186,10 +191,66 @@ public class ServiceContext {
     } );
   }
   
+  /**
+   * Dispatch to the local service for the component, directly when the service supports it.
+   * 
+   * @see #dispatch(String, Object)
+   */
+  public static void dispatch( ComponentId dest, Object msg ) throws Exception {
+    if ( Boolean.TRUE.equals( DIRECT_DISPATCH ) ) {
+      final String service = ServiceContextManager.mapEndpointToService( dest.getLocalEndpointName( ) );
+      final DirectDispatcher.Target target = DirectDispatcher.lookup( dest, service, msg );
+      if ( target != null ) {
+        dispatchDirect( target, service, ( BaseMessage ) msg );
+        return;
+      }
+    }
+    dispatch( dest.getLocalEndpointName( ), msg );
+  }
+  
+  private static void dispatchDirect( DirectDispatcher.Target target, String dest, BaseMessage msg ) throws Exception {
+    Context ctx = Contexts.createWrapped( dest, msg );
+    try {
+      target.dispatch( msg, ctx );
+    } catch ( Exception e ) {
+      if ( ctx != null ) {
+        Contexts.clear( ctx );
+      }
+      throw new ServiceDispatchException( "Failed to dispatch message " + msg.getClass( ).getSimpleName( ) + " to service " + dest
+                                          + " because: " + e.getMessage( ), e );
+    }
+  }
+  
   public static <T> T send( ComponentId dest, Object msg ) throws Exception {
+    if ( Boolean.TRUE.equals( DIRECT_DISPATCH ) ) {
+      final String service = ServiceContextManager.mapEndpointToService( dest.getLocalEndpointName( ) );
+      final DirectDispatcher.Target target = DirectDispatcher.lookup( dest, service, msg );
+      if ( target != null ) {
+        return sendDirect( target, service, ( BaseMessage ) msg );
+      }
+    }
     return send( dest.getLocalEndpointName( ), msg );
   }
   
+  private static <T> T sendDirect( DirectDispatcher.Target target, String dest, BaseMessage msg ) throws Exception {
+    Context ctx = Contexts.createWrapped( dest, msg );
+    try {
+      try {
+        return ( T ) target.invoke( msg );
+      } catch ( Exception e ) {
+        final Throwable root = Throwables.getRootCause( e );
+        throw Exceptions.trace( new ServiceDispatchException( root.getMessage( ), root ) );
+      }
+    } catch ( Exception e ) {
+      throw Exceptions.trace( new ServiceDispatchException( "Failed to send message " + msg.getClass( ).getSimpleName( ) + " to service " + dest
+                                                                  + " because: " + e.getMessage( ), e ) );
+    } finally {
+      if ( ctx != null ) {
+        Contexts.clear( ctx );
+      }
+    }
+  }
+  
   public static <T> T send( String dest, Object msg ) throws Exception {
     dest = ServiceContextManager.mapEndpointToService( dest );
     MuleEvent context = RequestContext.getEvent( );
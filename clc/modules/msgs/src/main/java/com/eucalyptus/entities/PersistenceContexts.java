@@ -166,7 +166,46 @@ public class PersistenceContexts {
       return 1.0d;
     }
   }
-  
+
+  /**
+   * Interface for module specific persistence context configuration.
+   *
+   * <p>The configure method is invoked for each persistence context
+   * after its entities are registered and prior to creation of the
+   * entity manager factory.</p>
+   */
+  public static interface PersistenceContextConfigurer {
+    void configure( String persistenceContext, Ejb3Configuration configuration );
+  }
+
+  public static class PersistenceContextConfigurerDiscovery extends ServiceJarDiscovery {
+    static final List<PersistenceContextConfigurer> configurers = new CopyOnWriteArrayList<PersistenceContextConfigurer>();
+
+    static void configure( final String persistenceContext, final Ejb3Configuration configuration ) {
+      for ( final PersistenceContextConfigurer configurer : configurers ) {
+        try {
+          configurer.configure( persistenceContext, configuration );
+        } catch ( final RuntimeException ex ) {
+          LOG.error( "-> Error configuring persistence context " + persistenceContext + " with " + configurer.getClass( ).getName( ), ex );
+        }
+      }
+    }
+
+    @Override
+    public boolean processClass( final Class candidate ) throws Exception {
+      if ( PersistenceContextConfigurer.class.isAssignableFrom( candidate ) && Modifier.isPublic(candidate.getModifiers()) ) {
+        configurers.add( ((Class<PersistenceContextConfigurer>) candidate).newInstance() );
+        return true;
+      }
+      return false;
+    }
+
+    @Override
+    public Double getPriority( ) {
+      return 1.0d;
+    }
+  }
+
   public static boolean isPersistentClass( Class candidate ) {
     return isSharedEntityClass( candidate ) || isEntityClass( candidate );
   }
@@ -237,6 +276,7 @@ public class PersistenceContexts {
     if ( !emf.containsKey( persistenceContext ) ) {
       try {
         LOG.trace( "-> Setting up persistence context for: " + persistenceContext );
+        PersistenceContextConfigurerDiscovery.configure( persistenceContext, config );
         EntityManagerFactoryImpl entityManagerFactory = ( EntityManagerFactoryImpl ) config.buildEntityManagerFactory( );
         LOG.trace( LogUtil.subheader( LogUtil.dumpObject( config ) ) );
         emf.put( persistenceContext, entityManagerFactory );
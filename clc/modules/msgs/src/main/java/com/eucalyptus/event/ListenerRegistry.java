@@ -62,6 +62,7 @@
 
 package com.eucalyptus.event;
 
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
@@ -227,13 +228,33 @@ public class ListenerRegistry {
   }
   
   public static class ReentrantListenerRegistry<T> {
-    private Multimap<T, EventListener> listenerMap;
-    private Lock                       modificationLock;
+    private Multimap<T, EventListener>                  listenerMap;
+    private Lock                                        modificationLock;
+    private volatile Map<T, List<EventListener>>        listenerSnapshot;
     
     public ReentrantListenerRegistry( ) {
       super( );
       this.listenerMap = ArrayListMultimap.create( );
       this.modificationLock = new ReentrantLock( );
+      this.listenerSnapshot = Collections.emptyMap( );
+    }
+    
+    /**
+     * Update the snapshot of listeners used to fire events, caller must hold the modification lock.
+     */
+    private void updateSnapshot( ) {
+      final Map<T, List<EventListener>> snapshot = Maps.newHashMap( );
+      for ( T type : this.listenerMap.keySet( ) ) {
+        snapshot.put( type, Collections.unmodifiableList( Lists.newArrayList( this.listenerMap.get( type ) ) ) );
+      }
+      this.listenerSnapshot = snapshot;
+    }
+    
+    private List<EventListener> listeners( T type ) {
+      final List<EventListener> listeners = this.listenerSnapshot.get( type );
+      return listeners == null
+        ? Collections.<EventListener>emptyList( )
+        : listeners;
     }
     
     public void register( T type, EventListener listener ) {
@@ -248,6 +269,7 @@ public class ListenerRegistry {
       try {
         if ( !this.listenerMap.containsEntry( type, listener ) ) {
           this.listenerMap.put( type, listener );
+          this.updateSnapshot( );
         }
       } finally {
         this.modificationLock.unlock( );
@@ -264,7 +286,9 @@ public class ListenerRegistry {
       }
       this.modificationLock.lock( );
       try {
-        this.listenerMap.remove( type, listener );
+        if ( this.listenerMap.remove( type, listener ) ) {
+          this.updateSnapshot( );
+        }
       } finally {
         this.modificationLock.unlock( );
       }
@@ -279,31 +303,18 @@ public class ListenerRegistry {
                               e.getClass( ).getCanonicalName( ) ).trace( );
         }     
         this.listenerMap.removeAll( type );
+        this.updateSnapshot( );
       } finally {
         this.modificationLock.unlock( );
       }
     }
     
     public void fireEvent( T type, Event e ) throws EventFailedException {
-      List<EventListener> listeners;
-      this.modificationLock.lock( );
-      try {
-        listeners = Lists.newArrayList( this.listenerMap.get( type ) );
-      } finally {
-        this.modificationLock.unlock( );
-      }
-      this.fireEvent( e, listeners, false );
+      this.fireEvent( e, this.listeners( type ), false );
     }
     
     public void fireThrowableEvent(T type, Event e) throws EventFailedException {
-    	 List<EventListener> listeners;
-         this.modificationLock.lock( );
-         try {
-           listeners = Lists.newArrayList( this.listenerMap.get( type ) );
-         } finally {
-           this.modificationLock.unlock( );
-         }
-         this.fireEvent( e, listeners, true );
+      this.fireEvent( e, this.listeners( type ), true );
     }
     
     private void fireEvent( Event e, List<EventListener> listeners, boolean throwException) throws EventFailedException {
@@ -0,0 +1,412 @@
+/*************************************************************************
+ * Copyright 2009-2014 Eucalyptus Systems, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ *
+ * Please contact Eucalyptus Systems, Inc., 6755 Hollister Ave., Goleta
+ * CA 93117, USA or visit http://www.eucalyptus.com/licenses/ if you need
+ * additional information or have any questions.
+ ************************************************************************/
+package com.eucalyptus.event;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+import com.eucalyptus.bootstrap.Databases;
+import com.eucalyptus.configurable.ConfigurableClass;
+import com.eucalyptus.configurable.ConfigurableField;
+import com.eucalyptus.configurable.ConfigurableProperty;
+import com.eucalyptus.configurable.ConfigurablePropertyException;
+import com.eucalyptus.configurable.PropertyChangeListener;
+import com.eucalyptus.util.Mbeans;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+
+/**
+ * Scheduler for {@link IntervalListener}s.
+ *
+ * <p>Listeners are held on a hashed timing wheel that is advanced by a single
+ * timer thread. Due listeners are run on a bounded worker pool, so a slow
+ * listener does not delay any other listener. Each listener has at most one
+ * run queued or in progress, a listener that is due while it is still running
+ * skips that run. This also holds when a listener is cancelled and scheduled
+ * again while a run is in progress.</p>
+ */
+@ConfigurableClass( root = "bootstrap.timer",
+                    description = "Parameters controlling the system timer." )
+public class ListenerScheduler {
+  private static final Logger            LOG          = Logger.getLogger( ListenerScheduler.class );
+
+  @ConfigurableField( description = "Number of threads used to run scheduled listeners.",
+                      initial = "8", changeListener = SchedulerThreadsChangeListener.class )
+  public static Integer                  THREADS      = 8;
+
+  private static final long              TICK_MILLIS  = 100L;
+  private static final int               WHEEL_SIZE   = 512;
+  private static final ListenerScheduler instance     = new ListenerScheduler( "SystemScheduler", THREADS, TICK_MILLIS, WHEEL_SIZE );
+
+  private final String                                              name;
+  private final long                                                tickMillis;
+  private final int                                                 wheelSize;
+  private final ThreadPoolExecutor                                  workers;
+  private final ConcurrentMap<IntervalListener, ScheduledListener> listeners = Maps.newConcurrentMap( );
+  private final ConcurrentMap<IntervalListener, AtomicBoolean>     runGuards = new MapMaker( ).weakKeys( ).makeMap( );
+  private final Queue<ScheduledListener>                            added     = new ConcurrentLinkedQueue<ScheduledListener>( );
+  private final AtomicBoolean                                       running   = new AtomicBoolean( false );
+  private final AtomicBoolean                                       registered = new AtomicBoolean( false );
+  private volatile Thread                                           timer;
+
+  public static class SchedulerThreadsChangeListener implements PropertyChangeListener {
+    @Override
+    public void fireChange( ConfigurableProperty t, Object newValue ) throws ConfigurablePropertyException {
+      try {
+        instance.setThreads( Integer.parseInt( ( String ) newValue ) );
+      } catch ( Exception ex ) {
+        throw new ConfigurablePropertyException( "Invalid number of threads: " + newValue );
+      }
+    }
+  }
+
+  ListenerScheduler( final String name,
+                     final int threads,
+                     final long tickMillis,
+                     final int wheelSize ) {
+    final AtomicInteger count = new AtomicInteger( );
+    this.name = name;
+    this.tickMillis = tickMillis;
+    this.wheelSize = wheelSize;
+    // Each listener has at most one queued run so the queue is bounded by the number of listeners
+    this.workers = new ThreadPoolExecutor( threads, threads, 60, TimeUnit.SECONDS,
+                                           new LinkedBlockingQueue<Runnable>( ),
+                                           new ThreadFactory( ) {
+                                             @Override
+                                             public Thread newThread( final Runnable runnable ) {
+                                               final Thread thread = new Thread( runnable, name + "-" + count.incrementAndGet( ) );
+                                               thread.setDaemon( true );
+                                               return thread;
+                                             }
+                                           } );
+    this.workers.allowCoreThreadTimeOut( true );
+  }
+
+  public static ListenerScheduler getInstance( ) {
+    return instance;
+  }
+
+  /**
+   * Schedule a listener, this has no effect if the listener is already scheduled.
+   */
+  public static void register( final IntervalListener listener ) {
+    instance.schedule( listener );
+  }
+
+  public static void deregister( final IntervalListener listener ) {
+    instance.cancel( listener );
+  }
+
+  public void schedule( final IntervalListener listener ) {
+    final ScheduledListener scheduled = new ScheduledListener( listener, runGuard( listener ) );
+    if ( this.listeners.putIfAbsent( listener, scheduled ) == null ) {
+      this.added.add( scheduled );
+    }
+  }
+
+  public void cancel( final IntervalListener listener ) {
+    final ScheduledListener scheduled = this.listeners.remove( listener );
+    if ( scheduled != null ) {
+      scheduled.cancelled = true;
+    }
+  }
+
+  /**
+   * The guard for runs of the listener, shared by every scheduling of the listener.
+   */
+  private AtomicBoolean runGuard( final IntervalListener listener ) {
+    AtomicBoolean guard = this.runGuards.get( listener );
+    if ( guard == null ) {
+      final AtomicBoolean newGuard = new AtomicBoolean( false );
+      guard = this.runGuards.putIfAbsent( listener, newGuard );
+      if ( guard == null ) {
+        guard = newGuard;
+      }
+    }
+    return guard;
+  }
+
+  /**
+   * Get the statistics for each scheduled listener.
+   */
+  public Collection<ScheduledListener> getListeners( ) {
+    return Collections.unmodifiableCollection( this.listeners.values( ) );
+  }
+
+  public SchedulerStatistics getStatistics( ) {
+    return new SchedulerStatistics( );
+  }
+
+  public void start( ) {
+    if ( this.running.compareAndSet( false, true ) ) {
+      if ( this.registered.compareAndSet( false, true ) ) {
+        Mbeans.register( getStatistics( ) );
+      }
+      this.timer = new Thread( new Runnable( ) {
+        @Override
+        public void run( ) {
+          runTimer( );
+        }
+      }, this.name + "Timer" );
+      this.timer.setDaemon( true );
+      this.timer.start( );
+    }
+  }
+
+  public void stop( ) {
+    if ( this.running.compareAndSet( true, false ) ) {
+      final Thread timer = this.timer;
+      if ( timer != null ) {
+        timer.interrupt( );
+      }
+      this.workers.shutdown( );
+    }
+  }
+
+  void setThreads( final int threads ) {
+    if ( threads < 1 ) throw new IllegalArgumentException( "Invalid number of threads: " + threads );
+    if ( threads > this.workers.getMaximumPoolSize( ) ) {
+      this.workers.setMaximumPoolSize( threads );
+      this.workers.setCorePoolSize( threads );
+    } else {
+      this.workers.setCorePoolSize( threads );
+      this.workers.setMaximumPoolSize( threads );
+    }
+  }
+
+  /**
+   * Runs are skipped while the database is not available.
+   */
+  protected boolean isSuspended( ) {
+    return Databases.isVolatile( );
+  }
+
+  private void runTimer( ) {
+    final TimingWheel<ScheduledListener> wheel =
+        new TimingWheel<ScheduledListener>( System.currentTimeMillis( ), this.tickMillis, this.wheelSize );
+    while ( this.running.get( ) ) {
+      try {
+        ScheduledListener scheduled;
+        while ( ( scheduled = this.added.poll( ) ) != null ) {
+          scheduled.dueMillis = System.currentTimeMillis( ) + scheduled.interval( );
+          wheel.add( scheduled, scheduled.dueMillis );
+        }
+        final long sleepMillis = wheel.getNextTickTime( ) - System.currentTimeMillis( );
+        if ( sleepMillis > 0 ) {
+          Thread.sleep( sleepMillis );
+        }
+        final long now = System.currentTimeMillis( );
+        final boolean suspended = isSuspended( );
+        for ( final ScheduledListener due : wheel.advance( ) ) {
+          if ( !due.cancelled ) {
+            dispatch( due, suspended );
+            due.dueMillis = due.nextDueMillis( now );
+            wheel.add( due, due.dueMillis );
+          }
+        }
+      } catch ( InterruptedException e ) {
+        Thread.currentThread( ).interrupt( );
+        break;
+      } catch ( Exception e ) {
+        LOG.error( e, e );
+      }
+    }
+  }
+
+  private void dispatch( final ScheduledListener scheduled, final boolean suspended ) {
+    if ( suspended ) {
+      return;
+    } else if ( !scheduled.running.compareAndSet( false, true ) ) {
+      scheduled.skipped.incrementAndGet( );
+      LOG.debug( "Skipping run for listener still in progress: " + scheduled.getName( ) );
+    } else {
+      scheduled.scheduledMillis = scheduled.dueMillis;
+      try {
+        this.workers.execute( scheduled );
+      } catch ( RejectedExecutionException e ) {
+        scheduled.running.set( false );
+        scheduled.skipped.incrementAndGet( );
+      }
+    }
+  }
+
+  /**
+   * A scheduled listener and its statistics.
+   */
+  public static class ScheduledListener implements Runnable {
+    private final IntervalListener listener;
+    private final AtomicBoolean    running;
+    private final AtomicLong       runs          = new AtomicLong( );
+    private final AtomicLong       skipped       = new AtomicLong( );
+    private final AtomicLong       failures      = new AtomicLong( );
+    private final AtomicLong       lastLagMillis = new AtomicLong( );
+    private final AtomicLong       maxLagMillis  = new AtomicLong( );
+    private final AtomicLong       lastRunMillis = new AtomicLong( );
+    private final AtomicLong       maxRunMillis  = new AtomicLong( );
+    private final AtomicLong       totalRunMillis = new AtomicLong( );
+    private volatile boolean       cancelled     = false;
+    private volatile long          scheduledMillis;
+    private long                   dueMillis; // timer thread only
+
+    private ScheduledListener( final IntervalListener listener, final AtomicBoolean running ) {
+      this.listener = listener;
+      this.running = running;
+    }
+
+    @Override
+    public void run( ) {
+      final long startMillis = System.currentTimeMillis( );
+      try {
+        this.listener.fire( );
+      } catch ( Exception ex ) {
+        this.failures.incrementAndGet( );
+        LOG.error( "Failed to run listener " + getName( ) + " because of: " + ex.getMessage( ), ex );
+      } finally {
+        final long endMillis = System.currentTimeMillis( );
+        update( this.lastLagMillis, this.maxLagMillis, Math.max( 0, startMillis - this.scheduledMillis ) );
+        update( this.lastRunMillis, this.maxRunMillis, endMillis - startMillis );
+        this.totalRunMillis.addAndGet( endMillis - startMillis );
+        this.runs.incrementAndGet( );
+        this.running.set( false );
+      }
+    }
+
+    /**
+     * Fixed rate scheduling, any runs missed while the timer was delayed are skipped.
+     */
+    private long nextDueMillis( final long now ) {
+      final long interval = interval( );
+      long next = this.dueMillis + interval;
+      if ( next <= now ) {
+        final long missed = ( now - next ) / interval + 1;
+        this.skipped.addAndGet( missed );
+        next += missed * interval;
+      }
+      return next;
+    }
+
+    private long interval( ) {
+      try {
+        return Math.max( 1L, this.listener.getIntervalMillis( ) );
+      } catch ( Exception ex ) {
+        LOG.error( "Error getting interval for listener " + getName( ), ex );
+        return TimeUnit.MINUTES.toMillis( 1 );
+      }
+    }
+
+    private static void update( final AtomicLong last, final AtomicLong max, final long value ) {
+      last.set( value );
+      long current;
+      while ( ( current = max.get( ) ) < value && !max.compareAndSet( current, value ) );
+    }
+
+    public IntervalListener getListener( ) {
+      return this.listener;
+    }
+
+    public String getName( ) {
+      return this.listener.getClass( ).getName( );
+    }
+
+    public boolean isRunning( ) {
+      return this.running.get( );
+    }
+
+    public long getRuns( ) {
+      return this.runs.get( );
+    }
+
+    public long getSkipped( ) {
+      return this.skipped.get( );
+    }
+
+    public long getFailures( ) {
+      return this.failures.get( );
+    }
+
+    public long getLastLagMillis( ) {
+      return this.lastLagMillis.get( );
+    }
+
+    public long getMaxLagMillis( ) {
+      return this.maxLagMillis.get( );
+    }
+
+    public long getLastRunMillis( ) {
+      return this.lastRunMillis.get( );
+    }
+
+    public long getMaxRunMillis( ) {
+      return this.maxRunMillis.get( );
+    }
+
+    public long getTotalRunMillis( ) {
+      return this.totalRunMillis.get( );
+    }
+
+    @Override
+    public String toString( ) {
+      return getName( ) + " runs=" + getRuns( ) + " skipped=" + getSkipped( ) + " failures=" + getFailures( )
+             + " lagMs=" + getLastLagMillis( ) + "/" + getMaxLagMillis( )
+             + " runMs=" + getLastRunMillis( ) + "/" + getMaxRunMillis( ) + "/" + getTotalRunMillis( );
+    }
+  }
+
+  public class SchedulerStatistics {
+    public int getThreads( ) {
+      return workers.getMaximumPoolSize( );
+    }
+
+    public int getActiveThreads( ) {
+      return workers.getActiveCount( );
+    }
+
+    public int getQueued( ) {
+      return workers.getQueue( ).size( );
+    }
+
+    /**
+     * Statistics for each listener, keyed by listener class name.
+     */
+    public Map<String, String> getListeners( ) {
+      final Map<String, String> statistics = Maps.newTreeMap( );
+      for ( final ScheduledListener scheduled : listeners.values( ) ) {
+        String key = scheduled.getName( );
+        for ( int i = 2; statistics.containsKey( key ); i++ ) {
+          key = scheduled.getName( ) + "#" + i;
+        }
+        statistics.put( key, scheduled.toString( ) );
+      }
+      return statistics;
+    }
+  }
+}
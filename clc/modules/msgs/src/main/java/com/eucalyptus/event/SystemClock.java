@@ -127,6 +127,7 @@ public class SystemClock extends TimerTask implements UncaughtExceptionHandler {
         ListenerRegistry.getInstance( ).register( Hertz.class, new Dummy( ) );
         timer.scheduleAtFixedRate( clock, 0, RATE );//TODO: make configurable
         hzTimer.scheduleAtFixedRate( hertz, 0, 1000 );
+        ListenerScheduler.getInstance( ).start( );
         OrderedShutdown.registerPreShutdownHook( new Runnable( ) {
           @Override
           public void run( ) {
@@ -140,6 +141,13 @@ public class SystemClock extends TimerTask implements UncaughtExceptionHandler {
             hzTimer.cancel( );
           }
         } );
+        OrderedShutdown.registerPreShutdownHook( new Runnable( ) {
+          
+          @Override
+          public void run( ) {
+            ListenerScheduler.getInstance( ).stop( );
+          }
+        } );
       }
     }
   }
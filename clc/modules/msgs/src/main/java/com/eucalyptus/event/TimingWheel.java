@@ -0,0 +1,114 @@
+/*************************************************************************
+ * Copyright 2009-2014 Eucalyptus Systems, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ *
+ * Please contact Eucalyptus Systems, Inc., 6755 Hollister Ave., Goleta
+ * CA 93117, USA or visit http://www.eucalyptus.com/licenses/ if you need
+ * additional information or have any questions.
+ ************************************************************************/
+package com.eucalyptus.event;
+
+import java.util.Iterator;
+import java.util.List;
+import com.google.common.collect.Lists;
+
+/**
+ * Hashed timing wheel.
+ *
+ * <p>Items are hashed into a bucket by the tick they are due, an item due more
+ * than one rotation away stays in its bucket until the wheel reaches its tick.
+ * Adding an item is constant time and advancing the wheel only visits the
+ * items in one bucket.</p>
+ *
+ * <p>The wheel is not thread safe.</p>
+ */
+class TimingWheel<T> {
+  private final long startMillis;
+  private final long tickMillis;
+  private final List<List<Due<T>>> buckets;
+  private long tick = 0;
+  private int size = 0;
+
+  TimingWheel( final long startMillis,
+               final long tickMillis,
+               final int wheelSize ) {
+    if ( tickMillis < 1 ) throw new IllegalArgumentException( "Invalid tick: " + tickMillis );
+    if ( wheelSize < 1 ) throw new IllegalArgumentException( "Invalid wheel size: " + wheelSize );
+    this.startMillis = startMillis;
+    this.tickMillis = tickMillis;
+    this.buckets = Lists.newArrayListWithCapacity( wheelSize );
+    for ( int i = 0; i < wheelSize; i++ ) {
+      this.buckets.add( Lists.<Due<T>>newArrayList( ) );
+    }
+  }
+
+  long getTickMillis( ) {
+    return this.tickMillis;
+  }
+
+  /**
+   * Get the time of the next tick.
+   */
+  long getNextTickTime( ) {
+    return this.startMillis + ( this.tick + 1 ) * this.tickMillis;
+  }
+
+  int size( ) {
+    return this.size;
+  }
+
+  /**
+   * Add an item, an item that is already due expires on the next tick.
+   *
+   * @param item The item
+   * @param dueMillis The time the item is due
+   */
+  void add( final T item, final long dueMillis ) {
+    final long dueTick = Math.max(
+        this.tick + 1,
+        ( dueMillis - this.startMillis + this.tickMillis - 1 ) / this.tickMillis );
+    this.buckets.get( ( int ) ( dueTick % this.buckets.size( ) ) ).add( new Due<T>( item, dueTick ) );
+    this.size++;
+  }
+
+  /**
+   * Advance the wheel by one tick.
+   *
+   * @return The items that are due
+   */
+  List<T> advance( ) {
+    this.tick++;
+    final List<T> expired = Lists.newArrayList( );
+    final Iterator<Due<T>> iterator = this.buckets.get( ( int ) ( this.tick % this.buckets.size( ) ) ).iterator( );
+    while ( iterator.hasNext( ) ) {
+      final Due<T> due = iterator.next( );
+      if ( due.tick <= this.tick ) {
+        iterator.remove( );
+        expired.add( due.item );
+        this.size--;
+      }
+    }
+    return expired;
+  }
+
+  private static final class Due<T> {
+    private final T item;
+    private final long tick;
+
+    private Due( final T item, final long tick ) {
+      this.item = item;
+      this.tick = tick;
+    }
+  }
+}
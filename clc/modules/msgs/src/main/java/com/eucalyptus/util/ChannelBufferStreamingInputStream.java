@@ -23,6 +23,7 @@ package com.eucalyptus.util;
 import java.io.IOException;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 import org.jboss.netty.buffer.ChannelBuffer;
@@ -37,8 +38,20 @@ public class ChannelBufferStreamingInputStream extends ChannelBufferInputStream
 	private ChannelBuffer b;
 	private LinkedBlockingQueue<ChannelBuffer> buffers;
 	private int bytesRead;
+	private final AtomicLong bytesBuffered = new AtomicLong( );
+	private volatile DrainListener drainListener;
 
-	//This field controls the size of the queue of channel buffers used for uploads.
+	/**
+	 * Listener notified as buffered data is consumed by the reader.
+	 */
+	public interface DrainListener {
+		void drained( ChannelBufferStreamingInputStream stream, int bytes );
+	}
+
+	//This field controls the number of channel buffers queued for an upload before
+	//reading from the client is suspended. The queue itself is not bounded so the
+	//I/O thread never blocks, chunks already decoded when reading is suspended are
+	//still accepted.
 	//A large queue will require more memory and may possibly cause an OOM condition if
 	//enough heap space is not provided to the JVM.
 	//A smaller queue will limit the number of concurrent requests that can be handled
@@ -52,6 +65,7 @@ public class ChannelBufferStreamingInputStream extends ChannelBufferInputStream
 	}
 
 	private static final Logger LOG = Logger.getLogger(ChannelBufferStreamingInputStream.class); 
+	private static final int SKIP_BUFFER_SIZE = 8192;
 
 	@Override
 	public int available() throws IOException {
@@ -107,9 +121,10 @@ public class ChannelBufferStreamingInputStream extends ChannelBufferInputStream
 						toReadFromThisBuffer = len; 
 					}
 					b.readBytes(bytes, off, toReadFromThisBuffer);
+					drained(toReadFromThisBuffer);
 					len = len - toReadFromThisBuffer;
 					readSoFar += toReadFromThisBuffer;
-					off += readSoFar;
+					off += toReadFromThisBuffer;
 				} else {
 					try {
 						int retries = 0;
@@ -138,7 +153,9 @@ public class ChannelBufferStreamingInputStream extends ChannelBufferInputStream
 
 	@Override
 	public int read() throws IOException {
-		return super.read();
+		final byte[] single = new byte[1];
+		final int read = read(single, 0, 1);
+		return read <= 0 ? -1 : single[0] & 0xff;
 	}
 
 	@Override
@@ -157,40 +174,72 @@ public class ChannelBufferStreamingInputStream extends ChannelBufferInputStream
 	 * 
 	 * This will effectively discard anything in the stream up to n. 
 	 * In this implementation, you cannot go back once you have skipped past.
+	 * Skipped bytes are read from the queued buffers so they count as drained.
 	 */
 	@Override
 	public long skip(long n) throws IOException {
-		return super.skip(n);
+		if (n <= 0) {
+			return 0;
+		}
+		final byte[] skipBuffer = new byte[(int) Math.min(n, SKIP_BUFFER_SIZE)];
+		long skipped = 0;
+		while (skipped < n) {
+			final int read = read(skipBuffer, 0, (int) Math.min(n - skipped, skipBuffer.length));
+			if (read <= 0) {
+				break;
+			}
+			skipped += read;
+		}
+		return skipped;
 	}
 
 	public ChannelBufferStreamingInputStream(ChannelBuffer buffer) {
 		super(buffer);
-		buffers = new LinkedBlockingQueue<ChannelBuffer>(QUEUE_SIZE);
+		buffers = new LinkedBlockingQueue<ChannelBuffer>();
 		b = buffer;
 		bytesRead = 0;
-		try {
-			boolean success = false;
-			int retries = 0;
-			while ((!success) && (retries++ < 20)) {
-				success = buffers.offer(buffer, 1, TimeUnit.SECONDS);
-			}
-			if (!success) {
-				LOG.error("Timed out writing data to stream.");
-			}
-		} catch (InterruptedException e) {
-			LOG.error(e, e);			
-		}
+		bytesBuffered.set(buffer.readableBytes());
+		buffers.offer(buffer);
 	}
 
+	/**
+	 * Queue a chunk for the reader, this never blocks the caller.
+	 *
+	 * Callers are expected to stop reading from the client once {@link #getChunksBuffered()}
+	 * reaches {@link #QUEUE_SIZE}.
+	 */
 	public void putChunk(ChannelBuffer input) throws InterruptedException, EucalyptusCloudException {
-		boolean success = false;
-		int retries = 0;
-		while ((!success) && (retries++ < 20)) {
-			success = buffers.offer(input, 1, TimeUnit.SECONDS);
+		bytesBuffered.addAndGet(input.readableBytes());
+		if (!buffers.offer(input)) {
+			bytesBuffered.addAndGet(-input.readableBytes());
+			LOG.error("Failed writing data to stream.");
+			throw new EucalyptusCloudException("Aborting upload, could not queue data for processing.");
 		}
-		if (!success) {
-			LOG.error("Timed out writing data to stream.");
-			throw new EucalyptusCloudException("Aborting upload, could not process data in time. Either increase the upload queue size or retry the upload later.");
+	}
+
+	/**
+	 * @return The number of bytes received but not yet read from this stream.
+	 */
+	public long getBytesBuffered() {
+		return bytesBuffered.get();
+	}
+
+	/**
+	 * @return The number of chunks received but not yet taken by the reader.
+	 */
+	public int getChunksBuffered() {
+		return buffers.size();
+	}
+
+	public void setDrainListener(DrainListener drainListener) {
+		this.drainListener = drainListener;
+	}
+
+	private void drained(int bytes) {
+		bytesBuffered.addAndGet(-bytes);
+		final DrainListener listener = drainListener;
+		if (listener != null) {
+			listener.drained(this, bytes);
 		}
 	}
 
@@ -69,17 +69,17 @@ import java.net.SocketAddress;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 import org.apache.log4j.Logger;
-import org.jboss.netty.bootstrap.ClientBootstrap;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelEvent;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandlerContext;
-import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
 import org.jboss.netty.channel.ExceptionEvent;
 import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpMethod;
 import org.jboss.netty.handler.codec.http.HttpRequest;
 import org.jboss.netty.handler.codec.http.HttpVersion;
@@ -93,7 +93,6 @@ import com.eucalyptus.records.EventType;
 import com.eucalyptus.records.Logs;
 import com.eucalyptus.util.Exceptions;
 import com.eucalyptus.ws.EucalyptusRemoteFault;
-import com.eucalyptus.ws.WebServices;
 import edu.ucsb.eucalyptus.msgs.BaseMessage;
 
 /**
@@ -104,10 +103,14 @@ import edu.ucsb.eucalyptus.msgs.BaseMessage;
 public class AsyncRequestHandler<Q extends BaseMessage, R extends BaseMessage> implements RequestHandler<Q, R> {
   private static Logger                LOG           = Logger.getLogger( AsyncRequestHandler.class );
   
-  private ClientBootstrap              clientBootstrap;
-  private ChannelFuture                connectFuture;
+  private ServiceConfiguration         config;
+  private ClientChannelPool            channelPool;
+  private volatile ChannelFuture       connectFuture;
+  private volatile boolean             reusedChannel = false;
+  private volatile boolean             responseReceived = false;
   
   private final AtomicBoolean          writeComplete = new AtomicBoolean( false );
+  private final AtomicBoolean          retried       = new AtomicBoolean( false );
   private final CheckedListenableFuture<R>   response;
   private transient AtomicReference<Q> request       = new AtomicReference<Q>( null );
   
@@ -127,80 +130,123 @@ public class AsyncRequestHandler<Q extends BaseMessage, R extends BaseMessage> i
       LOG.warn( "Duplicate write attempt for request: " + this.request.get( ).getClass( ).getSimpleName( ) );
       return false;
     } else {
-      final SocketAddress serviceSocketAddress = config.getSocketAddress( );
-      final ChannelPipelineFactory factory = config.getComponentId( ).getClientPipeline( );
       try {
-        this.clientBootstrap = WebServices.clientBootstrap( new ChannelPipelineFactory( ) {
-          @Override
-          public ChannelPipeline getPipeline( ) throws Exception {
-            final ChannelPipeline pipeline = factory.getPipeline( );
-            pipeline.addLast( "request-handler", AsyncRequestHandler.this );
-            return pipeline;
-          }
-        } );
+        this.config = config;
+        this.channelPool = ClientChannelPool.lookup( config, config.getComponentId( ).getClientPipeline( ) );
+        this.send( true );
+        return true;
+      } catch ( final Exception t ) {
+        LOG.error( t, t );
+        this.teardown( t );
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Send the request on a pooled channel if one is idle and reuse is permitted, else on a new
+   * channel.
+   */
+  private void send( final boolean reuse ) {
+    final ServiceConfiguration config = this.config;
+    final Q request = this.request.get( );
+    final SocketAddress serviceSocketAddress = config.getSocketAddress( );
+    final ChannelPipelineFactory factory = config.getComponentId( ).getClientPipeline( );
 //TODO:GRZE: better logging here        LOG.debug( request.getClass( ).getSimpleName( ) + ":" + request.getCorrelationId( ) + " connecting to " + serviceSocketAddress );
-        Logs.extreme( ).debug( EventRecord.here( request.getClass( ), EventClass.SYSTEM_REQUEST, EventType.CHANNEL_OPENING, request.getClass( ).getSimpleName( ),
-                          request.getCorrelationId( ), serviceSocketAddress.toString( ) ) );
-        this.connectFuture = this.clientBootstrap.connect( serviceSocketAddress );
-        final HttpRequest httpRequest = new MappingHttpRequest( HttpVersion.HTTP_1_1, HttpMethod.POST, config, this.request.get( ) );
-        
-        this.connectFuture.addListener( new ChannelFutureListener( ) {
-          @Override
-          public void operationComplete( final ChannelFuture future ) throws Exception {
-            try {
-              if ( future.isSuccess( ) ) {
-                Logs.extreme( ).debug( "Connected as: " + future.getChannel( ).getLocalAddress( ) );
-                
-                final InetAddress localAddr = ( ( InetSocketAddress ) future.getChannel( ).getLocalAddress( ) ).getAddress( );
-                if ( !factory.getClass( ).getSimpleName( ).startsWith( "GatherLog" ) ) {
-                  Topology.populateServices( config, AsyncRequestHandler.this.request.get( ) );
-                }
+    Logs.extreme( ).debug( EventRecord.here( request.getClass( ), EventClass.SYSTEM_REQUEST, EventType.CHANNEL_OPENING, request.getClass( ).getSimpleName( ),
+                      request.getCorrelationId( ), serviceSocketAddress.toString( ) ) );
+    final Channel idleChannel = reuse ? this.channelPool.reuse( this ) : null;
+    this.reusedChannel = idleChannel != null;
+    this.connectFuture = idleChannel != null ?
+        Channels.succeededFuture( idleChannel ) :
+        this.channelPool.connect( this );
+    final HttpRequest httpRequest = new MappingHttpRequest( HttpVersion.HTTP_1_1, HttpMethod.POST, config, request );
+    
+    this.connectFuture.addListener( new ChannelFutureListener( ) {
+      @Override
+      public void operationComplete( final ChannelFuture future ) throws Exception {
+        try {
+          if ( future.isSuccess( ) ) {
+            Logs.extreme( ).debug( "Connected as: " + future.getChannel( ).getLocalAddress( ) );
+            
+            final InetAddress localAddr = ( ( InetSocketAddress ) future.getChannel( ).getLocalAddress( ) ).getAddress( );
+            if ( !factory.getClass( ).getSimpleName( ).startsWith( "GatherLog" ) ) {
+              Topology.populateServices( config, AsyncRequestHandler.this.request.get( ) );
+            }
 
+            Logs.extreme( ).debug(
+              EventRecord.here(
+                request.getClass( ),
+                EventClass.SYSTEM_REQUEST,
+                EventType.CHANNEL_OPEN,
+                request.getClass( ).getSimpleName( ),
+                request.getCorrelationId( ),
+                serviceSocketAddress.toString( ),
+                "" + future.getChannel( ).getLocalAddress( ),
+                "" + future.getChannel( ).getRemoteAddress( ) ) );
+            Logs.extreme( ).debug( httpRequest );
+            
+            future.getChannel( ).write( httpRequest ).addListener( new ChannelFutureListener( ) {
+              @Override
+              public void operationComplete( final ChannelFuture future ) throws Exception {
+                if ( !future.isSuccess( ) ) {
+                  AsyncRequestHandler.this.writeFailed( future.getChannel( ), future.getCause( ) );
+                  return;
+                }
+                AsyncRequestHandler.this.writeComplete.set( true );
+                
                 Logs.extreme( ).debug(
                   EventRecord.here(
                     request.getClass( ),
                     EventClass.SYSTEM_REQUEST,
-                    EventType.CHANNEL_OPEN,
+                    EventType.CHANNEL_WRITE,
                     request.getClass( ).getSimpleName( ),
                     request.getCorrelationId( ),
                     serviceSocketAddress.toString( ),
                     "" + future.getChannel( ).getLocalAddress( ),
                     "" + future.getChannel( ).getRemoteAddress( ) ) );
-                Logs.extreme( ).debug( httpRequest );
-                
-                future.getChannel( ).write( httpRequest ).addListener( new ChannelFutureListener( ) {
-                  @Override
-                  public void operationComplete( final ChannelFuture future ) throws Exception {
-                    AsyncRequestHandler.this.writeComplete.set( true );
-                    
-                    Logs.extreme( ).debug(
-                      EventRecord.here(
-                        request.getClass( ),
-                        EventClass.SYSTEM_REQUEST,
-                        EventType.CHANNEL_WRITE,
-                        request.getClass( ).getSimpleName( ),
-                        request.getCorrelationId( ),
-                        serviceSocketAddress.toString( ),
-                        "" + future.getChannel( ).getLocalAddress( ),
-                        "" + future.getChannel( ).getRemoteAddress( ) ) );
-                  }
-                } );
-              } else {
-                AsyncRequestHandler.this.teardown( future.getCause( ) );
               }
-            } catch ( final Exception ex ) {
-              LOG.error( ex, ex );
-              AsyncRequestHandler.this.teardown( ex );
-            }
+            } );
+          } else {
+            AsyncRequestHandler.this.teardown( future.getCause( ) );
           }
-        } );
-        return true;
-      } catch ( final Exception t ) {
-        LOG.error( t, t );
-        this.teardown( t );
-        return false;
+        } catch ( final Exception ex ) {
+          LOG.error( ex, ex );
+          AsyncRequestHandler.this.teardown( ex );
+        }
+      }
+    } );
+  }
+
+  private void writeFailed( final Channel channel, final Throwable cause ) {
+    if ( !this.retry( channel ) ) {
+      this.teardown( new RetryableConnectionException( "Channel write failed: " + ( cause == null ? "unknown" : cause.getMessage( ) ), cause,
+                                                       this.request.get( ) ) );
+    }
+  }
+
+  /**
+   * Retry the request once on a new channel if a reused keep-alive channel fails before any
+   * response is received. The server may have closed the idle connection as it was reused.
+   *
+   * @return True if the request was retried
+   */
+  private boolean retry( final Channel channel ) {
+    if ( this.reusedChannel && !this.responseReceived && !this.response.isDone( ) && this.retried.compareAndSet( false, true ) ) {
+      Logs.extreme( ).debug( "Retrying request on a new channel after reused channel failed: " + channel );
+      this.writeComplete.set( false );
+      try {
+        this.send( false );
+      } catch ( final Exception ex ) {
+        LOG.error( ex, ex );
+        this.teardown( ex );
       }
+      if ( channel.isOpen( ) ) {
+        channel.close( );
+      }
+      return true;
     }
+    return false;
   }
   
   private void teardown( Throwable t ) {
@@ -260,7 +306,9 @@ public class AsyncRequestHandler<Q extends BaseMessage, R extends BaseMessage> i
   
   @Override
   public void handleUpstream( final ChannelHandlerContext ctx, final ChannelEvent e ) throws Exception {
-    if ( e instanceof MessageEvent ) {
+    if ( this.isRetriedChannel( ctx.getChannel( ) ) ) {
+      Logs.extreme( ).debug( "Ignoring event for retried request channel: " + e );
+    } else if ( e instanceof MessageEvent ) {
       this.messageReceived( ctx, ( MessageEvent ) e );
     } else if ( e instanceof ChannelStateEvent ) {
       final ChannelStateEvent evt = ( ChannelStateEvent ) e;
@@ -282,7 +330,13 @@ public class AsyncRequestHandler<Q extends BaseMessage, R extends BaseMessage> i
     ctx.sendUpstream( e );
   }
   
+  private boolean isRetriedChannel( final Channel channel ) {
+    final ChannelFuture connectFuture = this.connectFuture;
+    return connectFuture != null && connectFuture.getChannel( ) != channel;
+  }
+  
   private void messageReceived( final ChannelHandlerContext ctx, final MessageEvent e ) {
+    this.responseReceived = true;
     try {
       if ( e.getMessage( ) instanceof MappingHttpResponse ) {
         final MappingHttpResponse response = ( MappingHttpResponse ) e.getMessage( );
@@ -291,9 +345,9 @@ public class AsyncRequestHandler<Q extends BaseMessage, R extends BaseMessage> i
           if ( !msg.get_return( ) ) {
             this.teardown( new FailedRequestException( "Cluster response includes _return=false", msg ) );
           } else {
+            this.channelPool.release( ctx.getChannel( ), HttpHeaders.isKeepAlive( response ) );
             this.response.set( msg );
           }
-          e.getFuture( ).addListener( ChannelFutureListener.CLOSE );
         } catch ( final Exception e1 ) {
           LOG.error( e1, e1 );
           this.teardown( e1 );
@@ -316,6 +370,9 @@ public class AsyncRequestHandler<Q extends BaseMessage, R extends BaseMessage> i
   }
   
   private void checkFinished( final ChannelHandlerContext ctx, final ChannelStateEvent evt ) {
+    if ( this.retry( ctx.getChannel( ) ) ) {
+      return;
+    }
     if ( ( this.connectFuture != null ) && !this.connectFuture.isSuccess( )
          && ( this.connectFuture.getCause( ) instanceof IOException ) ) {
       final Throwable ioError = this.connectFuture.getCause( );
@@ -340,7 +397,7 @@ public class AsyncRequestHandler<Q extends BaseMessage, R extends BaseMessage> i
     if ( cause instanceof EucalyptusRemoteFault ) {//GRZE: treat this like a normal response, set the response and close the channel.
       this.response.setException( cause );
       e.getFuture( ).addListener( ChannelFutureListener.CLOSE );
-    } else {
+    } else if ( !( cause instanceof IOException ) || !this.retry( ctx.getChannel( ) ) ) {
       this.teardown( cause );
     }
   }
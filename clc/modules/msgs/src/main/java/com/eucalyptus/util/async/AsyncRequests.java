@@ -160,5 +160,14 @@ public class AsyncRequests {
       }
     };
   }
+
+  /**
+   * Close pooled client connections for the given service.
+   *
+   * @param config The service that was deregistered
+   */
+  public static void closeChannels( final ServiceConfiguration config ) {
+    ClientChannelPool.remove( config );
+  }
   
 }
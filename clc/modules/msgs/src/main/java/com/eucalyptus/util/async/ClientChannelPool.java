@@ -0,0 +1,361 @@
+/*************************************************************************
+ * Copyright 2009-2014 Eucalyptus Systems, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ *
+ * Please contact Eucalyptus Systems, Inc., 6755 Hollister Ave., Goleta
+ * CA 93117, USA or visit http://www.eucalyptus.com/licenses/ if you need
+ * additional information or have any questions.
+ ************************************************************************/
+package com.eucalyptus.util.async;
+
+import java.net.SocketAddress;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+import org.apache.log4j.Logger;
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.ChannelUpstreamHandler;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import com.eucalyptus.component.ServiceConfiguration;
+import com.eucalyptus.event.ClockTick;
+import com.eucalyptus.event.EventListener;
+import com.eucalyptus.event.Listeners;
+import com.eucalyptus.records.Logs;
+import com.eucalyptus.util.Mbeans;
+import com.eucalyptus.ws.StackConfiguration;
+import com.eucalyptus.ws.WebServices;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Pool of HTTP/1.1 keep-alive client channels for a service.
+ *
+ * <p>Pooled channels carry a single request at a time, the request handler is installed on
+ * reuse or connect and replaced with an idle handler on release. Channels are closed when the
+ * response is not keep-alive, after the configured number of requests, after the idle timeout
+ * or on any activity while idle.</p>
+ *
+ * <p>Pools are keyed by service and client pipeline. A pool is closed when its service is
+ * deregistered or when the service is looked up with a different address.</p>
+ */
+class ClientChannelPool {
+  private static final Logger LOG = Logger.getLogger( ClientChannelPool.class );
+  private static final String REQUEST_HANDLER = "request-handler";
+  private static final ConcurrentMap<String,ClientChannelPool> pools = Maps.newConcurrentMap( );
+  private static final PoolStatistics statistics = new PoolStatistics( );
+  private static final AtomicBoolean registered = new AtomicBoolean( false );
+
+  private final String name;
+  private final String serviceName;
+  private final SocketAddress address;
+  private final ClientBootstrap bootstrap;
+  private final Deque<PooledChannel> idle = new ConcurrentLinkedDeque<PooledChannel>( );
+  private final ConcurrentMap<Channel,PooledChannel> channels = Maps.newConcurrentMap( );
+  private final AtomicInteger pooled = new AtomicInteger( 0 );
+  private volatile boolean closed = false;
+
+  private ClientChannelPool( final String name,
+                             final String serviceName,
+                             final SocketAddress address,
+                             final ChannelPipelineFactory factory ) {
+    this.name = name;
+    this.serviceName = serviceName;
+    this.address = address;
+    this.bootstrap = WebServices.clientBootstrap( factory );
+  }
+
+  static ClientChannelPool lookup( final ServiceConfiguration config,
+                                   final ChannelPipelineFactory factory ) {
+    if ( registered.compareAndSet( false, true ) ) {
+      Listeners.register( ClockTick.class, new IdleChannelSweeper( ) );
+      Mbeans.register( statistics );
+    }
+    final SocketAddress address = config.getSocketAddress( );
+    final String serviceName = config.getFullName( ).toString( );
+    final String name = serviceName + "/" + factory.getClass( ).getName( );
+    ClientChannelPool pool = pools.get( name );
+    if ( pool != null && !pool.address.equals( address ) ) {
+      if ( pools.remove( name, pool ) ) {
+        pool.close( );
+      }
+      pool = null;
+    }
+    if ( pool == null ) {
+      final ClientChannelPool newPool = new ClientChannelPool( name, serviceName, address, factory );
+      pool = pools.putIfAbsent( name, newPool );
+      if ( pool == null ) {
+        pool = newPool;
+      }
+    }
+    return pool;
+  }
+
+  /**
+   * Close the pools for a service, idle channels are closed and in use channels are closed
+   * when released.
+   */
+  static void remove( final ServiceConfiguration config ) {
+    final String serviceName = config.getFullName( ).toString( );
+    for ( final Map.Entry<String,ClientChannelPool> entry : pools.entrySet( ) ) {
+      final ClientChannelPool pool = entry.getValue( );
+      if ( pool.serviceName.equals( serviceName ) && pools.remove( entry.getKey( ), pool ) ) {
+        pool.close( );
+      }
+    }
+  }
+
+  /**
+   * Take an idle channel from the pool and install the given handler as the request handler.
+   *
+   * @return The channel or null if there are no idle channels
+   */
+  @Nullable
+  Channel reuse( final ChannelHandler handler ) {
+    final long start = System.nanoTime( );
+    PooledChannel pooledChannel;
+    while ( ( pooledChannel = idle.pollFirst( ) ) != null ) {
+      if ( pooledChannel.isHealthy( ) ) {
+        pooledChannel.channel.getPipeline( ).replace( REQUEST_HANDLER, REQUEST_HANDLER, handler );
+        statistics.reused.incrementAndGet( );
+        statistics.waitNanos.addAndGet( System.nanoTime( ) - start );
+        return pooledChannel.channel;
+      } else {
+        close( pooledChannel.channel, "unhealthy" );
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Open a new channel with the given handler installed as the request handler.
+   *
+   * @return A future for the connected channel
+   */
+  ChannelFuture connect( final ChannelHandler handler ) {
+    final long start = System.nanoTime( );
+    final ChannelFuture connectFuture = bootstrap.connect( address );
+    final Channel channel = connectFuture.getChannel( );
+    channel.getPipeline( ).addLast( REQUEST_HANDLER, handler );
+    final boolean poolable = StackConfiguration.CLIENT_CONNECTION_POOL &&
+        pooled.incrementAndGet( ) <= StackConfiguration.CLIENT_CONNECTION_POOL_MAX;
+    if ( poolable ) {
+      final PooledChannel newPooledChannel = new PooledChannel( channel );
+      channels.put( channel, newPooledChannel );
+      channel.getCloseFuture( ).addListener( new ChannelFutureListener( ) {
+        @Override
+        public void operationComplete( final ChannelFuture future ) {
+          channels.remove( channel );
+          idle.remove( newPooledChannel );
+          pooled.decrementAndGet( );
+        }
+      } );
+    } else if ( StackConfiguration.CLIENT_CONNECTION_POOL ) {
+      pooled.decrementAndGet( );
+    }
+    statistics.connected.incrementAndGet( );
+    connectFuture.addListener( new ChannelFutureListener( ) {
+      @Override
+      public void operationComplete( final ChannelFuture future ) {
+        statistics.waitNanos.addAndGet( System.nanoTime( ) - start );
+      }
+    } );
+    return connectFuture;
+  }
+
+  /**
+   * Release a channel after a request completed.
+   *
+   * @param channel The channel to release
+   * @param keepAlive True if the response permits reuse of the connection
+   */
+  void release( final Channel channel, final boolean keepAlive ) {
+    final PooledChannel pooledChannel = channels.get( channel );
+    if ( pooledChannel == null ) {
+      close( channel, "unpooled" );
+    } else if ( closed ) {
+      close( channel, "pool closed" );
+    } else if ( !keepAlive || !StackConfiguration.CLIENT_CONNECTION_POOL ) {
+      close( channel, "not keep-alive" );
+    } else if ( pooledChannel.requests.incrementAndGet( ) >= StackConfiguration.CLIENT_CONNECTION_POOL_MAX_REQUESTS ) {
+      close( channel, "request limit" );
+    } else if ( !channel.isConnected( ) ) {
+      close( channel, "disconnected" );
+    } else {
+      final ChannelPipeline pipeline = channel.getPipeline( );
+      if ( pipeline.get( REQUEST_HANDLER ) != null ) {
+        pipeline.replace( REQUEST_HANDLER, REQUEST_HANDLER, new IdleChannelHandler( ) );
+      } else {
+        pipeline.addLast( REQUEST_HANDLER, new IdleChannelHandler( ) );
+      }
+      pooledChannel.lastUsed = System.currentTimeMillis( );
+      idle.offerFirst( pooledChannel );
+      if ( closed && idle.remove( pooledChannel ) ) {
+        close( channel, "pool closed" );
+      }
+    }
+  }
+
+  private void close( ) {
+    closed = true;
+    PooledChannel pooledChannel;
+    while ( ( pooledChannel = idle.pollFirst( ) ) != null ) {
+      close( pooledChannel.channel, "pool closed" );
+    }
+  }
+
+  private void evictIdle( ) {
+    final List<PooledChannel> expired = Lists.newArrayList( );
+    for ( final PooledChannel pooledChannel : idle ) {
+      if ( !pooledChannel.isHealthy( ) ) {
+        expired.add( pooledChannel );
+      }
+    }
+    for ( final PooledChannel pooledChannel : expired ) {
+      if ( idle.remove( pooledChannel ) ) {
+        statistics.evicted.incrementAndGet( );
+        close( pooledChannel.channel, "idle" );
+      }
+    }
+  }
+
+  private void close( final Channel channel, final String reason ) {
+    Logs.extreme( ).debug( "Closing client channel for " + name + " (" + reason + "): " + channel );
+    statistics.closed.incrementAndGet( );
+    channels.remove( channel );
+    if ( channel.isOpen( ) ) {
+      channel.close( );
+    }
+  }
+
+  private static final class PooledChannel {
+    private final Channel channel;
+    private final AtomicInteger requests = new AtomicInteger( 0 );
+    private volatile long lastUsed = System.currentTimeMillis( );
+
+    private PooledChannel( final Channel channel ) {
+      this.channel = channel;
+    }
+
+    private boolean isHealthy( ) {
+      return channel.isConnected( ) && channel.isWritable( ) &&
+          ( System.currentTimeMillis( ) - lastUsed ) < TimeUnit.SECONDS.toMillis( StackConfiguration.CLIENT_CONNECTION_POOL_IDLE_SECS );
+    }
+  }
+
+  /**
+   * Handler for pooled channels between requests, any event other than a state change
+   * (e.g. an unsolicited response or a read timeout) results in the channel being closed.
+   */
+  private static final class IdleChannelHandler implements ChannelUpstreamHandler {
+    @Override
+    public void handleUpstream( final ChannelHandlerContext ctx, final ChannelEvent e ) {
+      if ( e instanceof MessageEvent || e instanceof ExceptionEvent ) {
+        Logs.extreme( ).debug( "Closing idle client channel on unexpected event: " + e );
+        ctx.getChannel( ).close( );
+      }
+    }
+  }
+
+  private static final class IdleChannelSweeper implements EventListener<ClockTick> {
+    @Override
+    public void fireEvent( final ClockTick event ) {
+      for ( final ClientChannelPool pool : pools.values( ) ) {
+        try {
+          pool.evictIdle( );
+        } catch ( final Exception ex ) {
+          LOG.error( "Error evicting idle channels for " + pool.name, ex );
+        }
+      }
+    }
+  }
+
+  /**
+   * Client channel pool counters, exported via JMX.
+   */
+  public static class PoolStatistics {
+    private final AtomicLong connected = new AtomicLong( );
+    private final AtomicLong reused = new AtomicLong( );
+    private final AtomicLong closed = new AtomicLong( );
+    private final AtomicLong evicted = new AtomicLong( );
+    private final AtomicLong waitNanos = new AtomicLong( );
+
+    public int getPools( ) {
+      return pools.size( );
+    }
+
+    public int getPooledConnections( ) {
+      int count = 0;
+      for ( final ClientChannelPool pool : pools.values( ) ) {
+        count += pool.channels.size( );
+      }
+      return count;
+    }
+
+    public int getIdleConnections( ) {
+      int count = 0;
+      for ( final ClientChannelPool pool : pools.values( ) ) {
+        count += pool.idle.size( );
+      }
+      return count;
+    }
+
+    public long getConnected( ) {
+      return connected.get( );
+    }
+
+    public long getReused( ) {
+      return reused.get( );
+    }
+
+    public long getClosed( ) {
+      return closed.get( );
+    }
+
+    public long getEvicted( ) {
+      return evicted.get( );
+    }
+
+    public double getReuseRatio( ) {
+      final long total = connected.get( ) + reused.get( );
+      return total == 0 ? 0d : ( double ) reused.get( ) / ( double ) total;
+    }
+
+    public double getAverageWaitMillis( ) {
+      final long total = connected.get( ) + reused.get( );
+      return total == 0 ? 0d : ( double ) waitNanos.get( ) / ( double ) total / 1000000d;
+    }
+
+    @Override
+    public String toString( ) {
+      return String.format( "ClientChannelPool:pools=%d:pooled=%d:idle=%d:reuseRatio=%.3f:avgWaitMillis=%.2f",
+          getPools( ), getPooledConnections( ), getIdleConnections( ), getReuseRatio( ), getAverageWaitMillis( ) );
+    }
+  }
+}
@@ -497,6 +497,29 @@ public class DnsResolvers extends ServiceJarDiscovery {
     return 0.5d;
   }
   
+  /**
+   * Returns a key identifying the resolvers which accept the query from the given source.
+   * 
+   * Resolvers answer using only the query, so responses for the same query and key are
+   * interchangeable regardless of the source address.
+   * 
+   * @param queryRecord
+   * @param source
+   * @return
+   */
+  public static String resolverKey( final Record queryRecord,
+                                    final InetAddress source ) {
+    if ( !enabled || !Bootstrap.isOperational( ) ) {
+      return "";
+    } else {
+      final StringBuilder key = new StringBuilder( );
+      for ( final DnsResolver resolver : DnsResolvers.resolversFor( queryRecord, source ) ) {
+        key.append( resolver.getClass( ).getSimpleName( ) ).append( ',' );
+      }
+      return key.toString( );
+    }
+  }
+  
   public static SetResponse findRecords( final Message response,
                                          final Record queryRecord,
                                          final InetAddress source ) {
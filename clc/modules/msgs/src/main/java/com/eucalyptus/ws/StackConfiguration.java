@@ -168,6 +168,18 @@ public class StackConfiguration extends AbstractPersistent {
   @ConfigurableField( description = "Client idle timeout (secs)." )
   public static Integer       CLIENT_INTERNAL_TIMEOUT_SECS      = 60;
   
+  @ConfigurableField( description = "Reuse keep-alive connections for internal service requests." )
+  public static Boolean       CLIENT_CONNECTION_POOL            = Boolean.TRUE;
+  
+  @ConfigurableField( description = "Maximum number of pooled connections per service." )
+  public static Integer       CLIENT_CONNECTION_POOL_MAX        = 8;
+  
+  @ConfigurableField( description = "Maximum number of requests sent on a pooled connection before it is closed." )
+  public static Integer       CLIENT_CONNECTION_POOL_MAX_REQUESTS = 500;
+  
+  @ConfigurableField( description = "Idle time after which pooled connections are closed (secs)." )
+  public static Integer       CLIENT_CONNECTION_POOL_IDLE_SECS  = 15;
+  
   @ConfigurableField( description = "Cluster connect timeout (ms)." )
   public static Long          CLUSTER_CONNECT_TIMEOUT_MILLIS    = 2000L;
   
@@ -221,7 +221,7 @@ public abstract class ServiceDispatcher implements Dispatcher {
     public void dispatch( BaseMessage msg ) {
       MuleEvent context = RequestContext.getEvent( );
       try {
-        ServiceContext.dispatch( this.getServiceConfiguration( ).getComponentId( ).getLocalEndpointName( ), msg );
+        ServiceContext.dispatch( this.getComponentId( ), msg );
       } catch ( Exception e ) {
         LOG.error( e );
       } finally {
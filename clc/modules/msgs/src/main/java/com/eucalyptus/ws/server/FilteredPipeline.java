@@ -132,6 +132,21 @@ public abstract class FilteredPipeline implements HasName<FilteredPipeline>, Fil
   
   @Override
   public abstract boolean checkAccepts( HttpRequest message );
+
+  /**
+   * Check if this pipeline could accept requests for the given path.
+   *
+   * <p>This must hold for every request the pipeline accepts. It is evaluated once per path
+   * when building the routing candidates, a pipeline is only asked to accept requests for
+   * which it is routable.</p>
+   *
+   * @param path The request path, without any query string
+   * @param soap True if the request has a SOAPAction header
+   * @return True if the pipeline could accept the request
+   */
+  public boolean checkRoutable( final String path, final boolean soap ) {
+    return true;
+  }
   
   @Override
   public final int compareTo( final FilteredPipeline o ) {
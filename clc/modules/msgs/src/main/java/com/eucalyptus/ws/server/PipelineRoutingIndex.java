@@ -0,0 +1,386 @@
+/*************************************************************************
+ * Copyright 2009-2014 Eucalyptus Systems, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ *
+ * Please contact Eucalyptus Systems, Inc., 6755 Hollister Ave., Goleta
+ * CA 93117, USA or visit http://www.eucalyptus.com/licenses/ if you need
+ * additional information or have any questions.
+ ************************************************************************/
+package com.eucalyptus.ws.server;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import javax.annotation.Nullable;
+import org.apache.log4j.Logger;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import com.eucalyptus.component.ComponentId;
+import com.eucalyptus.component.ComponentIds;
+import com.eucalyptus.component.annotation.AwsServiceName;
+import com.eucalyptus.component.annotation.ComponentPart;
+import com.eucalyptus.component.annotation.PublicService;
+import com.eucalyptus.system.Ats;
+import com.eucalyptus.ws.protocol.SoapHandler;
+import com.google.common.base.Joiner;
+import com.google.common.base.Objects;
+import com.google.common.base.Optional;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Routing index for inbound HTTP requests.
+ *
+ * <p>Everything that can be derived from the pipeline classes (component, public service and
+ * AWS service name annotations, whether the pipeline handles SOAP) is computed once when the
+ * index is built, so routing a request does not re-read annotations or unroll pipelines.</p>
+ *
+ * <p>Requests are keyed by path and SOAPAction presence. For each key the candidate pipelines
+ * are those that are routable for the key (see {@link FilteredPipeline#checkRoutable}), in
+ * routing order. Candidates are computed once per key, routing a request only asks the
+ * candidates for its key to accept it. Pipelines that are not routable for a key can never
+ * accept requests with that key, so the first accepting candidate is the pipeline the ordered
+ * scan of all pipelines would find. Host interception decisions are cached by host.</p>
+ */
+class PipelineRoutingIndex {
+  private static final Logger LOG = Logger.getLogger( PipelineRoutingIndex.class );
+  private static final int ROUTE_CACHE_SIZE = 4096;
+  private static final RoutingStatistics statistics = new RoutingStatistics( );
+
+  private final List<Route> routes;
+  private final List<Route> internalRoutes;
+  private final List<Route> interceptRoutes;
+  private final Supplier<String> dnsDomain;
+  private final Cache<RouteKey,Candidates> candidates =
+      CacheBuilder.newBuilder( ).maximumSize( ROUTE_CACHE_SIZE ).build( );
+  private final Cache<InterceptKey,Optional<Route>> interceptedRoutes =
+      CacheBuilder.newBuilder( ).maximumSize( ROUTE_CACHE_SIZE ).build( );
+
+  private PipelineRoutingIndex( final List<Route> routes,
+                                final List<Route> internalRoutes,
+                                final Supplier<String> dnsDomain ) {
+    this.routes = routes;
+    this.internalRoutes = internalRoutes;
+    this.dnsDomain = Suppliers.memoizeWithExpiration( dnsDomain, 15, TimeUnit.SECONDS );
+    final List<Route> interceptRoutes = Lists.newArrayList( );
+    for ( final Route route : routes ) {
+      if ( route.publicService ) {
+        interceptRoutes.add( route );
+      }
+    }
+    this.interceptRoutes = ImmutableList.copyOf( interceptRoutes );
+  }
+
+  static PipelineRoutingIndex build( final Collection<FilteredPipeline> pipelines,
+                                     final Collection<FilteredPipeline> internalPipelines,
+                                     final Supplier<String> dnsDomain ) {
+    final List<Route> routes = Lists.newArrayList( );
+    for ( final FilteredPipeline pipeline : pipelines ) {
+      routes.add( new Route( pipeline ) );
+    }
+    final List<Route> internalRoutes = Lists.newArrayList( );
+    for ( final FilteredPipeline pipeline : internalPipelines ) {
+      internalRoutes.add( new Route( pipeline ) );
+    }
+    return new PipelineRoutingIndex( ImmutableList.copyOf( routes ), ImmutableList.copyOf( internalRoutes ), dnsDomain );
+  }
+
+  static RoutingStatistics statistics( ) {
+    return statistics;
+  }
+
+  @Nullable
+  FilteredPipeline find( final HttpRequest request ) {
+    final long start = System.nanoTime( );
+    final RouteKey key = RouteKey.of( request );
+    Candidates routeCandidates = candidates.getIfPresent( key );
+    final boolean hit = routeCandidates != null;
+    if ( !hit ) {
+      routeCandidates = new Candidates( routable( routes, key ), routable( internalRoutes, key ) );
+      candidates.put( key, routeCandidates );
+    }
+    Route route = findAccepting( routeCandidates.routes, request );
+    if ( route == null ) {
+      route = findIntercepting( request );
+    }
+    if ( route == null ) {
+      route = findAccepting( routeCandidates.internalRoutes, request );
+    }
+    statistics.record( route, hit, System.nanoTime( ) - start );
+    return route == null ? null : route.pipeline;
+  }
+
+  private static List<Route> routable( final List<Route> routes, final RouteKey key ) {
+    final List<Route> routable = Lists.newArrayList( );
+    for ( final Route route : routes ) {
+      if ( route.pipeline.checkRoutable( key.path, key.soap ) ) {
+        routable.add( route );
+      }
+    }
+    return ImmutableList.copyOf( routable );
+  }
+
+  @Nullable
+  private static Route findAccepting( final List<Route> routes, final HttpRequest request ) {
+    for ( final Route route : routes ) {
+      statistics.acceptChecks.incrementAndGet( );
+      if ( route.pipeline.checkAccepts( request ) ) {
+        return route;
+      }
+    }
+    return null;
+  }
+
+  @Nullable
+  private Route findIntercepting( final HttpRequest request ) {
+    final String hostHeader = request.getHeader( HttpHeaders.Names.HOST );
+    if ( hostHeader == null ) {
+      return null;
+    }
+    final String domain = dnsDomain.get( );
+    final InterceptKey key =
+        new InterceptKey( hostHeader, domain, request.getHeaderNames( ).contains( "SOAPAction" ) );
+    Optional<Route> route = interceptedRoutes.getIfPresent( key );
+    if ( route != null ) {
+      statistics.interceptHits.incrementAndGet( );
+    } else {
+      route = Optional.fromNullable( intercept( key ) );
+      interceptedRoutes.put( key, route );
+    }
+    return route.orNull( );
+  }
+
+  @Nullable
+  private Route intercept( final InterceptKey key ) {
+    if ( key.host.contains( "amazonaws.com" ) || key.host.contains( key.domain ) ) {
+      LOG.debug( "Trying to intercept request for " + key.host );
+      for ( final Route route : interceptRoutes ) {
+        if ( key.soap != route.soap ) {
+          continue;//Skip pipelines that do not match the SOAP-ness of the request
+        }
+        LOG.debug( "Maybe intercepting: " + key.host + " using " + route.pipeline.getClass( ) );
+        if ( route.awsHostPattern != null && route.awsHostPattern.matcher( key.host ).matches( ) ) {
+          return route;//Return pipeline which can handle the request for ${service}.${region}.amazonaws.com
+        } else if ( key.host.matches( "[\\w\\.-_]*" + route.serviceName + "\\." + key.domain ) ) {
+          return route;//Return pipeline which can handle the request for ${service}.${system.dns.dnsdomain}
+        }
+      }
+    }
+    return null;
+  }
+
+  private static final class Route {
+    private final FilteredPipeline pipeline;
+    private final boolean publicService;
+    private final boolean soap;
+    @Nullable private final String serviceName;
+    @Nullable private final Pattern awsHostPattern;
+
+    private Route( final FilteredPipeline pipeline ) {
+      this.pipeline = pipeline;
+      final Ats ats = Ats.from( pipeline );
+      if ( ats.has( ComponentPart.class ) ) {
+        final Class<? extends ComponentId> compIdClass = ats.get( ComponentPart.class ).value( );
+        final ComponentId compId = ComponentIds.lookup( compIdClass );
+        this.publicService = Ats.from( compIdClass ).has( PublicService.class );
+        this.serviceName = compId.name( );
+        this.awsHostPattern = Ats.from( compIdClass ).has( AwsServiceName.class ) ?
+            Pattern.compile( "[\\w\\.-_]*" + compId.getAwsServiceName( ) + "\\.\\w+\\.amazonaws.com" ) :
+            null;
+      } else {
+        this.publicService = false;
+        this.serviceName = null;
+        this.awsHostPattern = null;
+      }
+      this.soap = this.publicService && pipeline.addHandlers( Channels.pipeline( ) ).get( SoapHandler.class ) != null;
+    }
+  }
+
+  private static final class Candidates {
+    private final List<Route> routes;
+    private final List<Route> internalRoutes;
+
+    private Candidates( final List<Route> routes, final List<Route> internalRoutes ) {
+      this.routes = routes;
+      this.internalRoutes = internalRoutes;
+    }
+  }
+
+  private static final class RouteKey {
+    private final String path;
+    private final boolean soap;
+
+    private RouteKey( final String path, final boolean soap ) {
+      this.path = path;
+      this.soap = soap;
+    }
+
+    private static RouteKey of( final HttpRequest request ) {
+      return new RouteKey( path( request.getUri( ) ), request.getHeaderNames( ).contains( "SOAPAction" ) );
+    }
+
+    private static String path( final String uri ) {
+      if ( uri == null ) {
+        return "";
+      }
+      final int query = uri.indexOf( '?' );
+      return query < 0 ? uri : uri.substring( 0, query );
+    }
+
+    @Override
+    public boolean equals( final Object o ) {
+      if ( this == o ) return true;
+      if ( o == null || getClass( ) != o.getClass( ) ) return false;
+      final RouteKey that = ( RouteKey ) o;
+      return soap == that.soap &&
+          Objects.equal( path, that.path );
+    }
+
+    @Override
+    public int hashCode( ) {
+      return Objects.hashCode( path, soap );
+    }
+  }
+
+  private static final class InterceptKey {
+    private final String host;
+    private final String domain;
+    private final boolean soap;
+
+    private InterceptKey( final String host, final String domain, final boolean soap ) {
+      this.host = host;
+      this.domain = domain;
+      this.soap = soap;
+    }
+
+    @Override
+    public boolean equals( final Object o ) {
+      if ( this == o ) return true;
+      if ( o == null || getClass( ) != o.getClass( ) ) return false;
+      final InterceptKey that = ( InterceptKey ) o;
+      return soap == that.soap &&
+          Objects.equal( host, that.host ) &&
+          Objects.equal( domain, that.domain );
+    }
+
+    @Override
+    public int hashCode( ) {
+      return Objects.hashCode( host, domain, soap );
+    }
+  }
+
+  /**
+   * Routing counters, exported via JMX.
+   */
+  public static class RoutingStatistics {
+    private final AtomicLong requests = new AtomicLong( );
+    private final AtomicLong hits = new AtomicLong( );
+    private final AtomicLong interceptHits = new AtomicLong( );
+    private final AtomicLong unrouted = new AtomicLong( );
+    private final AtomicLong acceptChecks = new AtomicLong( );
+    private final AtomicLong routingNanos = new AtomicLong( );
+    private final ConcurrentMap<String,PipelineStatistics> pipelines = Maps.newConcurrentMap( );
+
+    private void record( @Nullable final Route route, final boolean hit, final long nanos ) {
+      requests.incrementAndGet( );
+      routingNanos.addAndGet( nanos );
+      if ( hit ) hits.incrementAndGet( );
+      if ( route == null ) {
+        unrouted.incrementAndGet( );
+      } else {
+        final String name = route.pipeline.getName( );
+        PipelineStatistics pipelineStatistics = pipelines.get( name );
+        if ( pipelineStatistics == null ) {
+          final PipelineStatistics newStatistics = new PipelineStatistics( );
+          pipelineStatistics = Objects.firstNonNull( pipelines.putIfAbsent( name, newStatistics ), newStatistics );
+        }
+        pipelineStatistics.record( hit, nanos );
+      }
+    }
+
+    public long getRequests( ) {
+      return requests.get( );
+    }
+
+    public long getCacheHits( ) {
+      return hits.get( );
+    }
+
+    public long getInterceptCacheHits( ) {
+      return interceptHits.get( );
+    }
+
+    public long getUnroutedRequests( ) {
+      return unrouted.get( );
+    }
+
+    public double getCacheHitRate( ) {
+      return ratio( hits.get( ), requests.get( ) );
+    }
+
+    public double getAverageRoutingMicros( ) {
+      return ratio( routingNanos.get( ), requests.get( ) * 1000L );
+    }
+
+    public double getAverageAcceptChecks( ) {
+      return ratio( acceptChecks.get( ), requests.get( ) );
+    }
+
+    public List<String> getPipelineStatistics( ) {
+      final List<String> pipelineStatistics = Lists.newArrayList( );
+      for ( final Map.Entry<String,PipelineStatistics> entry : pipelines.entrySet( ) ) {
+        pipelineStatistics.add( entry.getKey( ) + ": " + entry.getValue( ) );
+      }
+      return pipelineStatistics;
+    }
+
+    @Override
+    public String toString( ) {
+      return String.format( "RoutingStatistics:requests=%d:hitRate=%.3f:avgChecks=%.1f:avgMicros=%.1f:pipelines=%s",
+          getRequests( ), getCacheHitRate( ), getAverageAcceptChecks( ), getAverageRoutingMicros( ), Joiner.on( ',' ).join( getPipelineStatistics( ) ) );
+    }
+  }
+
+  private static class PipelineStatistics {
+    private final AtomicLong requests = new AtomicLong( );
+    private final AtomicLong hits = new AtomicLong( );
+    private final AtomicLong routingNanos = new AtomicLong( );
+
+    private void record( final boolean hit, final long nanos ) {
+      requests.incrementAndGet( );
+      routingNanos.addAndGet( nanos );
+      if ( hit ) hits.incrementAndGet( );
+    }
+
+    @Override
+    public String toString( ) {
+      return String.format( "requests=%d hitRate=%.3f avgMicros=%.1f",
+          requests.get( ), ratio( hits.get( ), requests.get( ) ), ratio( routingNanos.get( ), requests.get( ) * 1000L ) );
+    }
+  }
+
+  private static double ratio( final long numerator, final long denominator ) {
+    return denominator == 0 ? 0d : ( double ) numerator / ( double ) denominator;
+  }
+}
@@ -75,8 +75,6 @@ import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.ChannelHandler;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
-import org.jboss.netty.channel.Channels;
-import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpMethod;
 import org.jboss.netty.handler.codec.http.HttpRequest;
 import com.eucalyptus.bootstrap.Bootstrap;
@@ -86,9 +84,7 @@ import com.eucalyptus.bootstrap.RunDuring;
 import com.eucalyptus.bootstrap.ServiceJarDiscovery;
 import com.eucalyptus.component.ComponentId;
 import com.eucalyptus.component.ComponentIds;
-import com.eucalyptus.component.annotation.AwsServiceName;
 import com.eucalyptus.component.annotation.ComponentPart;
-import com.eucalyptus.component.annotation.PublicService;
 import com.eucalyptus.empyrean.Empyrean;
 import com.eucalyptus.http.MappingHttpMessage;
 import com.eucalyptus.http.MappingHttpRequest;
@@ -97,11 +93,11 @@ import com.eucalyptus.records.EventType;
 import com.eucalyptus.records.Logs;
 import com.eucalyptus.system.Ats;
 import com.eucalyptus.util.Classes;
+import com.eucalyptus.util.Mbeans;
 import com.eucalyptus.ws.Handlers;
 import com.eucalyptus.ws.handlers.HmacHandler;
 import com.eucalyptus.ws.protocol.BaseQueryBinding;
 import com.eucalyptus.ws.protocol.OperationParameter;
-import com.eucalyptus.ws.protocol.SoapHandler;
 import com.google.common.base.Supplier;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
@@ -112,6 +108,7 @@ public class Pipelines {
   private static final Set<FilteredPipeline>                                     internalPipelines = Sets.newHashSet( );
   private static final Set<FilteredPipeline>                                     pipelines         = Sets.newHashSet( );
   private static final Map<Class<? extends ComponentId>, ChannelPipelineFactory> clientPipelines   = Maps.newHashMap( );
+  private static volatile PipelineRoutingIndex                                   routingIndex      = null;
   private static final Supplier<String> subDomain = new Supplier<String>() {
 
     @Override
@@ -148,45 +145,25 @@ public class Pipelines {
   }
   
   private static FilteredPipeline findAccepting( final HttpRequest request ) {
-    final FilteredPipeline candidate = null;
-    for ( final FilteredPipeline f : pipelines ) {
-      if ( f.checkAccepts( request ) ) {
-        return f;
-      }
-    }
-    if ( request.getHeader(HttpHeaders.Names.HOST).contains( "amazonaws.com" ) 
-        || request.getHeader(HttpHeaders.Names.HOST).contains( subDomain.get( ) ) ) {
-      String hostHeader = request.getHeader(HttpHeaders.Names.HOST);
-      LOG.debug( "Trying to intercept request for " + hostHeader );
-      for ( final FilteredPipeline f : pipelines ) {
-        if ( Ats.from( f ).has( ComponentPart.class ) ) {
-          Class<? extends ComponentId> compIdClass = Ats.from( f ).get( ComponentPart.class ).value( );
-          ComponentId compId = ComponentIds.lookup( compIdClass );
-          if ( Ats.from( compIdClass ).has( PublicService.class ) ) {
-            if ( request.getHeaderNames().contains( "SOAPAction" ) && f.addHandlers( Channels.pipeline( ) ).get( SoapHandler.class ) == null ) {
-              continue;//Skip pipeline which doesn't handle SOAP for this SOAP request
-            } else if ( !request.getHeaderNames().contains( "SOAPAction" ) && f.addHandlers( Channels.pipeline( ) ).get( SoapHandler.class ) != null ) {
-              continue;//Skip pipeline which handles SOAP for this non-SOAP request
-            }
-            LOG.debug( "Maybe intercepting: " + hostHeader + " using " + f.getClass( ) );
-            if ( Ats.from( compIdClass ).has( AwsServiceName.class ) 
-                && request.getHeader(HttpHeaders.Names.HOST).matches( "[\\w\\.-_]*" + compId.getAwsServiceName( ) + "\\.\\w+\\.amazonaws.com" ) ) {
-              return f;//Return pipeline which can handle the request for ${service}.${region}.amazonaws.com
-            } else if ( request.getHeader(HttpHeaders.Names.HOST).matches( "[\\w\\.-_]*" + compId.name( ) + "\\." + subDomain.get( ) ) ) {
-              return f;//Return pipeline which can handle the request for ${service}.${system.dns.dnsdomain}
-            }
-          }
+    return index( ).find( request );
+  }
+  
+  private static PipelineRoutingIndex index( ) {
+    PipelineRoutingIndex index = routingIndex;
+    if ( index == null ) {
+      synchronized ( Pipelines.class ) {
+        if ( ( index = routingIndex ) == null ) {
+          routingIndex = index = PipelineRoutingIndex.build( pipelines, internalPipelines, subDomain );
         }
       }
     }
-    if ( candidate == null ) {
-      for ( final FilteredPipeline f : internalPipelines ) {
-        if ( f.checkAccepts( request ) ) {
-          return f;
-        }
-      }
+    return index;
+  }
+  
+  private static void invalidateIndex( ) {
+    synchronized ( Pipelines.class ) {
+      routingIndex = null;
     }
-    return candidate;
   }
   
   @Provides( Empyrean.class )
@@ -199,6 +176,8 @@ public class Pipelines {
         Pipelines.internalPipelines.add( new InternalQueryPipeline( comp ) );
         Pipelines.internalPipelines.add( new InternalSoapPipeline( comp ) );
       }
+      Pipelines.invalidateIndex( );
+      Mbeans.register( PipelineRoutingIndex.statistics( ) );
       return true;
     }
     
@@ -216,6 +195,7 @@ public class Pipelines {
           final Class<? extends FilteredPipeline> pipelineClass = candidate;
           final FilteredPipeline pipeline = Classes.newInstance( pipelineClass );
           Pipelines.pipelines.add( pipeline );
+          Pipelines.invalidateIndex( );
           return true;
         } catch ( final Exception ex ) {
           LOG.trace( ex, ex );
@@ -263,6 +243,11 @@ public class Pipelines {
       return ( message.getUri( ).endsWith( this.servicePath ) || message.getUri( ).endsWith( this.internalServicePath ) )
              && message.getHeaderNames( ).contains( "SOAPAction" );
     }
+
+    @Override
+    public boolean checkRoutable( final String path, final boolean soap ) {
+      return soap;
+    }
     
     @Override
     public String getName( ) {
@@ -346,6 +331,11 @@ public class Pipelines {
       }
       return false;
     }
+
+    @Override
+    public boolean checkRoutable( final String path, final boolean soap ) {
+      return path.startsWith( this.servicePath ) || path.startsWith( this.internalServicePath );
+    }
     
     @Override
     public String getName( ) {
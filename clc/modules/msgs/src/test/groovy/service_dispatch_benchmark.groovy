@@ -0,0 +1,87 @@
+/*************************************************************************
+ * Copyright 2009-2014 Eucalyptus Systems, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ *
+ * Please contact Eucalyptus Systems, Inc., 6755 Hollister Ave., Goleta
+ * CA 93117, USA or visit http://www.eucalyptus.com/licenses/ if you need
+ * additional information or have any questions.
+ ************************************************************************/
+
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.TimeUnit
+import org.apache.log4j.Logger
+import com.eucalyptus.component.ComponentIds
+import com.eucalyptus.context.ServiceContext
+import com.eucalyptus.empyrean.DescribeServicesType
+import com.eucalyptus.empyrean.Empyrean
+
+/**
+ * Compares local service dispatch using the service bus with direct in-process dispatch.
+ *
+ * Run on a started cloud controller, each pass sends the same number of DescribeServices
+ * requests to the local Empyrean service from a fixed number of threads.
+ */
+Logger LOG = Logger.getLogger( "service_dispatch_benchmark" );
+int threads = 16;
+int requestsPerThread = 2000;
+int warmupRequests = 1000;
+
+def runPass = { boolean direct, int perThread ->
+  ServiceContext.DIRECT_DISPATCH = direct;
+  ExecutorService executor = Executors.newFixedThreadPool( threads );
+  try {
+    long start = System.nanoTime( );
+    List<Future<long[]>> futures = ( 1..threads ).collect {
+      executor.submit( { ->
+        long[] latencies = new long[perThread];
+        for ( int i = 0; i < perThread; i++ ) {
+          DescribeServicesType request = new DescribeServicesType( );
+          request.markPrivileged( );
+          long requestStart = System.nanoTime( );
+          ServiceContext.send( ComponentIds.lookup( Empyrean.class ), request );
+          latencies[i] = System.nanoTime( ) - requestStart;
+        }
+        latencies
+      } as Callable<long[]> )
+    };
+    long[] all = futures.collect{ it.get( ) }.flatten( ) as long[];
+    long elapsed = System.nanoTime( ) - start;
+    Arrays.sort( all );
+    [ direct: direct,
+      requests: all.length,
+      throughput: String.format( "%.1f/s", all.length / ( elapsed / 1e9d ) ),
+      p50: String.format( "%.3fms", all[(int) ( all.length * 0.50 )] / 1e6d ),
+      p99: String.format( "%.3fms", all[(int) ( all.length * 0.99 )] / 1e6d ),
+      max: String.format( "%.3fms", all[all.length - 1] / 1e6d ) ]
+  } finally {
+    executor.shutdown( );
+    executor.awaitTermination( 1, TimeUnit.MINUTES );
+  }
+}
+
+Boolean initial = ServiceContext.DIRECT_DISPATCH;
+try {
+  def results = [ true, false ].collect { boolean direct ->
+    runPass( direct, Math.max( 1, (int) ( warmupRequests / threads ) ) );
+    def result = runPass( direct, requestsPerThread );
+    LOG.info( "Service dispatch benchmark: ${result}" );
+    result
+  };
+  results
+} finally {
+  ServiceContext.DIRECT_DISPATCH = initial;
+}
@@ -0,0 +1,85 @@
+/*************************************************************************
+ * Copyright 2009-2014 Eucalyptus Systems, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ *
+ * Please contact Eucalyptus Systems, Inc., 6755 Hollister Ave., Goleta
+ * CA 93117, USA or visit http://www.eucalyptus.com/licenses/ if you need
+ * additional information or have any questions.
+ ************************************************************************/
+package com.eucalyptus.component
+
+import static org.junit.Assert.*
+import org.junit.Test
+import com.eucalyptus.empyrean.ServiceId
+import com.google.common.base.Supplier
+import edu.ucsb.eucalyptus.msgs.BaseMessage
+
+/**
+ *
+ */
+class TopologySnapshotsTest {
+
+  @Test
+  void testSnapshotReusedUntilChanged() {
+    TopologySnapshots.clear( )
+    int builds = 0
+    Supplier<TopologySnapshots.Snapshot> builder = { builds++; snapshot( 'enabled' ) } as Supplier<TopologySnapshots.Snapshot>
+    TopologySnapshots.Snapshot first = TopologySnapshots.lookup( 'cluster:PARTI00', 60000, builder )
+    assertSame( "Cached snapshot", first, TopologySnapshots.lookup( 'cluster:PARTI00', 60000, builder ) )
+    assertEquals( "Builds", 1, builds )
+    TopologySnapshots.lookup( 'cluster:PARTI01', 60000, builder )
+    assertEquals( "Builds for other partition", 2, builds )
+    TopologySnapshots.changed( )
+    assertNotSame( "Snapshot after change", first, TopologySnapshots.lookup( 'cluster:PARTI00', 60000, builder ) )
+    assertEquals( "Builds after change", 3, builds )
+  }
+
+  @Test
+  void testSnapshotRebuiltWhenExpired() {
+    TopologySnapshots.clear( )
+    int builds = 0
+    Supplier<TopologySnapshots.Snapshot> builder = { builds++; snapshot( 'enabled' ) } as Supplier<TopologySnapshots.Snapshot>
+    TopologySnapshots.lookup( 'storage:PARTI00', 0, builder )
+    Thread.sleep( 5 )
+    TopologySnapshots.lookup( 'storage:PARTI00', 0, builder )
+    assertEquals( "Builds", 2, builds )
+  }
+
+  @Test
+  void testSendAndOmit() {
+    TopologySnapshots.clear( )
+    TopologySnapshots.Snapshot snapshot = snapshot( 'enabled', 'disabled' )
+    TopologySnapshots.SnapshotStatistics statistics = TopologySnapshots.getStatistics( )
+    long sent = statistics.getSent( )
+    long omitted = statistics.getOmitted( )
+    BaseMessage first = new BaseMessage( )
+    BaseMessage second = new BaseMessage( )
+    TopologySnapshots.send( snapshot, first )
+    TopologySnapshots.send( snapshot, second )
+    TopologySnapshots.omit( snapshot )
+    assertEquals( "Services", [ 'enabled' ], first.get_services( ).collect{ it.name } )
+    assertEquals( "Disabled services", [ 'disabled' ], second.get_disabledServices( ).collect{ it.name } )
+    first.get_services( ).clear( )
+    assertEquals( "Snapshot services after message change", 1, snapshot.getServices( ).size( ) )
+    assertEquals( "Sent", sent + 4, statistics.getSent( ) )
+    assertEquals( "Omitted", omitted + 2, statistics.getOmitted( ) )
+  }
+
+  private static TopologySnapshots.Snapshot snapshot( String enabled, String disabled = null ) {
+    TopologySnapshots.Snapshot snapshot = new TopologySnapshots.Snapshot( )
+    snapshot.getServices( ).add( new ServiceId( name: enabled ) )
+    if ( disabled ) snapshot.getDisabledServices( ).add( new ServiceId( name: disabled ) )
+    snapshot
+  }
+}
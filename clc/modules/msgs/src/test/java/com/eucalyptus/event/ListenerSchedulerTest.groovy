@@ -0,0 +1,158 @@
+/*************************************************************************
+ * Copyright 2009-2014 Eucalyptus Systems, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ *
+ * Please contact Eucalyptus Systems, Inc., 6755 Hollister Ave., Goleta
+ * CA 93117, USA or visit http://www.eucalyptus.com/licenses/ if you need
+ * additional information or have any questions.
+ ************************************************************************/
+package com.eucalyptus.event
+
+import static org.junit.Assert.*
+import org.junit.Test
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ *
+ */
+class ListenerSchedulerTest {
+
+  @Test
+  void testTimingWheel() {
+    TimingWheel<String> wheel = new TimingWheel<String>( 1000, 10, 4 )
+    wheel.add( "first", 1010 )
+    wheel.add( "second", 1015 )
+    wheel.add( "later", 1100 )
+    wheel.add( "overdue", 500 )
+    assertEquals( "Size", 4, wheel.size() )
+    assertEquals( "Next tick", 1010, wheel.getNextTickTime() )
+    assertEquals( "Tick 1", [ "first", "overdue" ], wheel.advance() )
+    assertEquals( "Tick 2", [ "second" ], wheel.advance() )
+    (3..9).each { int tick ->
+      assertEquals( "Tick " + tick, [], wheel.advance() )
+    }
+    assertEquals( "Tick 10", [ "later" ], wheel.advance() )
+    assertEquals( "Size", 0, wheel.size() )
+  }
+
+  @Test
+  void testListenersDoNotDelayOthers() {
+    ListenerScheduler scheduler = scheduler( )
+    CountDownLatch fastRuns = new CountDownLatch( 10 )
+    CountDownLatch release = new CountDownLatch( 1 )
+    AtomicInteger concurrentRuns = new AtomicInteger( )
+    AtomicInteger maxConcurrentRuns = new AtomicInteger( )
+    IntervalListener slow = listener( 10 ) {
+      maxConcurrentRuns.set( Math.max( maxConcurrentRuns.get( ), concurrentRuns.incrementAndGet( ) ) )
+      release.await( 5, TimeUnit.SECONDS )
+      concurrentRuns.decrementAndGet( )
+    }
+    IntervalListener fast = listener( 20 ) { fastRuns.countDown( ) }
+    scheduler.schedule( slow )
+    scheduler.schedule( fast )
+    scheduler.start( )
+    try {
+      assertTrue( "Fast listener runs while slow listener is running", fastRuns.await( 5, TimeUnit.SECONDS ) )
+      release.countDown( )
+      ListenerScheduler.ScheduledListener slowStats = scheduler.getListeners( ).find{ it.getListener( ).is( slow ) }
+      assertEquals( "Slow listener concurrent runs", 1, maxConcurrentRuns.get( ) )
+      assertTrue( "Slow listener skipped runs", slowStats.getSkipped( ) > 0 )
+    } finally {
+      scheduler.stop( )
+    }
+  }
+
+  @Test
+  void testStatisticsAndCancel() {
+    ListenerScheduler scheduler = scheduler( )
+    CountDownLatch runs = new CountDownLatch( 3 )
+    IntervalListener failing = listener( 10 ) {
+      runs.countDown( )
+      throw new IllegalStateException( "failed" )
+    }
+    scheduler.schedule( failing )
+    scheduler.schedule( failing )
+    scheduler.start( )
+    try {
+      assertTrue( "Listener runs", runs.await( 5, TimeUnit.SECONDS ) )
+      ListenerScheduler.ScheduledListener stats = scheduler.getListeners( ).iterator( ).next( )
+      assertEquals( "Scheduled listeners", 1, scheduler.getListeners( ).size( ) )
+      assertTrue( "Failures", stats.getFailures( ) >= 3 )
+      assertTrue( "Lag", stats.getMaxLagMillis( ) >= stats.getLastLagMillis( ) )
+      assertEquals( "Listener statistics", [ failing.getClass( ).getName( ) ], scheduler.getStatistics( ).getListeners( ).keySet( ) as List )
+
+      scheduler.cancel( failing )
+      assertEquals( "Scheduled listeners after cancel", 0, scheduler.getListeners( ).size( ) )
+      long runsAfterCancel = stats.getRuns( ) + ( stats.isRunning( ) ? 1 : 0 )
+      Thread.sleep( 100 )
+      assertEquals( "Runs after cancel", runsAfterCancel, stats.getRuns( ) )
+    } finally {
+      scheduler.stop( )
+    }
+  }
+
+  @Test
+  void testRescheduleWhileRunning() {
+    ListenerScheduler scheduler = scheduler( )
+    CountDownLatch started = new CountDownLatch( 1 )
+    CountDownLatch release = new CountDownLatch( 1 )
+    AtomicInteger concurrentRuns = new AtomicInteger( )
+    AtomicInteger maxConcurrentRuns = new AtomicInteger( )
+    IntervalListener slow = listener( 10 ) {
+      maxConcurrentRuns.set( Math.max( maxConcurrentRuns.get( ), concurrentRuns.incrementAndGet( ) ) )
+      started.countDown( )
+      release.await( 5, TimeUnit.SECONDS )
+      concurrentRuns.decrementAndGet( )
+    }
+    scheduler.schedule( slow )
+    scheduler.start( )
+    try {
+      assertTrue( "Listener started", started.await( 5, TimeUnit.SECONDS ) )
+      scheduler.cancel( slow )
+      scheduler.schedule( slow )
+      Thread.sleep( 100 )
+      ListenerScheduler.ScheduledListener stats = scheduler.getListeners( ).iterator( ).next( )
+      assertEquals( "Concurrent runs", 1, maxConcurrentRuns.get( ) )
+      assertTrue( "Rescheduled listener skipped runs", stats.getSkipped( ) > 0 )
+    } finally {
+      release.countDown( )
+      scheduler.stop( )
+    }
+  }
+
+  private ListenerScheduler scheduler( ) {
+    new ListenerScheduler( "TestScheduler", 2, 5, 8 ) {
+      @Override
+      protected boolean isSuspended( ) {
+        false
+      }
+    }
+  }
+
+  private IntervalListener listener( long intervalMillis, Closure<?> closure ) {
+    new IntervalListener( ) {
+      @Override
+      long getIntervalMillis( ) {
+        intervalMillis
+      }
+
+      @Override
+      void fire( ) {
+        closure.call( )
+      }
+    }
+  }
+}
@@ -0,0 +1,63 @@
+/*************************************************************************
+ * Copyright 2009-2014 Eucalyptus Systems, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ *
+ * Please contact Eucalyptus Systems, Inc., 6755 Hollister Ave., Goleta
+ * CA 93117, USA or visit http://www.eucalyptus.com/licenses/ if you need
+ * additional information or have any questions.
+ ************************************************************************/
+package com.eucalyptus.util
+
+import static org.junit.Assert.*
+import org.jboss.netty.buffer.ChannelBuffers
+import org.junit.Test
+
+/**
+ *
+ */
+class ChannelBufferStreamingInputStreamTest {
+
+  @Test
+  void testSingleByteReadsDrainChunks( ) {
+    ChannelBufferStreamingInputStream stream = stream( [ 1, 2 ], [ 3 ] )
+    int drained = 0
+    stream.setDrainListener( { ChannelBufferStreamingInputStream source, int bytes -> drained += bytes } as ChannelBufferStreamingInputStream.DrainListener )
+    assertEquals( "Bytes", [ 1, 2, 3 ], ( 1..3 ).collect{ stream.read( ) } )
+    assertEquals( "Drained", 3, drained )
+    assertEquals( "Bytes buffered", 0, stream.getBytesBuffered( ) )
+  }
+
+  @Test
+  void testSkipDrainsChunks( ) {
+    ChannelBufferStreamingInputStream stream = stream( [ 1, 2 ], [ 3, 4 ], [ 5 ] )
+    assertEquals( "Skipped", 3, stream.skip( 3 ) )
+    assertEquals( "Bytes buffered", 2, stream.getBytesBuffered( ) )
+    assertEquals( "Byte after skip", 4, stream.read( ) )
+  }
+
+  @Test
+  void testReadAcrossChunks( ) {
+    ChannelBufferStreamingInputStream stream = stream( [ 1, 2 ], [ 3, 4 ], [ 5 ] )
+    byte[] bytes = new byte[5]
+    assertEquals( "Read", 5, stream.read( bytes, 0, 5 ) )
+    assertEquals( "Bytes", [ 1, 2, 3, 4, 5 ], bytes.collect{ byte value -> value as int } )
+  }
+
+  private static ChannelBufferStreamingInputStream stream( List<Integer>... chunks ) {
+    ChannelBufferStreamingInputStream stream =
+        new ChannelBufferStreamingInputStream( ChannelBuffers.wrappedBuffer( chunks[0] as byte[] ) )
+    chunks.drop( 1 ).each{ List<Integer> chunk -> stream.putChunk( ChannelBuffers.wrappedBuffer( chunk as byte[] ) ) }
+    stream
+  }
+}
@@ -0,0 +1,142 @@
+/*************************************************************************
+ * Copyright 2009-2014 Eucalyptus Systems, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ *
+ * Please contact Eucalyptus Systems, Inc., 6755 Hollister Ave., Goleta
+ * CA 93117, USA or visit http://www.eucalyptus.com/licenses/ if you need
+ * additional information or have any questions.
+ ************************************************************************/
+package com.eucalyptus.ws.server
+
+import static org.junit.Assert.*
+import org.jboss.netty.channel.ChannelPipeline
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest
+import org.jboss.netty.handler.codec.http.HttpHeaders
+import org.jboss.netty.handler.codec.http.HttpMethod
+import org.jboss.netty.handler.codec.http.HttpRequest
+import org.jboss.netty.handler.codec.http.HttpVersion
+import org.junit.Test
+import com.google.common.base.Suppliers
+
+/**
+ *
+ */
+class PipelineRoutingIndexTest {
+
+  @Test
+  void testFirstAcceptingPipelineWins() {
+    PipelineRoutingIndex index = index( [
+        pipeline( 'reject' ) { false },
+        pipeline( 'first' ) { true },
+        pipeline( 'second' ) { true },
+    ], [ ] )
+    assertEquals( "Route", 'first', index.find( request( '/services/Test' ) ).getName( ) )
+    assertEquals( "Cached route", 'first', index.find( request( '/services/Test' ) ).getName( ) )
+  }
+
+  @Test
+  void testCachedInternalRouteDoesNotShadowPublicRoute() {
+    PipelineRoutingIndex index = index( [
+        pipeline( 'public' ) { HttpRequest request -> request.getHeader( 'X-Public' ) != null },
+    ], [
+        pipeline( 'internal' ) { true },
+    ] )
+    assertEquals( "Internal route", 'internal', index.find( request( '/services/Test' ) ).getName( ) )
+    assertEquals( "Public route", 'public', index.find( request( '/services/Test', [ 'X-Public': 'true' ] ) ).getName( ) )
+    assertEquals( "Internal route again", 'internal', index.find( request( '/services/Test' ) ).getName( ) )
+  }
+
+  @Test
+  void testCachedRouteDoesNotShadowEarlierRoute() {
+    PipelineRoutingIndex index = index( [
+        pipeline( 'soap-body' ) { HttpRequest request -> request.getHeader( 'Content-Type' ) == 'text/xml' },
+        pipeline( 'query' ) { true },
+    ], [ ] )
+    assertEquals( "Query route", 'query', index.find( request( '/services/Test' ) ).getName( ) )
+    assertEquals( "Earlier route", 'soap-body', index.find( request( '/services/Test', [ 'Content-Type': 'text/xml' ] ) ).getName( ) )
+  }
+
+  @Test
+  void testRouteByMethod() {
+    PipelineRoutingIndex index = index( [
+        pipeline( 'get' ) { HttpRequest request -> request.getMethod( ) == HttpMethod.GET },
+        pipeline( 'put' ) { HttpRequest request -> request.getMethod( ) == HttpMethod.PUT },
+    ], [ ] )
+    assertEquals( "PUT route", 'put', index.find( request( '/bucket/key', [ : ], HttpMethod.PUT ) ).getName( ) )
+    assertEquals( "GET route", 'get', index.find( request( '/bucket/key' ) ).getName( ) )
+    assertEquals( "PUT route again", 'put', index.find( request( '/bucket/key', [ : ], HttpMethod.PUT ) ).getName( ) )
+  }
+
+  @Test
+  void testOnlyRoutablePipelinesAreChecked() {
+    Map<String,Integer> checks = [ : ].withDefault{ 0 }
+    PipelineRoutingIndex index = index( [
+        pipeline( 'soap', { String path, boolean soap -> soap } ) { checks.soap++; true },
+        pipeline( 'other-service', { String path, boolean soap -> path.startsWith( '/services/Other' ) } ) { checks['other-service']++; true },
+        pipeline( 'query', { String path, boolean soap -> path.startsWith( '/services/Test' ) } ) { checks.query++; true },
+    ], [
+        pipeline( 'internal-soap', { String path, boolean soap -> soap } ) { checks['internal-soap']++; true },
+    ] )
+    assertEquals( "Route", 'query', index.find( request( '/services/Test?Action=Test' ) ).getName( ) )
+    assertEquals( "Cached route", 'query', index.find( request( '/services/Test?Action=Other' ) ).getName( ) )
+    assertEquals( "Checks", [ query: 2 ], checks )
+    assertEquals( "SOAP route", 'soap', index.find( request( '/services/Test', [ 'SOAPAction': '' ] ) ).getName( ) )
+    assertEquals( "Checks", [ query: 2, soap: 1 ], checks )
+  }
+
+  @Test
+  void testNoRoute() {
+    PipelineRoutingIndex index = index( [ pipeline( 'reject' ) { false } ], [ pipeline( 'reject-internal' ) { false } ] )
+    assertNull( "Route", index.find( request( '/services/Test' ) ) )
+  }
+
+  private static PipelineRoutingIndex index( List<FilteredPipeline> pipelines, List<FilteredPipeline> internalPipelines ) {
+    PipelineRoutingIndex.build( pipelines, internalPipelines, Suppliers.ofInstance( 'eucalyptus.example.com' ) )
+  }
+
+  private static HttpRequest request( String uri, Map<String,String> headers = [ : ], HttpMethod method = HttpMethod.GET ) {
+    HttpRequest request = new DefaultHttpRequest( HttpVersion.HTTP_1_1, method, uri )
+    request.setHeader( HttpHeaders.Names.HOST, 'localhost:8773' )
+    headers.each { String name, String value -> request.setHeader( name, value ) }
+    request
+  }
+
+  private static FilteredPipeline pipeline( String name, Closure<Boolean> accepts ) {
+    pipeline( name, { String path, boolean soap -> true }, accepts )
+  }
+
+  private static FilteredPipeline pipeline( String name, Closure<Boolean> routable, Closure<Boolean> accepts ) {
+    new FilteredPipeline( ) {
+      @Override
+      String getName( ) {
+        name
+      }
+
+      @Override
+      ChannelPipeline addHandlers( ChannelPipeline pipeline ) {
+        pipeline
+      }
+
+      @Override
+      boolean checkAccepts( HttpRequest message ) {
+        accepts.call( message )
+      }
+
+      @Override
+      boolean checkRoutable( String path, boolean soap ) {
+        routable.call( path, soap )
+      }
+    }
+  }
+}
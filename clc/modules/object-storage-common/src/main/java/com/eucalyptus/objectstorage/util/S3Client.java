@@ -1,8 +1,11 @@
 package com.eucalyptus.objectstorage.util;
 
+import java.io.Closeable;
+
 import com.amazonaws.ClientConfiguration;
 import com.amazonaws.Protocol;
 import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.http.AmazonHttpClient;
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.S3ClientOptions;
 
@@ -12,11 +15,19 @@ public class S3Client {
 	private AmazonS3Client s3Client;
 	
 	public S3Client(AWSCredentials credentials, boolean https) {
+		this(credentials, https, new ClientConfiguration().getMaxConnections());
+	}
+
+	/**
+	 * @param maxConnections The size of the HTTP connection pool for the client
+	 */
+	public S3Client(AWSCredentials credentials, boolean https, int maxConnections) {
 		ClientConfiguration config = new ClientConfiguration();
+		config.setMaxConnections(maxConnections);
 		config.setConnectionTimeout(CONNECTION_TIMEOUT_MS); //very short timeout
 		Protocol protocol = https ? Protocol.HTTPS : Protocol.HTTP;
 		config.setProtocol(protocol);
-		s3Client = new AmazonS3Client(credentials, config);
+		s3Client = new PooledAmazonS3Client(credentials, config);
 		ops = new S3ClientOptions();
 		s3Client.setS3ClientOptions(ops);
 	}
@@ -33,5 +44,36 @@ public class S3Client {
 	public void setS3Endpoint(String s3Endpoint) {
 		s3Client.setEndpoint(s3Endpoint);
 	}	
+
+	/**
+	 * @return A handle that releases the connection pool of this client, the handle does not
+	 * reference the client itself.
+	 */
+	public Closeable getConnectionPool() {
+		return new ConnectionPool(((PooledAmazonS3Client) s3Client).getHttpClient());
+	}
+
+	private static final class PooledAmazonS3Client extends AmazonS3Client {
+		private PooledAmazonS3Client(AWSCredentials credentials, ClientConfiguration config) {
+			super(credentials, config);
+		}
+
+		private AmazonHttpClient getHttpClient() {
+			return client;
+		}
+	}
+
+	private static final class ConnectionPool implements Closeable {
+		private final AmazonHttpClient httpClient;
+
+		private ConnectionPool(AmazonHttpClient httpClient) {
+			this.httpClient = httpClient;
+		}
+
+		@Override
+		public void close() {
+			httpClient.shutdown();
+		}
+	}
 	
 }
\ No newline at end of file
@@ -102,6 +102,11 @@ public abstract class ObjectStorageRESTPipeline extends FilteredPipeline {
 		return (!isSoapRequest(message) && 
 				(isObjectStorageHostName(hostHeader) || isObjectStorageServicePathRequest(uriPath, hostHeader)));
 	}
+
+	@Override
+	public boolean checkRoutable( String path, boolean soap ) {
+		return !soap;
+	}
 	
 	private static boolean isSoapRequest(HttpRequest message) {
 		return message.getHeaderNames().contains( "SOAPAction" );
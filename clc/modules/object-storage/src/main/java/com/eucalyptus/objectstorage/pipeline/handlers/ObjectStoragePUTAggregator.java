@@ -51,6 +51,9 @@ public class ObjectStoragePUTAggregator extends SimpleChannelUpstreamHandler imp
 	//Map of correlationId to channel to write to
 	private static final ConcurrentHashMap<Channel, ChannelBufferStreamingInputStream> dataMap = new ConcurrentHashMap<Channel, ChannelBufferStreamingInputStream>();
 
+	//Map of channel to flow control for the upload in progress, removed when the channel closes
+	private static final ConcurrentHashMap<Channel, ObjectStoragePUTFlowControl> flowControlMap = new ConcurrentHashMap<Channel, ObjectStoragePUTFlowControl>();
+
 	/* Implementation from SimpleChannelUpstreamHandler. Override not needed, can override the specific methods for channel events
     @Override
     public void handleUpstream( final ChannelHandlerContext ctx, final ChannelEvent e ) throws Exception {
@@ -124,6 +127,7 @@ public class ObjectStoragePUTAggregator extends SimpleChannelUpstreamHandler imp
 		try {
 			Logs.extreme().debug("Removing data map on channel closed event for channel: " + ctx.getChannel().getId());
 			dataMap.remove(ctx.getChannel());
+			releaseFlowControl(ctx.getChannel());
 		} catch(final Throwable f) {
 			//Nothing to lookup.    		
 		} finally {    	
@@ -165,6 +169,16 @@ public class ObjectStoragePUTAggregator extends SimpleChannelUpstreamHandler imp
 			Logs.extreme().debug("Found existing entry in map for this channel. Streams should never cross. Throwing illegal state for channel: " + ctx.getChannel().getId());
 			throw new IllegalStateException("Duplicate messages for same PUT, cannot overwrite data buffer. Channel:" + ctx.getChannel().getId());
 		}
+		//A previous upload on a keep-alive connection may still be draining
+		releaseFlowControl(ctx.getChannel());
+		flowControlMap.put(ctx.getChannel(), new ObjectStoragePUTFlowControl(ctx.getChannel(), stream));
+	}
+
+	protected void releaseFlowControl(Channel channel) {
+		ObjectStoragePUTFlowControl flowControl = flowControlMap.remove(channel);
+		if(flowControl != null) {
+			flowControl.release();
+		}
 	}
 
 	protected void appendChunk(ChannelBuffer input, Channel channel) throws IllegalStateException {
@@ -177,7 +191,12 @@ public class ObjectStoragePUTAggregator extends SimpleChannelUpstreamHandler imp
 		}
 		//Write the content into the buffer.
 		try {
+			int bytes = input.readableBytes();
 			stream.putChunk(input);
+			ObjectStoragePUTFlowControl flowControl = flowControlMap.get(channel);
+			if(flowControl != null) {
+				flowControl.buffered(bytes);
+			}
 		} catch (Exception ex) {
 			throw new IllegalStateException(ex);
 		}
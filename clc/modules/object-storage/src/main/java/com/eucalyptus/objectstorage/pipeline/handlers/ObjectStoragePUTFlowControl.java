@@ -0,0 +1,163 @@
+/*************************************************************************
+ * Copyright 2009-2014 Eucalyptus Systems, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ *
+ * Please contact Eucalyptus Systems, Inc., 6755 Hollister Ave., Goleta
+ * CA 93117, USA or visit http://www.eucalyptus.com/licenses/ if you need
+ * additional information or have any questions.
+ ************************************************************************/
+
+package com.eucalyptus.objectstorage.pipeline.handlers;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.channel.Channel;
+
+import com.eucalyptus.configurable.ConfigurableClass;
+import com.eucalyptus.configurable.ConfigurableField;
+import com.eucalyptus.records.Logs;
+import com.eucalyptus.util.ChannelBufferStreamingInputStream;
+import com.eucalyptus.util.Mbeans;
+
+/**
+ * Flow control for streaming PUT uploads.
+ *
+ * Tracks the data buffered for an upload between the channel and the service operation
+ * consuming the stream. When the upload (or all uploads together) exceed the high water mark
+ * the channel stops reading from the socket, reading resumes once the consumer has drained
+ * the buffered data below the low water mark. Only uploads holding more than the low water
+ * mark are suspended for the global budget so every suspended upload is resumed by its own
+ * consumer.
+ *
+ * The chunk count is limited the same way, reading is suspended once the stream holds its
+ * upload queue size in chunks and resumed at a quarter of that, so small chunks cannot fill
+ * the queue before the byte high water mark is reached.
+ */
+@ConfigurableClass( root = "objectstorage", description = "Streaming upload flow control configuration.")
+public class ObjectStoragePUTFlowControl implements ChannelBufferStreamingInputStream.DrainListener {
+	@ConfigurableField( description = "Buffered bytes per upload at which reading from the client is suspended", displayName = "objectstorage.uploadbufferhighwatermark")
+	public static long UPLOAD_BUFFER_HIGH_WATER_MARK = 8 * 1024 * 1024;
+
+	@ConfigurableField( description = "Buffered bytes per upload at which reading from the client is resumed", displayName = "objectstorage.uploadbufferlowwatermark")
+	public static long UPLOAD_BUFFER_LOW_WATER_MARK = 2 * 1024 * 1024;
+
+	@ConfigurableField( description = "Buffered bytes for all uploads at which reading from clients is suspended", displayName = "objectstorage.uploadbuffertotalmax")
+	public static long UPLOAD_BUFFER_TOTAL_MAX = 256 * 1024 * 1024;
+
+	private static final FlowControlStatistics statistics = new FlowControlStatistics();
+	private static final AtomicLong totalBuffered = new AtomicLong();
+	private static final AtomicBoolean registered = new AtomicBoolean(false);
+
+	private final Channel channel;
+	private final ChannelBufferStreamingInputStream stream;
+	private boolean suspended = false;
+	private boolean released = false;
+	private long suspendedAt;
+
+	ObjectStoragePUTFlowControl(final Channel channel, final ChannelBufferStreamingInputStream stream) {
+		if (registered.compareAndSet(false, true)) {
+			Mbeans.register(statistics);
+		}
+		this.channel = channel;
+		this.stream = stream;
+		totalBuffered.addAndGet(stream.getBytesBuffered());
+		stream.setDrainListener(this);
+	}
+
+	/**
+	 * Account for data added to the stream, suspending reads if over budget.
+	 */
+	synchronized void buffered(final int bytes) {
+		if (released) {
+			return;
+		}
+		final long total = totalBuffered.addAndGet(bytes);
+		final long uploadBuffered = stream.getBytesBuffered();
+		final int chunksBuffered = stream.getChunksBuffered();
+		if (!suspended && (uploadBuffered > UPLOAD_BUFFER_HIGH_WATER_MARK ||
+				chunksBuffered >= chunkHighWaterMark() ||
+				(total > UPLOAD_BUFFER_TOTAL_MAX && uploadBuffered > UPLOAD_BUFFER_LOW_WATER_MARK))) {
+			suspended = true;
+			suspendedAt = System.currentTimeMillis();
+			statistics.stalls.incrementAndGet();
+			Logs.extreme().debug("Suspending reads for upload on channel: " + channel.getId() + " buffered: " + uploadBuffered + " chunks: " + chunksBuffered + " total: " + total);
+			channel.setReadable(false);
+		}
+	}
+
+	@Override
+	public synchronized void drained(final ChannelBufferStreamingInputStream stream, final int bytes) {
+		if (released) {
+			return;
+		}
+		totalBuffered.addAndGet(-bytes);
+		if (suspended && stream.getBytesBuffered() <= UPLOAD_BUFFER_LOW_WATER_MARK &&
+				stream.getChunksBuffered() <= chunkHighWaterMark() / 4) {
+			resume();
+		}
+	}
+
+	private static int chunkHighWaterMark() {
+		return Math.max(1, ChannelBufferStreamingInputStream.QUEUE_SIZE);
+	}
+
+	/**
+	 * Release any data still accounted to this upload and resume reading.
+	 */
+	synchronized void release() {
+		if (!released) {
+			released = true;
+			totalBuffered.addAndGet(-stream.getBytesBuffered());
+			stream.setDrainListener(null);
+			if (suspended) {
+				resume();
+			}
+		}
+	}
+
+	private void resume() {
+		suspended = false;
+		statistics.stallMillis.addAndGet(System.currentTimeMillis() - suspendedAt);
+		Logs.extreme().debug("Resuming reads for upload on channel: " + channel.getId());
+		if (channel.isOpen()) {
+			channel.setReadable(true);
+		}
+	}
+
+	/**
+	 * Upload flow control counters, exported via JMX.
+	 */
+	public static class FlowControlStatistics {
+		private final AtomicLong stalls = new AtomicLong();
+		private final AtomicLong stallMillis = new AtomicLong();
+
+		public long getBufferedBytes() {
+			return totalBuffered.get();
+		}
+
+		public long getStalls() {
+			return stalls.get();
+		}
+
+		public long getStallMillis() {
+			return stallMillis.get();
+		}
+
+		@Override
+		public String toString() {
+			return "ObjectStoragePUTFlowControl:buffered=" + getBufferedBytes() + ":stalls=" + getStalls() + ":stallMillis=" + getStallMillis();
+		}
+	}
+}
@@ -0,0 +1,174 @@
+/*************************************************************************
+ * Copyright 2009-2014 Eucalyptus Systems, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ *
+ * Please contact Eucalyptus Systems, Inc., 6755 Hollister Ave., Goleta
+ * CA 93117, USA or visit http://www.eucalyptus.com/licenses/ if you need
+ * additional information or have any questions.
+ ************************************************************************/
+package com.eucalyptus.objectstorage.providers.s3;
+
+import java.io.Closeable;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.log4j.Logger;
+
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.eucalyptus.objectstorage.util.S3Client;
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+
+/**
+ * Bounded cache of backend clients keyed by the mapped credentials and endpoint.
+ *
+ * Each cached client owns its own HTTP connection pool, so requests mapped to
+ * the same backend credentials share connections rather than reconnecting.
+ *
+ * Clients removed from the cache may still be in use by in flight requests,
+ * multipart uploads or ranged object streams, so they are retired rather than
+ * shut down. A retired client's connection pool is released once the client is
+ * no longer referenced.
+ */
+class S3ClientCache {
+	private static final Logger LOG = Logger.getLogger(S3ClientCache.class);
+
+	private static volatile Cache<ClientKey, S3Client> clients = buildCache(S3ProviderConfiguration.getS3ClientCacheSize());
+	private static volatile int cacheSize = S3ProviderConfiguration.getS3ClientCacheSize();
+	private static final ReferenceQueue<AmazonS3Client> retiredQueue = new ReferenceQueue<AmazonS3Client>();
+	private static final Set<RetiredClient> retired = Collections.newSetFromMap(new ConcurrentHashMap<RetiredClient, Boolean>());
+
+	static S3Client lookup(final AWSCredentials credentials,
+						   final String endpoint,
+						   final boolean https,
+						   final boolean pathStyle) throws ExecutionException {
+		final ClientKey key = new ClientKey(credentials.getAWSAccessKeyId(), credentials.getAWSSecretKey(), endpoint, https, pathStyle);
+		releaseRetired();
+		return cache().get(key, new Callable<S3Client>() {
+			@Override
+			public S3Client call() {
+				S3Client client = new S3Client(credentials, https, Math.max(1, S3ProviderConfiguration.getS3MaxConnections()));
+				client.setS3Endpoint(endpoint);
+				client.setUsePathStyle(pathStyle);
+				return client;
+			}
+		});
+	}
+
+	/**
+	 * Drops all cached clients, they are rebuilt with the current configuration on next use.
+	 */
+	static void flush() {
+		clients.invalidateAll();
+		releaseRetired();
+	}
+
+	private static void releaseRetired() {
+		RetiredClient client;
+		while ((client = (RetiredClient) retiredQueue.poll()) != null) {
+			if (retired.remove(client)) {
+				client.release();
+			}
+		}
+	}
+
+	private static Cache<ClientKey, S3Client> cache() {
+		final int configuredSize = S3ProviderConfiguration.getS3ClientCacheSize();
+		if (configuredSize != cacheSize) {
+			synchronized (S3ClientCache.class) {
+				if (configuredSize != cacheSize) {
+					final Cache<ClientKey, S3Client> old = clients;
+					clients = buildCache(configuredSize);
+					cacheSize = configuredSize;
+					old.invalidateAll();
+				}
+			}
+		}
+		return clients;
+	}
+
+	private static Cache<ClientKey, S3Client> buildCache(final int size) {
+		return CacheBuilder.newBuilder()
+				.maximumSize(Math.max(1, size))
+				.removalListener(new RemovalListener<ClientKey, S3Client>() {
+					@Override
+					public void onRemoval(RemovalNotification<ClientKey, S3Client> notification) {
+						final S3Client client = notification.getValue();
+						if (client != null) {
+							retired.add(new RetiredClient(client));
+						}
+					}
+				})
+				.build();
+	}
+
+	private static final class RetiredClient extends WeakReference<AmazonS3Client> {
+		private final Closeable connectionPool;
+
+		private RetiredClient(final S3Client client) {
+			super(client.getS3Client(), retiredQueue);
+			this.connectionPool = client.getConnectionPool();
+		}
+
+		private void release() {
+			try {
+				connectionPool.close();
+			} catch (Exception e) {
+				LOG.debug("Error releasing connections for retired backend client: " + e.getMessage());
+			}
+		}
+	}
+
+	private static final class ClientKey {
+		private final String accessKey;
+		private final String secretKey;
+		private final String endpoint;
+		private final boolean https;
+		private final boolean pathStyle;
+
+		private ClientKey(String accessKey, String secretKey, String endpoint, boolean https, boolean pathStyle) {
+			this.accessKey = accessKey;
+			this.secretKey = secretKey;
+			this.endpoint = endpoint;
+			this.https = https;
+			this.pathStyle = pathStyle;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (o == null || getClass() != o.getClass()) return false;
+			final ClientKey that = (ClientKey) o;
+			return https == that.https &&
+					pathStyle == that.pathStyle &&
+					Objects.equal(accessKey, that.accessKey) &&
+					Objects.equal(secretKey, that.secretKey) &&
+					Objects.equal(endpoint, that.endpoint);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hashCode(accessKey, secretKey, endpoint, https, pathStyle);
+		}
+	}
+}
@@ -0,0 +1,207 @@
+/*************************************************************************
+ * Copyright 2009-2014 Eucalyptus Systems, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ *
+ * Please contact Eucalyptus Systems, Inc., 6755 Hollister Ave., Goleta
+ * CA 93117, USA or visit http://www.eucalyptus.com/licenses/ if you need
+ * additional information or have any questions.
+ ************************************************************************/
+package com.eucalyptus.objectstorage.providers.s3;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.bouncycastle.util.encoders.Base64;
+import org.apache.log4j.Logger;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CannedAccessControlList;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.eucalyptus.objectstorage.ObjectStorage;
+import com.eucalyptus.system.Threads;
+import com.eucalyptus.util.EucalyptusCloudException;
+import com.google.common.base.Strings;
+
+/**
+ * Streams a large object to the backend as a multipart upload, sending up to
+ * {@link S3ProviderConfiguration#getS3PartConcurrency()} parts at once.
+ *
+ * At most one buffered part per concurrent send is held in memory, and buffers
+ * are only allocated within the shared {@link S3PartBuffers} budget. If the
+ * request carried a Content-MD5 it is verified over the whole stream before the
+ * upload is completed, since the backend can only check the individual parts.
+ */
+class S3MultipartUpload {
+	private static final Logger LOG = Logger.getLogger(S3MultipartUpload.class);
+
+	private final AmazonS3Client s3Client;
+	private final String bucket;
+	private final String key;
+	private final ObjectMetadata metadata;
+	private final String contentMD5;
+	private final int partSize;
+	private final int concurrency;
+
+	S3MultipartUpload(AmazonS3Client s3Client, String bucket, String key, ObjectMetadata metadata, String contentMD5) {
+		this.s3Client = s3Client;
+		this.bucket = bucket;
+		this.key = key;
+		this.metadata = metadata;
+		this.contentMD5 = contentMD5;
+		this.partSize = (int) Math.min(Integer.MAX_VALUE, S3ProviderConfiguration.getS3PartSize());
+		this.concurrency = S3ProviderConfiguration.getS3PartConcurrency();
+	}
+
+	static ExecutorService transferExecutor() {
+		return Threads.lookup(ObjectStorage.class, S3MultipartUpload.class, "s3-part-transfer")
+				.limitTo(S3ProviderConfiguration.getS3PartConcurrency() * 8);
+	}
+
+	CompleteMultipartUploadResult upload(InputStream inputData) throws Exception {
+		final MessageDigest digest = MessageDigest.getInstance("MD5");
+		final InputStream in = new DigestInputStream(inputData, digest);
+		final String uploadId = s3Client.initiateMultipartUpload(
+				new InitiateMultipartUploadRequest(bucket, key, metadata).withCannedACL(CannedAccessControlList.Private)).getUploadId();
+		final ExecutorService executor = transferExecutor();
+		final Semaphore inFlight = new Semaphore(concurrency);
+		final List<Future<PartETag>> parts = new ArrayList<Future<PartETag>>();
+		final List<PartBuffer> buffers = new ArrayList<PartBuffer>();
+		try {
+			int partNumber = 1;
+			while (true) {
+				inFlight.acquire();
+				try {
+					S3PartBuffers.reserve(partSize);
+				} catch (InterruptedException e) {
+					inFlight.release();
+					throw e;
+				}
+				final PartBuffer buffer = new PartBuffer(partSize, inFlight);
+				buffers.add(buffer);
+				final int length = fill(in, buffer.data);
+				if (length == 0 && partNumber > 1) {
+					buffer.release();
+					break;
+				}
+				parts.add(executor.submit(uploadPart(uploadId, partNumber++, buffer, length)));
+				if (length < partSize) {
+					break;
+				}
+			}
+
+			if (!Strings.isNullOrEmpty(contentMD5) &&
+					!contentMD5.equals(new String(Base64.encode(digest.digest())))) {
+				throw new EucalyptusCloudException("Content-MD5 mismatch for multipart upload of " + bucket + "/" + key);
+			}
+
+			final List<PartETag> etags = new ArrayList<PartETag>(parts.size());
+			for (Future<PartETag> part : parts) {
+				etags.add(part.get());
+			}
+			return s3Client.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, key, uploadId, etags));
+		} catch (Exception e) {
+			for (Future<PartETag> part : parts) {
+				part.cancel(true);
+			}
+			try {
+				s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+			} catch (Exception abortEx) {
+				LOG.warn("Failed to abort multipart upload " + uploadId + " for " + bucket + "/" + key + ": " + abortEx.getMessage());
+			}
+			throw e;
+		} finally {
+			//Parts cancelled before they started never release their buffers
+			for (PartBuffer buffer : buffers) {
+				buffer.release();
+			}
+		}
+	}
+
+	private Callable<PartETag> uploadPart(final String uploadId,
+										  final int partNumber,
+										  final PartBuffer buffer,
+										  final int length) {
+		return new Callable<PartETag>() {
+			@Override
+			public PartETag call() throws Exception {
+				try {
+					return s3Client.uploadPart(new UploadPartRequest()
+							.withBucketName(bucket)
+							.withKey(key)
+							.withUploadId(uploadId)
+							.withPartNumber(partNumber)
+							.withPartSize(length)
+							.withInputStream(new ByteArrayInputStream(buffer.data, 0, length))).getPartETag();
+				} finally {
+					buffer.release();
+				}
+			}
+		};
+	}
+
+	/**
+	 * A part's data, accounted against the shared buffer budget until released.
+	 */
+	private static final class PartBuffer {
+		private final AtomicBoolean released = new AtomicBoolean(false);
+		private final int size;
+		private final Semaphore inFlight;
+		private volatile byte[] data;
+
+		private PartBuffer(int size, Semaphore inFlight) {
+			this.size = size;
+			this.data = new byte[size];
+			this.inFlight = inFlight;
+		}
+
+		private void release() {
+			if (released.compareAndSet(false, true)) {
+				data = null;
+				S3PartBuffers.release(size);
+				inFlight.release();
+			}
+		}
+	}
+
+	/**
+	 * Reads until the buffer is full or the stream ends, returning the number of bytes read.
+	 */
+	private static int fill(InputStream in, byte[] buffer) throws IOException {
+		int total = 0;
+		while (total < buffer.length) {
+			final int read = in.read(buffer, total, buffer.length - total);
+			if (read < 0) {
+				break;
+			}
+			total += read;
+		}
+		return total;
+	}
+}
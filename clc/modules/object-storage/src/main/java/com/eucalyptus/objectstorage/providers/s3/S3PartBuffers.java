@@ -0,0 +1,59 @@
+/*************************************************************************
+ * Copyright 2009-2014 Eucalyptus Systems, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ *
+ * Please contact Eucalyptus Systems, Inc., 6755 Hollister Ave., Goleta
+ * CA 93117, USA or visit http://www.eucalyptus.com/licenses/ if you need
+ * additional information or have any questions.
+ ************************************************************************/
+package com.eucalyptus.objectstorage.providers.s3;
+
+/**
+ * Memory budget for part data buffered by multipart uploads and ranged downloads.
+ *
+ * The budget is shared by all transfers and sized by
+ * {@link S3ProviderConfiguration#getS3PartBufferMemory()}. A reservation larger than
+ * the whole budget is granted only when nothing else is reserved, so a single
+ * transfer can always make progress.
+ */
+class S3PartBuffers {
+	private static long reserved = 0;
+
+	/**
+	 * Reserve buffer space if it is available now.
+	 *
+	 * @return True if the bytes were reserved and must later be released
+	 */
+	static synchronized boolean tryReserve(final long bytes) {
+		if (reserved > 0 && reserved + bytes > S3ProviderConfiguration.getS3PartBufferMemory()) {
+			return false;
+		}
+		reserved += bytes;
+		return true;
+	}
+
+	/**
+	 * Reserve buffer space, waiting for other transfers to release it if necessary.
+	 */
+	static synchronized void reserve(final long bytes) throws InterruptedException {
+		while (!tryReserve(bytes)) {
+			S3PartBuffers.class.wait();
+		}
+	}
+
+	static synchronized void release(final long bytes) {
+		reserved = Math.max(0, reserved - bytes);
+		S3PartBuffers.class.notifyAll();
+	}
+}
@@ -38,11 +38,13 @@ import com.amazonaws.Protocol;
 import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.Headers;
 import com.amazonaws.services.s3.model.Bucket;
 import com.amazonaws.services.s3.model.BucketLoggingConfiguration;
 import com.amazonaws.services.s3.model.BucketVersioningConfiguration;
 import com.amazonaws.services.s3.model.CannedAccessControlList;
 import com.amazonaws.services.s3.model.CanonicalGrantee;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
 import com.amazonaws.services.s3.model.CopyObjectRequest;
 import com.amazonaws.services.s3.model.CopyObjectResult;
 import com.amazonaws.services.s3.model.EmailAddressGrantee;
@@ -118,7 +120,6 @@ import com.eucalyptus.objectstorage.msgs.SetRESTObjectAccessControlPolicyRespons
 import com.eucalyptus.objectstorage.msgs.SetRESTObjectAccessControlPolicyType;
 import com.eucalyptus.objectstorage.util.AclUtils;
 import com.eucalyptus.objectstorage.util.OSGUtil;
-import com.eucalyptus.objectstorage.util.S3Client;
 import com.eucalyptus.storage.msgs.s3.AccessControlList;
 import com.eucalyptus.storage.msgs.s3.AccessControlPolicy;
 import com.eucalyptus.storage.msgs.s3.BucketListEntry;
@@ -156,36 +157,46 @@ import com.google.common.base.Strings;
 @ObjectStorageProviderClientProperty("s3")
 public class S3ProviderClient extends ObjectStorageProviderClient {
 	private static final Logger LOG = Logger.getLogger(S3ProviderClient.class); 
-	protected S3Client s3Client = null;
 
 	/**
 	 * Returns a usable S3 Client configured to send requests to the currently configured
-	 * endpoint with the currently configured credentials.
+	 * endpoint with the credentials mapped for the requesting user. Clients are shared
+	 * by all requests that map to the same backend credentials.
 	 * @return
 	 */
 	protected AmazonS3Client getS3Client(User requestUser, String requestAWSAccessKeyId) throws EucalyptusCloudException {
-		//TODO: this should be enhanced to share clients/use a pool for efficiency.
-		if (s3Client == null) {
-			synchronized(this) {		
-				Protocol protocol = null;
-				boolean useHttps = false;
-				if(S3ProviderConfiguration.getS3UseHttps() != null && S3ProviderConfiguration.getS3UseHttps()) {
-					useHttps = true;
-				}
-				AWSCredentials credentials = null;
-				try {
-					credentials = mapCredentials(requestUser, requestAWSAccessKeyId);
-				} catch(AuthException e) {
-					LOG.error("Cannot issue backend S3-API request because no credentials available for user " + requestUser.getUserId(), e);
-					throw new EucalyptusCloudException("Cannot configure client", e);
-				}
-				s3Client = new S3Client(credentials, useHttps);
-				s3Client.setS3Endpoint(S3ProviderConfiguration.getS3Endpoint());
-				s3Client.setUsePathStyle(!S3ProviderConfiguration.getS3UseBackendDns());
-				
-			}
+		AWSCredentials credentials = null;
+		try {
+			credentials = mapCredentials(requestUser, requestAWSAccessKeyId);
+		} catch(AuthException e) {
+			LOG.error("Cannot issue backend S3-API request because no credentials available for user " + requestUser.getUserId(), e);
+			throw new EucalyptusCloudException("Cannot configure client", e);
 		}
-		return s3Client.getS3Client();
+		return getS3Client(credentials, S3ProviderConfiguration.getS3Endpoint());
+	}
+
+	/**
+	 * Returns the cached client for the given backend credentials and endpoint, creating it if necessary.
+	 */
+	protected AmazonS3Client getS3Client(AWSCredentials credentials, String endpoint) throws EucalyptusCloudException {
+		boolean useHttps = false;
+		if(S3ProviderConfiguration.getS3UseHttps() != null && S3ProviderConfiguration.getS3UseHttps()) {
+			useHttps = true;
+		}
+		try {
+			return S3ClientCache.lookup(credentials, endpoint, useHttps, !S3ProviderConfiguration.getS3UseBackendDns()).getS3Client();
+		} catch(Exception e) {
+			LOG.error("Cannot construct backend client for endpoint " + endpoint, e);
+			throw new EucalyptusCloudException("Cannot configure client", e);
+		}
+	}
+
+	/**
+	 * Large objects are sent as multipart uploads and read with parallel ranged GETs.
+	 */
+	protected boolean useMultipartTransfer(long contentLength) {
+		long threshold = S3ProviderConfiguration.getS3MultipartThreshold();
+		return threshold > 0 && contentLength > threshold && contentLength > S3ProviderConfiguration.getS3PartSize();
 	}
 
 	/**
@@ -272,10 +283,10 @@ public class S3ProviderClient extends ObjectStorageProviderClient {
 			new Socket(S3ProviderConfiguration.getS3EndpointHost(), S3ProviderConfiguration.getS3EndpointPort());
 		} catch (UnknownHostException e) {
 			//it is safe to do this because we won't try to execute an operation until enable returns successfully.
-			s3Client = null;
+			S3ClientCache.flush();
 			throw new EucalyptusCloudException("Host Exception. Unable to connect to S3 Endpoint: " + S3ProviderConfiguration.getS3Endpoint() + ". Please check configuration and network connection");
 		} catch (IOException e) {
-			s3Client = null;
+			S3ClientCache.flush();
 			throw new EucalyptusCloudException("Unable to connect to S3 Endpoint: " + S3ProviderConfiguration.getS3Endpoint() + ". Please check configuration and network connection");
 		}
 		LOG.debug("Check completed successfully");		
@@ -296,8 +307,8 @@ public class S3ProviderClient extends ObjectStorageProviderClient {
 	@Override
 	public void stop() throws EucalyptusCloudException {
 		LOG.debug("Stopping");
-		//Force a new load of this on startup.
-		this.s3Client = null;
+		//Force a new load of clients on startup.
+		S3ClientCache.flush();
 		LOG.debug("Stop completed successfully");		
 	}
 
@@ -472,26 +483,49 @@ public class S3ProviderClient extends ObjectStorageProviderClient {
 			User requestUser = getRequestUser(request);
 			
 			AmazonS3Client s3Client = getS3Client(requestUser, request.getAccessKeyID());
-			PutObjectResult result = null;
+			String etag = null;
+			String versionId = null;
 			try {
 				ObjectMetadata metadata = getS3ObjectMetadata(request);
-				//Set the acl to private.
-				PutObjectRequest putRequest = new PutObjectRequest(request.getBucket(), 
-						request.getKey(), 
-						inputData, 
-						metadata).withCannedAcl(CannedAccessControlList.Private);
-				result = s3Client.putObject(putRequest);
+				if(useMultipartTransfer(metadata.getContentLength())) {
+					//Part uploads are sized individually, the whole-object MD5 is checked by the upload itself
+					ObjectMetadata multipartMetadata = new ObjectMetadata();
+					multipartMetadata.setUserMetadata(metadata.getUserMetadata());
+					if(metadata.getContentType() != null) {
+						multipartMetadata.setContentType(metadata.getContentType());
+					}
+					CompleteMultipartUploadResult result = new S3MultipartUpload(s3Client,
+							request.getBucket(),
+							request.getKey(),
+							multipartMetadata,
+							request.getContentMD5()).upload(inputData);
+					if(result != null) {
+						etag = result.getETag();
+						versionId = result.getVersionId();
+					}
+				} else {
+					//Set the acl to private.
+					PutObjectRequest putRequest = new PutObjectRequest(request.getBucket(), 
+							request.getKey(), 
+							inputData, 
+							metadata).withCannedAcl(CannedAccessControlList.Private);
+					PutObjectResult result = s3Client.putObject(putRequest);
+					if(result != null) {
+						etag = result.getETag();
+						versionId = result.getVersionId();
+					}
+				}
 			} catch(Exception e) {
 				LOG.error("Error putting object to backend",e);
 				throw e;
 			}
 
 			PutObjectResponseType reply = (PutObjectResponseType)request.getReply();			
-			if(result == null) {
+			if(etag == null) {
 				throw new EucalyptusCloudException("Null result. Internal error");
 			} else {
-				reply.setEtag(result.getETag());
-				reply.setVersionId(result.getVersionId());
+				reply.setEtag(etag);
+				reply.setVersionId(versionId);
 				reply.setLastModified(new Date());
 			}
 			return reply;
@@ -651,6 +685,57 @@ public class S3ProviderClient extends ObjectStorageProviderClient {
 		}
 		
 	}
+	/**
+	 * Read an object starting with a ranged GET of its first part, so the object size is taken
+	 * from that response rather than a separate HEAD request. The rest of an object larger than
+	 * the first part is read with further ranged GETs, in parallel for objects over the multipart
+	 * threshold.
+	 */
+	protected InputStream getObjectInRanges(final AmazonS3Client s3Client, final String bucket, final String key,
+			final ObjectStorageDataResponseType reply) throws EucalyptusCloudException {
+		final GetObjectRequest firstRequest = new GetObjectRequest(bucket, key);
+		firstRequest.setRange(0, S3ProviderConfiguration.getS3PartSize() - 1);
+		final S3Object first;
+		try {
+			first = s3Client.getObject(firstRequest);
+		} catch(AmazonServiceException ex) {
+			if(ex.getStatusCode() == 416) {
+				//Range not satisfiable, the object is empty
+				final S3Object response = s3Client.getObject(new GetObjectRequest(bucket, key));
+				populateResponseMetadata(reply, response.getObjectMetadata());
+				return response.getObjectContent();
+			}
+			throw ex;
+		}
+		final ObjectMetadata metadata = first.getObjectMetadata();
+		populateResponseMetadata(reply, metadata);
+		final long firstLength = metadata.getContentLength();
+		final long length = getInstanceLength(metadata);
+		if(length <= firstLength) {
+			return first.getObjectContent();
+		}
+		reply.setSize(length);
+		return new S3RangedObjectInputStream(s3Client, bucket, key, metadata.getVersionId(), metadata.getETag(), length,
+				first, firstLength, useMultipartTransfer(length));
+	}
+
+	/**
+	 * The full object size from the Content-Range of a ranged response.
+	 */
+	private static long getInstanceLength(final ObjectMetadata metadata) throws EucalyptusCloudException {
+		final Object contentRange = metadata.getRawMetadata().get(Headers.CONTENT_RANGE);
+		if(contentRange == null) {
+			//Backend ignored the range and returned the whole object
+			return metadata.getContentLength();
+		}
+		final String value = contentRange.toString();
+		try {
+			return Long.parseLong(value.substring(value.lastIndexOf('/') + 1).trim());
+		} catch(NumberFormatException e) {
+			throw new EucalyptusCloudException("Invalid Content-Range from backend: " + value);
+		}
+	}
+
 	@Override
 	public GetObjectResponseType getObject(final GetObjectType request) throws EucalyptusCloudException {
 		User requestUser = getRequestUser(request);
@@ -659,6 +744,10 @@ public class S3ProviderClient extends ObjectStorageProviderClient {
 		GetObjectRequest getRequest = new GetObjectRequest(request.getBucket(), request.getKey());
 		try {
 			GetObjectResponseType reply = (GetObjectResponseType)request.getReply();					
+			if(S3ProviderConfiguration.getS3MultipartThreshold() > 0) {
+				reply.setDataInputStream(getObjectInRanges(s3Client, request.getBucket(), request.getKey(), reply));
+				return reply;
+			}
 			S3Object response = null;
 			response = s3Client.getObject(getRequest);
 			populateResponseMetadata((ObjectStorageDataResponseType)reply, response.getObjectMetadata());
@@ -715,10 +804,16 @@ public class S3ProviderClient extends ObjectStorageProviderClient {
 		}
 		try {
 			AmazonS3Client s3Client = this.getS3Client(requestUser, requestUser.getUserId());
-			S3Object response = s3Client.getObject(getRequest);
-			response = s3Client.getObject(getRequest);
-			
 			GetObjectExtendedResponseType reply = (GetObjectExtendedResponseType)request.getReply();
+			if(S3ProviderConfiguration.getS3MultipartThreshold() > 0 && byteRangeEnd == null && byteRangeStart == 0L &&
+					ifModifiedSince == null && ifUnmodifiedSince == null && ifMatch == null && ifNoneMatch == null) {
+				reply.setDataInputStream(getObjectInRanges(s3Client, request.getBucket(), request.getKey(), reply));
+				reply.setByteRangeStart(request.getByteRangeStart());
+				reply.setByteRangeEnd(request.getByteRangeEnd());
+				return reply;
+			}
+			S3Object response = s3Client.getObject(getRequest);
+
 			populateResponseMetadata((ObjectStorageDataResponseType)reply, response.getObjectMetadata());
 			reply.setDataInputStream(response.getObjectContent());			
 			reply.setByteRangeStart(request.getByteRangeStart());
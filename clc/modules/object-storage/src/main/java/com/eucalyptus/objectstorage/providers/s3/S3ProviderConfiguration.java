@@ -51,6 +51,36 @@ public class S3ProviderConfiguration{
 			initial="false" )
 	public static boolean S3UseBackendDns;
 
+	@ConfigurableField( description = "Maximum number of backend clients cached by credentials.",
+			displayName = "client_cache_size",
+			initial="32" )
+	public static int S3ClientCacheSize = 32;
+
+	@ConfigurableField( description = "Maximum number of HTTP connections per backend client.",
+			displayName = "max_connections",
+			initial="64" )
+	public static int S3MaxConnections = 64;
+
+	@ConfigurableField( description = "Object size in bytes above which uploads use multipart and downloads use parallel ranged requests, 0 to disable.",
+			displayName = "multipart_threshold",
+			initial="67108864" )
+	public static long S3MultipartThreshold = 64 * 1024 * 1024;
+
+	@ConfigurableField( description = "Part size in bytes for multipart uploads and ranged downloads.",
+			displayName = "part_size",
+			initial="16777216" )
+	public static long S3PartSize = 16 * 1024 * 1024;
+
+	@ConfigurableField( description = "Maximum number of parts transferred concurrently per object.",
+			displayName = "part_concurrency",
+			initial="4" )
+	public static int S3PartConcurrency = 4;
+
+	@ConfigurableField( description = "Maximum bytes of part data buffered in memory for all multipart uploads and ranged downloads.",
+			displayName = "part_buffer_memory",
+			initial="268435456" )
+	public static long S3PartBufferMemory = 256 * 1024 * 1024;
+
 	public static boolean getS3UseBackendDns() {
 		return S3UseBackendDns;
 	}
@@ -59,6 +89,31 @@ public class S3ProviderConfiguration{
 		S3UseBackendDns = useDns;
 	}	
 
+	public static int getS3ClientCacheSize() {
+		return S3ClientCacheSize;
+	}
+
+	public static int getS3MaxConnections() {
+		return S3MaxConnections;
+	}
+
+	public static long getS3MultipartThreshold() {
+		return S3MultipartThreshold;
+	}
+
+	public static long getS3PartSize() {
+		//S3 requires parts of at least 5MB
+		return Math.max(5 * 1024 * 1024, S3PartSize);
+	}
+
+	public static int getS3PartConcurrency() {
+		return Math.max(1, S3PartConcurrency);
+	}
+
+	public static long getS3PartBufferMemory() {
+		return S3PartBufferMemory;
+	}
+
 	public static String getS3AccessKey() {
 		return S3AccessKey;
 	}
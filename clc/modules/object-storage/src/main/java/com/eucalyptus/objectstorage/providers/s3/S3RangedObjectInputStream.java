@@ -0,0 +1,276 @@
+/*************************************************************************
+ * Copyright 2009-2014 Eucalyptus Systems, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ *
+ * Please contact Eucalyptus Systems, Inc., 6755 Hollister Ave., Goleta
+ * CA 93117, USA or visit http://www.eucalyptus.com/licenses/ if you need
+ * additional information or have any questions.
+ ************************************************************************/
+package com.eucalyptus.objectstorage.providers.s3;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+
+/**
+ * Reads a backend object following an initial ranged GET of its first part.
+ *
+ * The remainder is read as further ranged GETs, each constrained to the ETag of
+ * the first response so a concurrent overwrite fails the read instead of mixing
+ * versions. For parallel reads up to {@link S3ProviderConfiguration#getS3PartConcurrency()}
+ * ranges are fetched into memory ahead of the reader while the shared
+ * {@link S3PartBuffers} budget allows, otherwise the next range is streamed
+ * directly from the backend.
+ */
+class S3RangedObjectInputStream extends InputStream {
+	private final AmazonS3Client s3Client;
+	private final String bucket;
+	private final String key;
+	private final String versionId;
+	private final String etag;
+	private final long length;
+	private final long partSize;
+	private final int concurrency;
+	private final boolean parallel;
+	private final ExecutorService executor;
+	private final LinkedList<Range> pending = new LinkedList<Range>();
+	private long nextRangeStart;
+	private Range currentRange;
+	private InputStream current;
+	private long currentRemaining;
+	private boolean closed = false;
+
+	/**
+	 * @param first The response for the first range of the object, starting at offset zero
+	 * @param firstLength The length of the first range
+	 * @param parallel True to fetch the remaining ranges in parallel, false to stream the remainder
+	 */
+	S3RangedObjectInputStream(AmazonS3Client s3Client, String bucket, String key, String versionId, String etag, long length,
+							  S3Object first, long firstLength, boolean parallel) {
+		this.s3Client = s3Client;
+		this.bucket = bucket;
+		this.key = key;
+		this.versionId = versionId;
+		this.etag = etag;
+		this.length = length;
+		this.partSize = S3ProviderConfiguration.getS3PartSize();
+		this.concurrency = S3ProviderConfiguration.getS3PartConcurrency();
+		this.parallel = parallel;
+		this.executor = S3MultipartUpload.transferExecutor();
+		this.current = first.getObjectContent();
+		this.currentRemaining = firstLength;
+		this.nextRangeStart = firstLength;
+		fillPipeline();
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!ensureData()) {
+			return -1;
+		}
+		final int value = current.read();
+		if (value < 0) {
+			throw new IOException("Short read of " + bucket + "/" + key);
+		}
+		currentRemaining--;
+		return value;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!ensureData()) {
+			return -1;
+		}
+		final int count = current.read(b, off, (int) Math.min(len, currentRemaining));
+		if (count < 0) {
+			throw new IOException("Short read of " + bucket + "/" + key);
+		}
+		currentRemaining -= count;
+		return count;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return current == null ? 0 : (int) Math.min(current.available(), currentRemaining);
+	}
+
+	@Override
+	public void close() {
+		if (!closed) {
+			closed = true;
+			closeCurrent();
+			for (Range range : pending) {
+				range.release();
+			}
+			pending.clear();
+		}
+	}
+
+	/**
+	 * Advance to the next range once the current one is fully read.
+	 */
+	private boolean ensureData() throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+		while (currentRemaining <= 0) {
+			closeCurrent();
+			if (pending.isEmpty()) {
+				fillPipeline();
+				if (pending.isEmpty()) {
+					return false;
+				}
+			}
+			currentRange = pending.removeFirst();
+			try {
+				current = currentRange.open();
+			} catch (IOException e) {
+				close();
+				throw e;
+			}
+			currentRemaining = currentRange.end - currentRange.start + 1;
+			fillPipeline();
+		}
+		return true;
+	}
+
+	private void closeCurrent() {
+		if (current != null) {
+			try {
+				current.close();
+			} catch (IOException e) {
+				//ignore, the range is complete or the stream is closing
+			}
+			current = null;
+		}
+		currentRemaining = 0;
+		if (currentRange != null) {
+			currentRange.release();
+			currentRange = null;
+		}
+	}
+
+	private void fillPipeline() {
+		while (pending.size() < concurrency && nextRangeStart < length) {
+			final long start = nextRangeStart;
+			if (!parallel) {
+				pending.add(new Range(start, length - 1, false));
+				nextRangeStart = length;
+				break;
+			}
+			final long end = Math.min(length, start + partSize) - 1;
+			final boolean buffered = S3PartBuffers.tryReserve(end - start + 1);
+			if (!buffered && (!pending.isEmpty() || current != null)) {
+				//No buffer space, the range is streamed once the reader reaches it
+				break;
+			}
+			pending.add(new Range(start, end, buffered));
+			nextRangeStart = end + 1;
+			if (!buffered) {
+				break;
+			}
+		}
+	}
+
+	private S3Object getRange(long start, long end) throws IOException {
+		final GetObjectRequest rangeRequest = new GetObjectRequest(bucket, key, versionId);
+		rangeRequest.setRange(start, end);
+		if (etag != null) {
+			rangeRequest.setMatchingETagConstraints(Collections.singletonList(etag));
+		}
+		final S3Object object = s3Client.getObject(rangeRequest);
+		if (object == null) {
+			throw new IOException("Object " + bucket + "/" + key + " changed during ranged read");
+		}
+		return object;
+	}
+
+	private byte[] readRange(long start, long end) throws IOException {
+		final byte[] data = new byte[(int) (end - start + 1)];
+		final S3ObjectInputStream in = getRange(start, end).getObjectContent();
+		try {
+			int total = 0;
+			while (total < data.length) {
+				final int read = in.read(data, total, data.length - total);
+				if (read < 0) {
+					throw new IOException("Short read for range " + start + "-" + end + " of " + bucket + "/" + key);
+				}
+				total += read;
+			}
+		} finally {
+			in.close();
+		}
+		return data;
+	}
+
+	/**
+	 * A range of the object, either fetched into a reserved buffer or streamed when opened.
+	 */
+	private final class Range {
+		private final long start;
+		private final long end;
+		private final Future<byte[]> data;
+		private boolean reserved;
+
+		private Range(final long start, final long end, final boolean buffered) {
+			this.start = start;
+			this.end = end;
+			this.reserved = buffered;
+			this.data = !buffered ? null : executor.submit(new Callable<byte[]>() {
+				@Override
+				public byte[] call() throws Exception {
+					return readRange(start, end);
+				}
+			});
+		}
+
+		private InputStream open() throws IOException {
+			if (data == null) {
+				return getRange(start, end).getObjectContent();
+			}
+			try {
+				return new ByteArrayInputStream(data.get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted reading " + bucket + "/" + key, e);
+			} catch (ExecutionException e) {
+				throw new IOException("Failed reading range of " + bucket + "/" + key, e.getCause());
+			}
+		}
+
+		private void release() {
+			if (data != null) {
+				data.cancel(true);
+			}
+			if (reserved) {
+				reserved = false;
+				S3PartBuffers.release(end - start + 1);
+			}
+		}
+	}
+}
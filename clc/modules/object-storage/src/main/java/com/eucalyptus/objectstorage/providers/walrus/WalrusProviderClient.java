@@ -126,7 +126,6 @@ import com.eucalyptus.objectstorage.msgs.SetRESTObjectAccessControlPolicyRespons
 import com.eucalyptus.objectstorage.msgs.SetRESTObjectAccessControlPolicyType;
 import com.eucalyptus.objectstorage.providers.s3.S3ProviderClient;
 import com.eucalyptus.objectstorage.providers.s3.S3ProviderConfiguration;
-import com.eucalyptus.objectstorage.util.S3Client;
 import com.eucalyptus.util.EucalyptusCloudException;
 import com.eucalyptus.util.SynchronousClient;
 import com.eucalyptus.util.SynchronousClient.SynchronousClientException;
@@ -167,28 +166,14 @@ public class WalrusProviderClient extends S3ProviderClient {
 
 	@Override
 	protected AmazonS3Client getS3Client(User requestUser, String requestAWSAccessKeyId) throws EucalyptusCloudException {
-		//TODO: this should be enhanced to share clients/use a pool for efficiency.
-		if (s3Client == null) {
-			synchronized(this) {		
-				Protocol protocol = null;
-				boolean useHttps = false;
-				if(S3ProviderConfiguration.getS3UseHttps() != null && S3ProviderConfiguration.getS3UseHttps()) {
-					useHttps = true;
-				}
-				AWSCredentials credentials = null;
-				try {
-					credentials = mapCredentials(requestUser, requestAWSAccessKeyId);
-				} catch(Exception e) {
-					LOG.error("Error mapping credentials for user " + (requestUser != null ? requestUser.getUserId() : "null") + " for walrus backend call.", e);
-					throw new EucalyptusCloudException("Cannot construct s3client due to inability to map credentials for user: " +  (requestUser != null ? requestUser.getUserId() : "null"), e);
-				}
-				
-				s3Client = new S3Client(credentials, useHttps);
-				s3Client.setS3Endpoint(Topology.lookup(Walrus.class).getUri().toString());
-				s3Client.setUsePathStyle(!S3ProviderConfiguration.getS3UseBackendDns());
-			}
+		AWSCredentials credentials = null;
+		try {
+			credentials = mapCredentials(requestUser, requestAWSAccessKeyId);
+		} catch(Exception e) {
+			LOG.error("Error mapping credentials for user " + (requestUser != null ? requestUser.getUserId() : "null") + " for walrus backend call.", e);
+			throw new EucalyptusCloudException("Cannot construct s3client due to inability to map credentials for user: " +  (requestUser != null ? requestUser.getUserId() : "null"), e);
 		}
-		return s3Client.getS3Client();
+		return getS3Client(credentials, Topology.lookup(Walrus.class).getUri().toString());
 	}
 
 
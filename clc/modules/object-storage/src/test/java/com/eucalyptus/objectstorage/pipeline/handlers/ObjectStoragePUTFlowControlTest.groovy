@@ -0,0 +1,93 @@
+/*************************************************************************
+ * Copyright 2009-2014 Eucalyptus Systems, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ *
+ * Please contact Eucalyptus Systems, Inc., 6755 Hollister Ave., Goleta
+ * CA 93117, USA or visit http://www.eucalyptus.com/licenses/ if you need
+ * additional information or have any questions.
+ ************************************************************************/
+package com.eucalyptus.objectstorage.pipeline.handlers
+
+import static org.junit.Assert.*
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import org.jboss.netty.buffer.ChannelBuffers
+import org.jboss.netty.channel.Channel
+import org.junit.Test
+import com.eucalyptus.util.ChannelBufferStreamingInputStream
+
+/**
+ *
+ */
+class ObjectStoragePUTFlowControlTest {
+
+  @Test
+  void testSlowConsumerSuspendsReads( ) {
+    final int chunkSize = 1024
+    final int chunks = ChannelBufferStreamingInputStream.QUEUE_SIZE * 3
+    final AtomicInteger suspensions = new AtomicInteger( )
+    final AtomicBoolean readable = new AtomicBoolean( true )
+    final Channel channel = [
+        getId: { 1 },
+        isOpen: { true },
+        setReadable: { boolean value ->
+          if ( !value ) suspensions.incrementAndGet( )
+          readable.set( value )
+          null
+        }
+    ] as Channel
+
+    final ChannelBufferStreamingInputStream stream =
+        new ChannelBufferStreamingInputStream( ChannelBuffers.wrappedBuffer( new byte[chunkSize] ) )
+    final ObjectStoragePUTFlowControl flowControl = new ObjectStoragePUTFlowControl( channel, stream )
+
+    final CountDownLatch consumed = new CountDownLatch( 1 )
+    final AtomicInteger bytesConsumed = new AtomicInteger( )
+    Thread.start {
+      final byte[] buffer = new byte[chunkSize]
+      while ( bytesConsumed.get( ) < ( chunks + 1 ) * chunkSize ) {
+        int read = stream.read( buffer, 0, buffer.length )
+        if ( read < 0 ) break
+        bytesConsumed.addAndGet( read )
+        Thread.sleep( 1 )
+      }
+      consumed.countDown( )
+    }
+
+    int maxChunksBuffered = 0
+    long maxPutMillis = 0
+    for ( int i = 0; i < chunks; i++ ) {
+      // chunks decoded from the last read still arrive after reads are suspended
+      if ( i % 4 == 0 ) {
+        while ( !readable.get( ) ) Thread.sleep( 1 )
+      }
+      final long before = System.currentTimeMillis( )
+      stream.putChunk( ChannelBuffers.wrappedBuffer( new byte[chunkSize] ) )
+      maxPutMillis = Math.max( maxPutMillis, System.currentTimeMillis( ) - before )
+      flowControl.buffered( chunkSize )
+      maxChunksBuffered = Math.max( maxChunksBuffered, stream.getChunksBuffered( ) )
+    }
+
+    assertTrue( "Consumer finished", consumed.await( 60, TimeUnit.SECONDS ) )
+    assertEquals( "Bytes consumed", ( chunks + 1 ) * chunkSize, bytesConsumed.get( ) )
+    assertTrue( "Reads suspended", suspensions.get( ) > 0 )
+    assertTrue( "Chunks buffered " + maxChunksBuffered, maxChunksBuffered <= ChannelBufferStreamingInputStream.QUEUE_SIZE + 3 )
+    assertTrue( "Put blocked for " + maxPutMillis + "ms", maxPutMillis < 500 )
+    assertTrue( "Reads resumed", readable.get( ) )
+    assertEquals( "Bytes buffered", 0, stream.getBytesBuffered( ) )
+    flowControl.release( )
+  }
+}
@@ -19,7 +19,9 @@
  ************************************************************************/
 package com.eucalyptus.reporting;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import com.eucalyptus.reporting.units.Units;
@@ -30,6 +32,8 @@ import com.google.common.base.Charsets;
  */
 public class ReportGenerationFacade {
 
+  private static final int STREAM_CHUNK_SIZE = 64 * 1024;
+
   public static String generateReport( @Nonnull  final String type,
                                        @Nonnull  final String format,
                                        final long start,
@@ -42,6 +46,24 @@ public class ReportGenerationFacade {
                                          @Nullable final Units units,
                                                    final long start,
                                                    final long end ) throws ReportGenerationException {
+    final ByteArrayOutputStream reportOutput = new ByteArrayOutputStream(10240);
+    generateReport( type, format, units, start, end, reportOutput );
+    return new String( reportOutput.toByteArray(), Charsets.UTF_8 );
+  }
+
+  /**
+   * Generate a report, writing the rendered output to the given stream.
+   *
+   * <p>The report is generated in memory and then rendered to the stream in
+   * chunks, so the rendered output is not also held in memory. The stream is
+   * flushed but not closed.</p>
+   */
+  public static void generateReport( @Nonnull  final String type,
+                                     @Nonnull  final String format,
+                                     @Nullable final Units units,
+                                               final long start,
+                                               final long end,
+                                     @Nonnull  final OutputStream out ) throws ReportGenerationException {
     final long maxEndTime = System.currentTimeMillis();
     final long adjustedEndTime = end > maxEndTime ? maxEndTime : end;
     if ( start >= adjustedEndTime ) {
@@ -49,7 +71,7 @@ public class ReportGenerationFacade {
     }
 
     final ReportGenerator generator = ReportGenerator.getInstance();
-    final ByteArrayOutputStream reportOutput = new ByteArrayOutputStream(10240);
+    final OutputStream reportOutput = new BufferedOutputStream( out, STREAM_CHUNK_SIZE );
     try {
       generator.generateReport(
           new Period( start, adjustedEndTime ),
@@ -57,11 +79,10 @@ public class ReportGenerationFacade {
           ReportType.valueOf(type.toUpperCase().replace('-','_')),
           units,
           reportOutput );
+      reportOutput.flush();
     } catch ( final Exception e ) {
       throw new ReportGenerationException( "Error generating report", e );
     }
-
-    return new String( reportOutput.toByteArray(), Charsets.UTF_8 );
   }
 
   public static class ReportGenerationException extends Exception {
@@ -84,4 +105,5 @@ public class ReportGenerationFacade {
       super(message);
     }
   }
+
 }
@@ -120,8 +120,30 @@ public class ReportGenerator
 		if (format==null) format=ReportFormat.HTML;
 		
 		ReportArtEntity report = new ReportArtEntity(period.getBeginningMs(), period.getEndingMs());
-		if (displayUnits==null) displayUnits=Units.getDefaultDisplayUnits();
 		type.getGenerator().generateReportArt(report);
+		renderReport(report, format, type, displayUnits, out);
+	}
+
+	/**
+	 * Render a generated report.
+	 *
+	 * <p>Report rows are written to the stream as they are rendered, zones,
+	 * accounts, users and resources are rendered in sorted order.
+	 *
+	 * @param report The generated report
+	 * @param format The report format, HTML if null
+	 * @param type The type of report
+	 * @param displayUnits Can be null if you just want the default units.
+	 * @param out Where to send the rendered report
+	 *
+	 * @throws IOException If it cannot write to the stream you passed.
+	 */
+	public void renderReport(ReportArtEntity report, ReportFormat format, ReportType type,
+			Units displayUnits, OutputStream out)
+		throws IOException
+	{
+		if (format==null) format=ReportFormat.HTML;
+		if (displayUnits==null) displayUnits=Units.getDefaultDisplayUnits();
 		RendererFactory.getRenderer(type, format).render(report, out, displayUnits);
 	}
 }
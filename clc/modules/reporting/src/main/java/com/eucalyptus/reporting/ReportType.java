@@ -24,7 +24,7 @@ import com.eucalyptus.reporting.art.generator.*;
 
 public enum ReportType
 {
-	INSTANCE   (new InstanceArtGenerator()),
+	INSTANCE   (new InstanceRollupArtGenerator()),
 	S3         (new S3ArtGenerator()),
 	VOLUME     (new VolumeArtGenerator()),
 	SNAPSHOT   (new VolumeSnapshotArtGenerator()),
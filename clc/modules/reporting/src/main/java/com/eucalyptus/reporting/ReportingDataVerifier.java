@@ -46,6 +46,14 @@ import com.eucalyptus.entities.TransactionException;
 import com.eucalyptus.entities.Transactions;
 import com.eucalyptus.objectstorage.entities.ObjectEntity;
 import com.eucalyptus.objectstorage.util.ObjectStorageProperties;
+import com.eucalyptus.reporting.art.entity.AccountArtEntity;
+import com.eucalyptus.reporting.art.entity.AvailabilityZoneArtEntity;
+import com.eucalyptus.reporting.art.entity.InstanceArtEntity;
+import com.eucalyptus.reporting.art.entity.InstanceUsageArtEntity;
+import com.eucalyptus.reporting.art.entity.ReportArtEntity;
+import com.eucalyptus.reporting.art.entity.UserArtEntity;
+import com.eucalyptus.reporting.art.generator.InstanceArtGenerator;
+import com.eucalyptus.reporting.art.generator.InstanceRollupArtGenerator;
 import com.eucalyptus.reporting.domain.ReportingAccountCrud;
 import com.eucalyptus.reporting.domain.ReportingUserCrud;
 import com.eucalyptus.reporting.event_store.ReportingElasticIpAttachEvent;
@@ -204,6 +212,92 @@ public final class ReportingDataVerifier {
     addAttachmentStateEvents( timestamp, verifiedUserIds, eventDescriptions.detach, false );
   }
 
+  /**
+   * Verify instance usage rollups by generating an instance report from usage
+   * events and from rollups.
+   *
+   * @param beginMs The report start time
+   * @param endMs The report end time
+   * @return Descriptions of any differences in instance usage
+   */
+  public static List<String> verifyInstanceUsageRollups( final long beginMs, final long endMs ) {
+    final ReportArtEntity eventReport =
+        new InstanceArtGenerator().generateReportArt( new ReportArtEntity( beginMs, endMs ) );
+    final ReportArtEntity rollupReport =
+        new InstanceRollupArtGenerator().generateRollupReportArt( new ReportArtEntity( beginMs, endMs ) );
+    return getInstanceUsageDifferences( eventReport, rollupReport );
+  }
+
+  /**
+   * Get the differences in instance usage between instance reports.
+   *
+   * <p>Usage values are truncated as usage is calculated, so small differences
+   * are expected and ignored.</p>
+   *
+   * @param expected The expected report
+   * @param actual The report to verify
+   * @return Descriptions of any differences in instance usage
+   */
+  public static List<String> getInstanceUsageDifferences( final ReportArtEntity expected,
+                                                          final ReportArtEntity actual ) {
+    final Map<String,InstanceArtEntity> expectedInstances = getInstances( expected );
+    final Map<String,InstanceArtEntity> actualInstances = getInstances( actual );
+    final List<String> differences = Lists.newArrayList();
+    for ( final String uuid : Sets.union( expectedInstances.keySet(), actualInstances.keySet() ) ) {
+      final InstanceArtEntity instance = expectedInstances.containsKey( uuid ) ?
+          expectedInstances.get( uuid ) :
+          actualInstances.get( uuid );
+      final Map<String,Long> expectedUsage = getUsage( expectedInstances.get( uuid ) );
+      final Map<String,Long> actualUsage = getUsage( actualInstances.get( uuid ) );
+      for ( final String metric : expectedUsage.keySet() ) {
+        final long expectedValue = expectedUsage.get( metric );
+        final long actualValue = actualUsage.get( metric );
+        if ( Math.abs( expectedValue - actualValue ) >
+            Math.max( 1, Math.max( Math.abs( expectedValue ), Math.abs( actualValue ) ) / 1000 ) ) {
+          differences.add( "Instance " + instance.getInstanceId() + " (" + uuid + ") " + metric +
+              " expected:" + expectedValue + " actual:" + actualValue );
+        }
+      }
+    }
+    return differences;
+  }
+
+  private static Map<String,InstanceArtEntity> getInstances( final ReportArtEntity report ) {
+    final Map<String,InstanceArtEntity> instances = Maps.newHashMap();
+    for ( final AvailabilityZoneArtEntity zone : report.getZones().values() ) {
+      for ( final AccountArtEntity account : zone.getAccounts().values() ) {
+        for ( final UserArtEntity user : account.getUsers().values() ) {
+          instances.putAll( user.getInstances() );
+        }
+      }
+    }
+    return instances;
+  }
+
+  private static Map<String,Long> getUsage( @Nullable final InstanceArtEntity instance ) {
+    final InstanceUsageArtEntity usage = instance == null ?
+        new InstanceUsageArtEntity() :
+        instance.getUsage();
+    final Map<String,Long> usageMap = Maps.newLinkedHashMap();
+    usageMap.put( "duration", usage.getDurationMs() );
+    usageMap.put( "cpu", zeroIfNull( usage.getCpuUtilizationMs() ) );
+    usageMap.put( "disk read bytes", zeroIfNull( usage.getDiskReadBytes() ) );
+    usageMap.put( "disk write bytes", zeroIfNull( usage.getDiskWriteBytes() ) );
+    usageMap.put( "disk read ops", zeroIfNull( usage.getDiskReadOps() ) );
+    usageMap.put( "disk write ops", zeroIfNull( usage.getDiskWriteOps() ) );
+    usageMap.put( "disk read time", zeroIfNull( usage.getDiskReadTime() ) );
+    usageMap.put( "disk write time", zeroIfNull( usage.getDiskWriteTime() ) );
+    usageMap.put( "net total in", zeroIfNull( usage.getNetTotalInBytes() ) );
+    usageMap.put( "net total out", zeroIfNull( usage.getNetTotalOutBytes() ) );
+    usageMap.put( "net external in", zeroIfNull( usage.getNetExternalInBytes() ) );
+    usageMap.put( "net external out", zeroIfNull( usage.getNetExternalOutBytes() ) );
+    return usageMap;
+  }
+
+  private static long zeroIfNull( @Nullable final Long value ) {
+    return value == null ? 0 : value;
+  }
+
   private static Predicate<ResourceWithRelation<?>> withKeyMatching( final ResourceKey key ) {
     return Predicates.compose( Predicates.equalTo( key ), key() );
   }
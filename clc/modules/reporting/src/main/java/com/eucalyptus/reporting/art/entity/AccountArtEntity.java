@@ -74,7 +74,7 @@ public class AccountArtEntity
 		
 	public AccountArtEntity()
 	{
-		this.users = new HashMap<String,UserArtEntity>();
+		this.users = new TreeMap<String,UserArtEntity>();
 		this.usageTotals = new UsageTotalsArtEntity();
 	}
 
@@ -74,7 +74,7 @@ public class AvailabilityZoneArtEntity
 	
 	public AvailabilityZoneArtEntity()
 	{
-		this.accounts = new HashMap<String, AccountArtEntity>();
+		this.accounts = new TreeMap<String, AccountArtEntity>();
 		this.usageTotals = new UsageTotalsArtEntity();
 	}
 
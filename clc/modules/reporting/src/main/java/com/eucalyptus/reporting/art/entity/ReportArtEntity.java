@@ -79,8 +79,8 @@ public class ReportArtEntity
 	{
 		this.beginMs = beginMs;
 		this.endMs = endMs;
-		this.zones = new HashMap<String, AvailabilityZoneArtEntity>();
-		this.accounts = new HashMap<String, AccountArtEntity>();
+		this.zones = new TreeMap<String, AvailabilityZoneArtEntity>();
+		this.accounts = new TreeMap<String, AccountArtEntity>();
 		this.usageTotals = new UsageTotalsArtEntity();
 	}
 
@@ -78,10 +78,10 @@ public class UserArtEntity
 	public UserArtEntity()
 	{
 		super();
-		this.instances = new HashMap<String,InstanceArtEntity>();
-		this.volumes = new HashMap<String,VolumeArtEntity>();
-		this.bucketsUsage = new HashMap<String,BucketUsageArtEntity>();
-		this.elasticIps = new HashMap<String,ElasticIpArtEntity>();
+		this.instances = new TreeMap<String,InstanceArtEntity>();
+		this.volumes = new TreeMap<String,VolumeArtEntity>();
+		this.bucketsUsage = new TreeMap<String,BucketUsageArtEntity>();
+		this.elasticIps = new TreeMap<String,ElasticIpArtEntity>();
 		this.totals = new UsageTotalsArtEntity();
 	}
 
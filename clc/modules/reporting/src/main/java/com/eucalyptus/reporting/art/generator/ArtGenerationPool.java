@@ -0,0 +1,146 @@
+/*************************************************************************
+ * Copyright 2009-2014 Eucalyptus Systems, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ *
+ * Please contact Eucalyptus Systems, Inc., 6755 Hollister Ave., Goleta
+ * CA 93117, USA or visit http://www.eucalyptus.com/licenses/ if you need
+ * additional information or have any questions.
+ ************************************************************************/
+package com.eucalyptus.reporting.art.generator;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import com.eucalyptus.configurable.ConfigurableClass;
+import com.eucalyptus.configurable.ConfigurableField;
+
+/**
+ * Fork-join pool for scanning report events in parallel by time slice.
+ *
+ * <p>Each slice is scanned on a pool thread, so each scan uses its own
+ * (read-only) transaction. Slice results are combined in time order.</p>
+ */
+@ConfigurableClass( root = "reporting", description = "Parameters controlling reporting" )
+public class ArtGenerationPool {
+
+  @ConfigurableField( initial = "0", description = "Number of threads used to scan events when generating a report, 0 for one per processor and 1 to disable parallel scans" )
+  public static volatile Integer REPORT_GENERATION_THREADS = 0;
+
+  @ConfigurableField( initial = "24", description = "Minimum hours of events scanned by each thread when generating a report" )
+  public static volatile Integer REPORT_GENERATION_SLICE_HOURS = 24;
+
+  private static final int SLICES_PER_THREAD = 2;
+  private static final Object poolLock = new Object();
+  private static ForkJoinPool pool;
+
+  /**
+   * Scan the events in a time range as one or more slices.
+   *
+   * @param <T> The slice result type
+   */
+  public interface SliceScanner<T> {
+    /**
+     * Scan the events in the given slice.
+     */
+    T scan( long beginMs, long endMs );
+
+    /**
+     * Combine the results for adjacent slices.
+     *
+     * @param earlier The result for the earlier slice, which may be modified
+     * @param later The result for the immediately following slice
+     * @return The result for both slices
+     */
+    T combine( T earlier, T later );
+  }
+
+  /**
+   * Get the pool for parallel scans.
+   *
+   * @return The pool or null if parallel scans are disabled
+   */
+  @Nullable
+  public static ForkJoinPool getPool() {
+    final int threads = getThreads();
+    if ( threads < 2 ) {
+      return null;
+    }
+    synchronized ( poolLock ) {
+      if ( pool == null || pool.getParallelism() != threads ) {
+        if ( pool != null ) pool.shutdown();
+        pool = new ForkJoinPool( threads );
+      }
+      return pool;
+    }
+  }
+
+  public static long getMinimumSliceMs() {
+    return TimeUnit.HOURS.toMillis( Math.max( 1, REPORT_GENERATION_SLICE_HOURS ) );
+  }
+
+  /**
+   * Scan the given time range in slices using the pool.
+   *
+   * <p>The range is split in half until slices are no larger than the
+   * minimum slice size or there are enough slices to occupy each thread.</p>
+   */
+  public static <T> T scan( final ForkJoinPool pool,
+                            final long beginMs,
+                            final long endMs,
+                            final long minimumSliceMs,
+                            final SliceScanner<T> scanner ) {
+    final long sliceMs = Math.max(
+        minimumSliceMs,
+        ( endMs - beginMs ) / ( pool.getParallelism() * SLICES_PER_THREAD ) );
+    return pool.invoke( new SliceTask<T>( scanner, beginMs, endMs, sliceMs ) );
+  }
+
+  private static int getThreads() {
+    final Integer threads = REPORT_GENERATION_THREADS;
+    return threads == null || threads < 1 ?
+        Runtime.getRuntime().availableProcessors() :
+        threads;
+  }
+
+  private static final class SliceTask<T> extends RecursiveTask<T> {
+    private static final long serialVersionUID = 1L;
+    private final SliceScanner<T> scanner;
+    private final long beginMs;
+    private final long endMs;
+    private final long sliceMs;
+
+    private SliceTask( final SliceScanner<T> scanner,
+                       final long beginMs,
+                       final long endMs,
+                       final long sliceMs ) {
+      this.scanner = scanner;
+      this.beginMs = beginMs;
+      this.endMs = endMs;
+      this.sliceMs = sliceMs;
+    }
+
+    @Override
+    protected T compute() {
+      if ( endMs - beginMs <= sliceMs ) {
+        return scanner.scan( beginMs, endMs );
+      }
+      final long middleMs = beginMs + ( endMs - beginMs ) / 2;
+      final SliceTask<T> later = new SliceTask<T>( scanner, middleMs, endMs, sliceMs );
+      later.fork();
+      final T earlierResult = new SliceTask<T>( scanner, beginMs, middleMs, sliceMs ).compute();
+      return scanner.combine( earlierResult, later.join() );
+    }
+  }
+}
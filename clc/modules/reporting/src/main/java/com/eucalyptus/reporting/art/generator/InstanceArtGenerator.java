@@ -62,7 +62,9 @@
 package com.eucalyptus.reporting.art.generator;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
 import org.apache.log4j.Logger;
 import com.eucalyptus.reporting.art.entity.*;
 import com.eucalyptus.reporting.domain.*;
@@ -97,9 +99,24 @@ public class InstanceArtGenerator extends AbstractArtGenerator {
   public ReportArtEntity generateReportArt( final ReportArtEntity report ) {
     log.debug( "Generating report ART" );
 
-    /* Find all instance create events. These will be used to populate the ART tree with instances etc,
-     * if there is usage for them within the report boundaries (determined below).
-     */
+    final Map<String, ReportingInstanceCreateEvent> createEvents = getCreateEvents( report );
+    final Map<String, InstanceUsageArtEntity> usageEntities = Maps.newHashMap();
+    final ForkJoinPool pool = getGenerationPool();
+    if ( pool == null ) {
+      addUsage( report, createEvents, usageEntities, report.getBeginMs(), report.getEndMs(), USAGE_SEARCH_PERIOD );
+    } else {
+      addUsageInSlices( pool, report, createEvents, usageEntities, report.getBeginMs(), report.getEndMs(), USAGE_SEARCH_PERIOD );
+    }
+    updateUsageTotals( report );
+
+    return report;
+  }
+
+  /**
+   * Find all instance create events. These will be used to populate the ART tree with instances etc,
+   * if there is usage for them within the report boundaries.
+   */
+  Map<String, ReportingInstanceCreateEvent> getCreateEvents( final ReportArtEntity report ) {
     final Map<String, ReportingInstanceCreateEvent> createEvents = Maps.newHashMap();
     foreachInstanceCreateEvent( report.getEndMs(), new Predicate<ReportingInstanceCreateEvent>() {
       @Override
@@ -111,14 +128,26 @@ public class InstanceArtGenerator extends AbstractArtGenerator {
         return true;
       }
     } );
+    return createEvents;
+  }
 
-    /* Scan through usage events in order, and populate the ART tree with nodes and usage.
-     */
+  /**
+   * Scan through usage events in order, and populate the ART tree with nodes and the usage
+   * between the given times.
+   *
+   * Usage for the instance is added to any usage from other (non overlapping) time ranges.
+   */
+  void addUsage( final ReportArtEntity report,
+                 final Map<String, ReportingInstanceCreateEvent> createEvents,
+                 final Map<String, InstanceUsageArtEntity> usageEntities,
+                 final long beginMs,
+                 final long endMs,
+                 final long searchPeriod ) {
     final Map<InstanceMetricDimensionKey, MetricPrevData> prevDataMap = Maps.newHashMap();
-    final Map<String, InstanceUsageArtEntity> usageEntities = Maps.newHashMap();
+    final Map<String, Long> durations = Maps.newHashMap();
     foreachInstanceUsageEvent(
-        report.getBeginMs() - USAGE_SEARCH_PERIOD,
-        report.getEndMs() + USAGE_SEARCH_PERIOD,
+        beginMs - searchPeriod,
+        endMs + searchPeriod,
         new Predicate<ReportingInstanceUsageEvent>() {
           @Override
           public boolean apply( final ReportingInstanceUsageEvent event ) {
@@ -139,7 +168,7 @@ public class InstanceArtGenerator extends AbstractArtGenerator {
             }
 
             /* Populate the nodes in the tree for this usage, if the usage falls within report boundaries */
-            if ( eventMs >= report.getBeginMs() || eventMs <= report.getEndMs() ) {
+            if ( eventMs >= beginMs || eventMs <= endMs ) {
               if (!addParentNodes( report, createEvent, usageEntity )) {
                 return true;
               }
@@ -157,14 +186,14 @@ public class InstanceArtGenerator extends AbstractArtGenerator {
                * Find the fraction of this period which falls within report boundaries. This is
                * needed because period boundaries do not align with report boundaries.
                */
-              usageEntity.setDurationMs( Math.max( usageEntity.getDurationMs(),
-                  overlap( report.getBeginMs(), report.getEndMs(), createEvent.getTimestampMs(), eventMs ) ) );
-              Double fractionalVal = fractionalUsage( report.getBeginMs(), report.getEndMs(),
+              updateDuration( durations, event.getUuid(),
+                  overlap( beginMs, endMs, createEvent.getTimestampMs(), eventMs ) );
+              Double fractionalVal = fractionalUsage( beginMs, endMs,
                   createEvent.getTimestampMs(), eventMs, event.getValue() );
               addMetricValueToUsageEntity( usageEntity, event.getMetric(), event.getDimension(),
                   fractionalVal );
               log.debug( String.format( "new metric time:%d-%d report:%d-%d uuid:%s metric:%s dim:%s val:%f fraction:%f",
-                  createEvent.getTimestampMs(), eventMs, report.getBeginMs(), report.getEndMs(),
+                  createEvent.getTimestampMs(), eventMs, beginMs, endMs,
                   event.getUuid(), event.getMetric(), event.getDimension(), event.getValue(), fractionalVal ) );
               prevDataMap.put( key, new MetricPrevData( eventMs, eventMs, event.getValue(), event.getSequenceNum() ) );
             } else {
@@ -172,30 +201,30 @@ public class InstanceArtGenerator extends AbstractArtGenerator {
               final MetricPrevData prevData = prevDataMap.get( key );
 
               /* We have a period (firstMs to now); update the instance duration if necessary */
-              usageEntity.setDurationMs( Math.max( usageEntity.getDurationMs(),
-                  overlap( report.getBeginMs(), report.getEndMs(), prevData.firstMs, eventMs ) ) );
+              updateDuration( durations, event.getUuid(),
+                  overlap( beginMs, endMs, prevData.firstMs, eventMs ) );
 
               if ( event.getSequenceNum() < prevData.lastSeq || event.getSequenceNum()==0 ) {
                 /* SENSOR RESET; we lost data; just take whatever amount greater than 0 */
 
                 /* Find the fraction of this period which falls within report boundaries. */
-                Double fractionalVal = fractionalUsage( report.getBeginMs(), report.getEndMs(),
+                Double fractionalVal = fractionalUsage( beginMs, endMs,
                     prevData.lastMs, eventMs, event.getValue() );
                 addMetricValueToUsageEntity( usageEntity, event.getMetric(), event.getDimension(),
                     fractionalVal );
                 log.debug( String.format( "reset time:%d-%d report:%d-%d uuid:%s metric:%s dim:%s val:%f fraction:%f",
-                    prevData.lastMs, eventMs, report.getBeginMs(), report.getEndMs(), event.getUuid(), event.getMetric(),
+                    prevData.lastMs, eventMs, beginMs, endMs, event.getUuid(), event.getMetric(),
                     event.getDimension(), event.getValue(), fractionalVal ) );
               } else {
                 /* Increase total by val minus lastVal */
 
                 /* Find the fraction of this period which falls within report boundaries. */
-                Double fractionalVal = fractionalUsage( report.getBeginMs(), report.getEndMs(),
+                Double fractionalVal = fractionalUsage( beginMs, endMs,
                     prevData.lastMs, eventMs, event.getValue() - prevData.lastVal );
                 addMetricValueToUsageEntity( usageEntity, event.getMetric(), event.getDimension(),
                     fractionalVal );
                 log.debug( String.format( "event time:%d-%d report:%d-%d uuid:%s metric:%s dim:%s val:%f lastVal:%f fraction:%f",
-                    prevData.lastMs, eventMs, report.getBeginMs(), report.getEndMs(), event.getUuid(), event.getMetric(),
+                    prevData.lastMs, eventMs, beginMs, endMs, event.getUuid(), event.getMetric(),
                     event.getDimension(), event.getValue(), prevData.lastVal, fractionalVal ) );
               }
               prevDataMap.put( key, new MetricPrevData( prevData.firstMs, eventMs, event.getValue(), event.getSequenceNum() ) );
@@ -203,10 +232,94 @@ public class InstanceArtGenerator extends AbstractArtGenerator {
             return true;
           }
         } );
+    addDurations( usageEntities, durations );
+  }
+
+  /**
+   * Scan through usage events in time slices using the given pool, and populate the ART
+   * tree with nodes and the usage between the given times.
+   *
+   * The result is the same as for addUsage. Each slice totals the usage between its own
+   * events, usage between the last and first events of adjacent slices is added when the
+   * slices are combined.
+   */
+  void addUsageInSlices( final ForkJoinPool pool,
+                         final ReportArtEntity report,
+                         final Map<String, ReportingInstanceCreateEvent> createEvents,
+                         final Map<String, InstanceUsageArtEntity> usageEntities,
+                         final long beginMs,
+                         final long endMs,
+                         final long searchPeriod ) {
+    final UsageSlice usage = ArtGenerationPool.scan(
+        pool,
+        beginMs - searchPeriod,
+        endMs + searchPeriod,
+        ArtGenerationPool.getMinimumSliceMs(),
+        new ArtGenerationPool.SliceScanner<UsageSlice>() {
+          @Override
+          public UsageSlice scan( final long sliceBeginMs, final long sliceEndMs ) {
+            final UsageSlice slice = new UsageSlice( beginMs, endMs );
+            foreachInstanceUsageEvent( sliceBeginMs, sliceEndMs, new Predicate<ReportingInstanceUsageEvent>() {
+              @Override
+              public boolean apply( final ReportingInstanceUsageEvent event ) {
+                slice.add( event );
+                return true;
+              }
+            } );
+            return slice;
+          }
+
+          @Override
+          public UsageSlice combine( final UsageSlice earlier, final UsageSlice later ) {
+            return earlier.combine( later );
+          }
+        } );
+
+    final Map<String, Long> durations = Maps.newHashMap();
+    for ( final MetricSliceData data : usage.metricData.values() ) {
+      final ReportingInstanceCreateEvent createEvent = createEvents.get( data.uuid );
+      if ( createEvent == null ) {
+        log.error( "Usage event without create event:" + data.uuid );
+        continue;
+      }
+      if ( !usageEntities.containsKey( data.uuid ) ) {
+        usageEntities.put( data.uuid, new InstanceUsageArtEntity() );
+      }
+      final InstanceUsageArtEntity usageEntity = usageEntities.get( data.uuid );
+      if ( !addParentNodes( report, createEvent, usageEntity ) ) {
+        continue;
+      }
+
+      /* Usage for the first event is from instance creation, as for addUsage */
+      final long createdMs = createEvent.getTimestampMs();
+      final long firstUsage =
+          fractionalUsage( beginMs, endMs, createdMs, data.firstMs, data.firstVal ).longValue();
+      addMetricValueToUsageEntity( usageEntity, data.metric, data.dimension, firstUsage + data.usage );
+      updateDuration( durations, data.uuid, Math.max(
+          overlap( beginMs, endMs, createdMs, data.firstMs ),
+          overlap( beginMs, endMs, data.firstMs, data.lastMs ) ) );
+    }
+    addDurations( usageEntities, durations );
+  }
+
+  /**
+   * Track the longest duration for the instance within a time range.
+   */
+  static void updateDuration( final Map<String, Long> durations, final String uuid, final long durationMs ) {
+    final Long duration = durations.get( uuid );
+    durations.put( uuid, duration == null ? durationMs : Math.max( duration, durationMs ) );
+  }
 
+  static void addDurations( final Map<String, InstanceUsageArtEntity> usageEntities,
+                            final Map<String, Long> durations ) {
+    for ( final Map.Entry<String, Long> entry : durations.entrySet() ) {
+      usageEntities.get( entry.getKey() ).addDurationMs( entry.getValue() );
+    }
+  }
 
-    /* Perform totals and summations
-       */
+  /* Perform totals and summations
+   */
+  static void updateUsageTotals( final ReportArtEntity report ) {
     for ( final AvailabilityZoneArtEntity zone : report.getZones().values() ) {
       final UsageTotalsArtEntity zoneUsage = zone.getUsageTotals();
       for ( final AccountArtEntity account : zone.getAccounts().values() ) {
@@ -221,13 +334,11 @@ public class InstanceArtGenerator extends AbstractArtGenerator {
         }
       }
     }
-
-    return report;
   }
 
-  private boolean addParentNodes( final ReportArtEntity report,
-                                  final ReportingInstanceCreateEvent createEvent,
-                                  final InstanceUsageArtEntity usageEntity ) {
+  boolean addParentNodes( final ReportArtEntity report,
+                          final ReportingInstanceCreateEvent createEvent,
+                          final InstanceUsageArtEntity usageEntity ) {
     final Map<String, ReportingUser> users = Maps.newHashMap();
     final Map<String, String> accounts = Maps.newHashMap();
 
@@ -281,7 +392,7 @@ public class InstanceArtGenerator extends AbstractArtGenerator {
     typeTotal.addUsage( usage );
   }
 
-  private static void addMetricValueToUsageEntity( InstanceUsageArtEntity usage, String metric, String dim, double val ) {
+  static void addMetricValueToUsageEntity( InstanceUsageArtEntity usage, String metric, String dim, double val ) {
     final long value = new Double( val ).longValue();
     if ( metric.equals( METRIC_NET_IN_BYTES ) && dim.equals( DIM_TOTAL ) ) {
       usage.addNetTotalInBytes( value );
@@ -368,6 +479,96 @@ public class InstanceArtGenerator extends AbstractArtGenerator {
     }
   }
 
+  /**
+   * Usage for each uuid/metric/dimension combo from the events in a time slice.
+   */
+  private static final class UsageSlice {
+    private final long beginMs;
+    private final long endMs;
+    private final Map<InstanceMetricDimensionKey, MetricSliceData> metricData = Maps.newHashMap();
+
+    private UsageSlice( final long beginMs, final long endMs ) {
+      this.beginMs = beginMs;
+      this.endMs = endMs;
+    }
+
+    private void add( final ReportingInstanceUsageEvent event ) {
+      if ( event.getValue() == null ) return;
+      final InstanceMetricDimensionKey key =
+          new InstanceMetricDimensionKey( event.getUuid(), event.getMetric(), event.getDimension() );
+      final MetricSliceData data = metricData.get( key );
+      if ( data == null ) {
+        metricData.put( key, new MetricSliceData( event ) );
+      } else {
+        data.add( beginMs, endMs, event.getTimestampMs(), event.getValue(), event.getSequenceNum() );
+      }
+    }
+
+    /**
+     * Combine with the immediately following slice
+     */
+    private UsageSlice combine( final UsageSlice later ) {
+      for ( final Map.Entry<InstanceMetricDimensionKey, MetricSliceData> entry : later.metricData.entrySet() ) {
+        final MetricSliceData data = metricData.get( entry.getKey() );
+        if ( data == null ) {
+          metricData.put( entry.getKey(), entry.getValue() );
+        } else {
+          data.add( beginMs, endMs, entry.getValue() );
+        }
+      }
+      return this;
+    }
+  }
+
+  /**
+   * First and last events for a uuid/metric/dimension combo in a slice, with the usage
+   * between those events.
+   */
+  private static final class MetricSliceData {
+    private final String uuid;
+    private final String metric;
+    private final String dimension;
+    private final long firstMs;
+    private final double firstVal;
+    private final long firstSeq;
+    private long lastMs;
+    private double lastVal;
+    private long lastSeq;
+    private long usage;
+
+    private MetricSliceData( final ReportingInstanceUsageEvent event ) {
+      this.uuid = event.getUuid();
+      this.metric = event.getMetric();
+      this.dimension = event.getDimension();
+      this.firstMs = this.lastMs = event.getTimestampMs();
+      this.firstVal = this.lastVal = event.getValue();
+      this.firstSeq = this.lastSeq = event.getSequenceNum();
+    }
+
+    /**
+     * Add usage to the given event, as for a previous value in addUsage
+     */
+    private void add( final long beginMs, final long endMs,
+                      final long eventMs, final double value, final long seq ) {
+      final double delta = seq < lastSeq || seq == 0 ? value : value - lastVal;
+      usage += fractionalUsage( beginMs, endMs, lastMs, eventMs, delta ).longValue();
+      lastMs = eventMs;
+      lastVal = value;
+      lastSeq = seq;
+    }
+
+    /**
+     * Add usage to the first event and within the following slice
+     */
+    private void add( final long beginMs, final long endMs, final MetricSliceData later ) {
+      add( beginMs, endMs, later.firstMs, later.firstVal, later.firstSeq );
+      usage += later.usage;
+      lastMs = later.lastMs;
+      lastVal = later.lastVal;
+      lastSeq = later.lastSeq;
+    }
+  }
+
   /**
    * Find the overlapping portion of two time periods
    */
@@ -389,6 +590,14 @@ public class InstanceArtGenerator extends AbstractArtGenerator {
     return usage * (overlapping / duration);
   }
 
+  /**
+   * Pool for scanning usage events in parallel, null for a serial scan.
+   */
+  @Nullable
+  protected ForkJoinPool getGenerationPool() {
+    return ArtGenerationPool.getPool();
+  }
+
   protected void foreachInstanceUsageEvent( long startInclusive, long endExclusive,
                                             Predicate<? super ReportingInstanceUsageEvent> callback ) {
     foreach( ReportingInstanceUsageEvent.class, between( startInclusive, endExclusive ), true, callback );
@@ -0,0 +1,176 @@
+/*************************************************************************
+ * Copyright 2009-2014 Eucalyptus Systems, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ *
+ * Please contact Eucalyptus Systems, Inc., 6755 Hollister Ave., Goleta
+ * CA 93117, USA or visit http://www.eucalyptus.com/licenses/ if you need
+ * additional information or have any questions.
+ ************************************************************************/
+package com.eucalyptus.reporting.art.generator;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import org.apache.log4j.Logger;
+import com.eucalyptus.reporting.ReportingDataVerifier;
+import com.eucalyptus.reporting.art.entity.InstanceUsageArtEntity;
+import com.eucalyptus.reporting.art.entity.ReportArtEntity;
+import com.eucalyptus.reporting.event_store.ReportingInstanceCreateEvent;
+import com.eucalyptus.reporting.rollup.InstanceUsageRollupFolder;
+import com.eucalyptus.reporting.rollup.InstanceUsageRollups;
+import com.eucalyptus.reporting.rollup.ReportingInstanceUsageRollup;
+import com.eucalyptus.reporting.rollup.ReportingInstanceUsageRollup.Resolution;
+import com.eucalyptus.reporting.rollup.ReportingUsageRollupProgress;
+import com.google.common.base.Predicate;
+import com.google.common.collect.Maps;
+
+/**
+ * Instance report generator using usage rollups.
+ *
+ * <p>Usage for the whole hours and days of the report period is read from
+ * rollups, usage events are only read for any partial hours at the report
+ * boundaries and for the time that is not yet rolled up.</p>
+ *
+ * <p>Usage events are read from a day either side of each partial period, so
+ * gaps of more than a day between usage events at report boundaries can cause
+ * differences from reports generated only from usage events.</p>
+ */
+public class InstanceRollupArtGenerator extends InstanceArtGenerator {
+  private static final Logger log = Logger.getLogger( InstanceRollupArtGenerator.class );
+
+  private static final long EDGE_SEARCH_PERIOD = TimeUnit.DAYS.toMillis( 1 );
+
+  @Override
+  public ReportArtEntity generateReportArt( final ReportArtEntity report ) {
+    if ( !InstanceUsageRollups.isEnabled() ) {
+      return super.generateReportArt( report );
+    } else if ( InstanceUsageRollups.isVerify() ) {
+      final ReportArtEntity rollupReport =
+          generateRollupReportArt( new ReportArtEntity( report.getBeginMs(), report.getEndMs() ) );
+      super.generateReportArt( report );
+      final List<String> differences = ReportingDataVerifier.getInstanceUsageDifferences( report, rollupReport );
+      for ( final String difference : differences ) {
+        log.warn( "Instance usage rollup difference for report " +
+            report.getBeginMs() + "-" + report.getEndMs() + ": " + difference );
+      }
+      log.info( "Verified instance usage rollups for report " + report.getBeginMs() + "-" + report.getEndMs() +
+          ", found " + differences.size() + " differences" );
+      return report;
+    } else {
+      return generateRollupReportArt( report );
+    }
+  }
+
+  /**
+   * Generate the report using rollups where available.
+   */
+  public ReportArtEntity generateRollupReportArt( final ReportArtEntity report ) {
+    final ReportingUsageRollupProgress progress = getRollupProgress();
+
+    /* Rollups for the last day are not used as events are folded in order
+     * and so the usage up to a later event may not yet be included.
+     */
+    final long rollupBeginMs = Resolution.Hour.ceil( report.getBeginMs() );
+    final long rollupEndMs = progress == null ? rollupBeginMs : Math.min(
+        Resolution.Hour.floor( report.getEndMs() ),
+        progress.getToMs() - EDGE_SEARCH_PERIOD );
+    if ( progress == null ||
+        rollupBeginMs < progress.getFromMs() ||
+        rollupEndMs - rollupBeginMs < EDGE_SEARCH_PERIOD ) {
+      log.debug( "Instance usage rollups not available for report, using usage events" );
+      return super.generateReportArt( report );
+    }
+
+    log.debug( "Generating report ART using rollups for " + rollupBeginMs + "-" + rollupEndMs );
+    final Map<String, ReportingInstanceCreateEvent> createEvents = getCreateEvents( report );
+    final Map<String, InstanceUsageArtEntity> usageEntities = Maps.newHashMap();
+    if ( report.getBeginMs() < rollupBeginMs ) {
+      addUsage( report, createEvents, usageEntities, report.getBeginMs(), rollupBeginMs, EDGE_SEARCH_PERIOD );
+    }
+    addRollupUsage( report, createEvents, usageEntities, rollupBeginMs, rollupEndMs );
+    if ( rollupEndMs < report.getEndMs() ) {
+      addUsage( report, createEvents, usageEntities, rollupEndMs, report.getEndMs(), EDGE_SEARCH_PERIOD );
+    }
+    updateUsageTotals( report );
+
+    return report;
+  }
+
+  private void addRollupUsage( final ReportArtEntity report,
+                               final Map<String, ReportingInstanceCreateEvent> createEvents,
+                               final Map<String, InstanceUsageArtEntity> usageEntities,
+                               final long beginMs,
+                               final long endMs ) {
+    /* Total the usage for each uuid/metric/dimension using daily rollups for whole days */
+    final Map<List<String>, ReportingInstanceUsageRollup> rollups = Maps.newHashMap();
+    final Predicate<ReportingInstanceUsageRollup> totaller = new Predicate<ReportingInstanceUsageRollup>() {
+      @Override
+      public boolean apply( final ReportingInstanceUsageRollup rollup ) {
+        final List<String> key =
+            InstanceUsageRollupFolder.key( rollup.getUuid(), rollup.getMetric(), rollup.getDimension() );
+        final ReportingInstanceUsageRollup total = rollups.get( key );
+        if ( total == null ) {
+          rollups.put( key, rollup );
+        } else {
+          total.addUsage( rollup.getUsage(), rollup.getFromMs(), rollup.getToMs() );
+        }
+        return true;
+      }
+    };
+    final long daysBeginMs = Resolution.Day.ceil( beginMs );
+    final long daysEndMs = Resolution.Day.floor( endMs );
+    if ( daysBeginMs < daysEndMs ) {
+      foreachInstanceUsageRollup( Resolution.Hour, beginMs, daysBeginMs, totaller );
+      foreachInstanceUsageRollup( Resolution.Day, daysBeginMs, daysEndMs, totaller );
+      foreachInstanceUsageRollup( Resolution.Hour, daysEndMs, endMs, totaller );
+    } else {
+      foreachInstanceUsageRollup( Resolution.Hour, beginMs, endMs, totaller );
+    }
+
+    /* Populate the nodes in the tree and add the usage */
+    final Map<String, Long> durations = Maps.newHashMap();
+    for ( final ReportingInstanceUsageRollup rollup : rollups.values() ) {
+      final ReportingInstanceCreateEvent createEvent = createEvents.get( rollup.getUuid() );
+      if ( createEvent == null ) {
+        log.error( "Usage rollup without create event:" + rollup.getUuid() );
+        continue;
+      }
+      if ( !usageEntities.containsKey( rollup.getUuid() ) ) {
+        usageEntities.put( rollup.getUuid(), new InstanceUsageArtEntity() );
+      }
+      final InstanceUsageArtEntity usageEntity = usageEntities.get( rollup.getUuid() );
+      if ( !addParentNodes( report, createEvent, usageEntity ) ) {
+        continue;
+      }
+      addMetricValueToUsageEntity( usageEntity, rollup.getMetric(), rollup.getDimension(), rollup.getUsage() );
+      updateDuration( durations, rollup.getUuid(), rollup.getToMs() - rollup.getFromMs() );
+    }
+    addDurations( usageEntities, durations );
+  }
+
+  @Nullable
+  protected ReportingUsageRollupProgress getRollupProgress() {
+    return InstanceUsageRollups.getProgress();
+  }
+
+  protected void foreachInstanceUsageRollup( final Resolution resolution,
+                                             final long beginMs,
+                                             final long endMs,
+                                             final Predicate<? super ReportingInstanceUsageRollup> callback ) {
+    if ( beginMs < endMs ) {
+      InstanceUsageRollups.foreachUsage( resolution, beginMs, endMs, callback );
+    }
+  }
+}
@@ -0,0 +1,76 @@
+/*************************************************************************
+ * Copyright 2009-2014 Eucalyptus Systems, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ *
+ * Please contact Eucalyptus Systems, Inc., 6755 Hollister Ave., Goleta
+ * CA 93117, USA or visit http://www.eucalyptus.com/licenses/ if you need
+ * additional information or have any questions.
+ ************************************************************************/
+package com.eucalyptus.reporting.modules.instance;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.log4j.Logger;
+import com.eucalyptus.bootstrap.Bootstrap;
+import com.eucalyptus.bootstrap.BootstrapArgs;
+import com.eucalyptus.bootstrap.Hosts;
+import com.eucalyptus.event.EventListener;
+import com.eucalyptus.event.Hertz;
+import com.eucalyptus.event.Listeners;
+import com.eucalyptus.reporting.rollup.InstanceUsageRollups;
+
+/**
+ * Periodically rolls up instance usage events.
+ */
+public class InstanceUsageRollupListener implements EventListener<Hertz> {
+  private static final Logger log = Logger.getLogger( InstanceUsageRollupListener.class );
+
+  private static final long ROLLUP_INTERVAL_SECS = TimeUnit.MINUTES.toSeconds( 5 );
+
+  private static final ExecutorService rollupExecutor = Executors.newSingleThreadExecutor();
+
+  private static final AtomicBoolean busy = new AtomicBoolean( false );
+
+  public static void register() {
+    Listeners.register( Hertz.class, new InstanceUsageRollupListener() );
+  }
+
+  @Override
+  public void fireEvent( final Hertz event ) {
+    if ( !Bootstrap.isOperational() ||
+        !BootstrapArgs.isCloudController() ||
+        !event.isAsserted( ROLLUP_INTERVAL_SECS ) ||
+        !Hosts.isCoordinator() ||
+        !InstanceUsageRollups.isEnabled() ) {
+      return;
+    }
+
+    if ( busy.compareAndSet( false, true ) ) {
+      rollupExecutor.execute( new Runnable() {
+        @Override
+        public void run() {
+          try {
+            InstanceUsageRollups.rollup();
+          } catch ( Exception e ) {
+            log.error( "Error rolling up instance usage", e );
+          } finally {
+            busy.set( false );
+          }
+        }
+      } );
+    }
+  }
+}
@@ -0,0 +1,147 @@
+/*************************************************************************
+ * Copyright 2009-2014 Eucalyptus Systems, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ *
+ * Please contact Eucalyptus Systems, Inc., 6755 Hollister Ave., Goleta
+ * CA 93117, USA or visit http://www.eucalyptus.com/licenses/ if you need
+ * additional information or have any questions.
+ ************************************************************************/
+package com.eucalyptus.reporting.rollup;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import com.eucalyptus.reporting.event_store.ReportingInstanceUsageEvent;
+import com.eucalyptus.reporting.rollup.ReportingInstanceUsageRollup.Resolution;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Folds instance usage events into hourly and daily rollups.
+ *
+ * <p>Usage is calculated as for instance reports. Metric values are cumulative
+ * so the usage between consecutive events for a uuid/metric/dimension is the
+ * difference in values (or the value following a sensor reset). The usage for
+ * the first event is from instance creation. Usage is spread evenly over the
+ * time between events.</p>
+ *
+ * <p>Events must be folded in timestamp order. Usage before the rollup start
+ * time is discarded.</p>
+ */
+public class InstanceUsageRollupFolder {
+
+  private final long startMs;
+  private final Map<List<String>, ReportingInstanceUsageRollupState> states;
+  private final Map<String, Long> creationTimes;
+  private final List<ReportingInstanceUsageRollupState> createdStates = Lists.newArrayList();
+  private final Map<List<Object>, ReportingInstanceUsageRollup> rollups = Maps.newHashMap();
+
+  /**
+   * Create a folder for the given rollup start time.
+   *
+   * @param startMs The start time for rollups
+   * @param states The current state by uuid/metric/dimension key, new states are added.
+   * @param creationTimes The instance creation times by uuid
+   */
+  public InstanceUsageRollupFolder( final long startMs,
+                                    final Map<List<String>, ReportingInstanceUsageRollupState> states,
+                                    final Map<String, Long> creationTimes ) {
+    this.startMs = startMs;
+    this.states = states;
+    this.creationTimes = creationTimes;
+  }
+
+  public static List<String> key( final String uuid, final String metric, final String dimension ) {
+    return Arrays.asList( uuid, metric, dimension );
+  }
+
+  /**
+   * Fold the given event into the rollups.
+   *
+   * @return True if the event was used
+   */
+  public boolean fold( final ReportingInstanceUsageEvent event ) {
+    if ( event.getValue() == null ) return false;
+
+    final List<String> key = key( event.getUuid(), event.getMetric(), event.getDimension() );
+    final long eventMs = event.getTimestampMs();
+    final long periodStartMs;
+    final double usage;
+    ReportingInstanceUsageRollupState state = states.get( key );
+    if ( state == null ) {
+      /* No prior value. Use usage from instance creation to present */
+      final Long creationMs = creationTimes.get( event.getUuid() );
+      if ( creationMs == null ) return false;
+      state = new ReportingInstanceUsageRollupState( event.getUuid(), event.getMetric(), event.getDimension() );
+      states.put( key, state );
+      createdStates.add( state );
+      periodStartMs = creationMs;
+      usage = event.getValue();
+    } else if ( event.getSequenceNum() < state.getLastSequenceNum() || event.getSequenceNum() == 0 ) {
+      /* Sensor reset; we lost data; just take whatever amount greater than 0 */
+      periodStartMs = state.getLastMs();
+      usage = event.getValue();
+    } else {
+      periodStartMs = state.getLastMs();
+      usage = event.getValue() - state.getLastValue();
+    }
+    state.update( eventMs, event.getValue(), event.getSequenceNum() );
+
+    for ( final Resolution resolution : Resolution.values() ) {
+      addUsage( key, resolution, periodStartMs, eventMs, usage );
+    }
+    return true;
+  }
+
+  /**
+   * States created when folding events.
+   */
+  public List<ReportingInstanceUsageRollupState> getCreatedStates() {
+    return createdStates;
+  }
+
+  /**
+   * Rollups for usage from the folded events.
+   */
+  public Collection<ReportingInstanceUsageRollup> getRollups() {
+    return rollups.values();
+  }
+
+  private void addUsage( final List<String> key,
+                         final Resolution resolution,
+                         final long periodStartMs,
+                         final long periodEndMs,
+                         final double usage ) {
+    final long fromMs = Math.max( startMs, periodStartMs );
+    if ( periodEndMs <= fromMs ) return;
+
+    final double periodMs = periodEndMs - periodStartMs;
+    for ( long bucketMs = resolution.floor( fromMs ); bucketMs < periodEndMs; bucketMs += resolution.getPeriodMs() ) {
+      final long bucketFromMs = Math.max( bucketMs, fromMs );
+      final long bucketToMs = Math.min( bucketMs + resolution.getPeriodMs(), periodEndMs );
+      final double bucketUsage = usage * ( bucketToMs - bucketFromMs ) / periodMs;
+      final List<Object> bucketKey = Lists.<Object>newArrayList( key );
+      bucketKey.add( resolution );
+      bucketKey.add( bucketMs );
+      final ReportingInstanceUsageRollup rollup = rollups.get( bucketKey );
+      if ( rollup == null ) {
+        rollups.put( bucketKey, new ReportingInstanceUsageRollup(
+            key.get( 0 ), key.get( 1 ), key.get( 2 ), resolution, bucketMs, bucketUsage, bucketFromMs, bucketToMs ) );
+      } else {
+        rollup.addUsage( bucketUsage, bucketFromMs, bucketToMs );
+      }
+    }
+  }
+}
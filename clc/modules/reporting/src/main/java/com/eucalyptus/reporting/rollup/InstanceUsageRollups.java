@@ -0,0 +1,347 @@
+/*************************************************************************
+ * Copyright 2009-2014 Eucalyptus Systems, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ *
+ * Please contact Eucalyptus Systems, Inc., 6755 Hollister Ave., Goleta
+ * CA 93117, USA or visit http://www.eucalyptus.com/licenses/ if you need
+ * additional information or have any questions.
+ ************************************************************************/
+package com.eucalyptus.reporting.rollup;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import javax.persistence.EntityTransaction;
+import org.apache.log4j.Logger;
+import org.hibernate.CacheMode;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.criterion.Order;
+import org.hibernate.criterion.Projections;
+import org.hibernate.criterion.Restrictions;
+import com.eucalyptus.configurable.ConfigurableClass;
+import com.eucalyptus.configurable.ConfigurableField;
+import com.eucalyptus.entities.Entities;
+import com.eucalyptus.reporting.event_store.ReportingInstanceCreateEvent;
+import com.eucalyptus.reporting.event_store.ReportingInstanceUsageEvent;
+import com.eucalyptus.reporting.rollup.ReportingInstanceUsageRollup.Resolution;
+import com.google.common.base.Predicate;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Rolls up instance usage events into hourly and daily usage.
+ *
+ * <p>Usage events are rolled up an hour at a time once the configured delay
+ * has passed. Events that arrive after their hour has been rolled up are not
+ * included in the rollups.</p>
+ */
+@ConfigurableClass( root = "reporting", description = "Parameters controlling reporting" )
+public class InstanceUsageRollups {
+  private static final Logger logger = Logger.getLogger( InstanceUsageRollups.class );
+
+  private static final String ROLLUP_TYPE = "instance";
+  private static final int BATCH_SIZE = 500;
+  private static final int MAX_HOURS_PER_ROLLUP = 168;
+  private static final Object rollupLock = new Object();
+
+  @ConfigurableField( initial = "true", description = "Use hourly and daily usage rollups when generating instance reports" )
+  public static volatile Boolean USAGE_ROLLUPS_ENABLED = Boolean.TRUE;
+
+  @ConfigurableField( initial = "60", description = "Minutes to wait for instance usage data before rolling it up" )
+  public static volatile Long USAGE_ROLLUP_DELAY_MINS = 60L;
+
+  @ConfigurableField( initial = "false", description = "Generate instance reports from both usage events and rollups, logging any differences" )
+  public static volatile Boolean USAGE_ROLLUP_VERIFY = Boolean.FALSE;
+
+  public static boolean isEnabled( ) {
+    return Boolean.TRUE.equals( USAGE_ROLLUPS_ENABLED );
+  }
+
+  public static boolean isVerify( ) {
+    return Boolean.TRUE.equals( USAGE_ROLLUP_VERIFY );
+  }
+
+  /**
+   * Get the rolled up time range.
+   *
+   * @return The progress or null if there are no rollups
+   */
+  @Nullable
+  public static ReportingUsageRollupProgress getProgress( ) {
+    final EntityTransaction db = Entities.get( ReportingUsageRollupProgress.class );
+    try {
+      return lookupProgress( );
+    } finally {
+      db.rollback( );
+    }
+  }
+
+  /**
+   * Invoke the callback with the usage for the given time range.
+   *
+   * <p>The usage passed to the callback is the total for each
+   * uuid/metric/dimension for rollups in the time range.</p>
+   *
+   * @param resolution The rollups to use
+   * @param beginMs The start of the time range (inclusive)
+   * @param endMs The end of the time range (exclusive)
+   * @param callback The callback for the usage
+   */
+  @SuppressWarnings( "unchecked" )
+  public static void foreachUsage( final Resolution resolution,
+                                   final long beginMs,
+                                   final long endMs,
+                                   final Predicate<? super ReportingInstanceUsageRollup> callback ) {
+    final EntityTransaction db = Entities.get( ReportingInstanceUsageRollup.class );
+    try {
+      final List<Object[]> results = (List<Object[]>) Entities.createCriteria( ReportingInstanceUsageRollup.class )
+          .add( Restrictions.eq( "resolution", resolution ) )
+          .add( Restrictions.ge( "bucketMs", beginMs ) )
+          .add( Restrictions.lt( "bucketMs", endMs ) )
+          .setProjection( Projections.projectionList()
+              .add( Projections.groupProperty( "uuid" ) )
+              .add( Projections.groupProperty( "metric" ) )
+              .add( Projections.groupProperty( "dimension" ) )
+              .add( Projections.sum( "usage" ) )
+              .add( Projections.min( "fromMs" ) )
+              .add( Projections.max( "toMs" ) ) )
+          .list( );
+      for ( final Object[] result : results ) {
+        final ReportingInstanceUsageRollup usage = new ReportingInstanceUsageRollup(
+            (String) result[0],
+            (String) result[1],
+            (String) result[2],
+            resolution,
+            beginMs,
+            (Double) result[3],
+            (Long) result[4],
+            (Long) result[5] );
+        if ( !callback.apply( usage ) ) {
+          break;
+        }
+      }
+    } finally {
+      db.rollback( );
+    }
+  }
+
+  /**
+   * Roll up usage events for any hours that are due.
+   */
+  public static void rollup( ) {
+    if ( !isEnabled( ) ) return;
+    final long targetMs = Resolution.Hour.floor(
+        System.currentTimeMillis( ) - TimeUnit.MINUTES.toMillis( USAGE_ROLLUP_DELAY_MINS ) );
+    synchronized ( rollupLock ) {
+      ReportingUsageRollupProgress progress = getProgress( );
+      if ( progress == null ) {
+        final Long firstEventMs = getFirstUsageEventTime( );
+        if ( firstEventMs == null ) return;
+        progress = createProgress( Resolution.Hour.floor( firstEventMs ) );
+      }
+
+      long rolledUpToMs = progress.getToMs( );
+      for ( int hours = 0; hours < MAX_HOURS_PER_ROLLUP && rolledUpToMs < targetMs && isEnabled( ); hours++ ) {
+        final long toMs = rolledUpToMs + Resolution.Hour.getPeriodMs( );
+        final int events = rollup( progress.getFromMs( ), rolledUpToMs, toMs );
+        logger.debug( "Rolled up " + events + " instance usage events up to " + toMs );
+        rolledUpToMs = toMs;
+      }
+    }
+  }
+
+  /**
+   * Delete all rollups, usage will be rolled up again from the earliest event.
+   */
+  public static void reset( ) {
+    synchronized ( rollupLock ) {
+      final EntityTransaction db = Entities.get( ReportingInstanceUsageRollup.class );
+      try {
+        Entities.deleteAll( ReportingUsageRollupProgress.class );
+        Entities.deleteAll( ReportingInstanceUsageRollupState.class );
+        Entities.deleteAll( ReportingInstanceUsageRollup.class );
+        db.commit( );
+      } catch ( RuntimeException e ) {
+        logger.error( "Error deleting instance usage rollups", e );
+        throw e;
+      } finally {
+        if ( db.isActive( ) ) db.rollback( );
+      }
+    }
+  }
+
+  @Nullable
+  private static ReportingUsageRollupProgress lookupProgress( ) {
+    return (ReportingUsageRollupProgress) Entities.createCriteria( ReportingUsageRollupProgress.class )
+        .add( Restrictions.eq( "rollupType", ROLLUP_TYPE ) )
+        .uniqueResult( );
+  }
+
+  @Nullable
+  private static Long getFirstUsageEventTime( ) {
+    final EntityTransaction db = Entities.get( ReportingInstanceUsageEvent.class );
+    try {
+      return (Long) Entities.createCriteria( ReportingInstanceUsageEvent.class )
+          .setProjection( Projections.min( "timestampMs" ) )
+          .uniqueResult( );
+    } finally {
+      db.rollback( );
+    }
+  }
+
+  private static ReportingUsageRollupProgress createProgress( final long fromMs ) {
+    final EntityTransaction db = Entities.get( ReportingUsageRollupProgress.class );
+    try {
+      final ReportingUsageRollupProgress progress =
+          Entities.persist( new ReportingUsageRollupProgress( ROLLUP_TYPE, fromMs ) );
+      db.commit( );
+      return progress;
+    } finally {
+      if ( db.isActive( ) ) db.rollback( );
+    }
+  }
+
+  /**
+   * Roll up usage events in the given time range, updating progress.
+   */
+  @SuppressWarnings( "unchecked" )
+  private static int rollup( final long startMs,
+                             final long beginMs,
+                             final long endMs ) {
+    final EntityTransaction db = Entities.get( ReportingInstanceUsageRollup.class );
+    ScrollableResults results = null;
+    try {
+      final List<String> uuids = (List<String>) Entities.createCriteria( ReportingInstanceUsageEvent.class )
+          .add( Restrictions.ge( "timestampMs", beginMs ) )
+          .add( Restrictions.lt( "timestampMs", endMs ) )
+          .setProjection( Projections.distinct( Projections.property( "uuid" ) ) )
+          .list( );
+
+      final Map<List<String>, ReportingInstanceUsageRollupState> states = Maps.newHashMap( );
+      final Map<String, Long> creationTimes = Maps.newHashMap( );
+      for ( final List<String> uuidBatch : Iterables.partition( uuids, BATCH_SIZE ) ) {
+        final List<ReportingInstanceUsageRollupState> batchStates =
+            (List<ReportingInstanceUsageRollupState>) Entities.createCriteria( ReportingInstanceUsageRollupState.class )
+                .add( Restrictions.in( "uuid", uuidBatch ) )
+                .list( );
+        for ( final ReportingInstanceUsageRollupState state : batchStates ) {
+          states.put( InstanceUsageRollupFolder.key( state.getUuid( ), state.getMetric( ), state.getDimension( ) ), state );
+        }
+        final List<Object[]> batchCreationTimes = (List<Object[]>) Entities.createCriteria( ReportingInstanceCreateEvent.class )
+            .add( Restrictions.in( "uuid", uuidBatch ) )
+            .setProjection( Projections.projectionList( )
+                .add( Projections.groupProperty( "uuid" ) )
+                .add( Projections.min( "timestampMs" ) ) )
+            .list( );
+        for ( final Object[] creationTime : batchCreationTimes ) {
+          creationTimes.put( (String) creationTime[0], (Long) creationTime[1] );
+        }
+      }
+
+      int events = 0;
+      final InstanceUsageRollupFolder folder = new InstanceUsageRollupFolder( startMs, states, creationTimes );
+      results = Entities.createCriteria( ReportingInstanceUsageEvent.class )
+          .setReadOnly( true )
+          .setCacheable( false )
+          .setCacheMode( CacheMode.IGNORE )
+          .setFetchSize( 100 )
+          .add( Restrictions.ge( "timestampMs", beginMs ) )
+          .add( Restrictions.lt( "timestampMs", endMs ) )
+          .addOrder( Order.asc( "timestampMs" ) )
+          .scroll( ScrollMode.FORWARD_ONLY );
+      while ( results.next( ) ) {
+        final ReportingInstanceUsageEvent event = (ReportingInstanceUsageEvent) results.get( 0 );
+        if ( folder.fold( event ) ) events++;
+        Entities.evict( event );
+      }
+      results.close( );
+      results = null;
+
+      for ( final ReportingInstanceUsageRollupState state : folder.getCreatedStates( ) ) {
+        Entities.persist( state );
+      }
+      for ( final Resolution resolution : Resolution.values( ) ) {
+        mergeRollups( resolution, folder.getRollups( ) );
+      }
+
+      final ReportingUsageRollupProgress progress = lookupProgress( );
+      if ( progress == null ) {
+        throw new IllegalStateException( "Rollup progress not found" );
+      }
+      progress.setToMs( endMs );
+
+      db.commit( );
+      return events;
+    } catch ( RuntimeException e ) {
+      logger.error( "Error rolling up instance usage events", e );
+      throw e;
+    } finally {
+      if ( results != null ) try { results.close( ); } catch( Exception e ) { }
+      if ( db.isActive( ) ) db.rollback( );
+    }
+  }
+
+  /**
+   * Add the given rollups to any existing rollups for the same time.
+   */
+  @SuppressWarnings( "unchecked" )
+  private static void mergeRollups( final Resolution resolution,
+                                    final Iterable<ReportingInstanceUsageRollup> rollups ) {
+    final Map<String, List<ReportingInstanceUsageRollup>> rollupsByUuid = Maps.newHashMap( );
+    long minBucketMs = Long.MAX_VALUE;
+    long maxBucketMs = Long.MIN_VALUE;
+    for ( final ReportingInstanceUsageRollup rollup : rollups ) {
+      if ( rollup.getResolution( ) != resolution ) continue;
+      List<ReportingInstanceUsageRollup> uuidRollups = rollupsByUuid.get( rollup.getUuid( ) );
+      if ( uuidRollups == null ) {
+        uuidRollups = Lists.newArrayList( );
+        rollupsByUuid.put( rollup.getUuid( ), uuidRollups );
+      }
+      uuidRollups.add( rollup );
+      minBucketMs = Math.min( minBucketMs, rollup.getBucketMs( ) );
+      maxBucketMs = Math.max( maxBucketMs, rollup.getBucketMs( ) );
+    }
+
+    for ( final List<String> uuidBatch : Iterables.partition( rollupsByUuid.keySet( ), BATCH_SIZE ) ) {
+      final Map<List<Object>, ReportingInstanceUsageRollup> existingRollups = Maps.newHashMap( );
+      final List<ReportingInstanceUsageRollup> batchRollups =
+          (List<ReportingInstanceUsageRollup>) Entities.createCriteria( ReportingInstanceUsageRollup.class )
+              .add( Restrictions.in( "uuid", uuidBatch ) )
+              .add( Restrictions.eq( "resolution", resolution ) )
+              .add( Restrictions.ge( "bucketMs", minBucketMs ) )
+              .add( Restrictions.le( "bucketMs", maxBucketMs ) )
+              .list( );
+      for ( final ReportingInstanceUsageRollup rollup : batchRollups ) {
+        existingRollups.put( bucketKey( rollup ), rollup );
+      }
+      for ( final String uuid : uuidBatch ) {
+        for ( final ReportingInstanceUsageRollup rollup : rollupsByUuid.get( uuid ) ) {
+          final ReportingInstanceUsageRollup existingRollup = existingRollups.get( bucketKey( rollup ) );
+          if ( existingRollup == null ) {
+            Entities.persist( rollup );
+          } else {
+            existingRollup.addUsage( rollup.getUsage( ), rollup.getFromMs( ), rollup.getToMs( ) );
+          }
+        }
+      }
+    }
+  }
+
+  private static List<Object> bucketKey( final ReportingInstanceUsageRollup rollup ) {
+    return Lists.<Object>newArrayList( rollup.getUuid( ), rollup.getMetric( ), rollup.getDimension( ), rollup.getBucketMs( ) );
+  }
+}
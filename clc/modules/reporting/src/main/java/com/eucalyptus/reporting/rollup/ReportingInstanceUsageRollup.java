@@ -0,0 +1,170 @@
+/*************************************************************************
+ * Copyright 2009-2014 Eucalyptus Systems, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ *
+ * Please contact Eucalyptus Systems, Inc., 6755 Hollister Ave., Goleta
+ * CA 93117, USA or visit http://www.eucalyptus.com/licenses/ if you need
+ * additional information or have any questions.
+ ************************************************************************/
+package com.eucalyptus.reporting.rollup;
+
+import java.util.concurrent.TimeUnit;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.PersistenceContext;
+import javax.persistence.Table;
+import org.hibernate.annotations.Index;
+import com.eucalyptus.entities.AbstractPersistent;
+
+/**
+ * Instance usage for a uuid/metric/dimension combination within an hour or day.
+ *
+ * <p>The usage is the (fractional) portion of the usage between consecutive
+ * usage events that falls within the bucket. The from and to times are the
+ * earliest and latest times within the bucket covered by usage events.</p>
+ */
+@Entity
+@PersistenceContext( name = "eucalyptus_reporting" )
+@Table( name = "reporting_instance_usage_rollups" )
+public class ReportingInstanceUsageRollup extends AbstractPersistent {
+  private static final long serialVersionUID = 1L;
+
+  public enum Resolution {
+    Hour( TimeUnit.HOURS.toMillis( 1 ) ),
+    Day( TimeUnit.DAYS.toMillis( 1 ) ),
+    ;
+
+    private final long periodMs;
+
+    private Resolution( final long periodMs ) {
+      this.periodMs = periodMs;
+    }
+
+    public long getPeriodMs() {
+      return periodMs;
+    }
+
+    public long floor( final long timeMs ) {
+      return timeMs - ( timeMs % periodMs );
+    }
+
+    public long ceil( final long timeMs ) {
+      final long floor = floor( timeMs );
+      return floor == timeMs ? floor : floor + periodMs;
+    }
+  }
+
+  @Index( name = "reporting_instance_usage_rollups_uuid_idx" )
+  @Column( name = "uuid", nullable = false )
+  private String uuid;
+
+  @Column( name = "metric", nullable = false )
+  private String metric;
+
+  @Column( name = "dimension", nullable = false )
+  private String dimension;
+
+  @Column( name = "resolution", nullable = false )
+  @Enumerated( EnumType.STRING )
+  private Resolution resolution;
+
+  @Index( name = "reporting_instance_usage_rollups_bucket_idx" )
+  @Column( name = "bucket_ms", nullable = false )
+  private Long bucketMs;
+
+  @Column( name = "usage_value", nullable = false )
+  private Double usage;
+
+  @Column( name = "from_ms", nullable = false )
+  private Long fromMs;
+
+  @Column( name = "to_ms", nullable = false )
+  private Long toMs;
+
+  protected ReportingInstanceUsageRollup( ) {
+  }
+
+  public ReportingInstanceUsageRollup( final String uuid,
+                                       final String metric,
+                                       final String dimension,
+                                       final Resolution resolution,
+                                       final Long bucketMs,
+                                       final Double usage,
+                                       final Long fromMs,
+                                       final Long toMs ) {
+    this.uuid = uuid;
+    this.metric = metric;
+    this.dimension = dimension;
+    this.resolution = resolution;
+    this.bucketMs = bucketMs;
+    this.usage = usage;
+    this.fromMs = fromMs;
+    this.toMs = toMs;
+  }
+
+  public String getUuid() {
+    return uuid;
+  }
+
+  public String getMetric() {
+    return metric;
+  }
+
+  public String getDimension() {
+    return dimension;
+  }
+
+  public Resolution getResolution() {
+    return resolution;
+  }
+
+  public Long getBucketMs() {
+    return bucketMs;
+  }
+
+  public Double getUsage() {
+    return usage;
+  }
+
+  public Long getFromMs() {
+    return fromMs;
+  }
+
+  public Long getToMs() {
+    return toMs;
+  }
+
+  /**
+   * Add usage covering the given (in bucket) time range.
+   */
+  public void addUsage( final double usage, final long fromMs, final long toMs ) {
+    this.usage = this.usage + usage;
+    this.fromMs = Math.min( this.fromMs, fromMs );
+    this.toMs = Math.max( this.toMs, toMs );
+  }
+
+  @Override
+  public String toString() {
+    return "ReportingInstanceUsageRollup [uuid=" + uuid
+        + ", metric=" + metric
+        + ", dimension=" + dimension
+        + ", resolution=" + resolution
+        + ", bucketMs=" + bucketMs
+        + ", usage=" + usage
+        + ", fromMs=" + fromMs
+        + ", toMs=" + toMs + "]";
+  }
+}
@@ -0,0 +1,102 @@
+/*************************************************************************
+ * Copyright 2009-2014 Eucalyptus Systems, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ *
+ * Please contact Eucalyptus Systems, Inc., 6755 Hollister Ave., Goleta
+ * CA 93117, USA or visit http://www.eucalyptus.com/licenses/ if you need
+ * additional information or have any questions.
+ ************************************************************************/
+package com.eucalyptus.reporting.rollup;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.PersistenceContext;
+import javax.persistence.Table;
+import org.hibernate.annotations.Index;
+import com.eucalyptus.entities.AbstractPersistent;
+
+/**
+ * The last usage event rolled up for a uuid/metric/dimension combination.
+ *
+ * <p>Metric values are cumulative, so the last value and sequence number are
+ * needed to find the usage for the next event.</p>
+ */
+@Entity
+@PersistenceContext( name = "eucalyptus_reporting" )
+@Table( name = "reporting_instance_usage_rollup_states" )
+public class ReportingInstanceUsageRollupState extends AbstractPersistent {
+  private static final long serialVersionUID = 1L;
+
+  @Index( name = "reporting_instance_usage_rollup_states_uuid_idx" )
+  @Column( name = "uuid", nullable = false )
+  private String uuid;
+
+  @Column( name = "metric", nullable = false )
+  private String metric;
+
+  @Column( name = "dimension", nullable = false )
+  private String dimension;
+
+  @Column( name = "last_ms", nullable = false )
+  private Long lastMs;
+
+  @Column( name = "last_value", nullable = false )
+  private Double lastValue;
+
+  @Column( name = "last_sequence_num", nullable = false )
+  private Long lastSequenceNum;
+
+  protected ReportingInstanceUsageRollupState( ) {
+  }
+
+  public ReportingInstanceUsageRollupState( final String uuid,
+                                            final String metric,
+                                            final String dimension ) {
+    this.uuid = uuid;
+    this.metric = metric;
+    this.dimension = dimension;
+  }
+
+  public String getUuid() {
+    return uuid;
+  }
+
+  public String getMetric() {
+    return metric;
+  }
+
+  public String getDimension() {
+    return dimension;
+  }
+
+  public Long getLastMs() {
+    return lastMs;
+  }
+
+  public Double getLastValue() {
+    return lastValue;
+  }
+
+  public Long getLastSequenceNum() {
+    return lastSequenceNum;
+  }
+
+  public void update( final Long lastMs,
+                      final Double lastValue,
+                      final Long lastSequenceNum ) {
+    this.lastMs = lastMs;
+    this.lastValue = lastValue;
+    this.lastSequenceNum = lastSequenceNum;
+  }
+}
@@ -0,0 +1,77 @@
+/*************************************************************************
+ * Copyright 2009-2014 Eucalyptus Systems, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ *
+ * Please contact Eucalyptus Systems, Inc., 6755 Hollister Ave., Goleta
+ * CA 93117, USA or visit http://www.eucalyptus.com/licenses/ if you need
+ * additional information or have any questions.
+ ************************************************************************/
+package com.eucalyptus.reporting.rollup;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.PersistenceContext;
+import javax.persistence.Table;
+import com.eucalyptus.entities.AbstractPersistent;
+
+/**
+ * The time range for which usage events have been rolled up.
+ */
+@Entity
+@PersistenceContext( name = "eucalyptus_reporting" )
+@Table( name = "reporting_usage_rollup_progress" )
+public class ReportingUsageRollupProgress extends AbstractPersistent {
+  private static final long serialVersionUID = 1L;
+
+  @Column( name = "rollup_type", nullable = false, unique = true )
+  private String rollupType;
+
+  @Column( name = "from_ms", nullable = false )
+  private Long fromMs;
+
+  @Column( name = "to_ms", nullable = false )
+  private Long toMs;
+
+  protected ReportingUsageRollupProgress( ) {
+  }
+
+  public ReportingUsageRollupProgress( final String rollupType,
+                                       final Long fromMs ) {
+    this.rollupType = rollupType;
+    this.fromMs = fromMs;
+    this.toMs = fromMs;
+  }
+
+  public String getRollupType() {
+    return rollupType;
+  }
+
+  /**
+   * Usage before this time is not rolled up.
+   */
+  public Long getFromMs() {
+    return fromMs;
+  }
+
+  /**
+   * Usage events up to (but not including) this time have been rolled up.
+   */
+  public Long getToMs() {
+    return toMs;
+  }
+
+  public void setToMs( final Long toMs ) {
+    this.toMs = toMs;
+  }
+}
@@ -0,0 +1,125 @@
+/*************************************************************************
+ * Copyright 2009-2014 Eucalyptus Systems, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ *
+ * Please contact Eucalyptus Systems, Inc., 6755 Hollister Ave., Goleta
+ * CA 93117, USA or visit http://www.eucalyptus.com/licenses/ if you need
+ * additional information or have any questions.
+ ************************************************************************/
+package com.eucalyptus.reporting
+
+import static org.junit.Assert.*
+import org.junit.Test
+import com.eucalyptus.reporting.art.entity.AccountArtEntity
+import com.eucalyptus.reporting.art.entity.AvailabilityZoneArtEntity
+import com.eucalyptus.reporting.art.entity.InstanceArtEntity
+import com.eucalyptus.reporting.art.entity.InstanceUsageArtEntity
+import com.eucalyptus.reporting.art.entity.ReportArtEntity
+import com.eucalyptus.reporting.art.entity.UserArtEntity
+import com.eucalyptus.reporting.units.SizeUnit
+import com.eucalyptus.reporting.units.TimeUnit
+import com.eucalyptus.reporting.units.Units
+import com.google.common.base.Charsets
+
+/**
+ *
+ */
+class ReportGeneratorTest {
+
+  private static final long BEGIN = 1349049600000L
+  private static final long END = 1349827200000L
+
+  @Test
+  void testStreamedOutputMatchesExpected() {
+    ReportArtEntity art = art()
+    [ ReportFormat.HTML, ReportFormat.CSV ].each { ReportFormat format ->
+      String expected = expected( "instance-report.${format.name().toLowerCase()}" )
+
+      ByteArrayOutputStream streamed = new ByteArrayOutputStream()
+      BufferedOutputStream chunked = new BufferedOutputStream( streamed, 512 )
+      ReportGenerator.getInstance().renderReport( art, format, ReportType.INSTANCE, units(), chunked )
+      chunked.flush()
+
+      ByteArrayOutputStream buffered = new ByteArrayOutputStream()
+      ReportGenerator.getInstance().renderReport( art, format, ReportType.INSTANCE, units(), buffered )
+
+      assertEquals( format.toString() + " streamed output", expected, new String( streamed.toByteArray(), Charsets.UTF_8 ) )
+      assertEquals( format.toString() + " buffered output", expected, new String( buffered.toByteArray(), Charsets.UTF_8 ) )
+    }
+    assertTrue( "HTML streamed in chunks", writeCount( art, ReportFormat.HTML ) > 1 )
+  }
+
+  /**
+   * Count of writes to the underlying stream, the rendered output must exceed
+   * the 8KiB writer buffer for there to be more than one.
+   */
+  private int writeCount( ReportArtEntity art, ReportFormat format ) {
+    int writes = 0
+    ByteArrayOutputStream streamed = new ByteArrayOutputStream() {
+      @Override
+      synchronized void write( byte[] b, int off, int len ) {
+        writes++
+        super.write( b, off, len )
+      }
+    }
+    BufferedOutputStream chunked = new BufferedOutputStream( streamed, 512 )
+    ReportGenerator.getInstance().renderReport( art, format, ReportType.INSTANCE, units(), chunked )
+    chunked.flush()
+    writes
+  }
+
+  /**
+   * Expected output as rendered by the in-memory renderer before streaming,
+   * with instances listed in sorted rather than hash order.
+   */
+  private String expected( String name ) {
+    ReportGeneratorTest.class.getResource( name ).getText( "UTF-8" )
+        .replace( '${begin}', new Date( BEGIN ).toString() )
+        .replace( '${end}', new Date( END ).toString() )
+  }
+
+  /**
+   * Art with zones, accounts and instances added in reverse order
+   */
+  private ReportArtEntity art() {
+    ReportArtEntity art = new ReportArtEntity( BEGIN, END )
+    [ "zone-b", "zone-a" ].each { String zone ->
+      AvailabilityZoneArtEntity zoneArt = new AvailabilityZoneArtEntity()
+      art.getZones().put( zone, zoneArt )
+      [ "account-02", "account-01" ].each { String account ->
+        AccountArtEntity accountArt = new AccountArtEntity()
+        zoneArt.getAccounts().put( account, accountArt )
+        UserArtEntity userArt = new UserArtEntity()
+        accountArt.getUsers().put( "user-01", userArt )
+        ( 2..1 ).each { int instance ->
+          String instanceId = "i-" + zone[-1] + account[-1] + "0" + instance
+          InstanceUsageArtEntity usage = new InstanceUsageArtEntity()
+          usage.addInstanceCnt( 1 )
+          usage.setDurationMs( java.util.concurrent.TimeUnit.HOURS.toMillis( 12 * instance ) )
+          usage.addNetTotalInBytes( 3 * instance * SizeUnit.MB.factor )
+          usage.addCpuUtilizationMs( java.util.concurrent.TimeUnit.MINUTES.toMillis( 90 * instance ) )
+          userArt.getInstances().put( instanceId, new InstanceArtEntity( "m1.small", instanceId, usage ) )
+          zoneArt.getUsageTotals().getInstanceTotals().addUsage( usage )
+          accountArt.getUsageTotals().getInstanceTotals().addUsage( usage )
+          userArt.getUsageTotals().getInstanceTotals().addUsage( usage )
+        }
+      }
+    }
+    art
+  }
+
+  private Units units() {
+    new Units( TimeUnit.DAYS, SizeUnit.MB, TimeUnit.HOURS, SizeUnit.MB )
+  }
+}
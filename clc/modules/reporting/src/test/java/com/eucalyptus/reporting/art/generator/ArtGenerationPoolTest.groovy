@@ -0,0 +1,265 @@
+/*************************************************************************
+ * Copyright 2009-2014 Eucalyptus Systems, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ *
+ * Please contact Eucalyptus Systems, Inc., 6755 Hollister Ave., Goleta
+ * CA 93117, USA or visit http://www.eucalyptus.com/licenses/ if you need
+ * additional information or have any questions.
+ ************************************************************************/
+package com.eucalyptus.reporting.art.generator
+
+import static org.junit.Assert.*
+import org.apache.log4j.Logger
+import org.junit.Ignore
+import org.junit.Test
+import com.eucalyptus.reporting.ReportFormat
+import com.eucalyptus.reporting.ReportType
+import com.eucalyptus.reporting.art.entity.ReportArtEntity
+import com.eucalyptus.reporting.art.renderer.RendererFactory
+import com.eucalyptus.reporting.domain.ReportingAccount
+import com.eucalyptus.reporting.domain.ReportingUser
+import com.eucalyptus.reporting.event_store.ReportingInstanceCreateEvent
+import com.eucalyptus.reporting.event_store.ReportingInstanceUsageEvent
+import com.eucalyptus.reporting.units.SizeUnit
+import com.eucalyptus.reporting.units.TimeUnit as ReportTimeUnit
+import com.eucalyptus.reporting.units.Units
+import com.google.common.base.Charsets
+import com.google.common.base.Predicate
+import java.text.SimpleDateFormat
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.TimeUnit
+
+/**
+ * Tests and benchmark for parallel report generation.
+ */
+class ArtGenerationPoolTest {
+  private static final Logger LOG = Logger.getLogger( ArtGenerationPoolTest )
+
+  private static final long INTERVAL_MS = TimeUnit.MINUTES.toMillis( 20 )
+  private static Map<String,List<Object>> metricToDimensionAndStep = [
+      "NetworkIn" : [ "total", 4096.5d ],
+      "NetworkOutExternal": [ "default", 1024.25d ],
+      "CPUUtilization": [ "default", (double) TimeUnit.MINUTES.toMillis( 7 ) ],
+      "DiskReadOps": [ "vda", 333.3d ],
+  ]
+
+  @Test
+  void testSlices() {
+    ForkJoinPool pool = new ForkJoinPool( 4 )
+    try {
+      List<List<Long>> slices = ArtGenerationPool.scan( pool, 0, 1000, 10, new ArtGenerationPool.SliceScanner<List<List<Long>>>() {
+        @Override
+        List<List<Long>> scan( long beginMs, long endMs ) {
+          [ [ beginMs, endMs ] ]
+        }
+
+        @Override
+        List<List<Long>> combine( List<List<Long>> earlier, List<List<Long>> later ) {
+          earlier.addAll( later )
+          earlier
+        }
+      } )
+
+      assertEquals( "Slice count", 8, slices.size() )
+      assertEquals( "First slice begin", 0L, slices.get( 0 ).get( 0 ) )
+      assertEquals( "Last slice end", 1000L, slices.get( 7 ).get( 1 ) )
+      (1..7).each { int index ->
+        assertEquals( "Slice " + index + " begin", slices.get( index - 1 ).get( 1 ), slices.get( index ).get( 0 ) )
+      }
+    } finally {
+      pool.shutdown()
+    }
+  }
+
+  @Test
+  void testSlicedReportMatchesSerialReport() {
+    SyntheticUsageStore store = store( 12, 20, 0 )
+    Integer sliceHours = ArtGenerationPool.REPORT_GENERATION_SLICE_HOURS
+    try {
+      [ [ "2012-09-01T00:00:00", "2012-09-21T00:00:00" ],
+        [ "2012-09-03T10:30:00", "2012-09-12T17:15:00" ],
+        [ "2012-09-20T06:00:00", "2012-09-25T00:00:00" ] ].each { List<String> period ->
+        String serial = render( generator( store, null ).generateReportArt( report( period[0], period[1] ) ) )
+        [ 1, 24 ].each { int hours ->
+          ArtGenerationPool.REPORT_GENERATION_SLICE_HOURS = hours
+          [ 2, 3, 4 ].each { int threads ->
+            ForkJoinPool pool = new ForkJoinPool( threads )
+            try {
+              String sliced = render( generator( store, pool ).generateReportArt( report( period[0], period[1] ) ) )
+              assertEquals( "Report " + period + " threads " + threads + " slice hours " + hours, serial, sliced )
+            } finally {
+              pool.shutdown()
+            }
+          }
+        }
+      }
+    } finally {
+      ArtGenerationPool.REPORT_GENERATION_SLICE_HOURS = sliceHours
+    }
+  }
+
+  /**
+   * Benchmark report generation over a synthetic event store with a fixed latency for
+   * each batch of events fetched, as when scrolling through database results.
+   */
+  @Ignore("Manual development test")
+  @Test
+  void testParallelGenerationSpeedup() {
+    SyntheticUsageStore store = store( 20, 30, 1 )
+    int processors = Runtime.getRuntime().availableProcessors()
+    List<Integer> threadCounts = [ 1, 2, 4, 8, 16 ].findAll{ int threads -> threads == 1 || threads <= Math.max( 2, processors ) }
+    String serial = null
+    long serialMs = 0
+    threadCounts.each { int threads ->
+      ForkJoinPool pool = threads == 1 ? null : new ForkJoinPool( threads )
+      try {
+        long startMs = System.currentTimeMillis()
+        String output = render( generator( store, pool ).generateReportArt( report( "2012-09-01T00:00:00", "2012-10-01T00:00:00" ) ) )
+        long elapsedMs = System.currentTimeMillis() - startMs
+        if ( serial == null ) {
+          serial = output
+          serialMs = elapsedMs
+        } else {
+          assertEquals( "Report for " + threads + " threads", serial, output )
+        }
+        LOG.info( String.format( "Report generation with %2d threads (%d processors): %6d ms, speedup %.2f",
+            threads, processors, elapsedMs, serialMs / (double) Math.max( 1, elapsedMs ) ) )
+      } finally {
+        if ( pool != null ) pool.shutdown()
+      }
+    }
+  }
+
+  private InstanceArtGenerator generator( SyntheticUsageStore store, ForkJoinPool pool ) {
+    new InstanceArtGenerator() {
+      @Override
+      protected void foreachInstanceUsageEvent( final long startInclusive,
+                                                final long endExclusive,
+                                                final Predicate<? super ReportingInstanceUsageEvent> callback ) {
+        store.foreach( startInclusive, endExclusive, callback )
+      }
+
+      @Override
+      protected void foreachInstanceCreateEvent( final long endExclusive,
+                                                 final Predicate<? super ReportingInstanceCreateEvent> callback ) {
+        store.creates.findAll{ event ->
+          event.getTimestampMs() < endExclusive }.every { event -> callback.apply( event ) }
+      }
+
+      @Override
+      protected ForkJoinPool getGenerationPool() {
+        pool
+      }
+
+      @Override
+      protected ReportingUser getUserById( String userId ) {
+        new ReportingUser( userId, "account-" + userId.substring( userId.length() - 1 ), userId + "-name" )
+      }
+
+      @Override
+      protected ReportingAccount getAccountById( String accountId ) {
+        new ReportingAccount( accountId, accountId + "-name" )
+      }
+    }
+  }
+
+  /**
+   * Usage events for instances created at various times during the first days, with
+   * some instances terminated half way through and some with a sensor reset.
+   */
+  @SuppressWarnings("GroovyAccessibility")
+  private SyntheticUsageStore store( int instances, int days, long fetchLatencyMs ) {
+    long startMs = millis( "2012-09-01T00:00:00" )
+    List<ReportingInstanceCreateEvent> creates = []
+    List<ReportingInstanceUsageEvent> usage = []
+    (1..instances).each { int instance ->
+      String instanceId = String.format( "i-%08d", instance )
+      String uuid = UUID.nameUUIDFromBytes( instanceId.getBytes( Charsets.UTF_8 ) ).toString()
+      long createdMs = startMs + TimeUnit.MINUTES.toMillis( 97 * instance )
+      long lastMs = startMs + TimeUnit.DAYS.toMillis( instance % 5 == 0 ? days.intdiv( 2 ) : days )
+      long resetMs = instance % 3 == 0 ? startMs + TimeUnit.DAYS.toMillis( days.intdiv( 3 ) ) : Long.MAX_VALUE
+      creates << new ReportingInstanceCreateEvent( uuid, instanceId, createdMs,
+          "m1.small", "user-" + ( instance % 4 ), "zone-" + ( instance % 2 ) )
+      long count = 0
+      long sequence = 0
+      for ( long timestamp = createdMs + INTERVAL_MS; timestamp <= lastMs; timestamp += INTERVAL_MS ) {
+        if ( timestamp >= resetMs ) {
+          count = 0
+          sequence = 0
+          resetMs = Long.MAX_VALUE
+        } else {
+          count++
+          sequence++
+        }
+        metricToDimensionAndStep.each { metric, dimensionAndStep ->
+          usage << new ReportingInstanceUsageEvent( uuid, metric, sequence,
+              (String) dimensionAndStep[0], count * (Double) dimensionAndStep[1], timestamp )
+        }
+      }
+    }
+    new SyntheticUsageStore( creates, usage.sort{ event -> event.getTimestampMs() }, fetchLatencyMs )
+  }
+
+  private static class SyntheticUsageStore {
+    final List<ReportingInstanceCreateEvent> creates
+    final List<ReportingInstanceUsageEvent> usage
+    final long[] timestamps
+    final long fetchLatencyMs
+
+    SyntheticUsageStore( List<ReportingInstanceCreateEvent> creates,
+                         List<ReportingInstanceUsageEvent> usage,
+                         long fetchLatencyMs ) {
+      this.creates = creates
+      this.usage = usage
+      this.timestamps = usage.collect{ event -> event.getTimestampMs() } as long[]
+      this.fetchLatencyMs = fetchLatencyMs
+    }
+
+    void foreach( long startInclusive, long endExclusive, Predicate<? super ReportingInstanceUsageEvent> callback ) {
+      int index = Arrays.binarySearch( timestamps, startInclusive )
+      if ( index < 0 ) {
+        index = -index - 1
+      }
+      while ( index > 0 && timestamps[index - 1] == startInclusive ) {
+        index--
+      }
+      int fetched = 0
+      for ( ; index < timestamps.length && timestamps[index] < endExclusive; index++ ) {
+        if ( fetchLatencyMs > 0 && fetched++ % 100 == 0 ) {
+          Thread.sleep( fetchLatencyMs )
+        }
+        if ( !callback.apply( usage.get( index ) ) ) {
+          break
+        }
+      }
+    }
+  }
+
+  private String render( ReportArtEntity art ) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream()
+    RendererFactory.getRenderer( ReportType.INSTANCE, ReportFormat.CSV ).render( art, out,
+        new Units( ReportTimeUnit.DAYS, SizeUnit.MB, ReportTimeUnit.HOURS, SizeUnit.MB ) )
+    new String( out.toByteArray(), Charsets.UTF_8 )
+  }
+
+  private ReportArtEntity report( String begin, String end ) {
+    new ReportArtEntity( millis( begin ), millis( end ) )
+  }
+
+  private long millis( String timestamp ) {
+    final SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+    sdf.setTimeZone( TimeZone.getTimeZone( "UTC" ) )
+    sdf.parse( timestamp ).getTime()
+  }
+}
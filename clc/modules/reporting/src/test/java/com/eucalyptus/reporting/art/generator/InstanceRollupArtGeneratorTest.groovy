@@ -0,0 +1,286 @@
+/*************************************************************************
+ * Copyright 2009-2014 Eucalyptus Systems, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ *
+ * Please contact Eucalyptus Systems, Inc., 6755 Hollister Ave., Goleta
+ * CA 93117, USA or visit http://www.eucalyptus.com/licenses/ if you need
+ * additional information or have any questions.
+ ************************************************************************/
+package com.eucalyptus.reporting.art.generator
+
+import static org.junit.Assert.*
+import org.junit.Test
+import com.eucalyptus.reporting.ReportingDataVerifier
+import com.eucalyptus.reporting.art.entity.InstanceArtEntity
+import com.eucalyptus.reporting.art.entity.ReportArtEntity
+import com.eucalyptus.reporting.domain.ReportingAccount
+import com.eucalyptus.reporting.domain.ReportingUser
+import com.eucalyptus.reporting.event_store.ReportingInstanceCreateEvent
+import com.eucalyptus.reporting.event_store.ReportingInstanceUsageEvent
+import com.eucalyptus.reporting.rollup.InstanceUsageRollupFolder
+import com.eucalyptus.reporting.rollup.ReportingInstanceUsageRollup
+import com.eucalyptus.reporting.rollup.ReportingInstanceUsageRollup.Resolution
+import com.eucalyptus.reporting.rollup.ReportingUsageRollupProgress
+import com.eucalyptus.reporting.units.SizeUnit
+import com.google.common.base.Charsets
+import com.google.common.base.Predicate
+import java.text.SimpleDateFormat
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.TimeUnit
+
+/**
+ *
+ */
+class InstanceRollupArtGeneratorTest {
+  private static String ACCOUNT1 = "account1"
+  private static String USER1 = "user1"
+  private static String INSTANCE1 = "i-00000001"
+  private static String INSTANCE2 = "i-00000002"
+  private static String ZONE1 = "zone1"
+  private static String VMTYPE1 = "vmtype1"
+  private static Map<String,List<Object>> metricToDimensionAndStep = [
+      "NetworkIn" : [ "total", mbd(4) ],
+      "NetworkOut" : [ "total", mbd(8) ],
+      "NetworkInExternal": [ "default", mbd(4) ],
+      "NetworkOutExternal": [ "default", mbd(8) ],
+      "CPUUtilization": [ "default", (double) TimeUnit.MINUTES.toMillis( 20 ) ],
+      "DiskReadOps": [ "vda", 400d ],
+      "DiskWriteOps": [ "vda", 200d ],
+      "DiskReadBytes": [ "vda", mbd(40) ],
+      "DiskWriteBytes": [ "vda", mbd(20) ],
+      "VolumeTotalReadTime": [ "vda", 80d ],
+      "VolumeTotalWriteTime": [ "vda", 40d ],
+  ]
+
+  @Test
+  void testAlignedReport() {
+    ReportArtEntity eventArt = eventGenerator( ).generateReportArt( report( "2012-09-02T00:00:00", "2012-09-04T00:00:00" ) )
+    List<Long> searches = []
+    ReportArtEntity rollupArt = rollupGenerator( searches ).generateReportArt( report( "2012-09-02T00:00:00", "2012-09-04T00:00:00" ) )
+
+    assertEquals( "Differences", [], ReportingDataVerifier.getInstanceUsageDifferences( eventArt, rollupArt ) )
+    assertEquals( "Usage event searches", [], searches )
+    InstanceArtEntity instance = rollupArt.getZones().get( ZONE1 ).getAccounts().get( name(ACCOUNT1) ).getUsers().get( name(USER1) ).getInstances().get( uuid(INSTANCE1) )
+    assertNotNull( "Instance", instance )
+    assertEquals( "Instance count", 1, instance.getUsage().getInstanceCnt() )
+    assertEquals( "Duration", TimeUnit.HOURS.toMillis( 48 ), instance.getUsage().getDurationMs() )
+    assertEquals( "Net in (reset at 2012-09-03T12:00:00)", 47 * mb(4), instance.getUsage().getNetTotalInBytes() )
+    assertEquals( "Disk read ops", 47 * 400, instance.getUsage().getDiskReadOps() )
+    assertEquals( "Zone net in", 47 * mb(4), rollupArt.getZones().get( ZONE1 ).getUsageTotals().getInstanceTotals().getNetTotalInBytes() )
+  }
+
+  @Test
+  void testUnalignedReport() {
+    ReportArtEntity eventArt = eventGenerator( ).generateReportArt( report( "2012-09-01T10:30:00", "2012-09-04T17:15:00" ) )
+    List<Long> searches = []
+    ReportArtEntity rollupArt = rollupGenerator( searches ).generateReportArt( report( "2012-09-01T10:30:00", "2012-09-04T17:15:00" ) )
+
+    assertEquals( "Differences", [], ReportingDataVerifier.getInstanceUsageDifferences( eventArt, rollupArt ) )
+    assertEquals( "Usage event searches", [ millis( "2012-08-31T10:30:00" ), millis( "2012-09-03T17:00:00" ) ], searches )
+    assertEquals( "Zone net in",
+        eventArt.getZones().get( ZONE1 ).getUsageTotals().getInstanceTotals().getNetTotalInBytes(),
+        rollupArt.getZones().get( ZONE1 ).getUsageTotals().getInstanceTotals().getNetTotalInBytes() )
+  }
+
+  @Test
+  void testReportNotRolledUp() {
+    ReportArtEntity eventArt = eventGenerator( ).generateReportArt( report( "2012-09-04T12:00:00", "2012-09-05T12:00:00" ) )
+    List<Long> searches = []
+    ReportArtEntity rollupArt = rollupGenerator( searches ).generateReportArt( report( "2012-09-04T12:00:00", "2012-09-05T12:00:00" ) )
+
+    assertEquals( "Differences", [], ReportingDataVerifier.getInstanceUsageDifferences( eventArt, rollupArt ) )
+    assertEquals( "Usage event searches", [ millis( "2012-08-23T12:00:00" ) ], searches )
+  }
+
+  private ReportArtEntity report( String begin, String end ) {
+    new ReportArtEntity( millis( begin ), millis( end ) )
+  }
+
+  private InstanceArtGenerator eventGenerator( ) {
+    List<ReportingInstanceCreateEvent> instanceCreateList = instanceCreates( )
+    List<ReportingInstanceUsageEvent> instanceUsageList = instanceUsage( )
+    new InstanceArtGenerator() {
+      @Override
+      protected void foreachInstanceUsageEvent( final long startInclusive,
+                                                final long endExclusive,
+                                                final Predicate<? super ReportingInstanceUsageEvent> callback ) {
+        instanceUsageList.findAll{ event ->
+          startInclusive <= event.getTimestampMs() && event.getTimestampMs() < endExclusive
+        }.every { event -> callback.apply( event ) }
+      }
+
+      @Override
+      protected void foreachInstanceCreateEvent( final long endExclusive,
+                                                 final Predicate<? super ReportingInstanceCreateEvent> callback ) {
+        instanceCreateList.findAll{ event ->
+          event.getTimestampMs() < endExclusive }.every { event -> callback.apply( event ) }
+      }
+
+      @Override
+      protected ReportingUser getUserById(String userId) {
+        return user( userId, ACCOUNT1 )
+      }
+
+      @Override
+      protected ReportingAccount getAccountById(String accountId) {
+        return account( accountId )
+      }
+    }
+  }
+
+  /**
+   * Generator with usage rolled up to 2012-09-06T00:00:00
+   */
+  private InstanceRollupArtGenerator rollupGenerator( List<Long> usageEventSearches ) {
+    List<ReportingInstanceCreateEvent> instanceCreateList = instanceCreates( )
+    List<ReportingInstanceUsageEvent> instanceUsageList = instanceUsage( )
+    long startMs = Resolution.Hour.floor( instanceUsageList.get( 0 ).getTimestampMs( ) )
+    long rolledUpToMs = millis( "2012-09-06T00:00:00" )
+    Map<String,Long> creationTimes = [:]
+    instanceCreateList.each { event -> creationTimes.put( event.getUuid( ), event.getTimestampMs( ) ) }
+    InstanceUsageRollupFolder folder = new InstanceUsageRollupFolder( startMs, [:], creationTimes )
+    instanceUsageList.findAll{ event -> event.getTimestampMs() < rolledUpToMs }.each { event -> folder.fold( event ) }
+    List<ReportingInstanceUsageRollup> rollups = folder.getRollups( ) as List
+    ReportingUsageRollupProgress progress = new ReportingUsageRollupProgress( "instance", startMs )
+    progress.setToMs( rolledUpToMs )
+    new InstanceRollupArtGenerator() {
+      @Override
+      protected void foreachInstanceUsageEvent( final long startInclusive,
+                                                final long endExclusive,
+                                                final Predicate<? super ReportingInstanceUsageEvent> callback ) {
+        usageEventSearches << startInclusive
+        instanceUsageList.findAll{ event ->
+          startInclusive <= event.getTimestampMs() && event.getTimestampMs() < endExclusive
+        }.every { event -> callback.apply( event ) }
+      }
+
+      @Override
+      protected void foreachInstanceCreateEvent( final long endExclusive,
+                                                 final Predicate<? super ReportingInstanceCreateEvent> callback ) {
+        instanceCreateList.findAll{ event ->
+          event.getTimestampMs() < endExclusive }.every { event -> callback.apply( event ) }
+      }
+
+      @Override
+      protected ReportingUsageRollupProgress getRollupProgress() {
+        progress
+      }
+
+      @Override
+      protected ForkJoinPool getGenerationPool() {
+        null // serial scans for search assertions
+      }
+
+      @Override
+      protected void foreachInstanceUsageRollup( final Resolution resolution,
+                                                 final long beginMs,
+                                                 final long endMs,
+                                                 final Predicate<? super ReportingInstanceUsageRollup> callback ) {
+        Map<List<String>,ReportingInstanceUsageRollup> totals = [:]
+        rollups.findAll{ rollup ->
+          rollup.getResolution() == resolution && beginMs <= rollup.getBucketMs() && rollup.getBucketMs() < endMs
+        }.each { rollup ->
+          List<String> key = [ rollup.getUuid(), rollup.getMetric(), rollup.getDimension() ]
+          if ( totals.containsKey( key ) ) {
+            totals.get( key ).addUsage( rollup.getUsage(), rollup.getFromMs(), rollup.getToMs() )
+          } else {
+            totals.put( key, new ReportingInstanceUsageRollup( rollup.getUuid(), rollup.getMetric(), rollup.getDimension(),
+                resolution, beginMs, rollup.getUsage(), rollup.getFromMs(), rollup.getToMs() ) )
+          }
+        }
+        totals.values().every { rollup -> callback.apply( rollup ) }
+      }
+
+      @Override
+      protected ReportingUser getUserById(String userId) {
+        return user( userId, ACCOUNT1 )
+      }
+
+      @Override
+      protected ReportingAccount getAccountById(String accountId) {
+        return account( accountId )
+      }
+    }
+  }
+
+  @SuppressWarnings("GroovyAccessibility")
+  private List<ReportingInstanceCreateEvent> instanceCreates( ) {
+    [
+      new ReportingInstanceCreateEvent( uuid(INSTANCE1), INSTANCE1, millis("2012-08-31T00:00:00"), VMTYPE1, USER1, ZONE1 ),
+      new ReportingInstanceCreateEvent( uuid(INSTANCE2), INSTANCE2, millis("2012-09-02T05:30:00"), VMTYPE1, USER1, ZONE1 ),
+    ]
+  }
+
+  /**
+   * Hourly usage from 2012-09-01T00:00:00 to 2012-09-06T00:00:00 for instance 1
+   * with a sensor reset at 2012-09-03T12:00:00, and from 2012-09-02T06:15:00 to
+   * 2012-09-03T06:15:00 for instance 2.
+   */
+  private List<ReportingInstanceUsageEvent> instanceUsage( ) {
+    List<ReportingInstanceUsageEvent> instanceUsageList = []
+    addHourlyUsage( instanceUsageList, INSTANCE1, "2012-09-01T00:00:00", 120, 60 )
+    addHourlyUsage( instanceUsageList, INSTANCE2, "2012-09-02T06:15:00", 24, -1 )
+    instanceUsageList.sort{ event -> event.getTimestampMs() }
+  }
+
+  @SuppressWarnings("GroovyAccessibility")
+  private void addHourlyUsage( List<ReportingInstanceUsageEvent> instanceUsageList,
+                               String instanceId,
+                               String from,
+                               int hours,
+                               int resetHour ) {
+    (0..hours).each { hour ->
+      boolean reset = resetHour >= 0 && hour >= resetHour
+      long count = reset ? hour - resetHour : hour
+      long sequence = reset ? hour - resetHour : hour + 1
+      long timestamp = millis( from ) + TimeUnit.HOURS.toMillis( hour )
+      metricToDimensionAndStep.each { metric, dimensionAndStep ->
+        instanceUsageList << new ReportingInstanceUsageEvent( uuid(instanceId), metric, sequence,
+            (String) dimensionAndStep[0], count * (Double) dimensionAndStep[1], timestamp )
+      }
+    }
+  }
+
+  @SuppressWarnings("GroovyAccessibility")
+  private ReportingUser user( String id, String accountId ) {
+    new ReportingUser( id, accountId, name(id) )
+  }
+
+  @SuppressWarnings("GroovyAccessibility")
+  private ReportingAccount account( String id ) {
+    new ReportingAccount( id, name(id) )
+  }
+
+  private String name( String id ) {
+    id + "-name"
+  }
+
+  private long millis( String timestamp ) {
+    final SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+    sdf.setTimeZone( TimeZone.getTimeZone( "UTC" ) )
+    sdf.parse( timestamp ).getTime()
+  }
+
+  private String uuid( String seed ) {
+    UUID.nameUUIDFromBytes( seed.getBytes(Charsets.UTF_8) ).toString();
+  }
+
+  private static Double mbd( int mibibytes ) {
+    (double) mb(mibibytes)
+  }
+
+  private static long mb( int mibibytes ) {
+    mibibytes * SizeUnit.MB.factor
+  }
+}
@@ -109,6 +109,14 @@ public class WalrusInfo extends AbstractPersistent {
             type = ConfigurableFieldType.BOOLEAN, initial = "" + false)
     @Column( name = "storage_walrus_bucket_names_require_compliance")
     private Boolean bucketNamesRequireDnsCompliance;
+	@ConfigurableField( description = "Whether Walrus sends uncompressed objects over non-SSL connections directly from the file system",
+			displayName = "Walrus zero-copy object transfer",
+			type = ConfigurableFieldType.BOOLEAN, initial = "" + true)
+	@Column( name = "storage_walrus_zero_copy_send")
+	private Boolean zeroCopySend;
+	@ConfigurableField( description = "Chunk size used when streaming objects that cannot be sent zero-copy", displayName = "Walrus object send chunk size (bytes)" )
+	@Column( name = "storage_walrus_send_chunk_size")
+	private Integer sendChunkSize;
 
 	private static final Logger LOG = Logger.getLogger(WalrusInfo.class);
 
@@ -121,7 +129,9 @@ public class WalrusInfo extends AbstractPersistent {
 			final Integer storageMaxCacheSizeInMB,
 			final Integer storageMaxTotalSnapshotSizeInGb,
 			final Integer storageMaxObjectCapacity,
-            final Boolean bucketNamesRequireDnsCompliance)
+            final Boolean bucketNamesRequireDnsCompliance,
+			final Boolean zeroCopySend,
+			final Integer sendChunkSize)
 	{
 		this.name = name;
 		this.storageDir = storageDir;
@@ -131,6 +141,8 @@ public class WalrusInfo extends AbstractPersistent {
 		this.storageMaxTotalSnapshotSizeInGb = storageMaxTotalSnapshotSizeInGb;
 		this.storageMaxTotalCapacity = storageMaxObjectCapacity;
         this.bucketNamesRequireDnsCompliance = bucketNamesRequireDnsCompliance;
+		this.zeroCopySend = zeroCopySend;
+		this.sendChunkSize = sendChunkSize;
 	}
 
 	public String getName() {
@@ -197,6 +209,22 @@ public class WalrusInfo extends AbstractPersistent {
         this.bucketNamesRequireDnsCompliance = bucketNamesRequireDnsCompliance;
     }
 
+	public Boolean getZeroCopySend() {
+		return zeroCopySend;
+	}
+
+	public void setZeroCopySend( final Boolean zeroCopySend ) {
+		this.zeroCopySend = zeroCopySend;
+	}
+
+	public Integer getSendChunkSize() {
+		return sendChunkSize;
+	}
+
+	public void setSendChunkSize( final Integer sendChunkSize ) {
+		this.sendChunkSize = sendChunkSize;
+	}
+
     @Override
 	public int hashCode() {
 		final int prime = 31;
@@ -253,6 +281,12 @@ public class WalrusInfo extends AbstractPersistent {
                 walrusInfo.setBucketNamesRequireDnsCompliance(
                         new Boolean( WalrusProperties.BUCKET_NAMES_REQUIRE_DNS_COMPLIANCE ));
             }
+			if (walrusInfo.getZeroCopySend() == null) {
+				walrusInfo.setZeroCopySend(WalrusProperties.ZERO_COPY_SEND);
+			}
+			if (walrusInfo.getSendChunkSize() == null) {
+				walrusInfo.setSendChunkSize(WalrusProperties.SEND_CHUNK_SIZE);
+			}
 		} catch(Exception ex) {
 			walrusInfo = new WalrusInfo(WalrusProperties.NAME, 
 					WalrusProperties.bucketRootDirectory, 
@@ -261,7 +295,9 @@ public class WalrusInfo extends AbstractPersistent {
 					(int)(WalrusProperties.IMAGE_CACHE_SIZE / WalrusProperties.M),
 					WalrusProperties.MAX_TOTAL_SNAPSHOT_SIZE,
 					estimateWalrusCapacity(),
-                    new Boolean(WalrusProperties.BUCKET_NAMES_REQUIRE_DNS_COMPLIANCE));
+                    new Boolean(WalrusProperties.BUCKET_NAMES_REQUIRE_DNS_COMPLIANCE),
+					WalrusProperties.ZERO_COPY_SEND,
+					WalrusProperties.SEND_CHUNK_SIZE);
 			db.add(walrusInfo);     
 		} finally {
 			db.commit();
@@ -94,6 +94,8 @@ public class WalrusProperties {
 	public static int MAX_KEYS = 1000;
 
 	public static int IO_CHUNK_SIZE = 102400;
+	public static final boolean ZERO_COPY_SEND = true;
+	public static final int SEND_CHUNK_SIZE = 8192;
 	public static boolean shouldEnforceUsageLimits = true;
 	public static boolean trackUsageStatistics = false;
 	public static boolean enableTorrents = false;
@@ -111,6 +111,11 @@ public class WalrusRESTPipeline extends FilteredPipeline {
 		return (!isSoapRequest(message) && !isPostRequest(message)) && 
 				(isWalrusHostName(hostHeader) || isWalrusServicePathRequest(uriPath, hostHeader));
 	}
+
+	@Override
+	public boolean checkRoutable( String path, boolean soap ) {
+		return !soap;
+	}
 	
 	private static boolean isPostRequest(HttpRequest message ) {
 		return message.getMethod().getName().equals(WalrusProperties.HTTPVerb.POST.toString());		
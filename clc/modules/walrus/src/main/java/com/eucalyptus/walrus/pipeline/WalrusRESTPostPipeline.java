@@ -95,6 +95,11 @@ public class WalrusRESTPostPipeline extends FilteredPipeline {
 				(message instanceof MappingHttpRequest  ? !(((MappingHttpRequest)message).getQuery().contains("uploads") || ((MappingHttpRequest)message).getQuery().contains("uploadId")): true));		
 	}
 
+	@Override
+	public boolean checkRoutable( String path, boolean soap ) {
+		return !soap;
+	}
+
 	@Override
 	public String getName( ) {
 		return "walrus-rest";
@@ -64,6 +64,7 @@ package com.eucalyptus.walrus.storage;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -76,8 +77,11 @@ import org.apache.log4j.Logger;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.DefaultFileRegion;
+import org.jboss.netty.channel.FileRegion;
 import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
 import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.ssl.SslHandler;
 import org.jboss.netty.handler.stream.ChunkedInput;
 
 import com.eucalyptus.context.Contexts;
@@ -327,12 +331,8 @@ public class FileSystemStorageManager implements StorageManager {
 			httpResponse.addHeader(HttpHeaders.Names.LAST_MODIFIED, lastModified);
 			if(contentDisposition != null)
 				httpResponse.addHeader("Content-Disposition", contentDisposition);
-			final ChunkedInput file;
 			isCompressed = isCompressed == null ? false : isCompressed;
-			if(isCompressed) {
-				file = new CompressedChunkedFile(raf, size);
-			} else {
-				file = new ChunkedDataFile(raf, 0, size, 8192);
+			if(!isCompressed) {
 				httpResponse.addHeader( HttpHeaders.Names.CONTENT_LENGTH, String.valueOf(size));
 			}
 			if(logData != null) {
@@ -343,16 +343,7 @@ public class FileSystemStorageManager implements StorageManager {
 				httpResponse.addHeader(WalrusProperties.X_AMZ_VERSION_ID, versionId);
 			}
 			channel.write(httpResponse);
-			channel.write(file).addListener(new ChannelFutureListener( ) {
-				@Override public void operationComplete( ChannelFuture future ) throws Exception {
-					Contexts.clear(request.getCorrelationId());
-					file.close();
-					if(logData != null) {
-						logData.setTotalTime(System.currentTimeMillis() - logData.getTotalTime());
-						WalrusBucketLogger.getInstance().addLogEntry(logData);	
-					}
-				}
-			});
+			writeObject(request, channel, raf, 0, size, isCompressed, logData);
 		} catch(Exception ex) {
 			LOG.error(ex, ex);
 		}	
@@ -368,38 +359,75 @@ public class FileSystemStorageManager implements StorageManager {
 			httpResponse.addHeader(HttpHeaders.Names.LAST_MODIFIED, lastModified);
 			if(contentDisposition != null)
 				httpResponse.addHeader("Content-Disposition", contentDisposition);
-			final ChunkedInput file;
 			isCompressed = isCompressed == null ? false : isCompressed;
-			if(isCompressed) {
-				file = new CompressedChunkedFile(raf, start, end, (int)Math.min((end - start), 8192));
-			} else {
-				file = new ChunkedDataFile(raf, start, (int)(end - start), (int)Math.min((end - start), 8192));
+			if(!isCompressed) {
 				httpResponse.addHeader( HttpHeaders.Names.CONTENT_LENGTH, String.valueOf((end - start)));
 			}
 			httpResponse.addHeader("Content-Range", start + "-" + (end -1) + "/" + size);		
 			if(logData != null) {
 				logData.setTurnAroundTime(System.currentTimeMillis() - logData.getTurnAroundTime());
-				logData.setBytesSent(size);
+				logData.setBytesSent(end - start);
 			}
 			if(versionId != null) {
 				httpResponse.addHeader(WalrusProperties.X_AMZ_VERSION_ID, versionId);
 			}
 			channel.write(httpResponse);
-			channel.write(file).addListener(new ChannelFutureListener( ) {
-				@Override public void operationComplete( ChannelFuture future ) throws Exception {
-					Contexts.clear(request.getCorrelationId());
-					file.close();
-					if(logData != null) {
-						logData.setTotalTime(System.currentTimeMillis() - logData.getTotalTime());
-						WalrusBucketLogger.getInstance().addLogEntry(logData);
-					}
-				}
-			});
+			writeObject(request, channel, raf, start, end - start, isCompressed, logData);
 		} catch(Exception ex) {
 			LOG.error(ex, ex);
 		}	
 	}
 
+	/**
+	 * Write object content following the response headers.
+	 *
+	 * Uncompressed content on a connection without SSL is sent as a file region so the
+	 * transfer happens in the kernel, otherwise the content is streamed in chunks.
+	 */
+	private void writeObject(final WalrusDataGetRequestType request, final Channel channel, final RandomAccessFile raf, final long start, final long length, final boolean isCompressed, final BucketLogData logData) throws IOException {
+		final WalrusInfo walrusInfo = WalrusInfo.getWalrusInfo();
+		final ChannelFuture writeFuture;
+		final Closeable content;
+		if(!isCompressed && !Boolean.FALSE.equals(walrusInfo.getZeroCopySend()) && channel.getPipeline().get(SslHandler.class) == null) {
+			final FileRegion region = new DefaultFileRegion(raf.getChannel(), start, length);
+			content = new Closeable() {
+				@Override public void close() throws IOException {
+					region.releaseExternalResources();
+					raf.close();
+				}
+			};
+			writeFuture = channel.write(region);
+		} else {
+			final int chunkSize = (int)Math.max(1, Math.min(length, walrusInfo.getSendChunkSize() == null ? WalrusProperties.SEND_CHUNK_SIZE : walrusInfo.getSendChunkSize()));
+			final ChunkedInput file;
+			if(isCompressed) {
+				file = new CompressedChunkedFile(raf, start, start + length, chunkSize);
+			} else {
+				file = new ChunkedDataFile(raf, start, length, chunkSize);
+			}
+			content = new Closeable() {
+				@Override public void close() throws IOException {
+					try {
+						file.close();
+					} catch(Exception ex) {
+						throw new IOException(ex);
+					}
+				}
+			};
+			writeFuture = channel.write(file);
+		}
+		writeFuture.addListener(new ChannelFutureListener( ) {
+			@Override public void operationComplete( ChannelFuture future ) throws Exception {
+				Contexts.clear(request.getCorrelationId());
+				content.close();
+				if(logData != null) {
+					logData.setTotalTime(System.currentTimeMillis() - logData.getTotalTime());
+					WalrusBucketLogger.getInstance().addLogEntry(logData);
+				}
+			}
+		});
+	}
+
 	public void sendHeaders(final WalrusDataGetRequestType request, DefaultHttpResponse httpResponse, Long size, String etag,
 			String lastModified, String contentType, String contentDisposition, String versionId, final BucketLogData logData) {
 		Channel channel = request.getChannel();
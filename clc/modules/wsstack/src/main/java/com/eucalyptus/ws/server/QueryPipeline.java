@@ -125,6 +125,11 @@ public abstract class QueryPipeline extends FilteredPipeline {
     return false;
   }
 
+  @Override
+  public boolean checkRoutable( final String path, final boolean soap ) {
+    return path.startsWith( servicePathPrefix ) || path.isEmpty( ) || path.equals( "/" );
+  }
+
   @Override
   public String getName( ) {
     return name;
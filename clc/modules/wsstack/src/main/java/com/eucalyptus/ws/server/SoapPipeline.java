@@ -58,6 +58,11 @@ public abstract class SoapPipeline extends FilteredPipeline {
                 ( noPath && resolvesByHost( message.getHeader( HttpHeaders.Names.HOST ) ) ) );
   }
 
+  @Override
+  public boolean checkRoutable( final String path, final boolean soap ) {
+    return soap;
+  }
+
   @Override
   public String getName( ) {
     return name;
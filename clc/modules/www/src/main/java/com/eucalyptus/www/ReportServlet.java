@@ -119,13 +119,21 @@ public class ReportServlet
 		 */
 		setContentTypeHeader(res, format, Param.type.get(req));
 		
-		/* Generate the report and send it thru the OutputStream
+		/* Generate the report and render it thru the OutputStream. Output is
+		 * buffered up to the first chunk, so an early failure is returned as
+		 * an error. Once part of the report was sent the request is failed
+		 * so the connection is aborted rather than ending a truncated report.
 		 */
 		try {
-			String report = ReportGenerationFacade.generateReport( reportType, format.name(), period.getBeginningMs(), period.getEndingMs() );
-			res.getWriter().print( report );
+			ReportGenerationFacade.generateReport( reportType, format.name(), null, period.getBeginningMs(), period.getEndingMs(), res.getOutputStream() );
 		} catch (ReportGenerationFacade.ReportGenerationException e) {
 			LOG.error( e, e );
+			if ( !res.isCommitted() ) {
+				res.reset();
+				res.sendError( HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Error generating report" );
+			} else {
+				throw new ServletException( "Error generating report", e );
+			}
 		}
 	}
 